@@ -165,10 +165,16 @@ public class BitcoinSerializer extends MessageSerializer {
     public Message deserializePayload(BitcoinPacketHeader header, ByteBuffer in) throws ProtocolException, BufferUnderflowException {
         byte[] payloadBytes = new byte[header.size];
         in.get(payloadBytes, 0, header.size);
+        return deserializePayload(header, payloadBytes, Sha256Hash.hashTwice(payloadBytes));
+    }
 
+    /**
+     * Deserialize a payload that was already read in full, given its double SHA-256 hash. The checksum in the header
+     * is verified against the hash.
+     */
+    @Override
+    public Message deserializePayload(BitcoinPacketHeader header, byte[] payloadBytes, byte[] hash) throws ProtocolException {
         // Verify the checksum.
-        byte[] hash;
-        hash = Sha256Hash.hashTwice(payloadBytes);
         if (header.checksum[0] != hash[0] || header.checksum[1] != hash[1] ||
                 header.checksum[2] != hash[2] || header.checksum[3] != hash[3]) {
             throw new ProtocolException("Checksum failed to verify, actual " +
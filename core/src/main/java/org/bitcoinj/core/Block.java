@@ -62,6 +62,15 @@ public class Block extends Message {
      */
     public static final int HEADER_SIZE = 80;
 
+    /**
+     * How many bytes a Zcash style block header takes before its Equihash solution, see
+     * {@link NetworkParameters#hasEquihashHeaders()}.
+     */
+    public static final int EQUIHASH_HEADER_SIZE = 140;
+
+    /** Length of the nonce in a Zcash style block header. */
+    public static final int EQUIHASH_NONCE_SIZE = 32;
+
     static final long ALLOWED_TIME_DRIFT = 2 * 60 * 60; // Same value as Bitcoin Core.
 
     /**
@@ -113,7 +122,12 @@ public class Block extends Message {
     private long time;
     private long difficultyTarget; // "nBits"
     private long nonce;
-    private ArrayList<Character> nSolution; //Komodo specific (zcash blockheader)
+    // Komodo specific (zcash blockheader): the full 256 bit nonce, of which nonce above mirrors the first four bytes,
+    // and the Equihash solution. Both are null on networks with Bitcoin style headers.
+    @Nullable private byte[] equihashNonce;
+    @Nullable private byte[] solution;
+    // Number of bytes the header takes in the payload, including the solution and its length prefix.
+    private int headerLength = HEADER_SIZE;
 
     // TODO: Get rid of all the direct accesses to this field. It's a long-since unnecessary holdover from the Dalvik days.
     /**
@@ -145,8 +159,9 @@ public class Block extends Message {
         difficultyTarget = 0x1d07fff8L;
         time = System.currentTimeMillis() / 1000;
         prevBlockHash = Sha256Hash.ZERO_HASH;
+        initEquihashFields();
 
-        length = HEADER_SIZE;
+        length = headerLength;
     }
 
     /**
@@ -230,10 +245,23 @@ public class Block extends Message {
         this.time = time;
         this.difficultyTarget = difficultyTarget;
         this.nonce = nonce;
+        initEquihashFields();
         this.transactions = new LinkedList<>();
         this.transactions.addAll(transactions);
     }
 
+    // Gives a freshly constructed block an all zero reserved hash and nonce and an empty solution, if this network uses
+    // Zcash style headers.
+    private void initEquihashFields() {
+        if (!params.hasEquihashHeaders())
+            return;
+        hashReserved = Sha256Hash.ZERO_HASH;
+        equihashNonce = new byte[EQUIHASH_NONCE_SIZE];
+        Utils.uint32ToByteArrayLE(nonce, equihashNonce, 0);
+        solution = new byte[0];
+        headerLength = EQUIHASH_HEADER_SIZE + VarInt.sizeOf(0);
+    }
+
 
     /**
      * <p>A utility method that calculates how much new Bitcoin would be created by the block at the given height.
@@ -257,7 +285,7 @@ public class Block extends Message {
      */
     protected void parseTransactions(final int transactionsOffset) throws ProtocolException {
         cursor = transactionsOffset;
-        optimalEncodingMessageSize = HEADER_SIZE;
+        optimalEncodingMessageSize = transactionsOffset - offset;
         if (payload.length == cursor) {
             // This message is just a header, it has no transactions.
             transactionBytesValid = false;
@@ -285,17 +313,43 @@ public class Block extends Message {
         version = readUint32();
         prevBlockHash = readHash();
         merkleRoot = readHash();
-        time = readUint32();
-        difficultyTarget = readUint32();
-        nonce = readUint32();
-        hash = Sha256Hash.wrapReversed(Sha256Hash.hashTwice(payload, offset, cursor - offset));
+        if (params.hasEquihashHeaders()) {
+            hashReserved = readHash();
+            time = readUint32();
+            difficultyTarget = readUint32();
+            equihashNonce = readBytes(EQUIHASH_NONCE_SIZE);
+            nonce = Utils.readUint32(equihashNonce, 0);
+            solution = readByteArray();
+        } else {
+            time = readUint32();
+            difficultyTarget = readUint32();
+            nonce = readUint32();
+        }
+        headerLength = cursor - offset;
+        // The header is hashed straight from the payload, including the solution if there is one.
+        hash = Sha256Hash.wrapReversed(Sha256Hash.hashTwice(payload, offset, headerLength));
         headerBytesValid = serializer.isParseRetainMode();
 
         // transactions
-        parseTransactions(offset + HEADER_SIZE);
+        parseTransactions(offset + headerLength);
         length = cursor - offset;
     }
 
+    /**
+     * Returns the number of bytes taken by the serialized header starting at offset, which for networks with Zcash
+     * style headers depends on the length of the Equihash solution.
+     */
+    static int headerLength(NetworkParameters params, byte[] payload, int offset) throws ProtocolException {
+        if (!params.hasEquihashHeaders())
+            return HEADER_SIZE;
+        try {
+            VarInt solutionLength = new VarInt(payload, offset + EQUIHASH_HEADER_SIZE);
+            return EQUIHASH_HEADER_SIZE + solutionLength.getOriginalSizeInBytes() + (int) solutionLength.value;
+        } catch (ArrayIndexOutOfBoundsException e) {
+            throw new ProtocolException(e);
+        }
+    }
+
     public int getOptimalEncodingMessageSize() {
         if (optimalEncodingMessageSize != 0)
             return optimalEncodingMessageSize;
@@ -306,17 +360,26 @@ public class Block extends Message {
     // default for testing
     void writeHeader(OutputStream stream) throws IOException {
         // try for cached write first
-        if (headerBytesValid && payload != null && payload.length >= offset + HEADER_SIZE) {
-            stream.write(payload, offset, HEADER_SIZE);
+        if (headerBytesValid && payload != null && payload.length >= offset + headerLength) {
+            stream.write(payload, offset, headerLength);
             return;
         }
         // fall back to manual write
         Utils.uint32ToByteStreamLE(version, stream);
         stream.write(prevBlockHash.getReversedBytes());
         stream.write(getMerkleRoot().getReversedBytes());
-        Utils.uint32ToByteStreamLE(time, stream);
-        Utils.uint32ToByteStreamLE(difficultyTarget, stream);
-        Utils.uint32ToByteStreamLE(nonce, stream);
+        if (solution != null) {
+            stream.write(hashReserved.getReversedBytes());
+            Utils.uint32ToByteStreamLE(time, stream);
+            Utils.uint32ToByteStreamLE(difficultyTarget, stream);
+            stream.write(equihashNonce);
+            stream.write(new VarInt(solution.length).encode());
+            stream.write(solution);
+        } else {
+            Utils.uint32ToByteStreamLE(time, stream);
+            Utils.uint32ToByteStreamLE(difficultyTarget, stream);
+            Utils.uint32ToByteStreamLE(nonce, stream);
+        }
     }
 
     private void writeTransactions(OutputStream stream) throws IOException {
@@ -328,7 +391,7 @@ public class Block extends Message {
 
         // confirmed we must have transactions either cached or as objects.
         if (transactionBytesValid && payload != null && payload.length >= offset + length) {
-            stream.write(payload, offset + HEADER_SIZE, length - HEADER_SIZE);
+            stream.write(payload, offset + headerLength, length - headerLength);
             return;
         }
 
@@ -361,7 +424,7 @@ public class Block extends Message {
 
         // At least one of the two cacheable components is invalid
         // so fall back to stream write since we can't be sure of the length.
-        ByteArrayOutputStream stream = new UnsafeByteArrayOutputStream(length == UNKNOWN_LENGTH ? HEADER_SIZE + guessTransactionsLength() : length);
+        ByteArrayOutputStream stream = new UnsafeByteArrayOutputStream(length == UNKNOWN_LENGTH ? headerLength + guessTransactionsLength() : length);
         try {
             writeHeader(stream);
             writeTransactions(stream);
@@ -388,7 +451,7 @@ public class Block extends Message {
      */
     private int guessTransactionsLength() {
         if (transactionBytesValid)
-            return payload.length - HEADER_SIZE;
+            return payload.length - headerLength;
         if (transactions == null)
             return 0;
         int len = VarInt.sizeOf(transactions.size());
@@ -431,7 +494,7 @@ public class Block extends Message {
      */
     private Sha256Hash calculateHash() {
         try {
-            ByteArrayOutputStream bos = new UnsafeByteArrayOutputStream(HEADER_SIZE);
+            ByteArrayOutputStream bos = new UnsafeByteArrayOutputStream(headerLength);
             writeHeader(bos);
             return Sha256Hash.wrapReversed(Sha256Hash.hashTwice(bos.toByteArray()));
         } catch (IOException e) {
@@ -497,6 +560,13 @@ public class Block extends Message {
         block.version = version;
         block.time = time;
         block.difficultyTarget = difficultyTarget;
+        // The nonce and solution arrays are never modified in place, so they can be shared with the copy.
+        block.hashReserved = hashReserved;
+        block.equihashNonce = equihashNonce;
+        block.solution = solution;
+        block.headerLength = solution != null ? EQUIHASH_HEADER_SIZE + VarInt.sizeOf(solution.length) + solution.length
+                : HEADER_SIZE;
+        block.length = block.headerLength;
         block.transactions = null;
         block.hash = getHash();
     }
@@ -520,7 +590,13 @@ public class Block extends Message {
         s.append("   merkle root: ").append(getMerkleRoot()).append("\n");
         s.append("   time: ").append(time).append(" (").append(Utils.dateTimeFormat(time * 1000)).append(")\n");
         s.append("   difficulty target (nBits): ").append(difficultyTarget).append("\n");
-        s.append("   nonce: ").append(nonce).append("\n");
+        if (solution != null) {
+            s.append("   reserved: ").append(hashReserved).append("\n");
+            s.append("   nonce: ").append(Utils.HEX.encode(equihashNonce)).append("\n");
+            s.append("   solution: ").append(solution.length).append(" bytes\n");
+        } else {
+            s.append("   nonce: ").append(nonce).append("\n");
+        }
         if (transactions != null && transactions.size() > 0) {
             s.append("   with ").append(transactions.size()).append(" transaction(s):\n");
             for (Transaction tx : transactions) {
@@ -890,9 +966,56 @@ public class Block extends Message {
     public void setNonce(long nonce) {
         unCacheHeader();
         this.nonce = nonce;
+        if (equihashNonce != null) {
+            byte[] newNonce = Arrays.copyOf(equihashNonce, EQUIHASH_NONCE_SIZE);
+            Utils.uint32ToByteArrayLE(nonce, newNonce, 0);
+            equihashNonce = newNonce;
+        }
         this.hash = null;
     }
 
+    /**
+     * Returns the reserved hash that follows the merkle root in a Zcash style header (Komodo uses it for the final
+     * Sapling root), or null if this network uses Bitcoin style headers.
+     */
+    @Nullable
+    public Sha256Hash getHashReserved() {
+        return hashReserved;
+    }
+
+    /**
+     * Returns a copy of the 256 bit nonce of a Zcash style header as it appears on the wire, or null if this network
+     * uses Bitcoin style headers. {@link #getNonce()} returns its first four bytes.
+     */
+    @Nullable
+    public byte[] getEquihashNonce() {
+        return equihashNonce == null ? null : Arrays.copyOf(equihashNonce, equihashNonce.length);
+    }
+
+    /**
+     * Returns what the Equihash solution of a Zcash style header is computed over: the header up to and including the
+     * nonce.
+     */
+    byte[] getEquihashInput() {
+        Preconditions.checkState(solution != null, "Not a Zcash style header");
+        UnsafeByteArrayOutputStream stream = new UnsafeByteArrayOutputStream(headerLength);
+        try {
+            writeHeader(stream);
+        } catch (IOException e) {
+            throw new RuntimeException(e); // Cannot happen.
+        }
+        return Arrays.copyOf(stream.toByteArray(), EQUIHASH_HEADER_SIZE);
+    }
+
+    /**
+     * Returns a copy of the Equihash solution of a Zcash style header, or null if this network uses Bitcoin style
+     * headers.
+     */
+    @Nullable
+    public byte[] getSolution() {
+        return solution == null ? null : Arrays.copyOf(solution, solution.length);
+    }
+
     /**
      * Returns an immutable list of transactions held in this block, or null if this object represents just a header.
      */
@@ -0,0 +1,529 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.core;
+
+import org.bitcoinj.utils.Threading;
+import org.bitcoinj.wallet.Wallet;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.util.concurrent.ListenableFuture;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import java.util.*;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * <p>Downloads the block chain headers-first from several peers at once. Headers are fetched from a single sync peer
+ * with "getheaders". Once the headers pass the fast catchup time, the bodies of the blocks they describe (filtered
+ * blocks if a Bloom filter is in use) are requested in small batches from up to a given number of connected peers.
+ * Blocks can arrive in any order; they are kept in a reorder buffer and added to the chain in order. The buffer is
+ * bounded because only blocks within a window past the next block to add are requested.</p>
+ *
+ * <p>A request that isn't answered within the stall timeout is given to other peers, and the peer that stalled gets
+ * no more requests unless no other peer is left. If a filtered block exhausts the keys of a wallet's Bloom filter,
+ * everything requested after it is dropped and requested again from peers that acknowledged a fresh filter.</p>
+ *
+ * <p>Once the sync peer has no more headers and all blocks were added, or if anything unexpected happens, the
+ * download continues from the sync peer alone the way {@link Peer#startBlockChainDownload()} does it.</p>
+ *
+ * <p>This class is used by {@link PeerGroup}, see {@link PeerGroup#setMaxBlockDownloadPeers(int)}. Peers hand in
+ * the headers and blocks they receive.</p>
+ */
+class BlockDownloadScheduler {
+    private static final Logger log = LoggerFactory.getLogger(BlockDownloadScheduler.class);
+
+    // How many blocks are asked for in one getdata.
+    static final int BLOCKS_PER_REQUEST = 16;
+    // How many requests a peer can have outstanding.
+    static final int MAX_REQUESTS_PER_PEER = 4;
+    // How far past the next block to add to the chain blocks are requested. This bounds the reorder buffer.
+    static final int WINDOW = 1024;
+
+    // Ordering: lock > Peer.lock. Peers must not call in here with their own lock held.
+    private final ReentrantLock lock = Threading.lock("blockdownload");
+
+    private final NetworkParameters params;
+    private final AbstractBlockChain chain;
+    private final Peer syncPeer;
+    private final List<Peer> peers;
+    private final List<Wallet> wallets;
+    private final int maxPeers;
+    private final long fastCatchupTimeSecs;
+    private final boolean useFilteredBlocks;
+    private final long stallTimeoutMillis;
+
+    private volatile boolean vActive;
+    // Hashes of the blocks whose headers were received but which weren't added to the chain yet, in chain order.
+    @GuardedBy("lock") private final List<Sha256Hash> hashes = new ArrayList<>();
+    @GuardedBy("lock") private final Set<Sha256Hash> wanted = new HashSet<>();
+    // Index into hashes of the first block never requested.
+    @GuardedBy("lock") private int nextToRequest;
+    @GuardedBy("lock") private Sha256Hash lastHeaderHash;
+    @GuardedBy("lock") private boolean headersInFlight, headersDone;
+    @GuardedBy("lock") private final List<Request> requests = new LinkedList<>();
+    @GuardedBy("lock") private final Map<Sha256Hash, Request> inFlight = new HashMap<>();
+    // Blocks of stalled requests, to be requested from other peers first.
+    @GuardedBy("lock") private final Deque<Sha256Hash> retries = new ArrayDeque<>();
+    // The reorder buffer, holding Blocks or FilteredBlocks.
+    @GuardedBy("lock") private final Map<Sha256Hash, Message> received = new HashMap<>();
+    @GuardedBy("lock") private final Set<Peer> stalledPeers = new HashSet<>();
+    // Increased when a filter ran out of keys. Peers only get requests once they acknowledged a filter set after that.
+    @GuardedBy("lock") private int filterGeneration;
+    @GuardedBy("lock") private final Map<Peer, Integer> peerFilterGenerations = new HashMap<>();
+    @GuardedBy("lock") private int stalls;
+
+    private static class Request {
+        final Peer peer;
+        final Set<Sha256Hash> hashes = new LinkedHashSet<>();
+        final long timeMillis = Utils.currentTimeMillis();
+
+        Request(Peer peer) {
+            this.peer = peer;
+        }
+    }
+
+    /**
+     * @param peers the connected peers, which may change while downloading
+     * @param wallets the wallets to check for filter exhaustion
+     * @param fastCatchupTimeSecs blocks before this time are added as headers only
+     * @param useFilteredBlocks whether to request filtered blocks rather than full ones
+     */
+    BlockDownloadScheduler(NetworkParameters params, AbstractBlockChain chain, Peer syncPeer, List<Peer> peers,
+                           List<Wallet> wallets, int maxPeers, long fastCatchupTimeSecs, boolean useFilteredBlocks,
+                           long stallTimeoutMillis) {
+        this.params = checkNotNull(params);
+        this.chain = checkNotNull(chain);
+        this.syncPeer = checkNotNull(syncPeer);
+        this.peers = checkNotNull(peers);
+        this.wallets = checkNotNull(wallets);
+        this.maxPeers = maxPeers;
+        this.fastCatchupTimeSecs = fastCatchupTimeSecs;
+        this.useFilteredBlocks = useFilteredBlocks;
+        this.stallTimeoutMillis = stallTimeoutMillis;
+    }
+
+    /** Starts the download by asking the sync peer for headers. */
+    void start() {
+        lock.lock();
+        try {
+            log.info("{}: Starting parallel block download from up to {} peers", syncPeer, maxPeers);
+            vActive = true;
+            lastHeaderHash = chain.getChainHead().getHeader().getHash();
+            requestHeaders();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Stops the download without handing it back to the sync peer, for example because it disconnected. */
+    void stop() {
+        lock.lock();
+        try {
+            if (vActive)
+                log.info("{}: Stopping parallel block download", syncPeer);
+            vActive = false;
+            clear();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns true until the download finished, failed or was stopped. Doesn't take the lock. */
+    boolean isActive() {
+        return vActive;
+    }
+
+    /** Returns the peer headers are downloaded from. */
+    Peer getSyncPeer() {
+        return syncPeer;
+    }
+
+    /** Returns how often requests stalled and were given to other peers. */
+    int getStalls() {
+        lock.lock();
+        try {
+            return stalls;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Called by a peer that received headers. Returns false if they aren't part of this download, in which case the
+     * peer handles them itself.
+     */
+    boolean headersReceived(Peer peer, HeadersMessage m) {
+        if (peer != syncPeer || !vActive)
+            return false;
+        lock.lock();
+        try {
+            if (!vActive)
+                return false;
+            headersInFlight = false;
+            List<Block> headers = m.getBlockHeaders();
+            for (Block header : headers) {
+                if (!header.getPrevBlockHash().equals(lastHeaderHash)) {
+                    fallBack("header " + header.getHashAsString() + " does not connect");
+                    return true;
+                }
+                header.verifyHeader();
+                // Like Peer.processHeaders(), add headers before the fast catchup time straight to the chain unless
+                // we are about to catch up with the sync peer.
+                boolean passedTime = header.getTimeSeconds() >= fastCatchupTimeSecs;
+                boolean reachedTop = chain.getBestChainHeight() >= syncPeer.getBestHeight();
+                if (hashes.isEmpty() && !passedTime && !reachedTop) {
+                    if (!chain.add(header)) {
+                        fallBack("header " + header.getHashAsString() + " does not connect to the chain");
+                        return true;
+                    }
+                    syncPeer.invokeOnBlocksDownloaded(header, null);
+                } else {
+                    hashes.add(header.getHash());
+                    wanted.add(header.getHash());
+                }
+                lastHeaderHash = header.getHash();
+            }
+            if (headers.size() < HeadersMessage.MAX_HEADERS)
+                headersDone = true;
+            schedule();
+        } catch (VerificationException e) {
+            log.warn("{}: Block header verification failed", syncPeer, e);
+            fallBack("header verification failed");
+        } catch (PrunedException e) {
+            // Unreachable when in SPV mode.
+            throw new RuntimeException(e);
+        } finally {
+            lock.unlock();
+        }
+        return true;
+    }
+
+    /**
+     * Called by a peer that received a block or filtered block. Returns false if it isn't part of this download, in
+     * which case the peer handles it itself.
+     */
+    boolean blockReceived(Peer peer, Block block, @Nullable FilteredBlock filteredBlock) {
+        if (!vActive)
+            return false;
+        lock.lock();
+        try {
+            Sha256Hash hash = block.getHash();
+            if (!vActive || !wanted.contains(hash))
+                return false;
+            Request request = inFlight.get(hash);
+            if (request == null || request.peer != peer) {
+                // Requested before a stall or a filter exhaustion, and requested again since.
+                log.debug("{}: Ignoring block {} we did not ask this peer for", peer, hash);
+                return true;
+            }
+            inFlight.remove(hash);
+            request.hashes.remove(hash);
+            if (request.hashes.isEmpty())
+                requests.remove(request);
+            received.put(hash, filteredBlock != null ? filteredBlock : block);
+            addReceivedBlocks();
+            schedule();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Called by a peer after it sent a new Bloom filter. Once the peer acknowledged it, it can be asked for blocks
+     * again after a filter ran out of keys.
+     */
+    void bloomFilterSet(final Peer peer) {
+        if (!vActive)
+            return;
+        final int generation;
+        lock.lock();
+        try {
+            generation = filterGeneration;
+        } finally {
+            lock.unlock();
+        }
+        Runnable acknowledged = new Runnable() {
+            @Override
+            public void run() {
+                lock.lock();
+                try {
+                    peerFilterGenerations.put(peer, generation);
+                    schedule();
+                } finally {
+                    lock.unlock();
+                }
+            }
+        };
+        // A ping/pong makes sure blocks that were still being streamed with the old filter have arrived and were
+        // thrown away.
+        ListenableFuture<Long> pong;
+        try {
+            pong = peer.ping();
+        } catch (ProtocolException e) {
+            acknowledged.run();
+            return;
+        }
+        pong.addListener(acknowledged, Threading.SAME_THREAD);
+    }
+
+    /** Called by the {@link PeerGroup} when a peer disconnected. Its requests are given to other peers. */
+    void peerDisconnected(Peer peer) {
+        if (!vActive)
+            return;
+        lock.lock();
+        try {
+            if (peer == syncPeer) {
+                stop();
+                return;
+            }
+            for (Request request : new ArrayList<>(requests))
+                if (request.peer == peer)
+                    retry(request);
+            stalledPeers.remove(peer);
+            peerFilterGenerations.remove(peer);
+            schedule();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Gives requests that weren't answered within the stall timeout to other peers. Called periodically by the
+     * {@link PeerGroup}.
+     */
+    void checkForStalls() {
+        if (!vActive)
+            return;
+        lock.lock();
+        try {
+            long now = Utils.currentTimeMillis();
+            for (Request request : new ArrayList<>(requests)) {
+                if (now - request.timeMillis < stallTimeoutMillis)
+                    continue;
+                log.warn("{}: Stalled on {} blocks for {} ms, asking other peers", request.peer,
+                        request.hashes.size(), now - request.timeMillis);
+                stalls++;
+                stalledPeers.add(request.peer);
+                retry(request);
+            }
+            schedule();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @GuardedBy("lock")
+    private void retry(Request request) {
+        requests.remove(request);
+        for (Sha256Hash hash : request.hashes) {
+            inFlight.remove(hash);
+            retries.add(hash);
+        }
+    }
+
+    @GuardedBy("lock")
+    private void requestHeaders() {
+        BlockLocator locator = new BlockLocator();
+        Sha256Hash chainHeadHash = chain.getChainHead().getHeader().getHash();
+        locator = locator.add(lastHeaderHash);
+        if (!lastHeaderHash.equals(chainHeadHash))
+            locator = locator.add(chainHeadHash);
+        if (!chainHeadHash.equals(params.getGenesisBlock().getHash()))
+            locator = locator.add(params.getGenesisBlock().getHash());
+        headersInFlight = true;
+        syncPeer.sendMessage(new GetHeadersMessage(params, locator, Sha256Hash.ZERO_HASH));
+    }
+
+    /** Adds the blocks at the start of the reorder buffer to the chain. */
+    @GuardedBy("lock")
+    private void addReceivedBlocks() {
+        int added = 0;
+        try {
+            while (added < hashes.size()) {
+                Sha256Hash hash = hashes.get(added);
+                Message m = received.remove(hash);
+                if (m == null)
+                    break;
+                Block header;
+                FilteredBlock filteredBlock = null;
+                boolean connected;
+                if (m instanceof FilteredBlock) {
+                    filteredBlock = (FilteredBlock) m;
+                    if (checkForFilterExhaustion(filteredBlock)) {
+                        // Like in Peer.endFilteredBlock(), but all blocks requested since may be missing transactions.
+                        log.info("Bloom filter exhausted whilst processing block {}, discarding it and {} later blocks",
+                                hash, received.size() + inFlight.size());
+                        received.clear();
+                        inFlight.clear();
+                        requests.clear();
+                        retries.clear();
+                        filterGeneration++;
+                        nextToRequest = added;
+                        break;
+                    }
+                    header = filteredBlock.getBlockHeader();
+                    connected = chain.add(filteredBlock);
+                } else {
+                    header = (Block) m;
+                    connected = chain.add(header);
+                }
+                if (!connected) {
+                    fallBack("block " + hash + " does not connect to the chain");
+                    return;
+                }
+                wanted.remove(hash);
+                added++;
+                syncPeer.invokeOnBlocksDownloaded(header, filteredBlock);
+            }
+        } catch (VerificationException e) {
+            log.warn("{}: Block verification failed", syncPeer, e);
+            fallBack("block verification failed");
+            return;
+        } catch (PrunedException e) {
+            // Unreachable when in SPV mode.
+            throw new RuntimeException(e);
+        }
+        hashes.subList(0, added).clear();
+        nextToRequest -= added;
+    }
+
+    @GuardedBy("lock")
+    private boolean checkForFilterExhaustion(FilteredBlock m) {
+        boolean exhausted = false;
+        for (Wallet wallet : wallets)
+            exhausted |= wallet.checkForFilterExhaustion(m);
+        return exhausted;
+    }
+
+    /** Requests headers and blocks as far as the limits allow, and finishes once all blocks were added. */
+    @GuardedBy("lock")
+    private void schedule() {
+        if (!vActive)
+            return;
+        if (headersDone && hashes.isEmpty()) {
+            log.info("{}: Parallel block download done", syncPeer);
+            vActive = false;
+            clear();
+            syncPeer.continueBlockChainDownload();
+            return;
+        }
+        if (!headersDone && !headersInFlight && hashes.size() - nextToRequest < HeadersMessage.MAX_HEADERS)
+            requestHeaders();
+        List<Peer> candidates = getCandidates();
+        if (candidates.isEmpty() && !stalledPeers.isEmpty()) {
+            // Everyone stalled, give them another chance rather than giving up.
+            stalledPeers.clear();
+            candidates = getCandidates();
+        }
+        boolean requested = true;
+        while (requested) {
+            requested = false;
+            for (Peer peer : candidates)
+                if (countRequests(peer) < MAX_REQUESTS_PER_PEER && requestBlocks(peer))
+                    requested = true;
+        }
+    }
+
+    @GuardedBy("lock")
+    private List<Peer> getCandidates() {
+        List<Peer> candidates = new ArrayList<>(maxPeers);
+        if (isCandidate(syncPeer))
+            candidates.add(syncPeer);
+        for (Peer peer : peers) {
+            if (candidates.size() >= maxPeers)
+                break;
+            if (peer != syncPeer && isCandidate(peer))
+                candidates.add(peer);
+        }
+        return candidates;
+    }
+
+    @GuardedBy("lock")
+    private boolean isCandidate(Peer peer) {
+        VersionMessage version = peer.getPeerVersionMessage();
+        if (version == null || !version.hasBlockChain() || stalledPeers.contains(peer))
+            return false;
+        if (useFilteredBlocks && !version.isBloomFilteringSupported())
+            return false;
+        Integer generation = peerFilterGenerations.get(peer);
+        return (generation != null ? generation : 0) == filterGeneration;
+    }
+
+    @GuardedBy("lock")
+    private int countRequests(Peer peer) {
+        int count = 0;
+        for (Request request : requests)
+            if (request.peer == peer)
+                count++;
+        return count;
+    }
+
+    @GuardedBy("lock")
+    private boolean requestBlocks(Peer peer) {
+        Request request = new Request(peer);
+        while (request.hashes.size() < BLOCKS_PER_REQUEST && !retries.isEmpty()) {
+            Sha256Hash hash = retries.poll();
+            if (wanted.contains(hash) && !received.containsKey(hash) && !inFlight.containsKey(hash))
+                request.hashes.add(hash);
+        }
+        while (request.hashes.size() < BLOCKS_PER_REQUEST && nextToRequest < Math.min(hashes.size(), WINDOW))
+            request.hashes.add(hashes.get(nextToRequest++));
+        if (request.hashes.isEmpty())
+            return false;
+        GetDataMessage getdata = new GetDataMessage(params);
+        for (Sha256Hash hash : request.hashes) {
+            inFlight.put(hash, request);
+            if (useFilteredBlocks)
+                getdata.addFilteredBlock(hash);
+            else
+                getdata.addBlock(hash);
+        }
+        requests.add(request);
+        log.debug("{}: Requesting {} blocks", peer, request.hashes.size());
+        peer.sendMessage(getdata);
+        // Like in Peer.processInv(), gives the last filtered block a clear end.
+        if (useFilteredBlocks)
+            peer.sendMessage(new Ping((long) (Math.random() * Long.MAX_VALUE)));
+        return true;
+    }
+
+    @GuardedBy("lock")
+    private void fallBack(String reason) {
+        log.warn("{}: Parallel block download failed, continuing from this peer alone: {}", syncPeer, reason);
+        vActive = false;
+        clear();
+        syncPeer.continueBlockChainDownload();
+    }
+
+    @GuardedBy("lock")
+    private void clear() {
+        hashes.clear();
+        wanted.clear();
+        nextToRequest = 0;
+        requests.clear();
+        inFlight.clear();
+        retries.clear();
+        received.clear();
+        stalledPeers.clear();
+        peerFilterGenerations.clear();
+    }
+}
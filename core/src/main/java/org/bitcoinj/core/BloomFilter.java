@@ -18,7 +18,6 @@
 package org.bitcoinj.core;
 
 import org.bitcoinj.script.Script;
-import org.bitcoinj.script.ScriptChunk;
 import org.bitcoinj.script.ScriptPattern;
 
 import com.google.common.base.Objects;
@@ -29,9 +28,11 @@ import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicLongArray;
 
 import static com.google.common.base.Preconditions.checkArgument;
 import static java.lang.Math.*;
+import static org.bitcoinj.script.ScriptOpCodes.*;
 
 /**
  * <p>A Bloom filter is a probabilistic data structure which can be sent to another client so that it can avoid
@@ -43,7 +44,9 @@ import static java.lang.Math.*;
  * a useful privacy feature - if you have spare bandwidth the false positive rate can be increased so the remote peer
  * gets a noisy picture of what transactions are relevant to your wallet.</p>
  * 
- * <p>Instances of this class are not safe for use by multiple threads.</p>
+ * <p>Membership tests and inserts don't lock, so a filter can be tested by many threads while it is updated. The
+ * hash functions share the part of the MurmurHash3 computation that doesn't depend on the function number, and an
+ * object is only hashed as far as needed to find a bit that isn't set.</p>
  */
 public class BloomFilter extends Message {
     /** The BLOOM_UPDATE_* constants control when the bloom filter is auto-updated by the peer using
@@ -55,7 +58,7 @@ public class BloomFilter extends Message {
         UPDATE_P2PUBKEY_ONLY //2
     }
     
-    private byte[] data;
+    private volatile Bits bits;
     private long hashFuncs;
     private long nTweak;
     private byte nFlags;
@@ -114,9 +117,9 @@ public class BloomFilter extends Message {
         //                        Size required for a given number of elements and false-positive rate
         int size = (int)(-1  / (pow(log(2), 2)) * elements * log(falsePositiveRate));
         size = max(1, min(size, (int) MAX_FILTER_SIZE * 8) / 8);
-        data = new byte[size];
+        bits = new Bits(size);
         // Optimal number of hash functions for a given filter size and element count.
-        hashFuncs = (int)(data.length * 8 / (double)elements * log(2));
+        hashFuncs = (int)(size * 8 / (double)elements * log(2));
         hashFuncs = max(1, min(hashFuncs, MAX_HASH_FUNCS));
         this.nTweak = randomNonce;
         this.nFlags = (byte)(0xff & updateFlag.ordinal());
@@ -126,19 +129,20 @@ public class BloomFilter extends Message {
      * Returns the theoretical false positive rate of this filter if were to contain the given number of elements.
      */
     public double getFalsePositiveRate(int elements) {
-        return pow(1 - pow(E, -1.0 * (hashFuncs * elements) / (data.length * 8)), hashFuncs);
+        return pow(1 - pow(E, -1.0 * (hashFuncs * elements) / bits.numBits), hashFuncs);
     }
 
     @Override
     public String toString() {
-        return "Bloom Filter of size " + data.length + " with " + hashFuncs + " hash functions.";
+        return "Bloom Filter of size " + bits.numBits / 8 + " with " + hashFuncs + " hash functions.";
     }
 
     @Override
     protected void parse() throws ProtocolException {
-        data = readByteArray();
+        byte[] data = readByteArray();
         if (data.length > MAX_FILTER_SIZE)
             throw new ProtocolException ("Bloom filter out of size range.");
+        bits = new Bits(data);
         hashFuncs = readUint32();
         if (hashFuncs > MAX_HASH_FUNCS)
             throw new ProtocolException("Bloom filter hash function count out of range");
@@ -152,6 +156,7 @@ public class BloomFilter extends Message {
      */
     @Override
     protected void bitcoinSerializeToStream(OutputStream stream) throws IOException {
+        byte[] data = bits.toByteArray();
         stream.write(new VarInt(data.length).encode());
         stream.write(data);
         Utils.uint32ToByteStreamLE(hashFuncs, stream);
@@ -168,13 +173,17 @@ public class BloomFilter extends Message {
      * See this <a href="https://github.com/aappleby/smhasher/blob/master/src/MurmurHash3.cpp">C++ code for the original.</a>
      */
     public static int murmurHash3(byte[] data, long nTweak, int hashNum, byte[] object) {
+        return murmurHash3(data.length * 8, nTweak, hashNum, object, 0, object.length);
+    }
+
+    private static int murmurHash3(int numBits, long nTweak, int hashNum, byte[] object, int offset, int length) {
         int h1 = (int)(hashNum * 0xFBA4C795L + nTweak);
         final int c1 = 0xcc9e2d51;
         final int c2 = 0x1b873593;
 
-        int numBlocks = (object.length / 4) * 4;
+        int numBlocks = offset + (length / 4) * 4;
         // body
-        for(int i = 0; i < numBlocks; i += 4) {
+        for(int i = offset; i < numBlocks; i += 4) {
             int k1 = (object[i] & 0xFF) |
                   ((object[i+1] & 0xFF) << 8) |
                   ((object[i+2] & 0xFF) << 16) |
@@ -190,7 +199,7 @@ public class BloomFilter extends Message {
         }
         
         int k1 = 0;
-        switch(object.length & 3)
+        switch(length & 3)
         {
             case 3:
                 k1 ^= (object[numBlocks + 2] & 0xff) << 16;
@@ -207,37 +216,163 @@ public class BloomFilter extends Message {
                 break;
         }
 
+        return finish(numBits, h1, length);
+    }
+
+    private static int finish(int numBits, int h1, int length) {
         // finalization
-        h1 ^= object.length;
+        h1 ^= length;
         h1 ^= h1 >>> 16;
         h1 *= 0x85ebca6b;
         h1 ^= h1 >>> 13;
         h1 *= 0xc2b2ae35;
         h1 ^= h1 >>> 16;
         
-        return (int)((h1&0xFFFFFFFFL) % (data.length * 8));
+        return (int)((h1&0xFFFFFFFFL) % numBits);
     }
-    
+
+    // Per thread buffers for the body of the hash, see contains(byte[], int, int).
+    private static final ThreadLocal<int[]> BLOCKS_BUFFER = new ThreadLocal<int[]>() {
+        @Override
+        protected int[] initialValue() {
+            return new int[32];
+        }
+    };
+
+    /**
+     * Returns the 4 byte blocks of the object mixed as in the body of MurmurHash3, followed by the mixed tail. They
+     * don't depend on the hash function, so are computed once for all of them.
+     */
+    private static int[] mixBlocks(byte[] object, int offset, int length) {
+        final int c1 = 0xcc9e2d51;
+        final int c2 = 0x1b873593;
+        int numBlocks = length / 4;
+        int[] blocks = BLOCKS_BUFFER.get();
+        if (blocks.length < numBlocks + 1) {
+            blocks = new int[numBlocks + 1];
+            BLOCKS_BUFFER.set(blocks);
+        }
+        for (int b = 0, i = offset; b < numBlocks; b++, i += 4) {
+            int k1 = (object[i] & 0xFF) |
+                  ((object[i+1] & 0xFF) << 8) |
+                  ((object[i+2] & 0xFF) << 16) |
+                  ((object[i+3] & 0xFF) << 24);
+            k1 *= c1;
+            k1 = rotateLeft32(k1, 15);
+            k1 *= c2;
+            blocks[b] = k1;
+        }
+        // The same as the tail switch of murmurHash3(byte[], ...).
+        int k1 = 0;
+        int tail = offset + numBlocks * 4;
+        int tailLength = length & 3;
+        if (tailLength >= 3)
+            k1 ^= (object[tail + 2] & 0xff) << 16;
+        if (tailLength >= 2)
+            k1 ^= (object[tail + 1] & 0xff) << 8;
+        if (tailLength >= 1) {
+            k1 ^= (object[tail] & 0xff);
+            k1 *= c1; k1 = rotateLeft32(k1, 15); k1 *= c2;
+        }
+        // A missing tail mixes to zero, which leaves the hash alone.
+        blocks[numBlocks] = k1;
+        return blocks;
+    }
+
+    /** Returns the bit selected by the given hash function for an object mixed by {@link #mixBlocks}. */
+    private static int murmurHash3(int numBits, long nTweak, int hashNum, int[] blocks, int length) {
+        int h1 = (int)(hashNum * 0xFBA4C795L + nTweak);
+        int numBlocks = length / 4;
+        for (int b = 0; b < numBlocks; b++) {
+            h1 ^= blocks[b];
+            h1 = rotateLeft32(h1, 13);
+            h1 = h1*5+0xe6546b64;
+        }
+        h1 ^= blocks[numBlocks];
+        return finish(numBits, h1, length);
+    }
+
     /**
      * Returns true if the given object matches the filter either because it was inserted, or because we have a
      * false-positive.
      */
-    public synchronized boolean contains(byte[] object) {
-        for (int i = 0; i < hashFuncs; i++) {
-            if (!Utils.checkBitLE(data, murmurHash3(data, nTweak, i, object)))
+    public boolean contains(byte[] object) {
+        return contains(object, 0, object.length);
+    }
+
+    private boolean contains(byte[] object, int offset, int length) {
+        Bits bits = this.bits;
+        // Most objects tested aren't in the filter and already fail on the first or second hash function. So the
+        // first one is computed in a single pass, and only if its bit is set the body of the hash is kept for the
+        // remaining ones.
+        if (!bits.get(murmurHash3(bits.numBits, nTweak, 0, object, offset, length)))
+            return false;
+        if (hashFuncs == 1)
+            return true;
+        int[] blocks = mixBlocks(object, offset, length);
+        for (int i = 1; i < hashFuncs; i++) {
+            if (!bits.get(murmurHash3(bits.numBits, nTweak, i, blocks, length)))
                 return false;
         }
         return true;
     }
+
+    /** Returns true if the given outpoint matches the filter, like {@link #contains(byte[])} of its serialization. */
+    private boolean contains(TransactionOutPoint outpoint) {
+        byte[] object = new byte[36];
+        byte[] hash = outpoint.getHash().getBytes();
+        for (int i = 0; i < 32; i++)
+            object[i] = hash[31 - i];
+        Utils.uint32ToByteArrayLE(outpoint.getIndex(), object, 32);
+        return contains(object);
+    }
+
+    /**
+     * Returns true if data pushed by the given script matches the filter. The script isn't parsed, the pushes are
+     * hashed where they are in the program. Like Bitcoin Core, empty pushes are skipped and a malformed push ends the
+     * script.
+     */
+    private boolean containsPushData(byte[] program) {
+        int i = 0;
+        while (i < program.length) {
+            int opcode = program[i++] & 0xFF;
+            long length;
+            if (opcode < OP_PUSHDATA1) {
+                length = opcode;
+            } else if (opcode == OP_PUSHDATA1) {
+                if (program.length - i < 1) return false;
+                length = program[i] & 0xFF;
+                i += 1;
+            } else if (opcode == OP_PUSHDATA2) {
+                if (program.length - i < 2) return false;
+                length = Utils.readUint16(program, i);
+                i += 2;
+            } else if (opcode == OP_PUSHDATA4) {
+                if (program.length - i < 4) return false;
+                length = Utils.readUint32(program, i);
+                i += 4;
+            } else {
+                continue;
+            }
+            if (length > program.length - i)
+                return false;
+            if (length > 0 && contains(program, i, (int) length))
+                return true;
+            i += length;
+        }
+        return false;
+    }
     
     /** Insert the given arbitrary data into the filter */
-    public synchronized void insert(byte[] object) {
+    public void insert(byte[] object) {
+        Bits bits = this.bits;
+        int[] blocks = mixBlocks(object, 0, object.length);
         for (int i = 0; i < hashFuncs; i++)
-            Utils.setBitLE(data, murmurHash3(data, nTweak, i, object));
+            bits.set(murmurHash3(bits.numBits, nTweak, i, blocks, object.length));
     }
 
     /** Inserts the given key and equivalent hashed form (for the address). */
-    public synchronized void insert(ECKey key) {
+    public void insert(ECKey key) {
         insert(key.getPubKey());
         insert(key.getPubKeyHash());
     }
@@ -250,7 +385,7 @@ public class BloomFilter extends Message {
      * transaction instead of 100-300 bytes as per usual.
      */
     public synchronized void setMatchAll() {
-        data = new byte[] {(byte) 0xff};
+        bits = new Bits(new byte[] {(byte) 0xff});
     }
 
     /**
@@ -259,13 +394,12 @@ public class BloomFilter extends Message {
      */
     public synchronized void merge(BloomFilter filter) {
         if (!this.matchesAll() && !filter.matchesAll()) {
-            checkArgument(filter.data.length == this.data.length &&
+            checkArgument(filter.bits.numBits == this.bits.numBits &&
                           filter.hashFuncs == this.hashFuncs &&
                           filter.nTweak == this.nTweak);
-            for (int i = 0; i < data.length; i++)
-                this.data[i] |= filter.data[i];
+            this.bits.or(filter.bits);
         } else {
-            this.data = new byte[] {(byte) 0xff};
+            this.bits = new Bits(new byte[] {(byte) 0xff});
         }
     }
 
@@ -273,18 +407,15 @@ public class BloomFilter extends Message {
      * Returns true if this filter will match anything. See {@link BloomFilter#setMatchAll()}
      * for when this can be a useful thing to do.
      */
-    public synchronized boolean matchesAll() {
-        for (byte b : data)
-            if (b != (byte) 0xff)
-                return false;
-        return true;
+    public boolean matchesAll() {
+        return bits.isFull();
     }
 
     /**
      * The update flag controls how application of the filter to a block modifies the filter. See the enum javadocs
      * for information on what occurs and when.
      */
-    public synchronized BloomUpdate getUpdateFlag() {
+    public BloomUpdate getUpdateFlag() {
         if (nFlags == 0)
             return BloomUpdate.UPDATE_NONE;
         else if (nFlags == 1)
@@ -301,7 +432,7 @@ public class BloomFilter extends Message {
      * matched transactions are also matched. However it means this filter can be mutated by the operation. The returned
      * filtered block already has the matched transactions associated with it.
      */
-    public synchronized FilteredBlock applyAndUpdate(Block block) {
+    public FilteredBlock applyAndUpdate(Block block) {
         List<Transaction> txns = block.getTransactions();
         List<Sha256Hash> txHashes = new ArrayList<>(txns.size());
         List<Transaction> matched = Lists.newArrayList();
@@ -321,47 +452,105 @@ public class BloomFilter extends Message {
         return filteredBlock;
     }
 
-    public synchronized boolean applyAndUpdate(Transaction tx) {
+    public boolean applyAndUpdate(Transaction tx) {
         if (contains(tx.getHash().getBytes()))
             return true;
         boolean found = false;
         BloomUpdate flag = getUpdateFlag();
         for (TransactionOutput output : tx.getOutputs()) {
-            Script script = output.getScriptPubKey();
-            for (ScriptChunk chunk : script.getChunks()) {
-                if (!chunk.isPushData())
-                    continue;
-                if (contains(chunk.data)) {
-                    boolean isSendingToPubKeys = ScriptPattern.isPayToPubKey(script) || ScriptPattern.isSentToMultisig(script);
-                    if (flag == BloomUpdate.UPDATE_ALL || (flag == BloomUpdate.UPDATE_P2PUBKEY_ONLY && isSendingToPubKeys))
+            if (containsPushData(output.getScriptBytes())) {
+                if (flag == BloomUpdate.UPDATE_ALL) {
+                    insert(output.getOutPointFor().unsafeBitcoinSerialize());
+                } else if (flag == BloomUpdate.UPDATE_P2PUBKEY_ONLY) {
+                    Script script = output.getScriptPubKey();
+                    if (ScriptPattern.isPayToPubKey(script) || ScriptPattern.isSentToMultisig(script))
                         insert(output.getOutPointFor().unsafeBitcoinSerialize());
-                    found = true;
                 }
+                found = true;
             }
         }
         if (found) return true;
         for (TransactionInput input : tx.getInputs()) {
-            if (contains(input.getOutpoint().unsafeBitcoinSerialize())) {
+            if (contains(input.getOutpoint())) {
                 return true;
             }
-            for (ScriptChunk chunk : input.getScriptSig().getChunks()) {
-                if (chunk.isPushData() && contains(chunk.data))
-                    return true;
-            }
+            if (containsPushData(input.getScriptBytes()))
+                return true;
         }
         return false;
     }
     
     @Override
-    public synchronized boolean equals(Object o) {
+    public boolean equals(Object o) {
         if (this == o) return true;
         if (o == null || getClass() != o.getClass()) return false;
         BloomFilter other = (BloomFilter) o;
-        return hashFuncs == other.hashFuncs && nTweak == other.nTweak && Arrays.equals(data, other.data);
+        return hashFuncs == other.hashFuncs && nTweak == other.nTweak
+                && Arrays.equals(bits.toByteArray(), other.bits.toByteArray());
     }
 
     @Override
-    public synchronized int hashCode() {
-        return Objects.hashCode(hashFuncs, nTweak, Arrays.hashCode(data));
+    public int hashCode() {
+        return Objects.hashCode(hashFuncs, nTweak, Arrays.hashCode(bits.toByteArray()));
+    }
+
+    /**
+     * The bit field of a filter. Byte i of the field as serialized is held in bits (i % 8) * 8 to (i % 8) * 8 + 7 of
+     * word i / 8, so bit n of the field is bit n % 64 of word n / 64. Bits are only ever set, never cleared, which
+     * lets them be read without locking.
+     */
+    private static final class Bits {
+        final AtomicLongArray words;
+        final int numBits;
+
+        Bits(int size) {
+            words = new AtomicLongArray((size + 7) / 8);
+            numBits = size * 8;
+        }
+
+        Bits(byte[] data) {
+            this(data.length);
+            for (int i = 0; i < data.length; i++)
+                words.set(i / 8, words.get(i / 8) | (data[i] & 0xFFL) << (i % 8) * 8);
+        }
+
+        boolean get(int n) {
+            return (words.get(n >>> 6) & 1L << n) != 0;
+        }
+
+        void set(int n) {
+            or(n >>> 6, 1L << n);
+        }
+
+        void or(Bits other) {
+            for (int i = 0; i < words.length(); i++)
+                or(i, other.words.get(i));
+        }
+
+        private void or(int i, long mask) {
+            long word;
+            do {
+                word = words.get(i);
+                if ((word | mask) == word)
+                    return;
+            } while (!words.compareAndSet(i, word, word | mask));
+        }
+
+        boolean isFull() {
+            for (int i = 0; i < words.length(); i++) {
+                int bitsInWord = min(64, numBits - i * 64);
+                long full = bitsInWord == 64 ? -1L : (1L << bitsInWord) - 1;
+                if (words.get(i) != full)
+                    return false;
+            }
+            return true;
+        }
+
+        byte[] toByteArray() {
+            byte[] data = new byte[numBits / 8];
+            for (int i = 0; i < data.length; i++)
+                data[i] = (byte) (words.get(i / 8) >>> (i % 8) * 8);
+            return data;
+        }
     }
 }
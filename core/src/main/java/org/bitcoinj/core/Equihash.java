@@ -0,0 +1,145 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.core;
+
+import org.bouncycastle.crypto.digests.Blake2bDigest;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * <p>Verifies Equihash proof of work solutions, as carried by Zcash style block headers (see
+ * {@link NetworkParameters#hasEquihashHeaders()}). Komodo, like Zcash, uses n=200 and k=9, see {@link #KOMODO}.</p>
+ *
+ * <p>A solution is a list of 2<sup>k</sup> distinct indices, each selecting an n bit string produced by BLAKE2b from
+ * the header and the index. The strings must XOR to zero, and do so as a binary tree: the two halves of every subtree
+ * collide on the next n/(k+1) bits, and the first index of the left half is the smaller one. This class checks the
+ * same rules as {@code IsValidSolution} of the Zcash reference implementation. It is stateless and thread safe.</p>
+ */
+public class Equihash {
+    /** The parameters Komodo and Zcash headers use. */
+    public static final Equihash KOMODO = new Equihash(200, 9);
+
+    private final int n;
+    private final int k;
+    private final int collisionBitLength;
+    private final int indicesPerHashOutput;
+    private final int hashOutputLength;
+    private final int solutionLength;
+    private final Blake2bDigest baseDigest;
+
+    public Equihash(int n, int k) {
+        checkArgument(k >= 1 && k < n && n % 8 == 0 && n % (k + 1) == 0, "Invalid Equihash parameters");
+        this.n = n;
+        this.k = k;
+        this.collisionBitLength = n / (k + 1);
+        checkArgument(collisionBitLength + 1 < 32 && k < collisionBitLength, "Invalid Equihash parameters");
+        this.indicesPerHashOutput = 512 / n;
+        this.hashOutputLength = indicesPerHashOutput * n / 8;
+        this.solutionLength = (1 << k) * (collisionBitLength + 1) / 8;
+        byte[] personalization = new byte[16];
+        System.arraycopy("ZcashPoW".getBytes(StandardCharsets.US_ASCII), 0, personalization, 0, 8);
+        Utils.uint32ToByteArrayLE(n, personalization, 8);
+        Utils.uint32ToByteArrayLE(k, personalization, 12);
+        this.baseDigest = new Blake2bDigest(null, hashOutputLength, null, personalization);
+    }
+
+    public int getN() {
+        return n;
+    }
+
+    public int getK() {
+        return k;
+    }
+
+    /** Returns how many bytes a solution takes, 1344 for n=200 and k=9. */
+    public int getSolutionLength() {
+        return solutionLength;
+    }
+
+    /** Returns true if the solution of the given Zcash style header is valid for it. */
+    public boolean verify(Block header) {
+        byte[] solution = header.getSolution();
+        checkArgument(solution != null, "Not a Zcash style header");
+        return verify(header.getEquihashInput(), solution);
+    }
+
+    /**
+     * Returns true if the solution is valid for the given input, which for a block header is everything before the
+     * solution: the header fields followed by the 256 bit nonce.
+     */
+    public boolean verify(byte[] input, byte[] solution) {
+        if (solution.length != solutionLength)
+            return false;
+        int[] indices = expand(solution, 0, solution.length, collisionBitLength + 1);
+
+        // The strings selected by the indices, each cut into k+1 collision sized pieces.
+        int[][] rows = new int[indices.length][];
+        Blake2bDigest digest = new Blake2bDigest(baseDigest);
+        digest.update(input, 0, input.length);
+        byte[] counter = new byte[4];
+        byte[] hash = new byte[hashOutputLength];
+        for (int i = 0; i < indices.length; i++) {
+            Blake2bDigest indexDigest = new Blake2bDigest(digest);
+            Utils.uint32ToByteArrayLE(indices[i] / indicesPerHashOutput, counter, 0);
+            indexDigest.update(counter, 0, counter.length);
+            indexDigest.doFinal(hash, 0);
+            rows[i] = expand(hash, (indices[i] % indicesPerHashOutput) * n / 8, n / 8, collisionBitLength);
+        }
+
+        // Merge the subtrees pairwise. The XOR of a subtree is kept in the row of its first index.
+        for (int level = 0, width = 1; level < k; level++, width *= 2) {
+            for (int i = 0; i < rows.length; i += 2 * width) {
+                int[] left = rows[i], right = rows[i + width];
+                if (left[level] != right[level])
+                    return false;
+                if (indices[i] >= indices[i + width])
+                    return false;
+                for (int j = level + 1; j <= k; j++)
+                    left[j] ^= right[j];
+            }
+        }
+        if (rows[0][k] != 0)
+            return false;
+
+        int[] sorted = Arrays.copyOf(indices, indices.length);
+        Arrays.sort(sorted);
+        for (int i = 1; i < sorted.length; i++)
+            if (sorted[i] == sorted[i - 1])
+                return false;
+        return true;
+    }
+
+    /** Splits the given bytes into big endian values of the given number of bits. */
+    private static int[] expand(byte[] bytes, int offset, int length, int bits) {
+        int[] values = new int[length * 8 / bits];
+        int mask = (1 << bits) - 1;
+        long accumulator = 0;
+        int accumulated = 0, j = 0;
+        for (int i = offset; i < offset + length; i++) {
+            accumulator = (accumulator << 8) | (bytes[i] & 0xff);
+            accumulated += 8;
+            if (accumulated >= bits) {
+                accumulated -= bits;
+                values[j++] = (int) (accumulator >>> accumulated) & mask;
+            }
+        }
+        return values;
+    }
+}
@@ -59,13 +59,14 @@ public class FilteredBlock extends Message {
 
     @Override
     protected void parse() throws ProtocolException {
-        byte[] headerBytes = new byte[Block.HEADER_SIZE];
-        System.arraycopy(payload, 0, headerBytes, 0, Block.HEADER_SIZE);
+        int headerLength = Block.headerLength(params, payload, 0);
+        byte[] headerBytes = new byte[headerLength];
+        System.arraycopy(payload, 0, headerBytes, 0, headerLength);
         header = params.getDefaultSerializer().makeBlock(headerBytes);
         
-        merkleTree = new PartialMerkleTree(params, payload, Block.HEADER_SIZE);
+        merkleTree = new PartialMerkleTree(params, payload, headerLength);
         
-        length = Block.HEADER_SIZE + merkleTree.getMessageSize();
+        length = headerLength + merkleTree.getMessageSize();
     }
     
     /**
@@ -31,12 +31,19 @@ import org.slf4j.LoggerFactory;
 import javax.annotation.Nullable;
 import java.io.File;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
-import java.util.ListIterator;
+import java.util.Map;
 import java.util.Set;
-import java.util.concurrent.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicBoolean;
 
+import static com.google.common.base.Preconditions.checkNotNull;
 import static com.google.common.base.Preconditions.checkState;
 
 /**
@@ -58,6 +65,9 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
     // Whether or not to execute scriptPubKeys before accepting a transaction (i.e. check signatures).
     private boolean runScripts = true;
 
+    // Where the input scripts of blocks are verified, see setScriptVerificationPool().
+    private volatile ForkJoinPool scriptVerificationPool;
+
     /**
      * Constructs a block chain connected to the given wallet and store. To obtain a {@link Wallet} you can construct
      * one from scratch, or you can deserialize a saved wallet from disk using
@@ -97,6 +107,7 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
     public FullPrunedBlockChain(Context context, List<Wallet> listeners, FullPrunedBlockStore blockStore) throws BlockStoreException {
         super(context, listeners, blockStore);
         this.blockStore = blockStore;
+        this.scriptVerificationPool = createScriptVerificationPool(context);
         // Ignore upgrading for now
         this.chainHead = blockStore.getVerifiedChainHead();
     }
@@ -146,38 +157,134 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
         this.runScripts = value;
     }
 
-    // TODO: Remove lots of duplicated code in the two connectTransactions
+    /**
+     * Sets the pool that the input scripts of blocks are verified on. By default each chain creates its own pool with
+     * one thread per available processor. The scripts of a block are always verified before the block is connected,
+     * so sharing the pool with other work slows down block connection.
+     */
+    public void setScriptVerificationPool(ForkJoinPool pool) {
+        this.scriptVerificationPool = checkNotNull(pool);
+    }
 
-    // TODO: execute in order of largest transaction (by input count) first
-    ExecutorService scriptVerificationExecutor = Executors.newFixedThreadPool(
-            Runtime.getRuntime().availableProcessors(), new ContextPropagatingThreadFactory("Script verification"));
+    private static ForkJoinPool createScriptVerificationPool(final Context context) {
+        ForkJoinPool.ForkJoinWorkerThreadFactory factory = new ForkJoinPool.ForkJoinWorkerThreadFactory() {
+            @Override
+            public ForkJoinWorkerThread newThread(ForkJoinPool pool) {
+                ForkJoinWorkerThread thread = new ForkJoinWorkerThread(pool) {
+                    @Override
+                    protected void onStart() {
+                        super.onStart();
+                        Context.propagate(context);
+                    }
+                };
+                thread.setName("Script verification");
+                return thread;
+            }
+        };
+        return new ForkJoinPool(Runtime.getRuntime().availableProcessors(), factory,
+                Threading.uncaughtExceptionHandler, false);
+    }
 
     /**
-     * A job submitted to the executor which verifies signatures.
+     * The outputs spent and created by one transaction of a block, resolved before any of them are connected.
      */
-    private static class Verifier implements Callable<VerificationException> {
+    private static class TransactionOutputs {
         final Transaction tx;
-        final List<Script> prevOutScripts;
+        // Null for the coinbase, otherwise filled in the order of the inputs.
+        @Nullable final UTXO[] spent;
+        final UTXO[] created;
+
+        TransactionOutputs(Transaction tx, @Nullable UTXO[] spent, UTXO[] created) {
+            this.tx = tx;
+            this.spent = spent;
+            this.created = created;
+        }
+    }
+
+    /**
+     * The script of one input to verify, along with what it needs to do so.
+     */
+    private static class ScriptCheck {
+        final Transaction tx;
+        final int index;
+        final Script prevOutScript;
         final Set<VerifyFlag> verifyFlags;
 
-        public Verifier(final Transaction tx, final List<Script> prevOutScripts, final Set<VerifyFlag> verifyFlags) {
+        ScriptCheck(Transaction tx, int index, Script prevOutScript, Set<VerifyFlag> verifyFlags) {
             this.tx = tx;
-            this.prevOutScripts = prevOutScripts;
+            this.index = index;
+            this.prevOutScript = prevOutScript;
             this.verifyFlags = verifyFlags;
         }
+    }
+
+    /**
+     * A job submitted to the script verification pool which verifies the input scripts of a block, splitting the
+     * inputs up until there are few enough to check on one thread. Inputs are independent of each other, so they are
+     * spread across threads regardless of which transaction they belong to.
+     */
+    private static class Verifier extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        // Small enough to spread the inputs of a block over all threads, large enough that forking is cheap in
+        // comparison to the signature checks.
+        private static final int INPUTS_PER_TASK = 8;
+
+        final List<ScriptCheck> checks;
+        final VerificationException[] failures;
+        final AtomicBoolean stopped;
+        final int from, to;
+
+        Verifier(List<ScriptCheck> checks) {
+            this(checks, new VerificationException[checks.size()], new AtomicBoolean(), 0, checks.size());
+        }
+
+        private Verifier(List<ScriptCheck> checks, VerificationException[] failures, AtomicBoolean stopped,
+                         int from, int to) {
+            this.checks = checks;
+            this.failures = failures;
+            this.stopped = stopped;
+            this.from = from;
+            this.to = to;
+        }
 
-        @Nullable
         @Override
-        public VerificationException call() throws Exception {
-            try {
-                ListIterator<Script> prevOutIt = prevOutScripts.listIterator();
-                for (int index = 0; index < tx.getInputs().size(); index++) {
-                    tx.getInputs().get(index).getScriptSig().correctlySpends(tx, index, prevOutIt.next(), verifyFlags);
+        protected void compute() {
+            if (to - from > INPUTS_PER_TASK) {
+                int middle = (from + to) >>> 1;
+                invokeAll(new Verifier(checks, failures, stopped, from, middle),
+                        new Verifier(checks, failures, stopped, middle, to));
+                return;
+            }
+            for (int i = from; i < to && !stopped.get(); i++) {
+                ScriptCheck check = checks.get(i);
+                try {
+                    check.tx.getInputs().get(check.index).getScriptSig().correctlySpends(check.tx, check.index,
+                            check.prevOutScript, check.verifyFlags);
+                } catch (VerificationException e) {
+                    failures[i] = e;
+                    // The block is invalid, there's no point in checking the rest of it.
+                    stopped.set(true);
                 }
-            } catch (VerificationException e) {
-                return e;
             }
-            return null;
+        }
+
+        /** Makes the remaining checks return early, used when the block turned out to be invalid for another reason. */
+        void stop() {
+            stopped.set(true);
+        }
+
+        /** Waits for all checks to finish and throws the failure of the earliest input in the block, if any. */
+        void check() throws VerificationException {
+            try {
+                join();
+            } catch (RuntimeException thrownE) {
+                log.error("Script.correctlySpends threw a non-normal exception: " + thrownE);
+                throw new VerificationException("Bug in Script.correctlySpends, likely script malformed in some new and interesting way.", thrownE);
+            }
+            for (VerificationException e : failures)
+                if (e != null)
+                    throw e;
         }
     }
 
@@ -209,6 +316,89 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
         return address;
     }
 
+    /**
+     * Works out the outputs that the given transactions of a block spend and create, without changing the store.
+     * Outputs created by an earlier transaction of the block are taken from the block itself, all others are looked up
+     * in the store at once.
+     *
+     * @throws VerificationException if an output doesn't exist or is spent twice.
+     */
+    private List<TransactionOutputs> resolveOutputs(List<Transaction> transactions, int height)
+            throws VerificationException, BlockStoreException {
+        List<TransactionOutputs> result = new ArrayList<>(transactions.size());
+        // Outputs created by the transactions so far which haven't been spent by a later one yet.
+        Map<TransactionOutPoint, UTXO> createdInBlock = new HashMap<>();
+        List<TransactionOutPoint> outPointsInStore = new ArrayList<>();
+        Set<TransactionOutPoint> spentFromStore = new HashSet<>();
+        for (Transaction tx : transactions) {
+            boolean isCoinBase = tx.isCoinBase();
+            UTXO[] spent = null;
+            if (!isCoinBase) {
+                spent = new UTXO[tx.getInputs().size()];
+                for (int index = 0; index < spent.length; index++) {
+                    TransactionOutPoint outPoint = tx.getInputs().get(index).getOutpoint();
+                    spent[index] = createdInBlock.remove(outPoint);
+                    if (spent[index] == null) {
+                        if (!spentFromStore.add(outPoint))
+                            throw new VerificationException("Attempted to spend a non-existent or already spent output!");
+                        // Left as null for now, filled in from the store below.
+                        outPointsInStore.add(outPoint);
+                    }
+                }
+            }
+            Sha256Hash hash = tx.getHash();
+            UTXO[] created = new UTXO[tx.getOutputs().size()];
+            for (int index = 0; index < created.length; index++) {
+                TransactionOutput out = tx.getOutputs().get(index);
+                Script script = getScript(out.getScriptBytes());
+                created[index] = new UTXO(hash,
+                        index,
+                        out.getValue(),
+                        height, isCoinBase,
+                        script,
+                        getScriptAddress(script));
+                createdInBlock.put(new TransactionOutPoint(params, index, hash), created[index]);
+            }
+            result.add(new TransactionOutputs(tx, spent, created));
+        }
+
+        Iterator<UTXO> fromStore = blockStore.getTransactionOutputs(outPointsInStore).iterator();
+        for (TransactionOutputs outputs : result) {
+            if (outputs.spent == null)
+                continue;
+            for (int index = 0; index < outputs.spent.length; index++) {
+                if (outputs.spent[index] != null)
+                    continue;
+                UTXO prevOut = fromStore.next();
+                if (prevOut == null)
+                    throw new VerificationException("Attempted to spend a non-existent or already spent output!");
+                outputs.spent[index] = prevOut;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Starts verifying the input scripts of the given transactions on the script verification pool.
+     *
+     * @return the job, which must be checked before the block is connected.
+     */
+    private Verifier verifyScripts(List<TransactionOutputs> resolved, Block header, int height) {
+        List<ScriptCheck> checks = new ArrayList<>();
+        for (TransactionOutputs outputs : resolved) {
+            if (outputs.spent == null)
+                continue;
+            Set<VerifyFlag> verifyFlags = params.getTransactionVerificationFlags(header, outputs.tx, getVersionTally(), height);
+            for (int index = 0; index < outputs.spent.length; index++)
+                checks.add(new ScriptCheck(outputs.tx, index, outputs.spent[index].getScript(), verifyFlags));
+        }
+        Verifier verifier = new Verifier(checks);
+        scriptVerificationPool.execute(verifier);
+        return verifier;
+    }
+
+    // TODO: Remove lots of duplicated code in the two connectTransactions
+
     @Override
     protected TransactionOutputChanges connectTransactions(int height, Block block)
             throws VerificationException, BlockStoreException {
@@ -224,10 +414,7 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
         LinkedList<UTXO> txOutsCreated = new LinkedList<>();
         long sigOps = 0;
 
-        if (scriptVerificationExecutor.isShutdown())
-            scriptVerificationExecutor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
-
-        List<Future<VerificationException>> listScriptVerificationResults = new ArrayList<>(block.transactions.size());
+        Verifier verifier = null;
         try {
             if (!params.isCheckpoint(height)) {
                 // BIP30 violator blocks are ones that contain a duplicated transaction. They are all in the
@@ -244,23 +431,25 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
                         sigOps += tx.getSigOpCount();
                 }
             }
+            // Look up everything the block spends first, so the scripts can be checked on other threads while the
+            // store is being updated on this one.
+            List<TransactionOutputs> resolved = resolveOutputs(block.transactions, height);
+            if (runScripts)
+                verifier = verifyScripts(resolved, block, height);
             Coin totalFees = Coin.ZERO;
             Coin coinbaseValue = null;
-            for (final Transaction tx : block.transactions) {
+            for (TransactionOutputs outputs : resolved) {
+                final Transaction tx = outputs.tx;
                 boolean isCoinBase = tx.isCoinBase();
                 Coin valueIn = Coin.ZERO;
                 Coin valueOut = Coin.ZERO;
-                final List<Script> prevOutScripts = new LinkedList<>();
                 final Set<VerifyFlag> verifyFlags = params.getTransactionVerificationFlags(block, tx, getVersionTally(), height);
                 if (!isCoinBase) {
                     // For each input of the transaction remove the corresponding output from the set of unspent
                     // outputs.
                     for (int index = 0; index < tx.getInputs().size(); index++) {
                         TransactionInput in = tx.getInputs().get(index);
-                        UTXO prevOut = blockStore.getTransactionOutput(in.getOutpoint().getHash(),
-                                in.getOutpoint().getIndex());
-                        if (prevOut == null)
-                            throw new VerificationException("Attempted to spend a non-existent or already spent output!");
+                        UTXO prevOut = outputs.spent[index];
                         // Coinbases can't be spent until they mature, to avoid re-orgs destroying entire transaction
                         // chains. The assumption is there will ~never be re-orgs deeper than the spendable coinbase
                         // chain depth.
@@ -278,23 +467,11 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
                                 throw new VerificationException("Too many P2SH SigOps in block");
                         }
 
-                        prevOutScripts.add(prevOut.getScript());
-                        blockStore.removeUnspentTransactionOutput(prevOut);
                         txOutsSpent.add(prevOut);
                     }
                 }
-                Sha256Hash hash = tx.getHash();
-                for (TransactionOutput out : tx.getOutputs()) {
-                    valueOut = valueOut.add(out.getValue());
-                    // For each output, add it to the set of unspent outputs so it can be consumed in future.
-                    Script script = getScript(out.getScriptBytes());
-                    UTXO newOut = new UTXO(hash,
-                            out.getIndex(),
-                            out.getValue(),
-                            height, isCoinBase,
-                            script,
-                            getScriptAddress(script));
-                    blockStore.addUnspentTransactionOutput(newOut);
+                for (UTXO newOut : outputs.created) {
+                    valueOut = valueOut.add(newOut.getValue());
                     txOutsCreated.add(newOut);
                 }
                 // All values were already checked for being non-negative (as it is verified in Transaction.verify())
@@ -308,35 +485,23 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
                         throw new VerificationException("Transaction input value out of range");
                     totalFees = totalFees.add(valueIn.subtract(valueOut));
                 }
-
-                if (!isCoinBase && runScripts) {
-                    // Because correctlySpends modifies transactions, this must come after we are done with tx
-                    FutureTask<VerificationException> future = new FutureTask<>(new Verifier(tx, prevOutScripts, verifyFlags));
-                    scriptVerificationExecutor.execute(future);
-                    listScriptVerificationResults.add(future);
-                }
             }
             if (totalFees.compareTo(params.getMaxMoney()) > 0 || block.getBlockInflation(height).add(totalFees).compareTo(coinbaseValue) < 0)
                 throw new VerificationException("Transaction fees out of range");
-            for (Future<VerificationException> future : listScriptVerificationResults) {
-                VerificationException e;
-                try {
-                    e = future.get();
-                } catch (InterruptedException thrownE) {
-                    throw new RuntimeException(thrownE); // Shouldn't happen
-                } catch (ExecutionException thrownE) {
-                    log.error("Script.correctlySpends threw a non-normal exception: " + thrownE.getCause());
-                    throw new VerificationException("Bug in Script.correctlySpends, likely script malformed in some new and interesting way.", thrownE);
-                }
-                if (e != null)
-                    throw e;
-            }
+            // Update the set of unspent outputs while the scripts are still being verified. Outputs that are created
+            // and spent within this block are added before they are removed again.
+            blockStore.addUnspentTransactionOutputs(txOutsCreated);
+            blockStore.removeUnspentTransactionOutputs(txOutsSpent);
+            if (verifier != null)
+                verifier.check();
         } catch (VerificationException e) {
-            scriptVerificationExecutor.shutdownNow();
+            if (verifier != null)
+                verifier.stop();
             blockStore.abortDatabaseBatchWrite();
             throw e;
         } catch (BlockStoreException e) {
-            scriptVerificationExecutor.shutdownNow();
+            if (verifier != null)
+                verifier.stop();
             blockStore.abortDatabaseBatchWrite();
             throw e;
         }
@@ -361,6 +526,7 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
             throw new PrunedException(newBlock.getHeader().getHash());
         }
         TransactionOutputChanges txOutChanges;
+        Verifier verifier = null;
         try {
             List<Transaction> transactions = block.getTransactions();
             if (transactions != null) {
@@ -378,24 +544,20 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
                 Coin totalFees = Coin.ZERO;
                 Coin coinbaseValue = null;
 
-                if (scriptVerificationExecutor.isShutdown())
-                    scriptVerificationExecutor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
-                List<Future<VerificationException>> listScriptVerificationResults = new ArrayList<>(transactions.size());
-                for (final Transaction tx : transactions) {
+                List<TransactionOutputs> resolved = resolveOutputs(transactions, newBlock.getHeight());
+                verifier = verifyScripts(resolved, newBlock.getHeader(), Integer.SIZE);
+                for (TransactionOutputs outputs : resolved) {
+                    final Transaction tx = outputs.tx;
                     final Set<VerifyFlag> verifyFlags =
                         params.getTransactionVerificationFlags(newBlock.getHeader(), tx, getVersionTally(), Integer.SIZE);
                     boolean isCoinBase = tx.isCoinBase();
                     Coin valueIn = Coin.ZERO;
                     Coin valueOut = Coin.ZERO;
-                    final List<Script> prevOutScripts = new LinkedList<>();
 
                     if (!isCoinBase) {
                         for (int index = 0; index < tx.getInputs().size(); index++) {
                             final TransactionInput in = tx.getInputs().get(index);
-                            final UTXO prevOut = blockStore.getTransactionOutput(in.getOutpoint().getHash(),
-                                    in.getOutpoint().getIndex());
-                            if (prevOut == null)
-                                throw new VerificationException("Attempted spend of a non-existent or already spent output!");
+                            final UTXO prevOut = outputs.spent[index];
                             if (prevOut.isCoinbase() && newBlock.getHeight() - prevOut.getHeight() < params.getSpendableCoinbaseDepth())
                                 throw new VerificationException("Tried to spend coinbase at depth " + (newBlock.getHeight() - prevOut.getHeight()));
                             valueIn = valueIn.add(prevOut.getValue());
@@ -408,24 +570,11 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
 
                             // TODO: Enforce DER signature format
 
-                            prevOutScripts.add(prevOut.getScript());
-
-                            blockStore.removeUnspentTransactionOutput(prevOut);
                             txOutsSpent.add(prevOut);
                         }
                     }
-                    Sha256Hash hash = tx.getHash();
-                    for (TransactionOutput out : tx.getOutputs()) {
-                        valueOut = valueOut.add(out.getValue());
-                        Script script = getScript(out.getScriptBytes());
-                        UTXO newOut = new UTXO(hash,
-                                out.getIndex(),
-                                out.getValue(),
-                                newBlock.getHeight(),
-                                isCoinBase,
-                                script,
-                                getScriptAddress(script));
-                        blockStore.addUnspentTransactionOutput(newOut);
+                    for (UTXO newOut : outputs.created) {
+                        valueOut = valueOut.add(newOut.getValue());
                         txOutsCreated.add(newOut);
                     }
                     // All values were already checked for being non-negative (as it is verified in Transaction.verify())
@@ -439,31 +588,14 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
                             throw new VerificationException("Transaction input value out of range");
                         totalFees = totalFees.add(valueIn.subtract(valueOut));
                     }
-
-                    if (!isCoinBase) {
-                        // Because correctlySpends modifies transactions, this must come after we are done with tx
-                        FutureTask<VerificationException> future = new FutureTask<>(new Verifier(tx, prevOutScripts, verifyFlags));
-                        scriptVerificationExecutor.execute(future);
-                        listScriptVerificationResults.add(future);
-                    }
                 }
                 if (totalFees.compareTo(params.getMaxMoney()) > 0 ||
                         newBlock.getHeader().getBlockInflation(newBlock.getHeight()).add(totalFees).compareTo(coinbaseValue) < 0)
                     throw new VerificationException("Transaction fees out of range");
+                blockStore.addUnspentTransactionOutputs(txOutsCreated);
+                blockStore.removeUnspentTransactionOutputs(txOutsSpent);
                 txOutChanges = new TransactionOutputChanges(txOutsCreated, txOutsSpent);
-                for (Future<VerificationException> future : listScriptVerificationResults) {
-                    VerificationException e;
-                    try {
-                        e = future.get();
-                    } catch (InterruptedException thrownE) {
-                        throw new RuntimeException(thrownE); // Shouldn't happen
-                    } catch (ExecutionException thrownE) {
-                        log.error("Script.correctlySpends threw a non-normal exception: " + thrownE.getCause());
-                        throw new VerificationException("Bug in Script.correctlySpends, likely script malformed in some new and interesting way.", thrownE);
-                    }
-                    if (e != null)
-                        throw e;
-                }
+                verifier.check();
             } else {
                 txOutChanges = block.getTxOutChanges();
                 if (!params.isCheckpoint(newBlock.getHeight()))
@@ -472,17 +604,17 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
                         if (blockStore.getTransactionOutput(hash, out.getIndex()) != null)
                             throw new VerificationException("Block failed BIP30 test!");
                     }
-                for (UTXO out : txOutChanges.txOutsCreated)
-                    blockStore.addUnspentTransactionOutput(out);
-                for (UTXO out : txOutChanges.txOutsSpent)
-                    blockStore.removeUnspentTransactionOutput(out);
+                blockStore.addUnspentTransactionOutputs(txOutChanges.txOutsCreated);
+                blockStore.removeUnspentTransactionOutputs(txOutChanges.txOutsSpent);
             }
         } catch (VerificationException e) {
-            scriptVerificationExecutor.shutdownNow();
+            if (verifier != null)
+                verifier.stop();
             blockStore.abortDatabaseBatchWrite();
             throw e;
         } catch (BlockStoreException e) {
-            scriptVerificationExecutor.shutdownNow();
+            if (verifier != null)
+                verifier.stop();
             blockStore.abortDatabaseBatchWrite();
             throw e;
         }
@@ -501,10 +633,8 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
             StoredUndoableBlock undoBlock = blockStore.getUndoBlock(oldBlock.getHeader().getHash());
             if (undoBlock == null) throw new PrunedException(oldBlock.getHeader().getHash());
             TransactionOutputChanges txOutChanges = undoBlock.getTxOutChanges();
-            for (UTXO out : txOutChanges.txOutsSpent)
-                blockStore.addUnspentTransactionOutput(out);
-            for (UTXO out : txOutChanges.txOutsCreated)
-                blockStore.removeUnspentTransactionOutput(out);
+            blockStore.addUnspentTransactionOutputs(txOutChanges.txOutsSpent);
+            blockStore.removeUnspentTransactionOutputs(txOutChanges.txOutsCreated);
         } catch (PrunedException e) {
             blockStore.abortDatabaseBatchWrite();
             throw e;
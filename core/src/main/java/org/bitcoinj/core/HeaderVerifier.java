@@ -0,0 +1,227 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.core;
+
+import org.bitcoinj.utils.DaemonThreadFactory;
+import org.bitcoinj.utils.Threading;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Function;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+
+import javax.annotation.concurrent.GuardedBy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * <p>Checks the Equihash solutions of Zcash style block headers on a pool of worker threads, so that a long headers
+ * sync uses all cores. Set one with {@link PeerGroup#setHeaderVerifier(HeaderVerifier)} or
+ * {@link Peer#setHeaderVerifier(HeaderVerifier)}: headers messages are then handed to the workers as they arrive, and
+ * their headers are added to the chain once they and all headers received before them were verified. Meanwhile the
+ * next headers are already requested, so verification overlaps with the download.</p>
+ *
+ * <p>The number of headers waiting for or in verification is bounded. Once the bound is reached,
+ * {@link #verify(List)} blocks the network thread that calls it, so that no more is read from the peer until the
+ * workers caught up.</p>
+ *
+ * <p>Throughput is logged periodically and can be read with {@link #getHeadersPerSecond()}. It counts only the time
+ * during which headers were waiting or being verified.</p>
+ */
+public class HeaderVerifier {
+    private static final Logger log = LoggerFactory.getLogger(HeaderVerifier.class);
+
+    // How many headers a worker verifies in one task.
+    private static final int HEADERS_PER_TASK = 50;
+    // How often the throughput is logged, in headers.
+    private static final int LOG_INTERVAL = 10 * HeadersMessage.MAX_HEADERS;
+
+    private final Equihash equihash;
+    private final ListeningExecutorService executor;
+    private final int maxPendingHeaders;
+    private final Semaphore capacity;
+    private volatile boolean isShutdown;
+
+    private final ReentrantLock lock = Threading.lock("headerverifier");
+    @GuardedBy("lock") private int pending;
+    @GuardedBy("lock") private long busySinceNanos;
+    @GuardedBy("lock") private long busyNanos;
+    @GuardedBy("lock") private long verified;
+    @GuardedBy("lock") private long lastLogged;
+
+    /**
+     * Creates a verifier with one worker per available processor, which holds up to two headers messages worth of
+     * headers per worker.
+     */
+    public HeaderVerifier(Equihash equihash) {
+        this(equihash, Runtime.getRuntime().availableProcessors(),
+                2 * HeadersMessage.MAX_HEADERS * Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * @param threads how many worker threads to verify on
+     * @param maxPendingHeaders how many headers can wait for or be in verification before {@link #verify(List)} blocks
+     */
+    public HeaderVerifier(Equihash equihash, int threads, int maxPendingHeaders) {
+        checkArgument(threads > 0 && maxPendingHeaders > 0);
+        this.equihash = checkNotNull(equihash);
+        this.executor = MoreExecutors.listeningDecorator(Executors.newFixedThreadPool(threads,
+                new DaemonThreadFactory("Header verification")));
+        this.maxPendingHeaders = maxPendingHeaders;
+        this.capacity = new Semaphore(maxPendingHeaders);
+    }
+
+    /**
+     * Queues the given headers for verification, blocking while too many headers are pending. The returned future
+     * completes with the headers once all of them were verified, or fails with a {@link VerificationException} if any
+     * of them doesn't have a valid solution. Once the verifier is shut down, it fails with a
+     * {@link RejectedExecutionException} instead, also if this call was blocked at that time.
+     */
+    public ListenableFuture<List<Block>> verify(final List<Block> headers) {
+        List<ListenableFuture<Void>> tasks = new ArrayList<>();
+        for (int from = 0; from < headers.size(); from += HEADERS_PER_TASK) {
+            final List<Block> batch = headers.subList(from, Math.min(from + HEADERS_PER_TASK, headers.size()));
+            final int permits = Math.min(batch.size(), maxPendingHeaders);
+            if (!isShutdown)
+                capacity.acquireUninterruptibly(permits);
+            if (isShutdown) {
+                // Passes the permits shutdown() released on to the next blocked caller.
+                capacity.release(permits);
+                tasks.add(Futures.<Void>immediateFailedFuture(
+                        new RejectedExecutionException("Header verifier was shut down")));
+                continue;
+            }
+            started(batch.size());
+            final ListenableFuture<Void> task;
+            try {
+                task = executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws VerificationException {
+                        for (Block header : batch) {
+                            if (header.getSolution() == null || !equihash.verify(header))
+                                throw new VerificationException("Invalid Equihash solution in header " +
+                                        header.getHashAsString());
+                        }
+                        return null;
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                // Shut down.
+                capacity.release(permits);
+                finished(batch.size(), false);
+                tasks.add(Futures.<Void>immediateFailedFuture(e));
+                continue;
+            }
+            // Also runs if the task is cancelled before it started, which the task itself can't do.
+            task.addListener(new Runnable() {
+                @Override
+                public void run() {
+                    capacity.release(permits);
+                    finished(batch.size(), !task.isCancelled());
+                }
+            }, MoreExecutors.directExecutor());
+            tasks.add(task);
+        }
+        return Futures.transform(Futures.allAsList(tasks), new Function<List<Void>, List<Block>>() {
+            @Override
+            public List<Block> apply(List<Void> input) {
+                return headers;
+            }
+        }, MoreExecutors.directExecutor());
+    }
+
+    private void started(int headers) {
+        lock.lock();
+        try {
+            if (pending == 0)
+                busySinceNanos = System.nanoTime();
+            pending += headers;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void finished(int headers, boolean verified) {
+        lock.lock();
+        try {
+            pending -= headers;
+            if (verified)
+                this.verified += headers;
+            if (pending == 0)
+                busyNanos += System.nanoTime() - busySinceNanos;
+            if (this.verified - lastLogged >= LOG_INTERVAL) {
+                lastLogged = this.verified;
+                log.info("Verified {} header solutions, {} headers/sec", this.verified,
+                        String.format("%.1f", getHeadersPerSecondLocked()));
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns how many headers were verified so far. */
+    public long getVerifiedHeaders() {
+        lock.lock();
+        try {
+            return verified;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns how many headers were verified per second while there were headers to verify. */
+    public double getHeadersPerSecond() {
+        lock.lock();
+        try {
+            return getHeadersPerSecondLocked();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @GuardedBy("lock")
+    private double getHeadersPerSecondLocked() {
+        long nanos = busyNanos + (pending > 0 ? System.nanoTime() - busySinceNanos : 0);
+        return nanos > 0 ? verified * (double) TimeUnit.SECONDS.toNanos(1) / nanos : 0;
+    }
+
+    /**
+     * Stops the worker threads. Verification of headers that are still queued is cancelled, and calls to
+     * {@link #verify(List)} that are blocked fail.
+     */
+    public void shutdown() {
+        isShutdown = true;
+        for (Runnable task : executor.shutdownNow())
+            if (task instanceof Future)
+                ((Future<?>) task).cancel(false);
+        // Enough for any blocked caller to wake up and see that it's shut down.
+        capacity.release(maxPendingHeaders);
+    }
+}
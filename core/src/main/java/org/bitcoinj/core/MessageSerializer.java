@@ -46,6 +46,15 @@ public abstract class MessageSerializer {
      */
     public abstract Message deserializePayload(BitcoinSerializer.BitcoinPacketHeader header, ByteBuffer in) throws ProtocolException, BufferUnderflowException, UnsupportedOperationException;
 
+    /**
+     * Deserialize a payload that was already read in full, given its double SHA-256 hash, for example because it was
+     * hashed while it was being read. The payload array may be kept by the message, so it must not be modified
+     * afterwards.
+     */
+    public Message deserializePayload(BitcoinSerializer.BitcoinPacketHeader header, byte[] payload, byte[] hash) throws ProtocolException, UnsupportedOperationException {
+        return deserializePayload(header, ByteBuffer.wrap(payload));
+    }
+
     /**
      * Whether the serializer will produce cached mode Messages
      */
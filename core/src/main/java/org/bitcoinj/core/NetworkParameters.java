@@ -352,6 +352,15 @@ public abstract class NetworkParameters {
         return true;
     }
 
+    /**
+     * Whether block headers on this network use the Zcash layout, as Komodo does: a reserved hash after the merkle
+     * root, a 256 bit nonce and a length prefixed Equihash solution instead of the 80 byte Bitcoin header. This is
+     * called while the genesis block is created, so implementations must not depend on instance state.
+     */
+    public boolean hasEquihashHeaders() {
+        return false;
+    }
+
     /** How many blocks pass between difficulty adjustment periods. Bitcoin standardises this to be 2016. */
     public int getInterval() {
         return interval;
@@ -43,6 +43,7 @@ import java.net.SocketAddress;
 import java.util.*;
 import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Executor;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.ReentrantLock;
@@ -118,6 +119,12 @@ public class Peer extends PeerSocketHandler {
     // to be calculated by the PeerGroup. The discarded block hashes should be added here so we can re-request them
     // once we've recalculated and resent a new filter.
     @GuardedBy("lock") @Nullable private List<Sha256Hash> awaitingFreshFilter;
+    // If non-null, the chain is being downloaded from several peers and blocks it asked for are handed to it.
+    @Nullable private volatile BlockDownloadScheduler vBlockDownloadScheduler;
+    // If non-null, the Equihash solutions of received headers are checked by it before they are added to the chain.
+    @Nullable private volatile HeaderVerifier vHeaderVerifier;
+    // Completes with true once all headers received so far were added to the chain, or with false if that failed.
+    @GuardedBy("lock") private ListenableFuture<Boolean> headersAdded = Futures.immediateFuture(true);
     // How frequently to refresh the filter. This should become dynamic in future and calculated depending on the
     // actual false positive rate. For now a good value was determined empirically around January 2013.
     private static final int RESEND_BLOOM_FILTER_BLOCK_COUNT = 25000;
@@ -666,13 +673,94 @@ public class Peer extends PeerSocketHandler {
         }
     }
 
-    protected void processHeaders(HeadersMessage m) throws ProtocolException {
+    protected void processHeaders(final HeadersMessage m) throws ProtocolException {
         // Runs in network loop thread for this peer.
         //
         // This method can run if a peer just randomly sends us a "headers" message (should never happen), or more
         // likely when we've requested them as part of chain download using fast catchup. We need to add each block to
         // the chain if it pre-dates the fast catchup time. If we go past it, we can stop processing the headers and
         // request the full blocks from that point on instead.
+        final HeaderVerifier verifier = vHeaderVerifier;
+        if (verifier == null || !params.hasEquihashHeaders() || m.getBlockHeaders().isEmpty()) {
+            addHeaders(m, false, false);
+            return;
+        }
+
+        // The solutions are checked by the verifier's workers, and the headers added once they and the headers
+        // received before them are done. Until then the next headers are already being downloaded.
+        final ListenableFuture<List<Block>> verified = verifier.verify(m.getBlockHeaders());
+        final ListenableFuture<Boolean> previous;
+        final SettableFuture<Boolean> added = SettableFuture.create();
+        final boolean requestedAhead;
+        lock.lock();
+        try {
+            previous = headersAdded;
+            headersAdded = added;
+            requestedAhead = maybeRequestHeadersAheadLocked(m);
+        } finally {
+            lock.unlock();
+        }
+        Futures.whenAllComplete(previous, verified).run(new Runnable() {
+            @Override
+            public void run() {
+                boolean success = false;
+                try {
+                    if (!Futures.getDone(previous)) {
+                        log.info("{}: Discarding {} headers after an earlier failure", getAddress(),
+                                m.getBlockHeaders().size());
+                        return;
+                    }
+                    Futures.getDone(verified);
+                    addHeaders(m, true, requestedAhead);
+                    success = true;
+                } catch (ExecutionException e) {
+                    log.warn("{}: Block header verification failed, disconnecting", getAddress(), e.getCause());
+                    close();
+                } catch (ProtocolException e) {
+                    log.warn("{}: {}, disconnecting", getAddress(), e.getMessage());
+                    close();
+                } catch (RuntimeException e) {
+                    log.error("{}: Failed to add headers", getAddress(), e);
+                    close();
+                } finally {
+                    added.set(success);
+                }
+            }
+        }, Threading.SAME_THREAD);
+    }
+
+    /**
+     * Asks for the headers that follow the given ones before they were added to the chain, if they are all before the
+     * fast catchup time and there are likely more. Returns true if it did.
+     */
+    @GuardedBy("lock")
+    private boolean maybeRequestHeadersAheadLocked(HeadersMessage m) {
+        List<Block> headers = m.getBlockHeaders();
+        Block last = headers.get(headers.size() - 1);
+        BlockDownloadScheduler scheduler = vBlockDownloadScheduler;
+        if (blockChain == null || downloadBlockBodies || !vDownloadData || (scheduler != null && scheduler.isActive())
+                || headers.size() < HeadersMessage.MAX_HEADERS || last.getTimeSeconds() >= fastCatchupTimeSecs)
+            return false;
+        // The chain head and genesis block in case the peer doesn't know the last header after all.
+        BlockLocator locator = new BlockLocator().add(last.getHash());
+        Sha256Hash chainHeadHash = blockChain.getChainHead().getHeader().getHash();
+        locator = locator.add(chainHeadHash);
+        if (!chainHeadHash.equals(params.getGenesisBlock().getHash()))
+            locator = locator.add(params.getGenesisBlock().getHash());
+        lastGetBlocksBegin = last.getHash();
+        lastGetBlocksEnd = Sha256Hash.ZERO_HASH;
+        sendMessage(new GetHeadersMessage(params, locator, Sha256Hash.ZERO_HASH));
+        return true;
+    }
+
+    /**
+     * Adds received headers to the chain, see {@link #processHeaders(HeadersMessage)}.
+     *
+     * @param verified whether the headers went through the {@link HeaderVerifier}, in which case they may have been
+     *                 requested ahead
+     * @param requestedAhead whether the following headers were already requested
+     */
+    private void addHeaders(HeadersMessage m, boolean verified, boolean requestedAhead) throws ProtocolException {
         boolean downloadBlockBodies;
         long fastCatchupTimeSecs;
 
@@ -688,8 +776,17 @@ public class Peer extends PeerSocketHandler {
         } finally {
             lock.unlock();
         }
+        BlockDownloadScheduler scheduler = vBlockDownloadScheduler;
+        if (scheduler != null && scheduler.headersReceived(this, m))
+            return;
 
         try {
+            if (downloadBlockBodies && verified) {
+                // Headers that were requested ahead, before the ones preceding them passed the fast catchup time.
+                log.info("{}: Discarding {} headers, already downloading full blocks", getAddress(),
+                        m.getBlockHeaders().size());
+                return;
+            }
             checkState(!downloadBlockBodies, toString());
             for (int i = 0; i < m.getBlockHeaders().size(); i++) {
                 Block header = m.getBlockHeaders().get(i);
@@ -732,7 +829,7 @@ public class Peer extends PeerSocketHandler {
             }
             // We added all headers in the message to the chain. Request some more if we got up to the limit, otherwise
             // we are at the end of the chain.
-            if (m.getBlockHeaders().size() >= HeadersMessage.MAX_HEADERS) {
+            if (m.getBlockHeaders().size() >= HeadersMessage.MAX_HEADERS && !requestedAhead) {
                 lock.lock();
                 try {
                     blockChainDownloadLocked(Sha256Hash.ZERO_HASH);
@@ -989,6 +1086,9 @@ public class Peer extends PeerSocketHandler {
             log.debug("Received block but was not configured with an AbstractBlockChain");
             return;
         }
+        BlockDownloadScheduler scheduler = vBlockDownloadScheduler;
+        if (scheduler != null && scheduler.blockReceived(this, m, null))
+            return;
         // Did we lose download peer status after requesting block data?
         if (!vDownloadData) {
             log.debug("{}: Received block we did not ask for: {}", getAddress(), m.getHashAsString());
@@ -1044,6 +1144,9 @@ public class Peer extends PeerSocketHandler {
     protected void endFilteredBlock(FilteredBlock m) {
         if (log.isDebugEnabled())
             log.debug("{}: Received broadcast filtered block {}", getAddress(), m.getHash().toString());
+        BlockDownloadScheduler scheduler = vBlockDownloadScheduler;
+        if (blockChain != null && scheduler != null && scheduler.blockReceived(this, m.getBlockHeader(), m))
+            return;
         if (!vDownloadData) {
             log.debug("{}: Received block we did not ask for: {}", getAddress(), m.getHash().toString());
             return;
@@ -1161,7 +1264,7 @@ public class Peer extends PeerSocketHandler {
         return found;
     }
 
-    private void invokeOnBlocksDownloaded(final Block block, @Nullable final FilteredBlock fb) {
+    void invokeOnBlocksDownloaded(final Block block, @Nullable final FilteredBlock fb) {
         // It is possible for the peer block height difference to be negative when blocks have been solved and broadcast
         // since the time we first connected to the peer. However, it's weird and unexpected to receive a callback
         // with negative "blocks left" in this case, so we clamp to zero so the API user doesn't have to think about it.
@@ -1197,6 +1300,9 @@ public class Peer extends PeerSocketHandler {
         }
 
         final boolean downloadData = this.vDownloadData;
+        // Blocks announced during a parallel download are picked up by it or once it's done.
+        final BlockDownloadScheduler scheduler = vBlockDownloadScheduler;
+        final boolean downloadBlocks = downloadData && (scheduler == null || !scheduler.isActive());
 
         if (transactions.size() == 0 && blocks.size() == 1) {
             // Single block announcement. If we're downloading the chain this is just a tickle to make us continue
@@ -1246,7 +1352,7 @@ public class Peer extends PeerSocketHandler {
 
         lock.lock();
         try {
-            if (blocks.size() > 0 && downloadData && blockChain != null) {
+            if (blocks.size() > 0 && downloadBlocks && blockChain != null) {
                 // Ideally, we'd only ask for the data here if we actually needed it. However that can imply a lot of
                 // disk IO to figure out what we've got. Normally peers will not send us inv for things we already have
                 // so we just re-request it here, and if we get duplicates the block chain / wallet will filter them out.
@@ -1494,6 +1600,7 @@ public class Peer extends PeerSocketHandler {
      */
     public void startBlockChainDownload() {
         setDownloadData(true);
+        BlockDownloadScheduler scheduler = vBlockDownloadScheduler;
         // TODO: peer might still have blocks that we don't have, and even have a heavier
         // chain even if the chain block count is lower.
         final int blocksLeft = getPeerBlockHeightDifference();
@@ -1506,6 +1613,10 @@ public class Peer extends PeerSocketHandler {
                     }
                 });
             }
+            if (scheduler != null && scheduler.getSyncPeer() == this) {
+                scheduler.start();
+                return;
+            }
             // When we just want as many blocks as possible, we can set the target hash to zero.
             lock.lock();
             try {
@@ -1516,6 +1627,33 @@ public class Peer extends PeerSocketHandler {
         }
     }
 
+    /**
+     * Continues the chain download from this peer alone once a parallel download ended, which also picks up blocks
+     * that were announced in the meantime.
+     */
+    void continueBlockChainDownload() {
+        lock.lock();
+        try {
+            downloadBlockBodies = fastCatchupTimeSecs <= blockChain.getChainHead().getHeader().getTimeSeconds();
+            blockChainDownloadLocked(Sha256Hash.ZERO_HASH);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Sets the verifier that checks the Equihash solutions of headers received during chain download, or null to not
+     * check them. Has no effect on networks with Bitcoin style headers.
+     */
+    public void setHeaderVerifier(@Nullable HeaderVerifier verifier) {
+        vHeaderVerifier = verifier;
+    }
+
+    /** Sets the scheduler that blocks it asked this peer for are handed to, or null. Used by {@link PeerGroup}. */
+    void setBlockDownloadScheduler(@Nullable BlockDownloadScheduler scheduler) {
+        vBlockDownloadScheduler = scheduler;
+    }
+
     private class PendingPing {
         // The future that will be invoked when the pong is heard back.
         public SettableFuture<Long> future;
@@ -1743,6 +1881,9 @@ public class Peer extends PeerSocketHandler {
         if (andQueryMemPool)
             sendMessage(new MemoryPoolMessage());
         maybeRestartChainDownload();
+        BlockDownloadScheduler scheduler = vBlockDownloadScheduler;
+        if (scheduler != null)
+            scheduler.bloomFilterSet(this);
     }
 
     private void maybeRestartChainDownload() {
@@ -162,14 +162,29 @@ public class PeerGroup implements TransactionBroadcaster {
 
     private int minBroadcastConnections = 0;
     private final ScriptsChangeEventListener walletScriptEventListener = new ScriptsChangeEventListener() {
-        @Override public void onScriptsChanged(Wallet wallet, List<Script> scripts, boolean isAddingScripts) {
-            recalculateFastCatchupAndFilter(FilterRecalculateMode.SEND_IF_CHANGED);
+        @Override public void onScriptsChanged(final Wallet wallet, final List<Script> scripts, boolean isAddingScripts) {
+            if (!isAddingScripts) {
+                recalculateFastCatchupAndFilter(FilterRecalculateMode.SEND_IF_CHANGED);
+                return;
+            }
+            long earliestTimeSecs = Long.MAX_VALUE;
+            for (Script script : scripts)
+                earliestTimeSecs = Math.min(earliestTimeSecs, script.getCreationTimeSeconds());
+            insertIntoFilter(wallet.getBloomFilterElements(scripts), earliestTimeSecs, true);
         }
     };
 
     private final KeyChainEventListener walletKeyEventListener = new KeyChainEventListener() {
         @Override public void onKeysAdded(List<ECKey> keys) {
-            recalculateFastCatchupAndFilter(FilterRecalculateMode.SEND_IF_CHANGED);
+            // Mirrors BloomFilter.insert(ECKey), which is what key chains other than married ones insert.
+            List<byte[]> elements = new ArrayList<>(keys.size() * 2);
+            long earliestTimeSecs = Long.MAX_VALUE;
+            for (ECKey key : keys) {
+                elements.add(key.getPubKey());
+                elements.add(key.getPubKeyHash());
+                earliestTimeSecs = Math.min(earliestTimeSecs, key.getCreationTimeSeconds());
+            }
+            insertIntoFilter(elements, earliestTimeSecs, false);
         }
     };
 
@@ -273,6 +288,10 @@ public class PeerGroup implements TransactionBroadcaster {
     // An object that calculates bloom filters given a list of filter providers, whilst tracking some state useful
     // for privacy purposes.
     private final FilterMerger bloomFilterMerger;
+    // Elements that wallets added and that are waiting to be inserted into the filter, see insertIntoFilter().
+    @GuardedBy("pendingFilterElements") private final List<byte[]> pendingFilterElements = new ArrayList<>();
+    @GuardedBy("pendingFilterElements") private long pendingFilterEarliestKeyTimeSecs = Long.MAX_VALUE;
+    @GuardedBy("pendingFilterElements") private boolean pendingFilterRequiresUpdateAll;
 
     /** The default timeout between when a connection attempt begins and version message exchange completes */
     public static final int DEFAULT_CONNECT_TIMEOUT_MILLIS = 5000;
@@ -1299,6 +1318,80 @@ public class PeerGroup implements TransactionBroadcaster {
         return future;
     }
     
+    /**
+     * Inserts elements a wallet just added into the current filter and sends it to peers if it changed, or
+     * recalculates the filter if that isn't possible or would make its false positive rate too high. Elements added
+     * before the last call was processed are inserted together, so that peers get one filter for them.
+     */
+    private void insertIntoFilter(List<byte[]> elements, long earliestKeyTimeSecs, boolean requiresUpdateAll) {
+        synchronized (pendingFilterElements) {
+            boolean scheduled = !pendingFilterElements.isEmpty();
+            pendingFilterElements.addAll(elements);
+            pendingFilterEarliestKeyTimeSecs = Math.min(pendingFilterEarliestKeyTimeSecs, earliestKeyTimeSecs);
+            pendingFilterRequiresUpdateAll = pendingFilterRequiresUpdateAll || requiresUpdateAll;
+            if (scheduled || pendingFilterElements.isEmpty())
+                return;
+        }
+        Runnable command = new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    go();
+                } catch (Throwable e) {
+                    log.error("Exception when trying to update Bloom filter", e);  // The executor swallows exceptions :(
+                }
+            }
+
+            public void go() {
+                checkState(!lock.isHeldByCurrentThread());
+                List<byte[]> elements;
+                long earliestKeyTimeSecs;
+                boolean requiresUpdateAll;
+                synchronized (pendingFilterElements) {
+                    elements = new ArrayList<>(pendingFilterElements);
+                    earliestKeyTimeSecs = pendingFilterEarliestKeyTimeSecs;
+                    requiresUpdateAll = pendingFilterRequiresUpdateAll;
+                    pendingFilterElements.clear();
+                    pendingFilterEarliestKeyTimeSecs = Long.MAX_VALUE;
+                    pendingFilterRequiresUpdateAll = false;
+                }
+                if ((chain != null && chain.shouldVerifyTransactions()) || !vBloomFilteringEnabled)
+                    return;
+                FilterMerger.Result result = null;
+                // Married key chains insert scripts rather than keys, so their filters must be recalculated.
+                boolean married = false;
+                for (Wallet wallet : wallets)
+                    married = married || wallet.isMarried();
+                if (!married)
+                    result = bloomFilterMerger.insert(elements, earliestKeyTimeSecs, requiresUpdateAll);
+                if (result == null) {
+                    recalculateFastCatchupAndFilter(FilterRecalculateMode.SEND_IF_CHANGED);
+                    return;
+                }
+                if (result.changed) {
+                    for (Peer peer : peers /* COW */)
+                        peer.setBloomFilter(result.filter);
+                    if (chain != null)
+                        chain.resetFalsePositiveEstimate();
+                }
+                setFastCatchupTimeSecs(result.earliestKeyTimeSecs);
+            }
+        };
+        try {
+            executor.execute(command);
+        } catch (RejectedExecutionException e) {
+            // Can happen during shutdown.
+        }
+    }
+
+    /**
+     * Returns the object that calculates the Bloom filters given to peers, for its statistics. Filters should only be
+     * calculated by this peer group.
+     */
+    public FilterMerger getBloomFilterMerger() {
+        return bloomFilterMerger;
+    }
+
     /**
      * <p>Sets the false positive rate of bloom filters given to peers. The default is {@link #DEFAULT_BLOOM_FILTER_FP_RATE}.</p>
      *
@@ -1510,6 +1603,8 @@ public class PeerGroup implements TransactionBroadcaster {
             // OK because it helps improve wallet privacy. Old nodes will just ignore the message.
             if (bloomFilterMerger.getLastFilter() != null) peer.setBloomFilter(bloomFilterMerger.getLastFilter());
             peer.setDownloadData(false);
+            peer.setBlockDownloadScheduler(blockDownloadScheduler);
+            peer.setHeaderVerifier(headerVerifier);
             // TODO: The peer should calculate the fast catchup time from the added wallets here.
             for (Wallet wallet : wallets)
                 peer.addWallet(wallet);
@@ -1665,6 +1760,8 @@ public class PeerGroup implements TransactionBroadcaster {
             PeerAddress address = peer.getAddress();
 
             log.info("{}: Peer died      ({} connected, {} pending, {} max)", address, peers.size(), pendingPeers.size(), maxConnections);
+            if (blockDownloadScheduler != null)
+                blockDownloadScheduler.peerDisconnected(peer);
             if (peer == downloadPeer) {
                 log.info("Download peer died. Picking a new one.");
                 setDownloadPeer(null);
@@ -1870,6 +1967,74 @@ public class PeerGroup implements TransactionBroadcaster {
     }
     @Nullable private ChainDownloadSpeedCalculator chainDownloadSpeedCalculator;
 
+    @GuardedBy("lock") private int maxBlockDownloadPeers = 1;
+    @Nullable @GuardedBy("lock") private BlockDownloadScheduler blockDownloadScheduler;
+    @GuardedBy("lock") private boolean blockDownloadStallCheckScheduled;
+    @Nullable @GuardedBy("lock") private HeaderVerifier headerVerifier;
+
+    /**
+     * Sets how many peers block bodies are downloaded from in parallel. The default of 1 downloads the chain from the
+     * download peer alone. With more, headers are downloaded from the download peer first and the blocks they
+     * describe are requested in batches from up to this many peers, see {@link BlockDownloadScheduler}. Requests that
+     * aren't answered within the stall period set by {@link #setStallThreshold(int, int)} are given to other peers.
+     * Takes effect when the chain download is next started from a peer.
+     */
+    public void setMaxBlockDownloadPeers(int maxBlockDownloadPeers) {
+        checkArgument(maxBlockDownloadPeers >= 1);
+        lock.lock();
+        try {
+            this.maxBlockDownloadPeers = maxBlockDownloadPeers;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns how many peers block bodies are downloaded from in parallel, see {@link #setMaxBlockDownloadPeers(int)}. */
+    public int getMaxBlockDownloadPeers() {
+        lock.lock();
+        try {
+            return maxBlockDownloadPeers;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Sets the verifier that checks the Equihash solutions of headers during chain download, on networks with Zcash
+     * style headers. By default the solutions aren't checked, only the proof of work of the header hash. The verifier
+     * is not shut down by this peer group.
+     */
+    public void setHeaderVerifier(@Nullable HeaderVerifier headerVerifier) {
+        lock.lock();
+        try {
+            this.headerVerifier = headerVerifier;
+            for (Peer peer : peers)
+                peer.setHeaderVerifier(headerVerifier);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Nullable
+    public HeaderVerifier getHeaderVerifier() {
+        lock.lock();
+        try {
+            return headerVerifier;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Nullable
+    BlockDownloadScheduler getBlockDownloadScheduler() {
+        lock.lock();
+        try {
+            return blockDownloadScheduler;
+        } finally {
+            lock.unlock();
+        }
+    }
+
     private void startBlockChainDownloadFromPeer(Peer peer) {
         lock.lock();
         try {
@@ -1882,7 +2047,34 @@ public class PeerGroup implements TransactionBroadcaster {
             }
             peer.addBlocksDownloadedEventListener(Threading.SAME_THREAD, chainDownloadSpeedCalculator);
 
-            // startBlockChainDownload will setDownloadData(true) on itself automatically.
+            if (blockDownloadScheduler != null)
+                blockDownloadScheduler.stop();
+            blockDownloadScheduler = null;
+            if (maxBlockDownloadPeers > 1 && chain != null) {
+                blockDownloadScheduler = new BlockDownloadScheduler(params, chain, peer, peers, wallets,
+                        maxBlockDownloadPeers, fastCatchupTimeSecs, bloomFilterMerger.getLastFilter() != null,
+                        stallPeriodSeconds * 1000L);
+                if (!blockDownloadStallCheckScheduled) {
+                    executor.scheduleAtFixedRate(new Runnable() {
+                        @Override
+                        public void run() {
+                            try {
+                                BlockDownloadScheduler scheduler = getBlockDownloadScheduler();
+                                if (scheduler != null)
+                                    scheduler.checkForStalls();
+                            } catch (Throwable e) {
+                                log.error("Exception in block download stall check", e);  // The executor swallows exceptions :(
+                            }
+                        }
+                    }, 1, 1, TimeUnit.SECONDS);
+                    blockDownloadStallCheckScheduled = true;
+                }
+            }
+            for (Peer p : peers)
+                p.setBlockDownloadScheduler(blockDownloadScheduler);
+
+            // startBlockChainDownload will setDownloadData(true) on itself automatically, and start the parallel
+            // download if there is one.
             peer.startBlockChainDownload();
         } finally {
             lock.unlock();
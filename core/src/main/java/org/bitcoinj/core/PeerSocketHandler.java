@@ -23,9 +23,14 @@ import org.bitcoinj.net.NioClientManager;
 import org.bitcoinj.net.StreamConnection;
 import org.bitcoinj.utils.Threading;
 import com.google.common.annotations.VisibleForTesting;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.net.ConnectException;
@@ -33,6 +38,7 @@ import java.net.InetSocketAddress;
 import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
 import java.nio.channels.NotYetConnectedException;
+import java.security.MessageDigest;
 import java.util.concurrent.locks.Lock;
 
 import static com.google.common.base.Preconditions.*;
@@ -51,14 +57,20 @@ public abstract class PeerSocketHandler extends AbstractTimeoutHandler implement
     // writeTarget will be thread-safe, and may call into PeerGroup, which calls us, so we should call it unlocked
     @VisibleForTesting protected MessageWriteTarget writeTarget = null;
 
-    // The ByteBuffers passed to us from the writeTarget are static in size, and usually smaller than some messages we
-    // will receive. For SPV clients, this should be rare (ie we're mostly dealing with small transactions), but for
-    // messages which are larger than the read buffer, we have to keep a temporary buffer with its bytes.
-    private byte[] largeReadBuffer;
-    private int largeReadBufferPos;
+    // The message being received: its header, and its payload as far as it was read. The ByteBuffers passed to us
+    // from the writeTarget are static in size, and usually smaller than some messages we will receive, so a payload
+    // is gathered over several reads. It is read straight into an array of its exact size that is then handed to the
+    // message without another copy. Blocks and transactions keep that array to serialize and hash themselves, which
+    // is why it can't be reused for the next message.
     private BitcoinSerializer.BitcoinPacketHeader header;
+    private byte[] payload;
+    private int payloadPos;
+    // Hashes the payload while it is read, so that the checksum doesn't take another pass over it.
+    private final MessageDigest payloadDigest = Sha256Hash.newDigest();
 
     private Lock lock = Threading.lock("PeerSocketHandler");
+    // Completed once the write target is writable again, see whenWritable().
+    @GuardedBy("lock") @Nullable private SettableFuture<Void> writableFuture;
 
     public PeerSocketHandler(NetworkParameters params, InetSocketAddress remoteIp) {
         checkNotNull(params);
@@ -95,6 +107,53 @@ public abstract class PeerSocketHandler extends AbstractTimeoutHandler implement
         }
     }
 
+    /**
+     * Returns false while so many messages to the peer wait to be written that more shouldn't be sent. Messages can
+     * still be sent, but the connection is closed if the peer keeps not reading them.
+     */
+    public boolean isWritable() {
+        lock.lock();
+        try {
+            return writeTarget == null || writeTarget.isWritable();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns a future that completes once {@link #isWritable()}, immediately if it is already. Senders of many or
+     * optional messages can use it to slow down to the pace the peer reads at. If the connection is closed while not
+     * writable, the future never completes.
+     */
+    public ListenableFuture<Void> whenWritable() {
+        lock.lock();
+        try {
+            if (writeTarget == null || writeTarget.isWritable())
+                return Futures.immediateFuture(null);
+            if (writableFuture == null)
+                writableFuture = SettableFuture.create();
+            return writableFuture;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void writabilityChanged(boolean writable) {
+        if (!writable)
+            return;
+        SettableFuture<Void> future;
+        lock.lock();
+        try {
+            future = writableFuture;
+            writableFuture = null;
+        } finally {
+            lock.unlock();
+        }
+        if (future != null)
+            future.set(null);
+    }
+
     /**
      * Closes the connection to the peer if one exists, or immediately closes the connection as soon as it opens
      */
@@ -127,62 +186,39 @@ public abstract class PeerSocketHandler extends AbstractTimeoutHandler implement
         checkArgument(buff.position() == 0 &&
                 buff.capacity() >= BitcoinSerializer.BitcoinPacketHeader.HEADER_LENGTH + 4);
         try {
-            // Repeatedly try to deserialize messages until we hit a BufferUnderflowException
-            boolean firstMessage = true;
+            // Repeatedly read messages until we run out of bytes
             while (true) {
-                // If we are in the middle of reading a message, try to fill that one first, before we expect another
-                if (largeReadBuffer != null) {
-                    // This can only happen in the first iteration
-                    checkState(firstMessage);
-                    // Read new bytes into the largeReadBuffer
-                    int bytesToGet = Math.min(buff.remaining(), largeReadBuffer.length - largeReadBufferPos);
-                    buff.get(largeReadBuffer, largeReadBufferPos, bytesToGet);
-                    largeReadBufferPos += bytesToGet;
-                    // Check the largeReadBuffer's status
-                    if (largeReadBufferPos == largeReadBuffer.length) {
-                        // ...processing a message if one is available
-                        processMessage(serializer.deserializePayload(header, ByteBuffer.wrap(largeReadBuffer)));
-                        largeReadBuffer = null;
-                        header = null;
-                        firstMessage = false;
-                    } else // ...or just returning if we don't have enough bytes yet
-                        return buff.position();
-                }
-                // Now try to deserialize any messages left in buff
-                Message message;
-                int preSerializePosition = buff.position();
-                try {
-                    message = serializer.deserialize(buff);
-                } catch (BufferUnderflowException e) {
-                    // If we went through the whole buffer without a full message, we need to use the largeReadBuffer
-                    if (firstMessage && buff.limit() == buff.capacity()) {
-                        // ...so reposition the buffer to 0 and read the next message header
-                        buff.position(0);
-                        try {
-                            serializer.seekPastMagicBytes(buff);
-                            header = serializer.deserializeHeader(buff);
-                            // Initialize the largeReadBuffer with the next message's size and fill it with any bytes
-                            // left in buff
-                            largeReadBuffer = new byte[header.size];
-                            largeReadBufferPos = buff.remaining();
-                            buff.get(largeReadBuffer, 0, largeReadBufferPos);
-                        } catch (BufferUnderflowException e1) {
-                            // If we went through a whole buffer's worth of bytes without getting a header, give up
-                            // In cases where the buff is just really small, we could create a second largeReadBuffer
-                            // that we use to deserialize the magic+header, but that is rather complicated when the buff
-                            // should probably be at least that big anyway (for efficiency)
+                if (header == null) {
+                    int preHeaderPosition = buff.position();
+                    try {
+                        serializer.seekPastMagicBytes(buff);
+                        header = serializer.deserializeHeader(buff);
+                    } catch (BufferUnderflowException e) {
+                        // If we went through a whole buffer's worth of bytes without getting a header, give up
+                        if (preHeaderPosition == 0 && buff.limit() == buff.capacity())
                             throw new ProtocolException("No magic bytes+header after reading " + buff.capacity() + " bytes");
-                        }
-                    } else {
                         // Reposition the buffer to its original position, which saves us from skipping messages by
                         // seeking past part of the magic bytes before all of them are in the buffer
-                        buff.position(preSerializePosition);
+                        buff.position(preHeaderPosition);
+                        return buff.position();
                     }
-                    return buff.position();
+                    payload = new byte[header.size];
+                    payloadPos = 0;
+                    payloadDigest.reset();
                 }
-                // Process our freshly deserialized message
-                processMessage(message);
-                firstMessage = false;
+                int bytesToGet = Math.min(buff.remaining(), payload.length - payloadPos);
+                buff.get(payload, payloadPos, bytesToGet);
+                payloadDigest.update(payload, payloadPos, bytesToGet);
+                payloadPos += bytesToGet;
+                if (payloadPos < payload.length)
+                    return buff.position();
+
+                BitcoinSerializer.BitcoinPacketHeader header = this.header;
+                byte[] payload = this.payload;
+                this.header = null;
+                this.payload = null;
+                byte[] hash = payloadDigest.digest(payloadDigest.digest());
+                processMessage(serializer.deserializePayload(header, payload, hash));
             }
         } catch (Exception e) {
             exceptionCaught(e);
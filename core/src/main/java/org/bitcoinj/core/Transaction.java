@@ -41,6 +41,7 @@ import org.bouncycastle.crypto.params.KeyParameter;
 
 import javax.annotation.Nullable;
 import java.io.*;
+import java.security.MessageDigest;
 import java.util.*;
 
 import static org.bitcoinj.core.Utils.*;
@@ -158,6 +159,9 @@ public class Transaction extends ChildMessage {
     // can properly keep track of optimal encoded size
     private int optimalEncodingMessageSize;
 
+    // The invariant parts of the signature hash preimage, see hashForSignature(). Dropped whenever the tx changes.
+    @Nullable private SigHashCache sigHashCache;
+
     /**
      * This enum describes the underlying reason the transaction was created. It's useful for rendering wallet GUIs
      * more appropriately.
@@ -526,6 +530,7 @@ public class Transaction extends ChildMessage {
     protected void unCache() {
         super.unCache();
         hash = null;
+        sigHashCache = null;
     }
 
     protected static int calcLength(byte[] buf, int offset) {
@@ -1105,83 +1110,157 @@ public class Transaction extends ChildMessage {
         //
         //   https://en.bitcoin.it/wiki/Contracts
 
-        try {
-            // Create a copy of this transaction to operate upon because we need make changes to the inputs and outputs.
-            // It would not be thread-safe to change the attributes of the transaction object itself.
-            Transaction tx = this.params.getDefaultSerializer().makeTransaction(this.bitcoinSerialize());
-
-            // Clear input scripts in preparation for signing. If we're signing a fresh
-            // transaction that step isn't very helpful, but it doesn't add much cost relative to the actual
-            // EC math so we'll do it anyway.
-            for (int i = 0; i < tx.inputs.size(); i++) {
-                tx.inputs.get(i).clearScriptBytes();
-            }
+        // Rather than copying the transaction, simplifying the copy and serializing it again (which makes signing every
+        // input of a large transaction quadratic in allocations as well as in bytes hashed), the simplified form is
+        // streamed straight into the digest. The parts that don't depend on the input being signed are serialized once
+        // and kept in a SigHashCache until the next unCache(). This also means the transaction object itself is never
+        // modified, so it's safe to compute signature hashes for different inputs from several threads.
+        TransactionInput input = inputs.get(inputIndex);
+        SigHashCache cache = getSigHashCache();
+        int hashType = sigHashType & 0x1f;
+        boolean anyoneCanPay = (sigHashType & SigHash.ANYONECANPAY.value) == SigHash.ANYONECANPAY.value;
+
+        if (hashType == SigHash.SINGLE.value && inputIndex >= outputs.size()) {
+            // The input index is beyond the number of outputs, it's a buggy signature made by a broken
+            // Bitcoin implementation. Bitcoin Core also contains a bug in handling this case:
+            // any transaction output that is signed in this case will result in both the signed output
+            // and any future outputs to this public key being steal-able by anyone who has
+            // the resulting signature and the public key (both of which are part of the signed tx input).
+
+            // Bitcoin Core's bug is that SignatureHash was supposed to return a hash and on this codepath it
+            // actually returns the constant "1" to indicate an error, which is never checked for. Oops.
+            return Sha256Hash.wrap("0100000000000000000000000000000000000000000000000000000000000000");
+        }
 
-            // This step has no purpose beyond being synchronized with Bitcoin Core's bugs. OP_CODESEPARATOR
-            // is a legacy holdover from a previous, broken design of executing scripts that shipped in Bitcoin 0.1.
-            // It was seriously flawed and would have let anyone take anyone elses money. Later versions switched to
-            // the design we use today where scripts are executed independently but share a stack. This left the
-            // OP_CODESEPARATOR instruction having no purpose as it was only meant to be used internally, not actually
-            // ever put into scripts. Deleting OP_CODESEPARATOR is a step that should never be required but if we don't
-            // do it, we could split off the main chain.
-            connectedScript = Script.removeAllInstancesOfOp(connectedScript, ScriptOpCodes.OP_CODESEPARATOR);
-
-            // Set the input to the script of its output. Bitcoin Core does this but the step has no obvious purpose as
-            // the signature covers the hash of the prevout transaction which obviously includes the output script
-            // already. Perhaps it felt safer to him in some way, or is another leftover from how the code was written.
-            TransactionInput input = tx.inputs.get(inputIndex);
-            input.setScriptBytes(connectedScript);
-
-            if ((sigHashType & 0x1f) == SigHash.NONE.value) {
-                // SIGHASH_NONE means no outputs are signed at all - the signature is effectively for a "blank cheque".
-                tx.outputs = new ArrayList<>(0);
-                // The signature isn't broken by new versions of the transaction issued by other parties.
-                for (int i = 0; i < tx.inputs.size(); i++)
-                    if (i != inputIndex)
-                        tx.inputs.get(i).setSequenceNumber(0);
-            } else if ((sigHashType & 0x1f) == SigHash.SINGLE.value) {
-                // SIGHASH_SINGLE means only sign the output at the same index as the input (ie, my output).
-                if (inputIndex >= tx.outputs.size()) {
-                    // The input index is beyond the number of outputs, it's a buggy signature made by a broken
-                    // Bitcoin implementation. Bitcoin Core also contains a bug in handling this case:
-                    // any transaction output that is signed in this case will result in both the signed output
-                    // and any future outputs to this public key being steal-able by anyone who has
-                    // the resulting signature and the public key (both of which are part of the signed tx input).
-
-                    // Bitcoin Core's bug is that SignatureHash was supposed to return a hash and on this codepath it
-                    // actually returns the constant "1" to indicate an error, which is never checked for. Oops.
-                    return Sha256Hash.wrap("0100000000000000000000000000000000000000000000000000000000000000");
+        // This step has no purpose beyond being synchronized with Bitcoin Core's bugs. OP_CODESEPARATOR
+        // is a legacy holdover from a previous, broken design of executing scripts that shipped in Bitcoin 0.1.
+        // It was seriously flawed and would have let anyone take anyone elses money. Later versions switched to
+        // the design we use today where scripts are executed independently but share a stack. This left the
+        // OP_CODESEPARATOR instruction having no purpose as it was only meant to be used internally, not actually
+        // ever put into scripts. Deleting OP_CODESEPARATOR is a step that should never be required but if we don't
+        // do it, we could split off the main chain.
+        connectedScript = Script.removeAllInstancesOfOp(connectedScript, ScriptOpCodes.OP_CODESEPARATOR);
+
+        MessageDigest digest = Sha256Hash.newDigest();
+        byte[] buf = new byte[8];
+        uint32ToByteArrayLE(version, buf, 0);
+        digest.update(buf, 0, 4);
+
+        if (anyoneCanPay) {
+            // SIGHASH_ANYONECANPAY means the signature in the input is not broken by changes/additions/removals
+            // of other inputs. For example, this is useful for building assurance contracts.
+            digest.update((byte) 1);
+            updateWithInput(digest, cache, inputIndex, connectedScript, cache.sequences, buf);
+        } else {
+            digest.update(new VarInt(inputs.size()).encode());
+            // SIGHASH_NONE and SIGHASH_SINGLE: the signature isn't broken by new versions of the transaction issued by
+            // other parties, so the sequence numbers of all other inputs are signed as zero.
+            boolean zeroOtherSequences = hashType == SigHash.NONE.value || hashType == SigHash.SINGLE.value;
+            for (int i = 0; i < inputs.size(); i++) {
+                if (i == inputIndex) {
+                    // Set the input to the script of its output. Bitcoin Core does this but the step has no obvious
+                    // purpose as the signature covers the hash of the prevout transaction which obviously includes the
+                    // output script already. Perhaps it felt safer to him in some way, or is another leftover from how
+                    // the code was written.
+                    updateWithInput(digest, cache, i, connectedScript, cache.sequences, buf);
+                } else {
+                    // All other input scripts are cleared.
+                    updateWithInput(digest, cache, i, TransactionInput.EMPTY_ARRAY,
+                            zeroOtherSequences ? null : cache.sequences, buf);
                 }
-                // In SIGHASH_SINGLE the outputs after the matching input index are deleted, and the outputs before
-                // that position are "nulled out". Unintuitively, the value in a "null" transaction is set to -1.
-                tx.outputs = new ArrayList<>(tx.outputs.subList(0, inputIndex + 1));
-                for (int i = 0; i < inputIndex; i++)
-                    tx.outputs.set(i, new TransactionOutput(tx.params, tx, Coin.NEGATIVE_SATOSHI, new byte[] {}));
-                // The signature isn't broken by new versions of the transaction issued by other parties.
-                for (int i = 0; i < tx.inputs.size(); i++)
-                    if (i != inputIndex)
-                        tx.inputs.get(i).setSequenceNumber(0);
             }
+        }
 
-            if ((sigHashType & SigHash.ANYONECANPAY.value) == SigHash.ANYONECANPAY.value) {
-                // SIGHASH_ANYONECANPAY means the signature in the input is not broken by changes/additions/removals
-                // of other inputs. For example, this is useful for building assurance contracts.
-                tx.inputs = new ArrayList<TransactionInput>();
-                tx.inputs.add(input);
+        if (hashType == SigHash.NONE.value) {
+            // SIGHASH_NONE means no outputs are signed at all - the signature is effectively for a "blank cheque".
+            digest.update((byte) 0);
+        } else if (hashType == SigHash.SINGLE.value) {
+            // SIGHASH_SINGLE means only sign the output at the same index as the input (ie, my output).
+            // In SIGHASH_SINGLE the outputs after the matching input index are deleted, and the outputs before
+            // that position are "nulled out". Unintuitively, the value in a "null" transaction is set to -1.
+            digest.update(new VarInt(inputIndex + 1).encode());
+            int64ToByteArrayLE(Coin.NEGATIVE_SATOSHI.value, buf, 0);
+            for (int i = 0; i < inputIndex; i++) {
+                digest.update(buf, 0, 8);
+                digest.update((byte) 0);
             }
+            int start = cache.outputOffsets[inputIndex];
+            digest.update(cache.outputs, start, cache.outputOffsets[inputIndex + 1] - start);
+        } else {
+            digest.update(new VarInt(outputs.size()).encode());
+            digest.update(cache.outputs);
+        }
 
-            ByteArrayOutputStream bos = new UnsafeByteArrayOutputStream(tx.length == UNKNOWN_LENGTH ? 256 : tx.length + 4);
-            tx.bitcoinSerialize(bos);
-            // We also have to write a hash type (sigHashType is actually an unsigned char)
-            uint32ToByteStreamLE(0x000000ff & sigHashType, bos);
-            // Note that this is NOT reversed to ensure it will be signed correctly. If it were to be printed out
-            // however then we would expect that it is IS reversed.
-            Sha256Hash hash = Sha256Hash.twiceOf(bos.toByteArray());
-            bos.close();
-
-            return hash;
-        } catch (IOException e) {
-            throw new RuntimeException(e);  // Cannot happen.
+        uint32ToByteArrayLE(lockTime, buf, 0);
+        digest.update(buf, 0, 4);
+        // We also have to write a hash type (sigHashType is actually an unsigned char)
+        uint32ToByteArrayLE(0x000000ff & sigHashType, buf, 0);
+        digest.update(buf, 0, 4);
+        // Note that this is NOT reversed to ensure it will be signed correctly. If it were to be printed out
+        // however then we would expect that it is IS reversed.
+        byte[] first = digest.digest();
+        return Sha256Hash.wrap(digest.digest(first));
+    }
+
+    private void updateWithInput(MessageDigest digest, SigHashCache cache, int index, byte[] scriptBytes,
+                                 @Nullable byte[] sequences, byte[] buf) {
+        digest.update(cache.outpoints, index * TransactionOutPoint.MESSAGE_LENGTH, TransactionOutPoint.MESSAGE_LENGTH);
+        digest.update(new VarInt(scriptBytes.length).encode());
+        digest.update(scriptBytes);
+        if (sequences != null) {
+            digest.update(sequences, index * 4, 4);
+        } else {
+            uint32ToByteArrayLE(0, buf, 0);
+            digest.update(buf, 0, 4);
+        }
+    }
+
+    private SigHashCache getSigHashCache() {
+        // Racy but benign: the cache is immutable once built, so concurrent callers at worst build it twice.
+        SigHashCache cache = sigHashCache;
+        if (cache == null) {
+            cache = new SigHashCache(inputs, outputs);
+            sigHashCache = cache;
+        }
+        return cache;
+    }
+
+    /**
+     * The serialized parts of a transaction that are the same for every signature hash: the outpoints and sequence
+     * numbers of all inputs and the outputs. It is built on demand by {@link #hashForSignature(int, byte[], byte)}
+     * and dropped by {@link #unCache()}.
+     */
+    private static final class SigHashCache {
+        private final byte[] outpoints;
+        private final byte[] sequences;
+        private final byte[] outputs;
+        // Start of each output within outputs, plus the total length as the last element.
+        private final int[] outputOffsets;
+
+        private SigHashCache(List<TransactionInput> inputs, List<TransactionOutput> outputs) {
+            int numInputs = inputs.size();
+            outpoints = new byte[numInputs * TransactionOutPoint.MESSAGE_LENGTH];
+            sequences = new byte[numInputs * 4];
+            for (int i = 0; i < numInputs; i++) {
+                TransactionInput input = inputs.get(i);
+                TransactionOutPoint outpoint = input.getOutpoint();
+                int pos = i * TransactionOutPoint.MESSAGE_LENGTH;
+                System.arraycopy(outpoint.getHash().getReversedBytes(), 0, outpoints, pos, Sha256Hash.LENGTH);
+                uint32ToByteArrayLE(outpoint.getIndex(), outpoints, pos + Sha256Hash.LENGTH);
+                uint32ToByteArrayLE(input.getSequenceNumber(), sequences, i * 4);
+            }
+            outputOffsets = new int[outputs.size() + 1];
+            UnsafeByteArrayOutputStream stream = new UnsafeByteArrayOutputStream(outputs.size() * 34);
+            try {
+                for (int i = 0; i < outputs.size(); i++) {
+                    outputOffsets[i] = stream.size();
+                    outputs.get(i).bitcoinSerialize(stream);
+                }
+            } catch (IOException e) {
+                throw new RuntimeException(e);  // Cannot happen.
+            }
+            outputOffsets[outputs.size()] = stream.size();
+            this.outputs = stream.toByteArray();
         }
     }
 
@@ -1302,6 +1381,7 @@ public class Transaction extends ChildMessage {
 
     /** Randomly re-orders the transaction outputs: good for privacy */
     public void shuffleOutputs() {
+        unCache();
         Collections.shuffle(outputs);
     }
 
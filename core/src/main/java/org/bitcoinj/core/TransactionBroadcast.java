@@ -151,17 +151,35 @@ public class TransactionBroadcast {
             int numToBroadcastTo = (int) Math.max(1, Math.round(Math.ceil(peers.size() / 2.0)));
             numWaitingFor = (int) Math.ceil((peers.size() - numToBroadcastTo) / 2.0);
             Collections.shuffle(peers, random);
-            peers = peers.subList(0, numToBroadcastTo);
+            // Prefer the peers that can take the transaction right away.
+            List<Peer> writablePeers = new ArrayList<>(peers.size());
+            List<Peer> otherPeers = new ArrayList<>();
+            for (Peer peer : peers)
+                (peer.isWritable() ? writablePeers : otherPeers).add(peer);
+            writablePeers.addAll(otherPeers);
+            peers = writablePeers.subList(0, numToBroadcastTo);
             log.info("broadcastTransaction: We have {} peers, adding {} to the memory pool", numConnected, tx.getHashAsString());
             log.info("Sending to {} peers, will wait for {}, sending to: {}", numToBroadcastTo, numWaitingFor, Joiner.on(",").join(peers));
-            for (Peer peer : peers) {
-                try {
-                    peer.sendMessage(tx);
-                    // We don't record the peer as having seen the tx in the memory pool because we want to track only
-                    // how many peers announced to us.
-                } catch (Exception e) {
-                    log.error("Caught exception sending to {}", peer, e);
-                }
+            for (final Peer peer : peers) {
+                // If the peer doesn't read what we sent it already, wait for it to catch up instead of adding to its
+                // send buffer.
+                Futures.addCallback(peer.whenWritable(), new FutureCallback<Void>() {
+                    @Override
+                    public void onSuccess(Void result) {
+                        try {
+                            peer.sendMessage(tx);
+                            // We don't record the peer as having seen the tx in the memory pool because we want to
+                            // track only how many peers announced to us.
+                        } catch (Exception e) {
+                            log.error("Caught exception sending to {}", peer, e);
+                        }
+                    }
+
+                    @Override
+                    public void onFailure(Throwable t) {
+                        // Never fails.
+                    }
+                }, Threading.SAME_THREAD);
             }
             // If we've been limited to talk to only one peer, we can't wait to hear back because the
             // remote peer won't tell us about transactions we just announced to it for obvious reasons.
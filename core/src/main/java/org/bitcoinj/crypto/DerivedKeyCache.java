@@ -0,0 +1,222 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.crypto;
+
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.Utils;
+import org.bitcoinj.utils.Threading;
+import org.bouncycastle.crypto.digests.SHA256Digest;
+import org.bouncycastle.crypto.macs.HMac;
+import org.bouncycastle.crypto.params.KeyParameter;
+
+import javax.annotation.Nullable;
+import java.nio.ByteBuffer;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * <p>A bounded cache of AES keys derived by {@link KeyCrypterScrypt}, so that a wallet that asks for the password
+ * repeatedly doesn't pay for scrypt every time. Entries are looked up by an HMAC of the password and the scrypt
+ * parameters under a random secret, so the password itself isn't held.</p>
+ *
+ * <p>This is a trade-off: the secret and the entry ids are in the same memory as the keys. Whoever can read that memory,
+ * for example from a heap dump, gets the cached keys themselves, and can also brute force the password at the speed of
+ * HMAC-SHA256 rather than scrypt for as long as entries live. Keep the lifetime short, or don't use the cache where
+ * that matters.</p>
+ *
+ * <p>Each entry lives for a fixed time after it was derived. Expired entries, and entries evicted because the cache
+ * is full, are overwritten with zeros rather than left for the garbage collector. A daemon thread does this for
+ * entries that aren't looked up again. Keys handed out are copies, which the caller is responsible for.</p>
+ */
+class DerivedKeyCache {
+    private final ReentrantLock lock = Threading.lock("DerivedKeyCache");
+    private final int maxEntries;
+    private final long lifetimeMillis;
+    private final byte[] secret = new byte[32];
+    // In access order, so the least recently used entry is evicted when full.
+    private final LinkedHashMap<Sha256Hash, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private final ScheduledExecutorService wiper;
+    @Nullable private ScheduledFuture<?> pendingSweep;
+    private boolean isShutdown;
+
+    private static class Entry {
+        final byte[] key;
+        final long expiresAtMillis;
+
+        Entry(byte[] key, long expiresAtMillis) {
+            this.key = key;
+            this.expiresAtMillis = expiresAtMillis;
+        }
+    }
+
+    DerivedKeyCache(int maxEntries, long lifetime, TimeUnit unit) {
+        checkArgument(maxEntries > 0, "maxEntries must be positive: %s", maxEntries);
+        checkArgument(lifetime > 0, "lifetime must be positive: %s", lifetime);
+        this.maxEntries = maxEntries;
+        this.lifetimeMillis = unit.toMillis(lifetime);
+        new SecureRandom().nextBytes(secret);
+        this.wiper = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "DerivedKeyCache wiper");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    /** Returns the identifier under which the key derived from the given password and scrypt parameters is cached. */
+    Sha256Hash id(byte[] password, byte[] salt, long n, int r, int p) {
+        HMac hmac = new HMac(new SHA256Digest());
+        hmac.init(new KeyParameter(secret));
+        byte[] params = ByteBuffer.allocate(20).putLong(n).putInt(r).putInt(p).putInt(salt.length).array();
+        hmac.update(params, 0, params.length);
+        hmac.update(salt, 0, salt.length);
+        hmac.update(password, 0, password.length);
+        byte[] out = new byte[hmac.getMacSize()];
+        hmac.doFinal(out, 0);
+        return Sha256Hash.wrap(out);
+    }
+
+    /** Returns a copy of the cached key, or null if there is none or it has expired. */
+    @Nullable
+    KeyParameter get(Sha256Hash id) {
+        lock.lock();
+        try {
+            Entry entry = entries.get(id);
+            if (entry == null)
+                return null;
+            if (entry.expiresAtMillis <= Utils.currentTimeMillis()) {
+                entries.remove(id);
+                Arrays.fill(entry.key, (byte) 0);
+                return null;
+            }
+            return new KeyParameter(entry.key);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Caches the given key bytes. The cache takes ownership of the array and wipes it when the entry expires or is
+     * evicted, so callers must pass a copy of anything they still use. A cache that has been shut down, for example by
+     * replacing it while a key was being derived, wipes the key straight away.
+     */
+    void put(Sha256Hash id, byte[] key) {
+        lock.lock();
+        try {
+            if (isShutdown) {
+                Arrays.fill(key, (byte) 0);
+                return;
+            }
+            Entry old = entries.put(id, new Entry(key, Utils.currentTimeMillis() + lifetimeMillis));
+            if (old != null && old.key != key)
+                Arrays.fill(old.key, (byte) 0);
+            Iterator<Entry> it = entries.values().iterator();
+            while (entries.size() > maxEntries) {
+                Arrays.fill(it.next().key, (byte) 0);
+                it.remove();
+            }
+            if (pendingSweep == null)
+                scheduleSweepLocked();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns the number of entries, including expired ones that haven't been wiped yet. */
+    int size() {
+        lock.lock();
+        try {
+            return entries.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Wipes and removes all entries. */
+    void clear() {
+        lock.lock();
+        try {
+            for (Entry entry : entries.values())
+                Arrays.fill(entry.key, (byte) 0);
+            entries.clear();
+            if (pendingSweep != null) {
+                pendingSweep.cancel(false);
+                pendingSweep = null;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Wipes all entries and stops the wiper thread. The cache must not be used afterwards. */
+    void shutdown() {
+        lock.lock();
+        try {
+            clear();
+            isShutdown = true;
+            wiper.shutdownNow();
+            Arrays.fill(secret, (byte) 0);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Wipes the expired entries, then waits for the next one to expire.
+    private void sweep() {
+        lock.lock();
+        try {
+            pendingSweep = null;
+            long now = Utils.currentTimeMillis();
+            for (Iterator<Entry> it = entries.values().iterator(); it.hasNext(); ) {
+                Entry entry = it.next();
+                if (entry.expiresAtMillis <= now) {
+                    Arrays.fill(entry.key, (byte) 0);
+                    it.remove();
+                }
+            }
+            if (!entries.isEmpty())
+                scheduleSweepLocked();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void scheduleSweepLocked() {
+        long earliest = Long.MAX_VALUE;
+        for (Entry entry : entries.values())
+            earliest = Math.min(earliest, entry.expiresAtMillis);
+        long delay = Math.max(1, earliest - Utils.currentTimeMillis());
+        pendingSweep = wiper.schedule(new Runnable() {
+            @Override
+            public void run() {
+                sweep();
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+}
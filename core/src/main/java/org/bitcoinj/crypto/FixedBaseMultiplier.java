@@ -0,0 +1,137 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.crypto;
+
+import org.bouncycastle.math.ec.ECCurve;
+import org.bouncycastle.math.ec.ECPoint;
+
+import java.math.BigInteger;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * <p>Multiplies a fixed base point, such as the generator of secp256k1, by arbitrary scalars using a table of
+ * precomputed multiples. The scalar is split into signed windows of {@code windowBits} bits, and the multiple for each
+ * window is looked up rather than computed, so a multiplication costs one point addition per window and no doublings
+ * at all.</p>
+ *
+ * <p>Wider windows mean fewer additions but an exponentially larger table: for a 256 bit order the table holds about
+ * {@code 256 / windowBits * 2^(windowBits - 1)} points, or roughly 4200 points for 8 bit windows and 27000 points for
+ * 11 bit windows. All table entries are normalized to affine coordinates with a single field inversion, using
+ * Montgomery's trick, so every addition is the cheaper mixed addition. The same trick is used by
+ * {@link #multiplyAll(BigInteger[])} to normalize a whole batch of results at once.</p>
+ *
+ * <p>Like the comb multiplier of Bouncy Castle it replaces, the table lookups depend on the scalar, so this is meant
+ * for deriving public keys rather than for signing.</p>
+ */
+public class FixedBaseMultiplier {
+    private final ECCurve curve;
+    private final BigInteger order;
+    private final int windowBits;
+    // table[i][d - 1] is d * 2^(i * windowBits) * base, in affine coordinates.
+    private final ECPoint[][] table;
+
+    /**
+     * Precomputes the table for the given base point, which must have the given prime order.
+     *
+     * @param windowBits the width of each window, between 2 and 16 bits.
+     */
+    public FixedBaseMultiplier(ECPoint base, BigInteger order, int windowBits) {
+        checkArgument(windowBits >= 2 && windowBits <= 16, "Window width out of range: %s", windowBits);
+        checkArgument(!base.isInfinity(), "Base point is infinity");
+        this.curve = base.getCurve();
+        this.order = order;
+        this.windowBits = windowBits;
+        // The top window only ever holds the carry out of the window below it.
+        int windows = (order.bitLength() + windowBits - 1) / windowBits + 1;
+        int perWindow = 1 << (windowBits - 1);
+        this.table = new ECPoint[windows][];
+        ECPoint[] points = new ECPoint[(windows - 1) * perWindow + 1];
+        ECPoint windowBase = base.normalize();
+        int n = 0;
+        for (int i = 0; i < windows; i++) {
+            int size = i == windows - 1 ? 1 : perWindow;
+            table[i] = new ECPoint[size];
+            ECPoint multiple = windowBase;
+            for (int d = 1; d <= size; d++) {
+                points[n++] = multiple;
+                multiple = multiple.add(windowBase);
+            }
+            windowBase = windowBase.timesPow2(windowBits).normalize();
+        }
+        curve.normalizeAll(points);
+        n = 0;
+        for (ECPoint[] window : table)
+            for (int d = 0; d < window.length; d++)
+                window[d] = points[n++];
+    }
+
+    /** Returns the width of the windows the scalar is split into. */
+    public int getWindowBits() {
+        return windowBits;
+    }
+
+    /** Returns the number of precomputed points held in the table. */
+    public int getTableSize() {
+        int size = 0;
+        for (ECPoint[] window : table)
+            size += window.length;
+        return size;
+    }
+
+    /**
+     * Returns k times the base point. The result is generally not normalized; use {@link #multiplyAll(BigInteger[])}
+     * when several results will be encoded.
+     */
+    public ECPoint multiply(BigInteger k) {
+        if (k.signum() < 0 || k.bitLength() > order.bitLength())
+            k = k.mod(order);
+        int half = 1 << (windowBits - 1);
+        ECPoint result = curve.getInfinity();
+        int carry = 0;
+        for (int i = 0; i < table.length; i++) {
+            int digit = carry;
+            for (int bit = 0, offset = i * windowBits; bit < windowBits; bit++)
+                if (k.testBit(offset + bit))
+                    digit += 1 << bit;
+            // Map the digit into [-2^(w-1), 2^(w-1)] and carry the difference into the next window.
+            if (digit > half) {
+                digit -= 1 << windowBits;
+                carry = 1;
+            } else {
+                carry = 0;
+            }
+            if (digit > 0)
+                result = result.add(table[i][digit - 1]);
+            else if (digit < 0)
+                result = result.subtract(table[i][-digit - 1]);
+        }
+        return result;
+    }
+
+    /**
+     * Returns each of the given scalars times the base point, all normalized to affine coordinates with a single
+     * field inversion rather than one per point.
+     */
+    public ECPoint[] multiplyAll(BigInteger[] ks) {
+        ECPoint[] points = new ECPoint[ks.length];
+        for (int i = 0; i < ks.length; i++)
+            points[i] = multiply(ks[i]);
+        curve.normalizeAll(points);
+        return points;
+    }
+}
@@ -21,6 +21,7 @@ import com.google.common.base.Objects;
 import com.google.common.base.Stopwatch;
 import com.google.protobuf.ByteString;
 import com.lambdaworks.crypto.SCrypt;
+import org.bitcoinj.core.Sha256Hash;
 import org.bitcoinj.core.Utils;
 import org.bitcoinj.wallet.Protos;
 import org.bitcoinj.wallet.Protos.ScryptParameters;
@@ -34,8 +35,10 @@ import org.bouncycastle.crypto.paddings.PaddedBufferedBlockCipher;
 import org.bouncycastle.crypto.params.KeyParameter;
 import org.bouncycastle.crypto.params.ParametersWithIV;
 
+import javax.annotation.Nullable;
 import java.security.SecureRandom;
 import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
 
 import static com.google.common.base.Preconditions.checkNotNull;
 
@@ -90,6 +93,44 @@ public class KeyCrypterScrypt implements KeyCrypter {
         return salt;
     }
 
+    // Keys derived recently, if enabled.
+    @Nullable private static volatile DerivedKeyCache derivedKeyCache;
+
+    /**
+     * <p>Keeps up to the given number of derived keys in memory for the given time, so that deriving a key again from
+     * the same password and scrypt parameters, as happens when a wallet asks for the password for every spend, is
+     * immediate. The cache applies to all instances of this class and is off by default, because it keeps keys that
+     * can decrypt wallets in memory after the caller has dropped them.</p>
+     *
+     * <p>Keys are held in arrays that are overwritten with zeros when they expire or are evicted. The password itself
+     * is never held, but while keys are cached it can be brute forced from memory much faster than through scrypt, see
+     * {@link DerivedKeyCache}. Calling this again replaces, and wipes, the existing cache.</p>
+     */
+    public static void enableDerivedKeyCache(int maxEntries, long lifetime, TimeUnit unit) {
+        DerivedKeyCache cache = new DerivedKeyCache(maxEntries, lifetime, unit);
+        synchronized (KeyCrypterScrypt.class) {
+            if (derivedKeyCache != null)
+                derivedKeyCache.shutdown();
+            derivedKeyCache = cache;
+        }
+    }
+
+    /** Wipes all cached keys and stops caching them. See {@link #enableDerivedKeyCache(int, long, TimeUnit)}. */
+    public static void disableDerivedKeyCache() {
+        synchronized (KeyCrypterScrypt.class) {
+            if (derivedKeyCache != null)
+                derivedKeyCache.shutdown();
+            derivedKeyCache = null;
+        }
+    }
+
+    /** Wipes all cached keys, if the cache is enabled, but keeps caching keys derived from now on. */
+    public static void clearDerivedKeyCache() {
+        DerivedKeyCache cache = derivedKeyCache;
+        if (cache != null)
+            cache.clear();
+    }
+
     // Scrypt parameters.
     private final ScryptParameters scryptParameters;
 
@@ -155,11 +196,24 @@ public class KeyCrypterScrypt implements KeyCrypter {
                 log.warn("You are using a ScryptParameters with no salt. Your encryption may be vulnerable to a dictionary attack.");
             }
 
+            DerivedKeyCache cache = derivedKeyCache;
+            Sha256Hash cacheId = null;
+            if (cache != null) {
+                cacheId = cache.id(passwordBytes, salt, scryptParameters.getN(), scryptParameters.getR(), scryptParameters.getP());
+                KeyParameter cached = cache.get(cacheId);
+                if (cached != null)
+                    return cached;
+            }
+
             final Stopwatch watch = Stopwatch.createStarted();
             byte[] keyBytes = SCrypt.scrypt(passwordBytes, salt, (int) scryptParameters.getN(), scryptParameters.getR(), scryptParameters.getP(), KEY_LENGTH);
             watch.stop();
             log.info("Deriving key took {} for {} scrypt iterations.", watch, scryptParameters.getN());
-            return new KeyParameter(keyBytes);
+            // KeyParameter copies the bytes, so the cache can own the original.
+            KeyParameter key = new KeyParameter(keyBytes);
+            if (cache != null)
+                cache.put(cacheId, keyBytes);
+            return key;
         } catch (Exception e) {
             throw new KeyCrypterException("Could not generate key from password and salt.", e);
         } finally {
@@ -18,6 +18,7 @@ package org.bitcoinj.net;
 
 import com.google.common.util.concurrent.*;
 import org.bitcoinj.core.*;
+import org.bitcoinj.utils.Threading;
 import org.slf4j.*;
 
 import javax.annotation.*;
@@ -26,6 +27,8 @@ import java.io.*;
 import java.net.*;
 import java.nio.*;
 import java.util.*;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.locks.ReentrantLock;
 
 import static com.google.common.base.Preconditions.*;
 
@@ -44,6 +47,9 @@ public class BlockingClient implements MessageWriteTarget {
 
     private Socket socket;
     private volatile boolean vCloseRequested = false;
+    // A lock rather than synchronized, because a virtual thread blocked on I/O inside synchronized would also block
+    // the platform thread it runs on.
+    private final ReentrantLock writeLock = Threading.lock("blockingClient");
     private SettableFuture<SocketAddress> connectFuture;
 
     /**
@@ -61,13 +67,27 @@ public class BlockingClient implements MessageWriteTarget {
     public BlockingClient(final SocketAddress serverAddress, final StreamConnection connection,
                           final int connectTimeoutMillis, final SocketFactory socketFactory,
                           @Nullable final Set<BlockingClient> clientSet) throws IOException {
+        this(serverAddress, connection, connectTimeoutMillis, socketFactory, clientSet, null);
+    }
+
+    /**
+     * <p>Like {@link #BlockingClient(SocketAddress, StreamConnection, int, SocketFactory, Set)}, but creates the
+     * network thread with the given factory, for example one that creates virtual threads. The thread is made a daemon
+     * thread if it isn't one already.</p>
+     *
+     * @param threadFactory Creates the network thread, or null to create a regular platform thread
+     */
+    public BlockingClient(final SocketAddress serverAddress, final StreamConnection connection,
+                          final int connectTimeoutMillis, final SocketFactory socketFactory,
+                          @Nullable final Set<BlockingClient> clientSet, @Nullable ThreadFactory threadFactory)
+            throws IOException {
         connectFuture = SettableFuture.create();
         // Try to fit at least one message in the network buffer, but place an upper and lower limit on its size to make
         // sure it doesn't get too large or have to call read too often.
         connection.setWriteTarget(this);
         socket = socketFactory.createSocket();
         final Context context = Context.get();
-        Thread t = new Thread() {
+        Runnable networkLoop = new Runnable() {
             @Override
             public void run() {
                 Context.propagate(context);
@@ -96,8 +116,10 @@ public class BlockingClient implements MessageWriteTarget {
                 }
             }
         };
+        Thread t = threadFactory != null ? threadFactory.newThread(networkLoop) : new Thread(networkLoop);
         t.setName("BlockingClient network thread for " + serverAddress);
-        t.setDaemon(true);
+        if (!t.isDaemon())
+            t.setDaemon(true);
         t.start();
     }
 
@@ -106,15 +128,16 @@ public class BlockingClient implements MessageWriteTarget {
      * and feeds them to the provided {@link StreamConnection}, for example, a {@link Peer}.
      */
     public static void runReadLoop(InputStream stream, StreamConnection connection) throws Exception {
-        ByteBuffer dbuf = ByteBuffer.allocateDirect(Math.min(Math.max(connection.getMaxMessageSize(), BUFFER_SIZE_LOWER_BOUND), BUFFER_SIZE_UPPER_BOUND));
-        byte[] readBuff = new byte[dbuf.capacity()];
+        // A heap buffer, so that the stream can read straight into its array. This is the only buffer a connection
+        // needs, which matters when there are many of them.
+        ByteBuffer dbuf = ByteBuffer.allocate(Math.min(Math.max(connection.getMaxMessageSize(), BUFFER_SIZE_LOWER_BOUND), BUFFER_SIZE_UPPER_BOUND));
         while (true) {
-            // TODO Kill the message duplication here
-            checkState(dbuf.remaining() > 0 && dbuf.remaining() <= readBuff.length);
-            int read = stream.read(readBuff, 0, Math.max(1, Math.min(dbuf.remaining(), stream.available())));
+            checkState(dbuf.remaining() > 0);
+            int read = stream.read(dbuf.array(), dbuf.arrayOffset() + dbuf.position(),
+                    Math.max(1, Math.min(dbuf.remaining(), stream.available())));
             if (read == -1)
                 return;
-            dbuf.put(readBuff, 0, read);
+            dbuf.position(dbuf.position() + read);
             // "flip" the buffer - setting the limit to the current position and setting position to 0
             dbuf.flip();
             // Use connection.receiveBytes's return value as a double-check that it stopped reading at the right
@@ -143,7 +166,8 @@ public class BlockingClient implements MessageWriteTarget {
     }
 
     @Override
-    public synchronized void writeBytes(byte[] message) throws IOException {
+    public void writeBytes(byte[] message) throws IOException {
+        writeLock.lock();
         try {
             OutputStream stream = socket.getOutputStream();
             stream.write(message);
@@ -152,6 +176,8 @@ public class BlockingClient implements MessageWriteTarget {
             log.error("Error writing message to connection, closing connection", e);
             closeConnection();
             throw e;
+        } finally {
+            writeLock.unlock();
         }
     }
 
@@ -19,6 +19,7 @@ package org.bitcoinj.net;
 import com.google.common.util.concurrent.AbstractIdleService;
 import com.google.common.util.concurrent.ListenableFuture;
 
+import javax.annotation.Nullable;
 import javax.net.SocketFactory;
 import java.io.IOException;
 import java.net.SocketAddress;
@@ -26,8 +27,10 @@ import java.util.Collections;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.Set;
+import java.util.concurrent.ThreadFactory;
 
 import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
 
 /**
  * <p>A thin wrapper around a set of {@link BlockingClient}s.</p>
@@ -35,12 +38,31 @@ import static com.google.common.base.Preconditions.checkNotNull;
  * <p>Generally, using {@link NioClient} and {@link NioClientManager} should be preferred over {@link BlockingClient}
  * and {@link BlockingClientManager} as they scale significantly better, unless you wish to connect over a proxy or use
  * some other network settings that cannot be set using NIO.</p>
+ *
+ * <p>Each connection is serviced by a thread of its own. On Java 21 and later these can be virtual threads, see
+ * {@link #setUseVirtualThreads(boolean)}, which makes hundreds of connections cheap.</p>
  */
 public class BlockingClientManager extends AbstractIdleService implements ClientConnectionManager {
+    // Creates virtual threads, or null if the JVM doesn't support them.
+    @Nullable private static final ThreadFactory VIRTUAL_THREAD_FACTORY = virtualThreadFactory();
+
     private final SocketFactory socketFactory;
     private final Set<BlockingClient> clients = Collections.synchronizedSet(new HashSet<BlockingClient>());
 
     private int connectTimeoutMillis = 1000;
+    private volatile boolean useVirtualThreads = false;
+
+    // Thread.ofVirtual().factory() exists from Java 21 on. It is looked up reflectively so that bitcoinj still builds
+    // and runs on older versions.
+    @Nullable
+    private static ThreadFactory virtualThreadFactory() {
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            return (ThreadFactory) Class.forName("java.lang.Thread$Builder").getMethod("factory").invoke(builder);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
 
     public BlockingClientManager() {
         socketFactory = SocketFactory.getDefault();
@@ -59,7 +81,8 @@ public class BlockingClientManager extends AbstractIdleService implements Client
         try {
             if (!isRunning())
                 throw new IllegalStateException();
-            return new BlockingClient(serverAddress, connection, connectTimeoutMillis, socketFactory, clients).getConnectFuture();
+            return new BlockingClient(serverAddress, connection, connectTimeoutMillis, socketFactory, clients,
+                    useVirtualThreads ? VIRTUAL_THREAD_FACTORY : null).getConnectFuture();
         } catch (IOException e) {
             throw new RuntimeException(e); // This should only happen if we are, eg, out of system resources
         }
@@ -70,6 +93,24 @@ public class BlockingClientManager extends AbstractIdleService implements Client
         this.connectTimeoutMillis = connectTimeoutMillis;
     }
 
+    /** Returns true if this JVM supports virtual threads, see {@link #setUseVirtualThreads(boolean)}. */
+    public static boolean isVirtualThreadsSupported() {
+        return VIRTUAL_THREAD_FACTORY != null;
+    }
+
+    /**
+     * Sets whether new connections are serviced by virtual threads rather than platform threads. A virtual thread
+     * blocked on a socket doesn't hold on to an OS thread, and its stack only takes the memory it uses, so this
+     * scales to many more connections, for example when connecting to many peers via Tor. Requires Java 21 or later,
+     * see {@link #isVirtualThreadsSupported()}.
+     *
+     * @throws IllegalStateException if enabled on a JVM that doesn't support virtual threads
+     */
+    public void setUseVirtualThreads(boolean useVirtualThreads) {
+        checkState(!useVirtualThreads || isVirtualThreadsSupported(), "Virtual threads require Java 21 or later");
+        this.useVirtualThreads = useVirtualThreads;
+    }
+
     @Override
     protected void startUp() throws Exception { }
 
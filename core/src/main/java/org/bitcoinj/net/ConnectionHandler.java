@@ -32,6 +32,9 @@ import java.util.Arrays;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.ReentrantLock;
 
 import static com.google.common.base.Preconditions.checkNotNull;
@@ -50,6 +53,10 @@ class ConnectionHandler implements MessageWriteTarget {
     private static final int BUFFER_SIZE_UPPER_BOUND = 65536;
 
     private static final int OUTBOUND_BUFFER_BYTE_COUNT = Message.MAX_SIZE + 24; // 24 byte message header
+    // Once more than this many bytes wait to be written, the connection reports itself as not writable so that senders
+    // hold back, until the bytes waiting dropped below the low watermark.
+    private static final int WRITE_BUFFER_HIGH_WATERMARK = 1024 * 1024;
+    private static final int WRITE_BUFFER_LOW_WATERMARK = 256 * 1024;
 
     // We lock when touching local flags and when writing data, but NEVER when calling any methods which leave this
     // class into non-Java classes.
@@ -62,6 +69,7 @@ class ConnectionHandler implements MessageWriteTarget {
 
     @GuardedBy("lock") private long bytesToWriteRemaining = 0;
     @GuardedBy("lock") private final LinkedList<ByteBuffer> bytesToWrite = new LinkedList<>();
+    @GuardedBy("lock") private boolean writable = true;
 
     private Set<ConnectionHandler> connectedHandlers;
 
@@ -110,32 +118,37 @@ class ConnectionHandler implements MessageWriteTarget {
 
     // Tries to write any outstanding write bytes, runs in any thread (possibly unlocked)
     private void tryWriteBytes() throws IOException {
+        boolean becameWritable = false;
         lock.lock();
         try {
-            // Iterate through the outbound ByteBuff queue, pushing as much as possible into the OS' network buffer.
-            Iterator<ByteBuffer> bytesIterator = bytesToWrite.iterator();
-            while (bytesIterator.hasNext()) {
-                ByteBuffer buff = bytesIterator.next();
-                bytesToWriteRemaining -= channel.write(buff);
-                if (!buff.hasRemaining())
-                    bytesIterator.remove();
-                else {
-                    setWriteOps();
-                    break;
-                }
+            // Push as much of the outbound queue as possible into the OS' network buffer. All queued buffers are
+            // handed to the socket at once, so that a burst of small messages is sent with a single system call.
+            if (!bytesToWrite.isEmpty()) {
+                bytesToWriteRemaining -= channel.write(bytesToWrite.toArray(new ByteBuffer[bytesToWrite.size()]));
+                while (!bytesToWrite.isEmpty() && !bytesToWrite.getFirst().hasRemaining())
+                    bytesToWrite.removeFirst();
             }
-            // If we are done writing, clear the OP_WRITE interestOps
+            // If we are done writing, clear the OP_WRITE interestOps, otherwise wait until we can write again
+            // Don't bother waking up the selector when clearing, since we're just removing an op, not adding
             if (bytesToWrite.isEmpty())
                 key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
-            // Don't bother waking up the selector here, since we're just removing an op, not adding
+            else
+                setWriteOps();
+            if (!writable && bytesToWriteRemaining < WRITE_BUFFER_LOW_WATERMARK) {
+                writable = true;
+                becameWritable = true;
+            }
         } finally {
             lock.unlock();
         }
+        if (becameWritable)
+            connection.writabilityChanged(true);
     }
 
     @Override
     public void writeBytes(byte[] message) throws IOException {
         boolean andUnlock = true;
+        boolean becameUnwritable = false;
         lock.lock();
         try {
             // Network buffers are not unlimited (and are often smaller than some messages we may wish to send), and
@@ -149,7 +162,14 @@ class ConnectionHandler implements MessageWriteTarget {
             // TODO: Kill the needless message duplication when the write completes right away
             bytesToWrite.offer(ByteBuffer.wrap(Arrays.copyOf(message, message.length)));
             bytesToWriteRemaining += message.length;
-            setWriteOps();
+            if (writable && bytesToWriteRemaining > WRITE_BUFFER_HIGH_WATERMARK) {
+                writable = false;
+                becameUnwritable = true;
+            }
+            // If a write is pending already, the selector was woken up for it and will write this message along with
+            // it. Messages sent in a burst are thereby coalesced into one write without delaying the first of them.
+            if ((key.interestOps() & SelectionKey.OP_WRITE) == 0)
+                setWriteOps();
         } catch (IOException e) {
             lock.unlock();
             andUnlock = false;
@@ -166,6 +186,18 @@ class ConnectionHandler implements MessageWriteTarget {
             if (andUnlock)
                 lock.unlock();
         }
+        if (becameUnwritable)
+            connection.writabilityChanged(false);
+    }
+
+    @Override
+    public boolean isWritable() {
+        lock.lock();
+        try {
+            return writable;
+        } finally {
+            lock.unlock();
+        }
     }
 
     // May NOT be called with lock held
@@ -195,11 +227,73 @@ class ConnectionHandler implements MessageWriteTarget {
         }
     }
 
+    @GuardedBy("lock")
+    private void setReadOps(boolean read) {
+        if (read) {
+            key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+            key.selector().wakeup();
+        } else {
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+        }
+    }
+
+    // Does a socket read and hands the bytes to the connection's receiveBytes method. Returns the number of bytes read,
+    // or -1 if the socket was closed, in which case the connection was closed too.
+    private int readBytes() throws Exception {
+        int read = channel.read(readBuff);
+        if (read == 0)
+            return 0; // Was probably waiting on a write
+        else if (read == -1) { // Socket was closed
+            key.cancel();
+            closeConnection();
+            return -1;
+        }
+        // "flip" the buffer - setting the limit to the current position and setting position to 0
+        readBuff.flip();
+        // Use connection.receiveBytes's return value as a check that it stopped reading at the right location
+        int bytesConsumed = checkNotNull(connection).receiveBytes(readBuff);
+        checkState(readBuff.position() == bytesConsumed);
+        // Now drop the bytes which were read by compacting readBuff (resetting limit and keeping relative
+        // position)
+        readBuff.compact();
+        return read;
+    }
+
+    private void handleException(Exception e) {
+        // This can happen eg if the channel closes while the thread is about to get killed
+        // (ClosedByInterruptException), or if connection.receiveBytes throws something
+        Throwable t = Throwables.getRootCause(e);
+        log.warn("Error handling SelectionKey: {} {}", t.getClass().getName(), t.getMessage() != null ? t.getMessage() : "", e);
+        closeConnection();
+    }
+
     // Handle a SelectionKey which was selected
     // Runs unlocked as the caller is single-threaded (or if not, should enforce that handleKey is only called
     // atomically for a given ConnectionHandler)
     public static void handleKey(SelectionKey key) {
         ConnectionHandler handler = ((ConnectionHandler)key.attachment());
+        try {
+            if (handler == null)
+                return;
+            if (!key.isValid()) {
+                handler.closeConnection(); // Key has been cancelled, make sure the socket gets closed
+                return;
+            }
+            if (key.isReadable() && handler.readBytes() <= 0)
+                return;
+            if (key.isWritable())
+                handler.tryWriteBytes();
+        } catch (Exception e) {
+            handler.handleException(e);
+        }
+    }
+
+    // Handle a SelectionKey which was selected, like handleKey(SelectionKey), but reads the socket and processes the
+    // bytes read on the given executor. The key doesn't select reads until that is done, so the bytes of a connection
+    // are processed in order, one read at a time, and a connection whose processing is slow stops being read instead of
+    // holding up the selector thread. queuedReads counts the reads which are waiting for or running on the executor.
+    static void handleKey(final SelectionKey key, Executor executor, final AtomicInteger queuedReads) {
+        final ConnectionHandler handler = ((ConnectionHandler)key.attachment());
         try {
             if (handler == null)
                 return;
@@ -208,32 +302,44 @@ class ConnectionHandler implements MessageWriteTarget {
                 return;
             }
             if (key.isReadable()) {
-                // Do a socket read and invoke the connection's receiveBytes message
-                int read = handler.channel.read(handler.readBuff);
-                if (read == 0)
-                    return; // Was probably waiting on a write
-                else if (read == -1) { // Socket was closed
-                    key.cancel();
-                    handler.closeConnection();
-                    return;
+                handler.lock.lock();
+                try {
+                    handler.setReadOps(false);
+                } finally {
+                    handler.lock.unlock();
+                }
+                queuedReads.incrementAndGet();
+                try {
+                    executor.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            try {
+                                if (!key.isValid()) {
+                                    handler.closeConnection();
+                                } else if (handler.readBytes() >= 0) {
+                                    handler.lock.lock();
+                                    try {
+                                        handler.setReadOps(true);
+                                    } finally {
+                                        handler.lock.unlock();
+                                    }
+                                }
+                            } catch (Exception e) {
+                                handler.handleException(e);
+                            } finally {
+                                queuedReads.decrementAndGet();
+                            }
+                        }
+                    });
+                } catch (RejectedExecutionException e) {
+                    queuedReads.decrementAndGet();
+                    throw e;
                 }
-                // "flip" the buffer - setting the limit to the current position and setting position to 0
-                handler.readBuff.flip();
-                // Use connection.receiveBytes's return value as a check that it stopped reading at the right location
-                int bytesConsumed = checkNotNull(handler.connection).receiveBytes(handler.readBuff);
-                checkState(handler.readBuff.position() == bytesConsumed);
-                // Now drop the bytes which were read by compacting readBuff (resetting limit and keeping relative
-                // position)
-                handler.readBuff.compact();
             }
             if (key.isWritable())
                 handler.tryWriteBytes();
         } catch (Exception e) {
-            // This can happen eg if the channel closes while the thread is about to get killed
-            // (ClosedByInterruptException), or if handler.connection.receiveBytes throws something
-            Throwable t = Throwables.getRootCause(e);
-            log.warn("Error handling SelectionKey: {} {}", t.getClass().getName(), t.getMessage() != null ? t.getMessage() : "", e);
-            handler.closeConnection();
+            handler.handleException(e);
         }
     }
 }
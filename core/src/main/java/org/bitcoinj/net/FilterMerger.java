@@ -16,13 +16,19 @@
 
 package org.bitcoinj.net;
 
+import com.google.common.base.Stopwatch;
 import com.google.common.collect.Lists;
 import org.bitcoinj.core.BloomFilter;
 import org.bitcoinj.core.PeerFilterProvider;
 import com.google.common.collect.ImmutableList;
 import org.bitcoinj.core.PeerGroup;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
+import javax.annotation.Nullable;
 import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 // This code is unit tested by the PeerGroup tests.
 
@@ -36,15 +42,37 @@ import java.util.LinkedList;
  * single thread only, PeerGroup ensures this by only accessing it from the dedicated PeerGroup thread. PeerGroup does
  * not hold any locks whilst this object is used, relying on the single thread to prevent multiple filters being
  * calculated in parallel, thus a filter provider can do things like make blocking calls into PeerGroup from a separate
- * thread. However the bloomFilterFPRate property IS thread safe, for convenience.</p>
+ * thread. However the bloomFilterFPRate property and the statistics ARE thread safe, for convenience.</p>
+ *
+ * <p>Elements that providers add after a calculation, like new lookahead keys, can be inserted into the last filter
+ * with {@link #insert(List, long, boolean)}. That avoids asking every provider to rebuild its filter, which for
+ * wallets with many keys is expensive. Filters are sized with room for such elements, and a full calculation is only
+ * needed once they are used up.</p>
  */
 public class FilterMerger {
+    private static final Logger log = LoggerFactory.getLogger(FilterMerger.class);
+
+    // Filters are sized for this many elements more than the providers have, or half as many again if that's more.
+    private static final int MIN_HEADROOM_ELEMENTS = 500;
+
     // We use a constant tweak to avoid giving up privacy when we regenerate our filter with new keys
     private final long bloomFilterTweak = (long) (Math.random() * Long.MAX_VALUE);
 
     private volatile double vBloomFilterFPRate;
     private int lastBloomFilterElementCount;
     private BloomFilter lastFilter;
+    // The parameters the last filter was created with, and the number of elements in it.
+    private double lastFPRate;
+    private BloomFilter.BloomUpdate lastBloomFlags;
+    private int lastElements;
+    // The false positive rate the last filter has when full. It is higher than the configured rate if the filter had
+    // to be capped at the maximum size.
+    private double lastFullFPRate;
+    private long lastEarliestKeyTimeSecs;
+
+    private volatile int vRebuilds;
+    private volatile long vRebuildMillis;
+    private volatile int vInserts;
 
     public FilterMerger(double bloomFilterFPRate) {
         this.vBloomFilterFPRate = bloomFilterFPRate;
@@ -57,6 +85,7 @@ public class FilterMerger {
     }
 
     public Result calculate(ImmutableList<PeerFilterProvider> providers) {
+        Stopwatch watch = Stopwatch.createStarted();
         LinkedList<PeerFilterProvider> begunProviders = Lists.newLinkedList();
         try {
             // All providers must be in a consistent, unchanging state because the filter is a merged one that's
@@ -79,10 +108,10 @@ public class FilterMerger {
 
             if (elements > 0) {
                 // We stair-step our element count so that we avoid creating a filter with different parameters
-                // as much as possible as that results in a loss of privacy.
-                // The constant 100 here is somewhat arbitrary, but makes sense for small to medium wallets -
-                // it will likely mean we never need to create a filter with different parameters.
-                lastBloomFilterElementCount = elements > lastBloomFilterElementCount ? elements + 100 : lastBloomFilterElementCount;
+                // as much as possible as that results in a loss of privacy. The headroom also leaves room for the
+                // lookahead keys that will be inserted into this filter, see insert().
+                if (elements > lastBloomFilterElementCount)
+                    lastBloomFilterElementCount = elements + Math.max(MIN_HEADROOM_ELEMENTS, elements / 2);
                 BloomFilter.BloomUpdate bloomFlags =
                         requiresUpdateAll ? BloomFilter.BloomUpdate.UPDATE_ALL : BloomFilter.BloomUpdate.UPDATE_P2PUBKEY_ONLY;
                 double fpRate = vBloomFilterFPRate;
@@ -92,7 +121,12 @@ public class FilterMerger {
 
                 result.changed = !filter.equals(lastFilter);
                 result.filter = lastFilter = filter;
+                lastFPRate = fpRate;
+                lastBloomFlags = bloomFlags;
+                lastElements = elements;
+                lastFullFPRate = filter.getFalsePositiveRate(lastBloomFilterElementCount);
             }
+            lastEarliestKeyTimeSecs = result.earliestKeyTimeSecs;
             // Now adjust the earliest key time backwards by a week to handle the case of clock drift. This can occur
             // both in block header timestamps and if the users clock was out of sync when the key was first created
             // (to within a small amount of tolerance).
@@ -102,9 +136,50 @@ public class FilterMerger {
             for (PeerFilterProvider provider : begunProviders) {
                 provider.endBloomFilterCalculation();
             }
+            watch.stop();
+            vRebuilds++;
+            vRebuildMillis += watch.elapsed(TimeUnit.MILLISECONDS);
+            log.info("Calculated Bloom filter in {}", watch);
         }
     }
 
+    /**
+     * Inserts elements that a provider added since the last calculation into a copy of the last filter, so that the
+     * providers don't have to be asked for their filters again.
+     *
+     * @param elements the data to insert, as the provider would have inserted it into its filter
+     * @param earliestKeyTimeSecs the earliest creation time of the keys or scripts the elements are for
+     * @param requiresUpdateAll whether the provider now requires {@link BloomFilter.BloomUpdate#UPDATE_ALL}
+     * @return the updated filter, or null if a full {@link #calculate(ImmutableList)} is needed because there is no
+     *         last filter, the update flag has to change, or the filter has no room left for the elements. A filter
+     *         that was capped at the maximum size is full when its false positive rate reaches what it had when full,
+     *         not the configured rate, as a new filter couldn't do any better.
+     */
+    @Nullable
+    public Result insert(List<byte[]> elements, long earliestKeyTimeSecs, boolean requiresUpdateAll) {
+        if (lastFilter == null || lastFPRate != vBloomFilterFPRate)
+            return null;
+        if (requiresUpdateAll && lastBloomFlags != BloomFilter.BloomUpdate.UPDATE_ALL)
+            return null;
+        int elementCount = lastElements + elements.size();
+        if (lastFilter.getFalsePositiveRate(elementCount) > lastFullFPRate)
+            return null;
+        BloomFilter filter = new BloomFilter(lastBloomFilterElementCount, lastFPRate, bloomFilterTweak, lastBloomFlags);
+        filter.merge(lastFilter);
+        for (byte[] element : elements)
+            filter.insert(element);
+
+        Result result = new Result();
+        result.changed = !filter.equals(lastFilter);
+        result.filter = lastFilter = filter;
+        lastElements = elementCount;
+        lastEarliestKeyTimeSecs = Math.min(lastEarliestKeyTimeSecs, earliestKeyTimeSecs);
+        // Adjusted for clock drift like in calculate().
+        result.earliestKeyTimeSecs = lastEarliestKeyTimeSecs - 86400 * 7;
+        vInserts++;
+        return result;
+    }
+
     public void setBloomFilterFPRate(double bloomFilterFPRate) {
         this.vBloomFilterFPRate = bloomFilterFPRate;
     }
@@ -116,4 +191,19 @@ public class FilterMerger {
     public BloomFilter getLastFilter() {
         return lastFilter;
     }
+
+    /** Returns how many times the filter was calculated from all providers. */
+    public int getRebuildCount() {
+        return vRebuilds;
+    }
+
+    /** Returns the total time spent calculating filters from all providers, in milliseconds. */
+    public long getRebuildTimeMillis() {
+        return vRebuildMillis;
+    }
+
+    /** Returns how many times elements were inserted into the last filter instead of calculating a new one. */
+    public int getInsertCount() {
+        return vInserts;
+    }
 }
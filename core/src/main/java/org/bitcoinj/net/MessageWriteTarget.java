@@ -26,6 +26,14 @@ public interface MessageWriteTarget {
      * Writes the given bytes to the remote server.
      */
     void writeBytes(byte[] message) throws IOException;
+    /**
+     * Returns false while so many bytes wait to be written that senders should hold back further messages until
+     * {@link StreamConnection#writabilityChanged(boolean)} reports that they were written. Writing anyway is possible,
+     * but may close the connection once an implementation specific limit is exceeded.
+     */
+    default boolean isWritable() {
+        return true;
+    }
     /**
      * Closes the connection to the server, triggering the {@link StreamConnection#connectionClosed()}
      * event on the network-handling thread where all callbacks occur.
@@ -86,6 +86,11 @@ public class NioClient implements MessageWriteTarget {
         public int getMaxMessageSize() {
             return upstreamConnection.getMaxMessageSize();
         }
+
+        @Override
+        public void writabilityChanged(boolean writable) {
+            upstreamConnection.writabilityChanged(writable);
+        }
     }
 
     /**
@@ -123,4 +128,9 @@ public class NioClient implements MessageWriteTarget {
     public synchronized void writeBytes(byte[] message) throws IOException {
         handler.writeTarget.writeBytes(message);
     }
+
+    @Override
+    public boolean isWritable() {
+        return handler.writeTarget.isWritable();
+    }
 }
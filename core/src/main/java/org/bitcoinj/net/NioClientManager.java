@@ -21,6 +21,7 @@ import com.google.common.util.concurrent.*;
 import org.bitcoinj.utils.*;
 import org.slf4j.LoggerFactory;
 
+import javax.annotation.Nullable;
 import java.io.IOException;
 import java.net.ConnectException;
 import java.net.SocketAddress;
@@ -28,15 +29,28 @@ import java.nio.channels.*;
 import java.nio.channels.spi.SelectorProvider;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.google.common.base.Preconditions.checkArgument;
 
 /**
- * A class which manages a set of client connections. Uses Java NIO to select network events and processes them in a
- * single network processing thread.
+ * <p>A class which manages a set of client connections. Uses Java NIO to select network events and processes them in
+ * one or more network processing threads.</p>
+ *
+ * <p>By default a single thread selects and handles the events of all connections, including the processing of the
+ * received bytes, so one slow connection delays all others. When managing many connections, spread them over several
+ * selector threads and/or process the received bytes on a pool of worker threads, see
+ * {@link #NioClientManager(int, int)}. {@link #getQueueDepths()} shows how far each selector thread is behind.</p>
  */
 public class NioClientManager extends AbstractExecutionThreadService implements ClientConnectionManager {
     private static final org.slf4j.Logger log = LoggerFactory.getLogger(NioClientManager.class);
 
-    private final Selector selector;
+    private final SelectorLoop[] loops;
+    private final int workerThreads;
+    // Processes the received bytes if there are worker threads, created when the service starts.
+    @Nullable private volatile ExecutorService workers;
+    // Set once the selector loops should exit, even if the service is still running.
+    private volatile boolean loopsStopped = false;
 
     class PendingConnect {
         SocketChannel sc;
@@ -46,44 +60,119 @@ public class NioClientManager extends AbstractExecutionThreadService implements
 
         PendingConnect(SocketChannel sc, StreamConnection connection, SocketAddress address) { this.sc = sc; this.connection = connection; this.address = address; }
     }
-    final Queue<PendingConnect> newConnectionChannels = new LinkedBlockingQueue<>();
 
     // Added to/removed from by the individual ConnectionHandler's, thus must by synchronized on its own.
     private final Set<ConnectionHandler> connectedHandlers = Collections.synchronizedSet(new HashSet<ConnectionHandler>());
 
-    // Handle a SelectionKey which was selected
-    private void handleKey(SelectionKey key) throws IOException {
-        // We could have a !isValid() key here if the connection is already closed at this point
-        if (key.isValid() && key.isConnectable()) { // ie a client connection which has finished the initial connect process
-            // Create a ConnectionHandler and hook everything together
-            PendingConnect data = (PendingConnect) key.attachment();
-            StreamConnection connection = data.connection;
-            SocketChannel sc = (SocketChannel) key.channel();
-            ConnectionHandler handler = new ConnectionHandler(connection, key, connectedHandlers);
+    // A selector and the connections registered with it. Each connection is serviced by one loop for its lifetime.
+    private class SelectorLoop implements Runnable {
+        private final Selector selector;
+        final Queue<PendingConnect> newConnectionChannels = new LinkedBlockingQueue<>();
+        // Keys selected but not handled yet.
+        private volatile int selectedKeys;
+        // Reads waiting for or running on the worker threads.
+        private final AtomicInteger queuedReads = new AtomicInteger();
+
+        SelectorLoop() {
             try {
-                if (sc.finishConnect()) {
-                    log.info("Connected to {}", sc.socket().getRemoteSocketAddress());
-                    key.interestOps((key.interestOps() | SelectionKey.OP_READ) & ~SelectionKey.OP_CONNECT).attach(handler);
-                    connection.connectionOpened();
-                    data.future.set(data.address);
-                } else {
-                    log.warn("Failed to connect to {}", sc.socket().getRemoteSocketAddress());
-                    handler.closeConnection(); // Failed to connect for some reason
-                    data.future.setException(new ConnectException("Unknown reason"));
+                selector = SelectorProvider.provider().openSelector();
+            } catch (IOException e) {
+                throw new RuntimeException(e); // Shouldn't ever happen
+            }
+        }
+
+        int getQueueDepth() {
+            return selectedKeys + queuedReads.get();
+        }
+
+        // Handle a SelectionKey which was selected
+        private void handleKey(SelectionKey key) throws IOException {
+            // We could have a !isValid() key here if the connection is already closed at this point
+            if (key.isValid() && key.isConnectable()) { // ie a client connection which has finished the initial connect process
+                // Create a ConnectionHandler and hook everything together
+                PendingConnect data = (PendingConnect) key.attachment();
+                StreamConnection connection = data.connection;
+                SocketChannel sc = (SocketChannel) key.channel();
+                ConnectionHandler handler = new ConnectionHandler(connection, key, connectedHandlers);
+                try {
+                    if (sc.finishConnect()) {
+                        log.info("Connected to {}", sc.socket().getRemoteSocketAddress());
+                        key.interestOps((key.interestOps() | SelectionKey.OP_READ) & ~SelectionKey.OP_CONNECT).attach(handler);
+                        connection.connectionOpened();
+                        data.future.set(data.address);
+                    } else {
+                        log.warn("Failed to connect to {}", sc.socket().getRemoteSocketAddress());
+                        handler.closeConnection(); // Failed to connect for some reason
+                        data.future.setException(new ConnectException("Unknown reason"));
+                        data.future = null;
+                    }
+                } catch (Exception e) {
+                    // If e is a CancelledKeyException, there is a race to get to interestOps after finishConnect() which
+                    // may cause this. Otherwise it may be any arbitrary kind of connection failure.
+                    // Calling sc.socket().getRemoteSocketAddress() here throws an exception, so we can only log the error itself
+                    Throwable cause = Throwables.getRootCause(e);
+                    log.warn("Failed to connect with exception: {}: {}", cause.getClass().getName(), cause.getMessage(), e);
+                    handler.closeConnection();
+                    data.future.setException(cause);
                     data.future = null;
                 }
+            } else { // Process bytes read
+                ExecutorService workers = NioClientManager.this.workers;
+                if (workers != null)
+                    ConnectionHandler.handleKey(key, workers, queuedReads);
+                else
+                    ConnectionHandler.handleKey(key);
+            }
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (isRunning() && !loopsStopped) {
+                    PendingConnect conn;
+                    while ((conn = newConnectionChannels.poll()) != null) {
+                        try {
+                            SelectionKey key = conn.sc.register(selector, SelectionKey.OP_CONNECT);
+                            key.attach(conn);
+                        } catch (ClosedChannelException e) {
+                            log.warn("SocketChannel was closed before it could be registered");
+                        }
+                    }
+
+                    selector.select();
+
+                    Set<SelectionKey> keys = selector.selectedKeys();
+                    selectedKeys = keys.size();
+                    Iterator<SelectionKey> keyIterator = keys.iterator();
+                    while (keyIterator.hasNext()) {
+                        SelectionKey key = keyIterator.next();
+                        keyIterator.remove();
+                        handleKey(key);
+                        selectedKeys--;
+                    }
+                }
             } catch (Exception e) {
-                // If e is a CancelledKeyException, there is a race to get to interestOps after finishConnect() which
-                // may cause this. Otherwise it may be any arbitrary kind of connection failure.
-                // Calling sc.socket().getRemoteSocketAddress() here throws an exception, so we can only log the error itself
-                Throwable cause = Throwables.getRootCause(e);
-                log.warn("Failed to connect with exception: {}: {}", cause.getClass().getName(), cause.getMessage(), e);
-                handler.closeConnection();
-                data.future.setException(cause);
-                data.future = null;
+                log.warn("Error trying to open/read from connection: ", e);
+            } finally {
+                selectedKeys = 0;
+                // Go through and close everything, without letting IOExceptions get in our way
+                for (SelectionKey key : selector.keys()) {
+                    try {
+                        key.channel().close();
+                    } catch (IOException e) {
+                        log.warn("Error closing channel", e);
+                    }
+                    key.cancel();
+                    if (key.attachment() instanceof ConnectionHandler)
+                        ConnectionHandler.handleKey(key); // Close connection if relevant
+                }
+                try {
+                    selector.close();
+                } catch (IOException e) {
+                    log.warn("Error closing client manager selector", e);
+                }
             }
-        } else // Process bytes read
-            ConnectionHandler.handleKey(key);
+        }
     }
 
     /**
@@ -91,56 +180,51 @@ public class NioClientManager extends AbstractExecutionThreadService implements
      * calls.
      */
     public NioClientManager() {
-        try {
-            selector = SelectorProvider.provider().openSelector();
-        } catch (IOException e) {
-            throw new RuntimeException(e); // Shouldn't ever happen
-        }
+        this(1, 0);
+    }
+
+    /**
+     * Creates a new client manager which uses Java NIO for socket management, spreading the connections over several
+     * selector threads.
+     *
+     * @param selectorThreads how many threads select network events. Each connection is assigned to one of them by the
+     *                        hash of its address.
+     * @param workerThreads how many threads read the connections and process the received bytes, or 0 to do that on
+     *                      the selector threads. The bytes of a connection are still processed one read at a time and
+     *                      in order, but a connection that is slow to process them no longer delays the others.
+     */
+    public NioClientManager(int selectorThreads, int workerThreads) {
+        checkArgument(selectorThreads > 0 && workerThreads >= 0);
+        loops = new SelectorLoop[selectorThreads];
+        for (int i = 0; i < selectorThreads; i++)
+            loops[i] = new SelectorLoop();
+        this.workerThreads = workerThreads;
     }
 
     @Override
     public void run() {
+        Thread.currentThread().setPriority(Thread.MIN_PRIORITY);
+        if (workerThreads > 0)
+            workers = Executors.newFixedThreadPool(workerThreads,
+                    new ContextPropagatingThreadFactory("NioClientManager worker"));
+        // The first loop runs on the service thread, the others on threads of their own.
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 1; i < loops.length; i++) {
+            Thread thread = new ContextPropagatingThreadFactory("NioClientManager " + i, Thread.MIN_PRIORITY)
+                    .newThread(loops[i]);
+            thread.start();
+            threads.add(thread);
+        }
         try {
-            Thread.currentThread().setPriority(Thread.MIN_PRIORITY);
-            while (isRunning()) {
-                PendingConnect conn;
-                while ((conn = newConnectionChannels.poll()) != null) {
-                    try {
-                        SelectionKey key = conn.sc.register(selector, SelectionKey.OP_CONNECT);
-                        key.attach(conn);
-                    } catch (ClosedChannelException e) {
-                        log.warn("SocketChannel was closed before it could be registered");
-                    }
-                }
-
-                selector.select();
-
-                Iterator<SelectionKey> keyIterator = selector.selectedKeys().iterator();
-                while (keyIterator.hasNext()) {
-                    SelectionKey key = keyIterator.next();
-                    keyIterator.remove();
-                    handleKey(key);
-                }
-            }
-        } catch (Exception e) {
-            log.warn("Error trying to open/read from connection: ", e);
+            loops[0].run();
         } finally {
-            // Go through and close everything, without letting IOExceptions get in our way
-            for (SelectionKey key : selector.keys()) {
-                try {
-                    key.channel().close();
-                } catch (IOException e) {
-                    log.warn("Error closing channel", e);
-                }
-                key.cancel();
-                if (key.attachment() instanceof ConnectionHandler)
-                    ConnectionHandler.handleKey(key); // Close connection if relevant
-            }
-            try {
-                selector.close();
-            } catch (IOException e) {
-                log.warn("Error closing client manager selector", e);
-            }
+            loopsStopped = true;
+            for (SelectorLoop loop : loops)
+                loop.selector.wakeup();
+            for (Thread thread : threads)
+                Uninterruptibles.joinUninterruptibly(thread);
+            if (workers != null)
+                workers.shutdown();
         }
     }
 
@@ -154,8 +238,9 @@ public class NioClientManager extends AbstractExecutionThreadService implements
             sc.configureBlocking(false);
             sc.connect(serverAddress);
             PendingConnect data = new PendingConnect(sc, connection, serverAddress);
-            newConnectionChannels.offer(data);
-            selector.wakeup();
+            SelectorLoop loop = loops[(serverAddress.hashCode() & Integer.MAX_VALUE) % loops.length];
+            loop.newConnectionChannels.offer(data);
+            loop.selector.wakeup();
             return data.future;
         } catch (Throwable e) {
             return Futures.immediateFailedFuture(e);
@@ -164,7 +249,8 @@ public class NioClientManager extends AbstractExecutionThreadService implements
 
     @Override
     public void triggerShutdown() {
-        selector.wakeup();
+        for (SelectorLoop loop : loops)
+            loop.selector.wakeup();
     }
 
     @Override
@@ -172,6 +258,18 @@ public class NioClientManager extends AbstractExecutionThreadService implements
         return connectedHandlers.size();
     }
 
+    /**
+     * Returns, for each selector thread, how many of its connections have network events waiting to be handled or
+     * received bytes waiting to be processed by the worker threads. A depth that stays high means the connections of
+     * that thread are serviced late.
+     */
+    public List<Integer> getQueueDepths() {
+        List<Integer> depths = new ArrayList<>(loops.length);
+        for (SelectorLoop loop : loops)
+            depths.add(loop.getQueueDepth());
+        return depths;
+    }
+
     @Override
     public void closeConnections(int n) {
         while (n-- > 0) {
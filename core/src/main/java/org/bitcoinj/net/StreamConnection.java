@@ -63,4 +63,11 @@ public interface StreamConnection {
      * allocate.
      */
     int getMaxMessageSize();
+
+    /**
+     * Called when {@link MessageWriteTarget#isWritable()} of the write target changes. It is called without any locks
+     * of the write target held, but possibly on the network thread, so it shouldn't block.
+     */
+    default void writabilityChanged(boolean writable) {
+    }
 }
@@ -35,6 +35,7 @@ import java.math.BigInteger;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
 
 import static org.bitcoinj.script.ScriptOpCodes.*;
 import static com.google.common.base.Preconditions.*;
@@ -93,6 +94,8 @@ public class Script {
     private static final int MAX_STACK_SIZE = 1000;
     private static final int MAX_PUBKEYS_PER_MULTISIG = 20;
     private static final int MAX_SCRIPT_SIZE = 10000;
+    // Shared by every empty stack element, it can't be modified.
+    private static final byte[] EMPTY_ARRAY = new byte[0];
     public static final int SIG_SIZE = 75;
     /** Max number of sigops allowed in a standard p2sh redeem script */
     public static final int MAX_P2SH_SIGOPS = 15;
@@ -683,27 +686,83 @@ public class Script {
         return false;
     }
 
+    // Script numbers up to this many bytes are decoded into a long rather than a BigInteger.
+    private static final int MAX_LONG_NUM_SIZE = 7;
+
     /**
-     * Cast a script chunk to a BigInteger.
+     * Cast a script chunk to a long.
      *
-     * @see #castToBigInteger(byte[], int, boolean) for values with different maximum
+     * @see #castToLong(byte[], int, boolean) for values with different maximum
      * sizes.
      * @throws ScriptException if the chunk is longer than 4 bytes.
      */
-    private static BigInteger castToBigInteger(byte[] chunk, final boolean requireMinimal) throws ScriptException {
-        return castToBigInteger(chunk, 4, requireMinimal);
+    private static long castToLong(byte[] chunk, final boolean requireMinimal) throws ScriptException {
+        return castToLong(chunk, 4, requireMinimal);
+    }
+
+    /**
+     * Cast a script chunk to a long. Normally you would want {@link #castToLong(byte[], boolean)} instead, this is
+     * only for cases where the normal maximum length does not apply (i.e. CHECKLOCKTIMEVERIFY, CHECKSEQUENCEVERIFY).
+     * The maximum length must not exceed {@link #MAX_LONG_NUM_SIZE}.
+     *
+     * @param maxLength the maximum length in bytes.
+     * @param requireMinimal check if the number is encoded with the minimum possible number of bytes
+     * @throws ScriptException if the chunk is longer than the specified maximum.
+     */
+    /* package private */ static long castToLong(final byte[] chunk, final int maxLength, final boolean requireMinimal) throws ScriptException {
+        checkArgument(maxLength <= MAX_LONG_NUM_SIZE);
+        checkNumber(chunk, maxLength, requireMinimal);
+        if (chunk.length == 0)
+            return 0;
+        // Little endian magnitude with the sign in the most significant bit of the last byte.
+        long result = 0;
+        for (int i = 0; i < chunk.length; i++)
+            result |= (long) (chunk[i] & 0xff) << (8 * i);
+        long signBit = 0x80L << (8 * (chunk.length - 1));
+        if ((result & signBit) != 0)
+            return -(result & ~signBit);
+        return result;
     }
 
     /**
-     * Cast a script chunk to a BigInteger. Normally you would want
-     * {@link #castToBigInteger(byte[], boolean)} instead, this is only for cases where
-     * the normal maximum length does not apply (i.e. CHECKLOCKTIMEVERIFY, CHECKSEQUENCEVERIFY).
+     * Cast a script chunk to a BigInteger. The interpreter itself uses {@link #castToLong(byte[], int, boolean)}, this
+     * is for callers that may deal with longer numbers.
      *
      * @param maxLength the maximum length in bytes.
      * @param requireMinimal check if the number is encoded with the minimum possible number of bytes
      * @throws ScriptException if the chunk is longer than the specified maximum.
      */
     /* package private */ static BigInteger castToBigInteger(final byte[] chunk, final int maxLength, final boolean requireMinimal) throws ScriptException {
+        if (maxLength <= MAX_LONG_NUM_SIZE)
+            return BigInteger.valueOf(castToLong(chunk, maxLength, requireMinimal));
+        checkNumber(chunk, maxLength, requireMinimal);
+        return Utils.decodeMPI(Utils.reverseBytes(chunk), false);
+    }
+
+    /**
+     * Encodes a number the way the interpreter pushes it onto the stack: little endian with the sign in the most
+     * significant bit, using as few bytes as possible. Zero is encoded as an empty array.
+     */
+    /* package private */ static byte[] encodeNumber(long value) {
+        if (value == 0)
+            return EMPTY_ARRAY;
+        boolean negative = value < 0;
+        long absValue = negative ? -value : value;
+        byte[] buf = new byte[9];
+        int length = 0;
+        while (absValue != 0) {
+            buf[length++] = (byte) absValue;
+            absValue >>>= 8;
+        }
+        // If the most significant byte already uses its top bit, an extra byte is needed for the sign.
+        if ((buf[length - 1] & 0x80) != 0)
+            buf[length++] = (byte) (negative ? 0x80 : 0);
+        else if (negative)
+            buf[length - 1] |= 0x80;
+        return Arrays.copyOf(buf, length);
+    }
+
+    private static void checkNumber(final byte[] chunk, final int maxLength, final boolean requireMinimal) throws ScriptException {
         if (chunk.length > maxLength)
             throw new ScriptException(ScriptError.SCRIPT_ERR_UNKNOWN_ERROR, "Script attempted to use an integer larger than " + maxLength + " bytes");
 
@@ -725,8 +784,6 @@ public class Script {
                 }
             }
         }
-
-        return Utils.decodeMPI(Utils.reverseBytes(chunk), false);
     }
 
     @Deprecated
@@ -763,14 +820,28 @@ public class Script {
      */
     public static void executeScript(@Nullable Transaction txContainingThis, long index,
                                      Script script, LinkedList<byte[]> stack, Set<VerifyFlag> verifyFlags) throws ScriptException {
+        ScriptStack scriptStack = new ScriptStack(stack.size() + 16);
+        scriptStack.pushAll(stack);
+        try {
+            executeScript(txContainingThis, index, script, scriptStack, new ScriptStack(), verifyFlags);
+        } finally {
+            // Leave the caller's stack in whatever state the interpreter got to, as before.
+            stack.clear();
+            scriptStack.copyTo(stack);
+        }
+    }
+
+    private static void executeScript(@Nullable Transaction txContainingThis, long index, Script script,
+                                      ScriptStack stack, ScriptStack altstack, Set<VerifyFlag> verifyFlags) throws ScriptException {
         int opCount = 0;
         int lastCodeSepLocation = 0;
+        final boolean requireMinimal = verifyFlags.contains(VerifyFlag.MINIMALDATA);
         
-        LinkedList<byte[]> altstack = new LinkedList<>();
-        LinkedList<Boolean> ifStack = new LinkedList<>();
+        altstack.clear();
+        ConditionStack ifStack = new ConditionStack();
         
         for (ScriptChunk chunk : script.chunks) {
-            boolean shouldExecute = !ifStack.contains(false);
+            boolean shouldExecute = ifStack.allTrue();
             int opcode = chunk.opcode;
 
             // Check stack element size
@@ -793,48 +864,48 @@ public class Script {
 
             if (shouldExecute && OP_0 <= opcode && opcode <= OP_PUSHDATA4) {
                 // Check minimal push
-                if (verifyFlags.contains(VerifyFlag.MINIMALDATA) && !chunk.isShortestPossiblePushData())
+                if (requireMinimal && !chunk.isShortestPossiblePushData())
                     throw new ScriptException(ScriptError.SCRIPT_ERR_MINIMALDATA, "Script included a not minimal push operation.");
 
                 if (opcode == OP_0)
-                    stack.add(new byte[]{});
+                    stack.push(EMPTY_ARRAY);
                 else
-                    stack.add(chunk.data);
+                    stack.push(chunk.data);
             } else if (shouldExecute || (OP_IF <= opcode && opcode <= OP_ENDIF)){
 
                 switch (opcode) {
                 case OP_IF:
                     if (!shouldExecute) {
-                        ifStack.add(false);
+                        ifStack.push(false);
                         continue;
                     }
                     if (stack.size() < 1)
                         throw new ScriptException(ScriptError.SCRIPT_ERR_UNBALANCED_CONDITIONAL, "Attempted OP_IF on an empty stack");
-                    ifStack.add(castToBool(stack.pollLast()));
+                    ifStack.push(castToBool(stack.pop()));
                     continue;
                 case OP_NOTIF:
                     if (!shouldExecute) {
-                        ifStack.add(false);
+                        ifStack.push(false);
                         continue;
                     }
                     if (stack.size() < 1)
                         throw new ScriptException(ScriptError.SCRIPT_ERR_UNBALANCED_CONDITIONAL, "Attempted OP_NOTIF on an empty stack");
-                    ifStack.add(!castToBool(stack.pollLast()));
+                    ifStack.push(!castToBool(stack.pop()));
                     continue;
                 case OP_ELSE:
                     if (ifStack.isEmpty())
                         throw new ScriptException(ScriptError.SCRIPT_ERR_UNBALANCED_CONDITIONAL, "Attempted OP_ELSE without OP_IF/NOTIF");
-                    ifStack.add(!ifStack.pollLast());
+                    ifStack.toggleTop();
                     continue;
                 case OP_ENDIF:
                     if (ifStack.isEmpty())
                         throw new ScriptException(ScriptError.SCRIPT_ERR_UNBALANCED_CONDITIONAL, "Attempted OP_ENDIF without OP_IF/NOTIF");
-                    ifStack.pollLast();
+                    ifStack.pop();
                     continue;
 
                 // OP_0 is no opcode
                 case OP_1NEGATE:
-                    stack.add(Utils.reverseBytes(Utils.encodeMPI(BigInteger.ONE.negate(), false)));
+                    stack.push(encodeNumber(-1));
                     break;
                 case OP_1:
                 case OP_2:
@@ -852,14 +923,14 @@ public class Script {
                 case OP_14:
                 case OP_15:
                 case OP_16:
-                    stack.add(Utils.reverseBytes(Utils.encodeMPI(BigInteger.valueOf(decodeFromOpN(opcode)), false)));
+                    stack.push(encodeNumber(decodeFromOpN(opcode)));
                     break;
                 case OP_NOP:
                     break;
                 case OP_VERIFY:
                     if (stack.size() < 1)
                         throw new ScriptException(ScriptError.SCRIPT_ERR_INVALID_STACK_OPERATION, "Attempted OP_VERIFY on an empty stack");
-                    if (!castToBool(stack.pollLast()))
+                    if (!castToBool(stack.pop()))
                         throw new ScriptException(ScriptError.SCRIPT_ERR_VERIFY, "OP_VERIFY failed");
                     break;
                 case OP_RETURN:
@@ -867,158 +938,144 @@ public class Script {
                 case OP_TOALTSTACK:
                     if (stack.size() < 1)
                         throw new ScriptException(ScriptError.SCRIPT_ERR_INVALID_STACK_OPERATION, "Attempted OP_TOALTSTACK on an empty stack");
-                    altstack.add(stack.pollLast());
+                    altstack.push(stack.pop());
                     break;
                 case OP_FROMALTSTACK:
                     if (altstack.size() < 1)
                         throw new ScriptException(ScriptError.SCRIPT_ERR_INVALID_ALTSTACK_OPERATION, "Attempted OP_FROMALTSTACK on an empty altstack");
-                    stack.add(altstack.pollLast());
+                    stack.push(altstack.pop());
                     break;
                 case OP_2DROP:
                     if (stack.size() < 2)
                         throw new ScriptException(ScriptError.SCRIPT_ERR_INVALID_STACK_OPERATION, "Attempted OP_2DROP on a stack with size < 2");
-                    stack.pollLast();
-                    stack.pollLast();
+                    stack.pop();
+                    stack.pop();
                     break;
                 case OP_2DUP:
                     if (stack.size() < 2)
                         throw new ScriptException(ScriptError.SCRIPT_ERR_INVALID_STACK_OPERATION, "Attempted OP_2DUP on a stack with size < 2");
-                    Iterator<byte[]> it2DUP = stack.descendingIterator();
-                    byte[] OP2DUPtmpChunk2 = it2DUP.next();
-                    stack.add(it2DUP.next());
-                    stack.add(OP2DUPtmpChunk2);
+                    stack.push(stack.peek(1));
+                    stack.push(stack.peek(1));
                     break;
                 case OP_3DUP:
                     if (stack.size() < 3)
                         throw new ScriptException(ScriptError.SCRIPT_ERR_INVALID_STACK_OPERATION, "Attempted OP_3DUP on a stack with size < 3");
-                    Iterator<byte[]> it3DUP = stack.descendingIterator();
-                    byte[] OP3DUPtmpChunk3 = it3DUP.next();
-                    byte[] OP3DUPtmpChunk2 = it3DUP.next();
-                    stack.add(it3DUP.next());
-                    stack.add(OP3DUPtmpChunk2);
-                    stack.add(OP3DUPtmpChunk3);
+                    stack.push(stack.peek(2));
+                    stack.push(stack.peek(2));
+                    stack.push(stack.peek(2));
                     break;
                 case OP_2OVER:
                     if (stack.size() < 4)
                         throw new ScriptException(ScriptError.SCRIPT_ERR_INVALID_STACK_OPERATION, "Attempted OP_2OVER on a stack with size < 4");
-                    Iterator<byte[]> it2OVER = stack.descendingIterator();
-                    it2OVER.next();
-                    it2OVER.next();
-                    byte[] OP2OVERtmpChunk2 = it2OVER.next();
-                    stack.add(it2OVER.next());
-                    stack.add(OP2OVERtmpChunk2);
+                    stack.push(stack.peek(3));
+                    stack.push(stack.peek(3));
                     break;
                 case OP_2ROT:
                     if (stack.size() < 6)
                         throw new ScriptException(ScriptError.SCRIPT_ERR_INVALID_STACK_OPERATION, "Attempted OP_2ROT on a stack with size < 6");
-                    byte[] OP2ROTtmpChunk6 = stack.pollLast();
-                    byte[] OP2ROTtmpChunk5 = stack.pollLast();
-                    byte[] OP2ROTtmpChunk4 = stack.pollLast();
-                    byte[] OP2ROTtmpChunk3 = stack.pollLast();
-                    byte[] OP2ROTtmpChunk2 = stack.pollLast();
-                    byte[] OP2ROTtmpChunk1 = stack.pollLast();
-                    stack.add(OP2ROTtmpChunk3);
-                    stack.add(OP2ROTtmpChunk4);
-                    stack.add(OP2ROTtmpChunk5);
-                    stack.add(OP2ROTtmpChunk6);
-                    stack.add(OP2ROTtmpChunk1);
-                    stack.add(OP2ROTtmpChunk2);
+                    byte[] OP2ROTtmpChunk6 = stack.pop();
+                    byte[] OP2ROTtmpChunk5 = stack.pop();
+                    byte[] OP2ROTtmpChunk4 = stack.pop();
+                    byte[] OP2ROTtmpChunk3 = stack.pop();
+                    byte[] OP2ROTtmpChunk2 = stack.pop();
+                    byte[] OP2ROTtmpChunk1 = stack.pop();
+                    stack.push(OP2ROTtmpChunk3);
+                    stack.push(OP2ROTtmpChunk4);
+                    stack.push(OP2ROTtmpChunk5);
+                    stack.push(OP2ROTtmpChunk6);
+                    stack.push(OP2ROTtmpChunk1);
+                    stack.push(OP2ROTtmpChunk2);
                     break;
                 case OP_2SWAP:
                     if (stack.size() < 4)
                         throw new ScriptException(ScriptError.SCRIPT_ERR_INVALID_STACK_OPERATION, "Attempted OP_2SWAP on a stack with size < 4");
-                    byte[] OP2SWAPtmpChunk4 = stack.pollLast();
-                    byte[] OP2SWAPtmpChunk3 = stack.pollLast();
-                    byte[] OP2SWAPtmpChunk2 = stack.pollLast();
-                    byte[] OP2SWAPtmpChunk1 = stack.pollLast();
-                    stack.add(OP2SWAPtmpChunk3);
-                    stack.add(OP2SWAPtmpChunk4);
-                    stack.add(OP2SWAPtmpChunk1);
-                    stack.add(OP2SWAPtmpChunk2);
+                    byte[] OP2SWAPtmpChunk4 = stack.pop();
+                    byte[] OP2SWAPtmpChunk3 = stack.pop();
+                    byte[] OP2SWAPtmpChunk2 = stack.pop();
+                    byte[] OP2SWAPtmpChunk1 = stack.pop();
+                    stack.push(OP2SWAPtmpChunk3);
+                    stack.push(OP2SWAPtmpChunk4);
+                    stack.push(OP2SWAPtmpChunk1);
+                    stack.push(OP2SWAPtmpChunk2);
                     break;
                 case OP_IFDUP:
                     if (stack.size() < 1)
                         throw new ScriptException(ScriptError.SCRIPT_ERR_INVALID_STACK_OPERATION, "Attempted OP_IFDUP on an empty stack");
-                    if (castToBool(stack.getLast()))
-                        stack.add(stack.getLast());
+                    if (castToBool(stack.peek()))
+                        stack.push(stack.peek());
                     break;
                 case OP_DEPTH:
-                    stack.add(Utils.reverseBytes(Utils.encodeMPI(BigInteger.valueOf(stack.size()), false)));
+                    stack.push(encodeNumber(stack.size()));
                     break;
                 case OP_DROP:
                     if (stack.size() < 1)
                         throw new ScriptException(ScriptError.SCRIPT_ERR_INVALID_STACK_OPERATION, "Attempted OP_DROP on an empty stack");
-                    stack.pollLast();
+                    stack.pop();
                     break;
                 case OP_DUP:
                     if (stack.size() < 1)
                         throw new ScriptException(ScriptError.SCRIPT_ERR_INVALID_STACK_OPERATION, "Attempted OP_DUP on an empty stack");
-                    stack.add(stack.getLast());
+                    stack.push(stack.peek());
                     break;
                 case OP_NIP:
                     if (stack.size() < 2)
                         throw new ScriptException(ScriptError.SCRIPT_ERR_INVALID_STACK_OPERATION, "Attempted OP_NIP on a stack with size < 2");
-                    byte[] OPNIPtmpChunk = stack.pollLast();
-                    stack.pollLast();
-                    stack.add(OPNIPtmpChunk);
+                    byte[] OPNIPtmpChunk = stack.pop();
+                    stack.pop();
+                    stack.push(OPNIPtmpChunk);
                     break;
                 case OP_OVER:
                     if (stack.size() < 2)
                         throw new ScriptException(ScriptError.SCRIPT_ERR_INVALID_STACK_OPERATION, "Attempted OP_OVER on a stack with size < 2");
-                    Iterator<byte[]> itOVER = stack.descendingIterator();
-                    itOVER.next();
-                    stack.add(itOVER.next());
+                    stack.push(stack.peek(1));
                     break;
                 case OP_PICK:
                 case OP_ROLL:
                     if (stack.size() < 1)
                         throw new ScriptException(ScriptError.SCRIPT_ERR_INVALID_STACK_OPERATION, "Attempted OP_PICK/OP_ROLL on an empty stack");
-                    long val = castToBigInteger(stack.pollLast(), verifyFlags.contains(VerifyFlag.MINIMALDATA)).longValue();
+                    long val = castToLong(stack.pop(), requireMinimal);
                     if (val < 0 || val >= stack.size())
                         throw new ScriptException(ScriptError.SCRIPT_ERR_INVALID_STACK_OPERATION, "OP_PICK/OP_ROLL attempted to get data deeper than stack size");
-                    Iterator<byte[]> itPICK = stack.descendingIterator();
-                    for (long i = 0; i < val; i++)
-                        itPICK.next();
-                    byte[] OPROLLtmpChunk = itPICK.next();
                     if (opcode == OP_ROLL)
-                        itPICK.remove();
-                    stack.add(OPROLLtmpChunk);
+                        stack.push(stack.remove((int) val));
+                    else
+                        stack.push(stack.peek((int) val));
                     break;
                 case OP_ROT:
                     if (stack.size() < 3)
                         throw new ScriptException(ScriptError.SCRIPT_ERR_INVALID_STACK_OPERATION, "Attempted OP_ROT on a stack with size < 3");
-                    byte[] OPROTtmpChunk3 = stack.pollLast();
-                    byte[] OPROTtmpChunk2 = stack.pollLast();
-                    byte[] OPROTtmpChunk1 = stack.pollLast();
-                    stack.add(OPROTtmpChunk2);
-                    stack.add(OPROTtmpChunk3);
-                    stack.add(OPROTtmpChunk1);
+                    byte[] OPROTtmpChunk3 = stack.pop();
+                    byte[] OPROTtmpChunk2 = stack.pop();
+                    byte[] OPROTtmpChunk1 = stack.pop();
+                    stack.push(OPROTtmpChunk2);
+                    stack.push(OPROTtmpChunk3);
+                    stack.push(OPROTtmpChunk1);
                     break;
                 case OP_SWAP:
                 case OP_TUCK:
                     if (stack.size() < 2)
                         throw new ScriptException(ScriptError.SCRIPT_ERR_INVALID_STACK_OPERATION, "Attempted OP_SWAP on a stack with size < 2");
-                    byte[] OPSWAPtmpChunk2 = stack.pollLast();
-                    byte[] OPSWAPtmpChunk1 = stack.pollLast();
-                    stack.add(OPSWAPtmpChunk2);
-                    stack.add(OPSWAPtmpChunk1);
+                    byte[] OPSWAPtmpChunk2 = stack.pop();
+                    byte[] OPSWAPtmpChunk1 = stack.pop();
+                    stack.push(OPSWAPtmpChunk2);
+                    stack.push(OPSWAPtmpChunk1);
                     if (opcode == OP_TUCK)
-                        stack.add(OPSWAPtmpChunk2);
+                        stack.push(OPSWAPtmpChunk2);
                     break;
                 case OP_SIZE:
                     if (stack.size() < 1)
                         throw new ScriptException(ScriptError.SCRIPT_ERR_INVALID_STACK_OPERATION, "Attempted OP_SIZE on an empty stack");
-                    stack.add(Utils.reverseBytes(Utils.encodeMPI(BigInteger.valueOf(stack.getLast().length), false)));
+                    stack.push(encodeNumber(stack.peek().length));
                     break;
                 case OP_EQUAL:
                     if (stack.size() < 2)
                         throw new ScriptException(ScriptError.SCRIPT_ERR_INVALID_STACK_OPERATION, "Attempted OP_EQUAL on a stack with size < 2");
-                    stack.add(Arrays.equals(stack.pollLast(), stack.pollLast()) ? new byte[] {1} : new byte[] {});
+                    stack.push(Arrays.equals(stack.pop(), stack.pop()) ? new byte[] {1} : EMPTY_ARRAY);
                     break;
                 case OP_EQUALVERIFY:
                     if (stack.size() < 2)
                         throw new ScriptException(ScriptError.SCRIPT_ERR_INVALID_STACK_OPERATION, "Attempted OP_EQUALVERIFY on a stack with size < 2");
-                    if (!Arrays.equals(stack.pollLast(), stack.pollLast()))
+                    if (!Arrays.equals(stack.pop(), stack.pop()))
                         throw new ScriptException(ScriptError.SCRIPT_ERR_EQUALVERIFY, "OP_EQUALVERIFY: non-equal data");
                     break;
                 case OP_1ADD:
@@ -1029,39 +1086,34 @@ public class Script {
                 case OP_0NOTEQUAL:
                     if (stack.size() < 1)
                         throw new ScriptException(ScriptError.SCRIPT_ERR_INVALID_STACK_OPERATION, "Attempted a numeric op on an empty stack");
-                    BigInteger numericOPnum = castToBigInteger(stack.pollLast(), verifyFlags.contains(VerifyFlag.MINIMALDATA));
+                    // Operands are at most 4 bytes, so the results always fit into a long.
+                    long numericOPnum = castToLong(stack.pop(), requireMinimal);
                                         
                     switch (opcode) {
                     case OP_1ADD:
-                        numericOPnum = numericOPnum.add(BigInteger.ONE);
+                        numericOPnum = numericOPnum + 1;
                         break;
                     case OP_1SUB:
-                        numericOPnum = numericOPnum.subtract(BigInteger.ONE);
+                        numericOPnum = numericOPnum - 1;
                         break;
                     case OP_NEGATE:
-                        numericOPnum = numericOPnum.negate();
+                        numericOPnum = -numericOPnum;
                         break;
                     case OP_ABS:
-                        if (numericOPnum.signum() < 0)
-                            numericOPnum = numericOPnum.negate();
+                        if (numericOPnum < 0)
+                            numericOPnum = -numericOPnum;
                         break;
                     case OP_NOT:
-                        if (numericOPnum.equals(BigInteger.ZERO))
-                            numericOPnum = BigInteger.ONE;
-                        else
-                            numericOPnum = BigInteger.ZERO;
+                        numericOPnum = numericOPnum == 0 ? 1 : 0;
                         break;
                     case OP_0NOTEQUAL:
-                        if (numericOPnum.equals(BigInteger.ZERO))
-                            numericOPnum = BigInteger.ZERO;
-                        else
-                            numericOPnum = BigInteger.ONE;
+                        numericOPnum = numericOPnum == 0 ? 0 : 1;
                         break;
                     default:
                         throw new AssertionError("Unreachable");
                     }
                     
-                    stack.add(Utils.reverseBytes(Utils.encodeMPI(numericOPnum, false)));
+                    stack.push(encodeNumber(numericOPnum));
                     break;
                 case OP_ADD:
                 case OP_SUB:
@@ -1077,118 +1129,85 @@ public class Script {
                 case OP_MAX:
                     if (stack.size() < 2)
                         throw new ScriptException(ScriptError.SCRIPT_ERR_INVALID_STACK_OPERATION, "Attempted a numeric op on a stack with size < 2");
-                    BigInteger numericOPnum2 = castToBigInteger(stack.pollLast(), verifyFlags.contains(VerifyFlag.MINIMALDATA));
-                    BigInteger numericOPnum1 = castToBigInteger(stack.pollLast(), verifyFlags.contains(VerifyFlag.MINIMALDATA));
+                    long numericOPnum2 = castToLong(stack.pop(), requireMinimal);
+                    long numericOPnum1 = castToLong(stack.pop(), requireMinimal);
 
-                    BigInteger numericOPresult;
+                    long numericOPresult;
                     switch (opcode) {
                     case OP_ADD:
-                        numericOPresult = numericOPnum1.add(numericOPnum2);
+                        numericOPresult = numericOPnum1 + numericOPnum2;
                         break;
                     case OP_SUB:
-                        numericOPresult = numericOPnum1.subtract(numericOPnum2);
+                        numericOPresult = numericOPnum1 - numericOPnum2;
                         break;
                     case OP_BOOLAND:
-                        if (!numericOPnum1.equals(BigInteger.ZERO) && !numericOPnum2.equals(BigInteger.ZERO))
-                            numericOPresult = BigInteger.ONE;
-                        else
-                            numericOPresult = BigInteger.ZERO;
+                        numericOPresult = numericOPnum1 != 0 && numericOPnum2 != 0 ? 1 : 0;
                         break;
                     case OP_BOOLOR:
-                        if (!numericOPnum1.equals(BigInteger.ZERO) || !numericOPnum2.equals(BigInteger.ZERO))
-                            numericOPresult = BigInteger.ONE;
-                        else
-                            numericOPresult = BigInteger.ZERO;
+                        numericOPresult = numericOPnum1 != 0 || numericOPnum2 != 0 ? 1 : 0;
                         break;
                     case OP_NUMEQUAL:
-                        if (numericOPnum1.equals(numericOPnum2))
-                            numericOPresult = BigInteger.ONE;
-                        else
-                            numericOPresult = BigInteger.ZERO;
+                        numericOPresult = numericOPnum1 == numericOPnum2 ? 1 : 0;
                         break;
                     case OP_NUMNOTEQUAL:
-                        if (!numericOPnum1.equals(numericOPnum2))
-                            numericOPresult = BigInteger.ONE;
-                        else
-                            numericOPresult = BigInteger.ZERO;
+                        numericOPresult = numericOPnum1 != numericOPnum2 ? 1 : 0;
                         break;
                     case OP_LESSTHAN:
-                        if (numericOPnum1.compareTo(numericOPnum2) < 0)
-                            numericOPresult = BigInteger.ONE;
-                        else
-                            numericOPresult = BigInteger.ZERO;
+                        numericOPresult = numericOPnum1 < numericOPnum2 ? 1 : 0;
                         break;
                     case OP_GREATERTHAN:
-                        if (numericOPnum1.compareTo(numericOPnum2) > 0)
-                            numericOPresult = BigInteger.ONE;
-                        else
-                            numericOPresult = BigInteger.ZERO;
+                        numericOPresult = numericOPnum1 > numericOPnum2 ? 1 : 0;
                         break;
                     case OP_LESSTHANOREQUAL:
-                        if (numericOPnum1.compareTo(numericOPnum2) <= 0)
-                            numericOPresult = BigInteger.ONE;
-                        else
-                            numericOPresult = BigInteger.ZERO;
+                        numericOPresult = numericOPnum1 <= numericOPnum2 ? 1 : 0;
                         break;
                     case OP_GREATERTHANOREQUAL:
-                        if (numericOPnum1.compareTo(numericOPnum2) >= 0)
-                            numericOPresult = BigInteger.ONE;
-                        else
-                            numericOPresult = BigInteger.ZERO;
+                        numericOPresult = numericOPnum1 >= numericOPnum2 ? 1 : 0;
                         break;
                     case OP_MIN:
-                        if (numericOPnum1.compareTo(numericOPnum2) < 0)
-                            numericOPresult = numericOPnum1;
-                        else
-                            numericOPresult = numericOPnum2;
+                        numericOPresult = Math.min(numericOPnum1, numericOPnum2);
                         break;
                     case OP_MAX:
-                        if (numericOPnum1.compareTo(numericOPnum2) > 0)
-                            numericOPresult = numericOPnum1;
-                        else
-                            numericOPresult = numericOPnum2;
+                        numericOPresult = Math.max(numericOPnum1, numericOPnum2);
                         break;
                     default:
                         throw new RuntimeException("Opcode switched at runtime?");
                     }
                     
-                    stack.add(Utils.reverseBytes(Utils.encodeMPI(numericOPresult, false)));
+                    stack.push(encodeNumber(numericOPresult));
                     break;
                 case OP_NUMEQUALVERIFY:
                     if (stack.size() < 2)
                         throw new ScriptException(ScriptError.SCRIPT_ERR_INVALID_STACK_OPERATION, "Attempted OP_NUMEQUALVERIFY on a stack with size < 2");
-                    BigInteger OPNUMEQUALVERIFYnum2 = castToBigInteger(stack.pollLast(), verifyFlags.contains(VerifyFlag.MINIMALDATA));
-                    BigInteger OPNUMEQUALVERIFYnum1 = castToBigInteger(stack.pollLast(), verifyFlags.contains(VerifyFlag.MINIMALDATA));
+                    long OPNUMEQUALVERIFYnum2 = castToLong(stack.pop(), requireMinimal);
+                    long OPNUMEQUALVERIFYnum1 = castToLong(stack.pop(), requireMinimal);
                     
-                    if (!OPNUMEQUALVERIFYnum1.equals(OPNUMEQUALVERIFYnum2))
+                    if (OPNUMEQUALVERIFYnum1 != OPNUMEQUALVERIFYnum2)
                         throw new ScriptException(ScriptError.SCRIPT_ERR_NUMEQUALVERIFY, "OP_NUMEQUALVERIFY failed");
                     break;
                 case OP_WITHIN:
                     if (stack.size() < 3)
                         throw new ScriptException(ScriptError.SCRIPT_ERR_INVALID_STACK_OPERATION, "Attempted OP_WITHIN on a stack with size < 3");
-                    BigInteger OPWITHINnum3 = castToBigInteger(stack.pollLast(), verifyFlags.contains(VerifyFlag.MINIMALDATA));
-                    BigInteger OPWITHINnum2 = castToBigInteger(stack.pollLast(), verifyFlags.contains(VerifyFlag.MINIMALDATA));
-                    BigInteger OPWITHINnum1 = castToBigInteger(stack.pollLast(), verifyFlags.contains(VerifyFlag.MINIMALDATA));
-                    if (OPWITHINnum2.compareTo(OPWITHINnum1) <= 0 && OPWITHINnum1.compareTo(OPWITHINnum3) < 0)
-                        stack.add(Utils.reverseBytes(Utils.encodeMPI(BigInteger.ONE, false)));
-                    else
-                        stack.add(Utils.reverseBytes(Utils.encodeMPI(BigInteger.ZERO, false)));
+                    long OPWITHINnum3 = castToLong(stack.pop(), requireMinimal);
+                    long OPWITHINnum2 = castToLong(stack.pop(), requireMinimal);
+                    long OPWITHINnum1 = castToLong(stack.pop(), requireMinimal);
+                    stack.push(encodeNumber(OPWITHINnum2 <= OPWITHINnum1 && OPWITHINnum1 < OPWITHINnum3 ? 1 : 0));
                     break;
                 case OP_RIPEMD160:
                     if (stack.size() < 1)
                         throw new ScriptException(ScriptError.SCRIPT_ERR_INVALID_STACK_OPERATION, "Attempted OP_RIPEMD160 on an empty stack");
                     RIPEMD160Digest digest = new RIPEMD160Digest();
-                    byte[] dataToHash = stack.pollLast();
+                    byte[] dataToHash = stack.pop();
                     digest.update(dataToHash, 0, dataToHash.length);
                     byte[] ripmemdHash = new byte[20];
                     digest.doFinal(ripmemdHash, 0);
-                    stack.add(ripmemdHash);
+                    stack.push(ripmemdHash);
                     break;
                 case OP_SHA1:
                     if (stack.size() < 1)
                         throw new ScriptException(ScriptError.SCRIPT_ERR_INVALID_STACK_OPERATION, "Attempted OP_SHA1 on an empty stack");
                     try {
-                        stack.add(MessageDigest.getInstance("SHA-1").digest(stack.pollLast()));
+                        stack.push(MessageDigest.getInstance("SHA-1").digest(stack.pop()));
                     } catch (NoSuchAlgorithmException e) {
                         throw new RuntimeException(e);  // Cannot happen.
                     }
@@ -1196,17 +1215,17 @@ public class Script {
                 case OP_SHA256:
                     if (stack.size() < 1)
                         throw new ScriptException(ScriptError.SCRIPT_ERR_INVALID_STACK_OPERATION, "Attempted OP_SHA256 on an empty stack");
-                    stack.add(Sha256Hash.hash(stack.pollLast()));
+                    stack.push(Sha256Hash.hash(stack.pop()));
                     break;
                 case OP_HASH160:
                     if (stack.size() < 1)
                         throw new ScriptException(ScriptError.SCRIPT_ERR_INVALID_STACK_OPERATION, "Attempted OP_HASH160 on an empty stack");
-                    stack.add(Utils.sha256hash160(stack.pollLast()));
+                    stack.push(Utils.sha256hash160(stack.pop()));
                     break;
                 case OP_HASH256:
                     if (stack.size() < 1)
                         throw new ScriptException(ScriptError.SCRIPT_ERR_INVALID_STACK_OPERATION, "Attempted OP_SHA256 on an empty stack");
-                    stack.add(Sha256Hash.hashTwice(stack.pollLast()));
+                    stack.push(Sha256Hash.hashTwice(stack.pop()));
                     break;
                 case OP_CODESEPARATOR:
                     lastCodeSepLocation = chunk.getStartLocationInProgram() + 1;
@@ -1270,27 +1289,27 @@ public class Script {
     }
 
     // This is more or less a direct translation of the code in Bitcoin Core
-    private static void executeCheckLockTimeVerify(Transaction txContainingThis, int index, LinkedList<byte[]> stack, Set<VerifyFlag> verifyFlags) throws ScriptException {
+    private static void executeCheckLockTimeVerify(Transaction txContainingThis, int index, ScriptStack stack, Set<VerifyFlag> verifyFlags) throws ScriptException {
         if (stack.size() < 1)
             throw new ScriptException(ScriptError.SCRIPT_ERR_INVALID_STACK_OPERATION, "Attempted OP_CHECKLOCKTIMEVERIFY on a stack with size < 1");
 
         // Thus as a special case we tell CScriptNum to accept up
         // to 5-byte bignums to avoid year 2038 issue.
-        final BigInteger nLockTime = castToBigInteger(stack.getLast(), 5, verifyFlags.contains(VerifyFlag.MINIMALDATA));
+        final long nLockTime = castToLong(stack.peek(), 5, verifyFlags.contains(VerifyFlag.MINIMALDATA));
 
-        if (nLockTime.compareTo(BigInteger.ZERO) < 0)
+        if (nLockTime < 0)
             throw new ScriptException(ScriptError.SCRIPT_ERR_NEGATIVE_LOCKTIME, "Negative locktime");
 
         // There are two kinds of nLockTime, need to ensure we're comparing apples-to-apples
         if (!(
-            ((txContainingThis.getLockTime() <  Transaction.LOCKTIME_THRESHOLD) && (nLockTime.compareTo(Transaction.LOCKTIME_THRESHOLD_BIG)) < 0) ||
-            ((txContainingThis.getLockTime() >= Transaction.LOCKTIME_THRESHOLD) && (nLockTime.compareTo(Transaction.LOCKTIME_THRESHOLD_BIG)) >= 0))
+            ((txContainingThis.getLockTime() <  Transaction.LOCKTIME_THRESHOLD) && (nLockTime < Transaction.LOCKTIME_THRESHOLD)) ||
+            ((txContainingThis.getLockTime() >= Transaction.LOCKTIME_THRESHOLD) && (nLockTime >= Transaction.LOCKTIME_THRESHOLD)))
         )
             throw new ScriptException(ScriptError.SCRIPT_ERR_UNSATISFIED_LOCKTIME, "Locktime requirement type mismatch");
 
         // Now that we know we're comparing apples-to-apples, the
         // comparison is a simple numeric one.
-        if (nLockTime.compareTo(BigInteger.valueOf(txContainingThis.getLockTime())) > 0)
+        if (nLockTime > txContainingThis.getLockTime())
             throw new ScriptException(ScriptError.SCRIPT_ERR_UNSATISFIED_LOCKTIME, "Locktime requirement not satisfied");
 
         // Finally the nLockTime feature can be disabled and thus
@@ -1307,7 +1326,7 @@ public class Script {
             throw new ScriptException(ScriptError.SCRIPT_ERR_UNSATISFIED_LOCKTIME, "Transaction contains a final transaction input for a CHECKLOCKTIMEVERIFY script.");
     }
 
-    private static void executeCheckSequenceVerify(Transaction txContainingThis, int index, LinkedList<byte[]> stack, Set<VerifyFlag> verifyFlags) throws ScriptException {
+    private static void executeCheckSequenceVerify(Transaction txContainingThis, int index, ScriptStack stack, Set<VerifyFlag> verifyFlags) throws ScriptException {
         if (stack.size() < 1)
             throw new ScriptException(ScriptError.SCRIPT_ERR_INVALID_STACK_OPERATION, "Attempted OP_CHECKSEQUENCEVERIFY on a stack with size < 1");
 
@@ -1320,7 +1339,7 @@ public class Script {
         // Thus as a special case we tell CScriptNum to accept up
         // to 5-byte bignums, which are good until 2**39-1, well
         // beyond the 2**32-1 limit of the nSequence field itself.
-        final long nSequence = castToBigInteger(stack.getLast(), 5, verifyFlags.contains(VerifyFlag.MINIMALDATA)).longValue();
+        final long nSequence = castToLong(stack.peek(), 5, verifyFlags.contains(VerifyFlag.MINIMALDATA));
 
         // In the rare event that the argument may be < 0 due to
         // some arithmetic being done first, you can always use
@@ -1379,7 +1398,7 @@ public class Script {
             throw new ScriptException(ScriptError.SCRIPT_ERR_UNSATISFIED_LOCKTIME, "Relative locktime requirement not satisfied");
     }
 
-    private static void executeCheckSig(Transaction txContainingThis, int index, Script script, LinkedList<byte[]> stack,
+    private static void executeCheckSig(Transaction txContainingThis, int index, Script script, ScriptStack stack,
                                         int lastCodeSepLocation, int opcode, 
                                         Set<VerifyFlag> verifyFlags) throws ScriptException {
         final boolean requireCanonical = verifyFlags.contains(VerifyFlag.STRICTENC)
@@ -1387,8 +1406,8 @@ public class Script {
             || verifyFlags.contains(VerifyFlag.LOW_S);
         if (stack.size() < 2)
             throw new ScriptException(ScriptError.SCRIPT_ERR_INVALID_STACK_OPERATION, "Attempted OP_CHECKSIG(VERIFY) on a stack with size < 2");
-        byte[] pubKey = stack.pollLast();
-        byte[] sigBytes = stack.pollLast();
+        byte[] pubKey = stack.pop();
+        byte[] sigBytes = stack.pop();
 
         byte[] prog = script.getProgram();
         byte[] connectedScript = Arrays.copyOfRange(prog, lastCodeSepLocation, prog.length);
@@ -1424,13 +1443,13 @@ public class Script {
         }
 
         if (opcode == OP_CHECKSIG)
-            stack.add(sigValid ? new byte[] {1} : new byte[] {});
+            stack.push(sigValid ? new byte[] {1} : EMPTY_ARRAY);
         else if (opcode == OP_CHECKSIGVERIFY)
             if (!sigValid)
                 throw new ScriptException(ScriptError.SCRIPT_ERR_CHECKSIGVERIFY, "Script failed OP_CHECKSIGVERIFY");
     }
 
-    private static int executeMultiSig(Transaction txContainingThis, int index, Script script, LinkedList<byte[]> stack,
+    private static int executeMultiSig(Transaction txContainingThis, int index, Script script, ScriptStack stack,
                                        int opCount, int lastCodeSepLocation, int opcode, 
                                        Set<VerifyFlag> verifyFlags) throws ScriptException {
         final boolean requireCanonical = verifyFlags.contains(VerifyFlag.STRICTENC)
@@ -1438,7 +1457,7 @@ public class Script {
             || verifyFlags.contains(VerifyFlag.LOW_S);
         if (stack.size() < 1)
             throw new ScriptException(ScriptError.SCRIPT_ERR_INVALID_STACK_OPERATION, "Attempted OP_CHECKMULTISIG(VERIFY) on a stack with size < 2");
-        int pubKeyCount = castToBigInteger(stack.pollLast(), verifyFlags.contains(VerifyFlag.MINIMALDATA)).intValue();
+        int pubKeyCount = (int) castToLong(stack.pop(), verifyFlags.contains(VerifyFlag.MINIMALDATA));
         if (pubKeyCount < 0 || pubKeyCount > MAX_PUBKEYS_PER_MULTISIG)
             throw new ScriptException(ScriptError.SCRIPT_ERR_PUBKEY_COUNT, "OP_CHECKMULTISIG(VERIFY) with pubkey count out of range");
         opCount += pubKeyCount;
@@ -1447,23 +1466,19 @@ public class Script {
         if (stack.size() < pubKeyCount + 1)
             throw new ScriptException(ScriptError.SCRIPT_ERR_INVALID_STACK_OPERATION, "Attempted OP_CHECKMULTISIG(VERIFY) on a stack with size < num_of_pubkeys + 2");
 
-        LinkedList<byte[]> pubkeys = new LinkedList<>();
-        for (int i = 0; i < pubKeyCount; i++) {
-            byte[] pubKey = stack.pollLast();
-            pubkeys.add(pubKey);
-        }
+        byte[][] pubkeys = new byte[pubKeyCount][];
+        for (int i = 0; i < pubKeyCount; i++)
+            pubkeys[i] = stack.pop();
 
-        int sigCount = castToBigInteger(stack.pollLast(), verifyFlags.contains(VerifyFlag.MINIMALDATA)).intValue();
+        int sigCount = (int) castToLong(stack.pop(), verifyFlags.contains(VerifyFlag.MINIMALDATA));
         if (sigCount < 0 || sigCount > pubKeyCount)
             throw new ScriptException(ScriptError.SCRIPT_ERR_SIG_COUNT, "OP_CHECKMULTISIG(VERIFY) with sig count out of range");
         if (stack.size() < sigCount + 1)
             throw new ScriptException(ScriptError.SCRIPT_ERR_INVALID_STACK_OPERATION, "Attempted OP_CHECKMULTISIG(VERIFY) on a stack with size < num_of_pubkeys + num_of_signatures + 3");
 
-        LinkedList<byte[]> sigs = new LinkedList<>();
-        for (int i = 0; i < sigCount; i++) {
-            byte[] sig = stack.pollLast();
-            sigs.add(sig);
-        }
+        byte[][] sigs = new byte[sigCount][];
+        for (int i = 0; i < sigCount; i++)
+            sigs[i] = stack.pop();
 
         byte[] prog = script.getProgram();
         byte[] connectedScript = Arrays.copyOfRange(prog, lastCodeSepLocation, prog.length);
@@ -1478,34 +1493,76 @@ public class Script {
             connectedScript = removeAllInstancesOf(connectedScript, outStream.toByteArray());
         }
 
-        boolean valid = true;
-        while (sigs.size() > 0) {
-            byte[] pubKey = pubkeys.pollFirst();
-            // We could reasonably move this out of the loop, but because signature verification is significantly
-            // more expensive than hashing, its not a big deal.
+        // Decode each signature and hash the transaction for it once, rather than once per public key it's tried
+        // against. Anything that fails here simply never verifies, as before.
+        TransactionSignature[] decodedSigs = new TransactionSignature[sigCount];
+        byte[][] hashes = new byte[sigCount][];
+        for (int i = 0; i < sigCount; i++) {
             try {
-                TransactionSignature sig = TransactionSignature.decodeFromBitcoin(sigs.getFirst(), requireCanonical);
-                Sha256Hash hash = txContainingThis.hashForSignature(index, connectedScript, (byte) sig.sighashFlags);
-                if (ECKey.verify(hash.getBytes(), sig, pubKey))
-                    sigs.pollFirst();
+                decodedSigs[i] = TransactionSignature.decodeFromBitcoin(sigs[i], requireCanonical);
+                hashes[i] = txContainingThis.hashForSignature(index, connectedScript,
+                        (byte) decodedSigs[i].sighashFlags).getBytes();
             } catch (Exception e) {
                 // There is (at least) one exception that could be hit here (EOFException, if the sig is too short)
                 // Because I can't verify there aren't more, we use a very generic Exception catch
+                decodedSigs[i] = null;
+            }
+        }
+
+        // Most multisig spends are signed by keys that line up with the signatures, so when there are spare cores
+        // verify those pairs up front in one batch. The matching below still decides validity.
+        boolean[] aligned = null;
+        if (sigCount > 1 && ForkJoinPool.getCommonPoolParallelism() > 1) {
+            List<byte[]> batchHashes = new ArrayList<>(sigCount);
+            List<ECKey.ECDSASignature> batchSigs = new ArrayList<>(sigCount);
+            List<byte[]> batchPubKeys = new ArrayList<>(sigCount);
+            for (int i = 0; i < sigCount; i++) {
+                if (decodedSigs[i] == null)
+                    continue;
+                batchHashes.add(hashes[i]);
+                batchSigs.add(decodedSigs[i]);
+                batchPubKeys.add(pubkeys[i]);
+            }
+            boolean[] results = ECKey.verifyBatch(batchHashes, batchSigs, batchPubKeys);
+            aligned = new boolean[sigCount];
+            for (int i = 0, j = 0; i < sigCount; i++)
+                if (decodedSigs[i] != null)
+                    aligned[i] = results[j++];
+        }
+
+        boolean valid = true;
+        int sigIndex = 0, pubKeyIndex = 0;
+        while (sigIndex < sigCount) {
+            byte[] pubKey = pubkeys[pubKeyIndex++];
+            TransactionSignature sig = decodedSigs[sigIndex];
+            if (sig != null) {
+                boolean verified;
+                if (aligned != null && pubKeyIndex - 1 == sigIndex) {
+                    verified = aligned[sigIndex];
+                } else {
+                    try {
+                        verified = ECKey.verify(hashes[sigIndex], sig, pubKey);
+                    } catch (Exception e) {
+                        verified = false;
+                    }
+                }
+                if (verified)
+                    sigIndex++;
             }
 
-            if (sigs.size() > pubkeys.size()) {
+            if (sigCount - sigIndex > pubKeyCount - pubKeyIndex) {
                 valid = false;
                 break;
             }
         }
 
         // We uselessly remove a stack object to emulate a Bitcoin Core bug.
-        byte[] nullDummy = stack.pollLast();
+        byte[] nullDummy = stack.pop();
         if (verifyFlags.contains(VerifyFlag.NULLDUMMY) && nullDummy.length > 0)
             throw new ScriptException(ScriptError.SCRIPT_ERR_SIG_NULLFAIL, "OP_CHECKMULTISIG(VERIFY) with non-null nulldummy: " + Arrays.toString(nullDummy));
 
         if (opcode == OP_CHECKMULTISIG) {
-            stack.add(valid ? new byte[] {1} : new byte[] {});
+            stack.push(valid ? new byte[] {1} : EMPTY_ARRAY);
         } else if (opcode == OP_CHECKMULTISIGVERIFY) {
             if (!valid)
                 throw new ScriptException(ScriptError.SCRIPT_ERR_SIG_NULLFAIL, "Script failed OP_CHECKMULTISIGVERIFY");
@@ -1541,28 +1598,45 @@ public class Script {
      */
     public void correctlySpends(Transaction txContainingThis, long scriptSigIndex, Script scriptPubKey,
                                 Set<VerifyFlag> verifyFlags) throws ScriptException {
-        // Clone the transaction because executing the script involves editing it, and if we die, we'll leave
-        // the tx half broken (also it's not so thread safe to work on it directly.
-        try {
-            txContainingThis = txContainingThis.getParams().getDefaultSerializer().makeTransaction(txContainingThis.bitcoinSerialize());
-        } catch (ProtocolException e) {
-            throw new RuntimeException(e);   // Should not happen unless we were given a totally broken transaction.
-        }
+        // There used to be a copy of the transaction made here, because computing the signature hash modified it.
+        // That is no longer the case, see Transaction.hashForSignature().
         if (getProgram().length > MAX_SCRIPT_SIZE || scriptPubKey.getProgram().length > MAX_SCRIPT_SIZE)
             throw new ScriptException(ScriptError.SCRIPT_ERR_SCRIPT_SIZE, "Script larger than 10,000 bytes");
-        
-        LinkedList<byte[]> stack = new LinkedList<>();
-        LinkedList<byte[]> p2shStack = null;
-        
-        executeScript(txContainingThis, scriptSigIndex, this, stack, verifyFlags);
+
+        ScriptStack[] stacks = THREAD_STACKS.get();
+        ScriptStack stack = stacks[0];
+        ScriptStack p2shStack = stacks[1];
+        ScriptStack altstack = stacks[2];
+        try {
+            correctlySpends(txContainingThis, scriptSigIndex, scriptPubKey, verifyFlags, stack, p2shStack, altstack);
+        } finally {
+            stack.clear();
+            p2shStack.clear();
+            altstack.clear();
+        }
+    }
+
+    // The interpreter stacks are reused by all scripts verified on a thread, so that verifying doesn't allocate them
+    // over and over again. They are always cleared after use so they don't keep script data reachable.
+    private static final ThreadLocal<ScriptStack[]> THREAD_STACKS = new ThreadLocal<ScriptStack[]>() {
+        @Override
+        protected ScriptStack[] initialValue() {
+            return new ScriptStack[] { new ScriptStack(), new ScriptStack(), new ScriptStack() };
+        }
+    };
+
+    private void correctlySpends(Transaction txContainingThis, long scriptSigIndex, Script scriptPubKey,
+                                 Set<VerifyFlag> verifyFlags, ScriptStack stack, ScriptStack p2shStack,
+                                 ScriptStack altstack) throws ScriptException {
+        executeScript(txContainingThis, scriptSigIndex, this, stack, altstack, verifyFlags);
         if (verifyFlags.contains(VerifyFlag.P2SH))
-            p2shStack = new LinkedList<>(stack);
-        executeScript(txContainingThis, scriptSigIndex, scriptPubKey, stack, verifyFlags);
+            p2shStack.copyFrom(stack);
+        executeScript(txContainingThis, scriptSigIndex, scriptPubKey, stack, altstack, verifyFlags);
         
         if (stack.size() == 0)
             throw new ScriptException(ScriptError.SCRIPT_ERR_EVAL_FALSE, "Stack empty at end of script execution.");
         
-        if (!castToBool(stack.pollLast()))
+        if (!castToBool(stack.pop()))
             throw new ScriptException(ScriptError.SCRIPT_ERR_EVAL_FALSE, "Script resulted in a non-true stack: " + stack);
 
         // P2SH is pay to script hash. It means that the scriptPubKey has a special form which is a valid
@@ -1583,19 +1657,56 @@ public class Script {
                 if (chunk.isOpCode() && chunk.opcode > OP_16)
                     throw new ScriptException(ScriptError.SCRIPT_ERR_SIG_PUSHONLY, "Attempted to spend a P2SH scriptPubKey with a script that contained script ops");
             
-            byte[] scriptPubKeyBytes = p2shStack.pollLast();
+            byte[] scriptPubKeyBytes = p2shStack.pop();
             Script scriptPubKeyP2SH = new Script(scriptPubKeyBytes);
             
-            executeScript(txContainingThis, scriptSigIndex, scriptPubKeyP2SH, p2shStack, verifyFlags);
+            executeScript(txContainingThis, scriptSigIndex, scriptPubKeyP2SH, p2shStack, altstack, verifyFlags);
             
             if (p2shStack.size() == 0)
                 throw new ScriptException(ScriptError.SCRIPT_ERR_EVAL_FALSE, "P2SH stack empty at end of script execution.");
             
-            if (!castToBool(p2shStack.pollLast()))
+            if (!castToBool(p2shStack.pop()))
                 throw new ScriptException(ScriptError.SCRIPT_ERR_EVAL_FALSE, "P2SH script execution resulted in a non-true stack");
         }
     }
 
+    /**
+     * The stack of OP_IF/OP_NOTIF conditions. Only whether all of them are true matters for execution, so rather than
+     * scanning the whole stack for every opcode it keeps count of the false ones.
+     */
+    private static final class ConditionStack {
+        private boolean[] conditions = new boolean[8];
+        private int size;
+        private int falseCount;
+
+        boolean isEmpty() {
+            return size == 0;
+        }
+
+        boolean allTrue() {
+            return falseCount == 0;
+        }
+
+        void push(boolean condition) {
+            if (size == conditions.length)
+                conditions = Arrays.copyOf(conditions, size * 2);
+            conditions[size++] = condition;
+            if (!condition)
+                falseCount++;
+        }
+
+        void pop() {
+            if (!conditions[--size])
+                falseCount--;
+        }
+
+        void toggleTop() {
+            boolean condition = conditions[size - 1];
+            conditions[size - 1] = !condition;
+            falseCount += condition ? 1 : -1;
+        }
+    }
+
     // Utility that doesn't copy for internal use
     private byte[] getQuickProgram() {
         if (program != null)
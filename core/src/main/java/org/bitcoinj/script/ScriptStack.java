@@ -0,0 +1,121 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.script;
+
+import org.bitcoinj.core.Utils;
+
+import java.util.Arrays;
+import java.util.Collection;
+
+/**
+ * <p>An array backed stack of script elements as used by the {@link Script} interpreter. Unlike the
+ * {@link java.util.LinkedList} it replaces, pushing and popping doesn't allocate, and an instance can be cleared and
+ * reused for the next script.</p>
+ *
+ * <p>Positions are counted from the top of the stack, so {@code peek(0)} is the element that {@link #pop()} would
+ * return. Callers are expected to check {@link #size()} before popping or peeking.</p>
+ *
+ * <p>Instances of this class are not safe for use by multiple threads.</p>
+ */
+final class ScriptStack {
+    private byte[][] elements;
+    private int size;
+
+    ScriptStack() {
+        this(16);
+    }
+
+    ScriptStack(int initialCapacity) {
+        elements = new byte[initialCapacity][];
+    }
+
+    int size() {
+        return size;
+    }
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    void push(byte[] element) {
+        if (size == elements.length)
+            elements = Arrays.copyOf(elements, Math.max(16, size * 2));
+        elements[size++] = element;
+    }
+
+    byte[] pop() {
+        byte[] element = elements[--size];
+        elements[size] = null;
+        return element;
+    }
+
+    byte[] peek() {
+        return elements[size - 1];
+    }
+
+    /** Returns the element at the given depth, where 0 is the top of the stack. */
+    byte[] peek(int depth) {
+        return elements[size - 1 - depth];
+    }
+
+    /** Removes and returns the element at the given depth, where 0 is the top of the stack. */
+    byte[] remove(int depth) {
+        int index = size - 1 - depth;
+        byte[] element = elements[index];
+        System.arraycopy(elements, index + 1, elements, index, depth);
+        elements[--size] = null;
+        return element;
+    }
+
+    /** Removes all elements, dropping the references so they can be garbage collected. */
+    void clear() {
+        Arrays.fill(elements, 0, size, null);
+        size = 0;
+    }
+
+    /** Replaces the contents of this stack with the contents of the other one. */
+    void copyFrom(ScriptStack other) {
+        clear();
+        if (elements.length < other.size)
+            elements = new byte[other.size][];
+        System.arraycopy(other.elements, 0, elements, 0, other.size);
+        size = other.size;
+    }
+
+    /** Pushes all elements of the collection in iteration order, so its last element ends up on top. */
+    void pushAll(Collection<byte[]> collection) {
+        for (byte[] element : collection)
+            push(element);
+    }
+
+    /** Adds all elements to the collection from the bottom of the stack to the top. */
+    void copyTo(Collection<byte[]> collection) {
+        for (int i = 0; i < size; i++)
+            collection.add(elements[i]);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder("[");
+        for (int i = 0; i < size; i++) {
+            if (i > 0)
+                builder.append(", ");
+            builder.append(Utils.HEX.encode(elements[i]));
+        }
+        return builder.append(']').toString();
+    }
+}
@@ -0,0 +1,504 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.store;
+
+import org.bitcoinj.core.ECKey;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.StoredBlock;
+import org.bitcoinj.core.StoredUndoableBlock;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.core.TransactionOutPoint;
+import org.bitcoinj.core.UTXO;
+import org.bitcoinj.core.UTXOProviderException;
+import org.bitcoinj.core.Utils;
+import org.bitcoinj.script.Script;
+import org.bitcoinj.script.ScriptChunk;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * <p>A {@link FullPrunedBlockStore} that keeps recently used unspent transaction outputs in memory in front of another
+ * store. This saves most of the lookups done while connecting a block, which matters most for the SQL based stores as
+ * they have no cache of their own.</p>
+ *
+ * <p>Outputs added and removed inside a database batch are only kept in the cache, and written to the underlying store
+ * in one go when the batch is committed. Aborting the batch drops them. The cache is bounded by an estimate of the
+ * memory used by its entries; the least recently used entries that have already been written are evicted first.</p>
+ *
+ * <p>All writes of unspent outputs must go through this store, otherwise the cache gets out of date.</p>
+ */
+public class CachingFullPrunedBlockStore implements FullPrunedBlockStore {
+    private static final Logger log = LoggerFactory.getLogger(CachingFullPrunedBlockStore.class);
+
+    // Estimates of the memory used by the objects making up an entry, with 12 byte object headers, 4 byte references
+    // and sizes rounded up to 8 bytes. An entry has its key buffer (48) and key array (56), a map entry with its slot
+    // in the table (48) and the Entry itself (24).
+    private static final int ENTRY_OVERHEAD = 176;
+    // The UTXO (48) with its value (24), hash (16 + 48) and script (32) with its chunk list (24 + 16).
+    private static final int UTXO_OVERHEAD = 208;
+    // A script chunk (24) and its reference in the chunk list (4), apart from its data.
+    private static final int CHUNK_OVERHEAD = 28;
+
+    private final FullPrunedBlockStore store;
+    private final long maxBytes;
+
+    // Both keyed by the 32 byte transaction hash followed by the 4 byte output index. An output is in one of them at
+    // most. Entries that match the underlying store are kept in access order so that the least recently used ones can
+    // be evicted. Entries changed in the open batch can't be evicted until it's committed, so they're kept apart
+    // rather than stepped over by every eviction.
+    private final LinkedHashMap<ByteBuffer, Entry> clean = new LinkedHashMap<>(1024, 0.75f, true);
+    private final HashMap<ByteBuffer, Entry> dirty = new HashMap<>();
+    private long bytes;
+    private boolean inBatch;
+
+    private long hits, misses, evictions;
+
+    private static class Entry {
+        // The output, which is kept when it is spent so that the removal can be passed on to the store.
+        @Nullable UTXO utxo;
+        boolean spent;
+        // This entry differs from the underlying store.
+        boolean dirty;
+        // The underlying store is known not to have this output unspent.
+        boolean fresh;
+        // The output was added and spent again in this batch, without knowing whether the store had it before. It's
+        // added before it's removed, which works either way.
+        boolean addFirst;
+        final int size;
+
+        Entry(@Nullable UTXO utxo, boolean spent, boolean dirty, boolean fresh) {
+            this.utxo = utxo;
+            this.spent = spent;
+            this.dirty = dirty;
+            this.fresh = fresh;
+            this.size = ENTRY_OVERHEAD + (utxo != null ? sizeOf(utxo) : 0);
+        }
+    }
+
+    private static int align(int size) {
+        return (size + 7) & ~7;
+    }
+
+    // The program is estimated from the chunks rather than copied to get its length.
+    private static int sizeOf(UTXO utxo) {
+        Script script = utxo.getScript();
+        List<ScriptChunk> chunks = script.getChunks();
+        int size = UTXO_OVERHEAD + chunks.size() * CHUNK_OVERHEAD;
+        int programLength = chunks.size();
+        for (ScriptChunk chunk : chunks) {
+            if (chunk.data != null) {
+                size += align(16 + chunk.data.length);
+                programLength += chunk.data.length;
+            }
+        }
+        return size + align(16 + programLength);
+    }
+
+    /**
+     * Creates a cache in front of the given store.
+     *
+     * @param store The store to read unspent outputs from and write them to.
+     * @param maxBytes The approximate amount of memory the cached outputs may use. Outputs that haven't been
+     *                 written to the store yet are never evicted, so this can be exceeded while a batch is open.
+     */
+    public CachingFullPrunedBlockStore(FullPrunedBlockStore store, long maxBytes) {
+        checkArgument(maxBytes > 0, "maxBytes must be positive");
+        this.store = checkNotNull(store);
+        this.maxBytes = maxBytes;
+    }
+
+    /** Returns the store this cache is in front of. */
+    public FullPrunedBlockStore getStore() {
+        return store;
+    }
+
+    private static ByteBuffer key(Sha256Hash hash, long index) {
+        byte[] key = new byte[36];
+        System.arraycopy(hash.getBytes(), 0, key, 0, 32);
+        Utils.uint32ToByteArrayLE(index, key, 32);
+        return ByteBuffer.wrap(key);
+    }
+
+    @Nullable
+    private Entry find(ByteBuffer key) {
+        Entry entry = dirty.get(key);
+        return entry != null ? entry : clean.get(key);
+    }
+
+    @Nullable
+    private Entry lookup(ByteBuffer key) {
+        Entry entry = find(key);
+        if (entry != null)
+            hits++;
+        else
+            misses++;
+        return entry;
+    }
+
+    private void put(ByteBuffer key, Entry entry) {
+        remove(key);
+        (entry.dirty ? dirty : clean).put(key, entry);
+        bytes += entry.size;
+    }
+
+    private void remove(ByteBuffer key) {
+        Entry old = dirty.remove(key);
+        if (old == null)
+            old = clean.remove(key);
+        if (old != null)
+            bytes -= old.size;
+    }
+
+    private void evict() {
+        Iterator<Entry> it = clean.values().iterator();
+        while (bytes > maxBytes && it.hasNext()) {
+            bytes -= it.next().size;
+            it.remove();
+            evictions++;
+        }
+    }
+
+    // Caches what the store returned for an output that wasn't in the cache.
+    private void loaded(ByteBuffer key, @Nullable UTXO utxo) {
+        if (utxo != null)
+            put(key, new Entry(utxo, false, false, false));
+        else
+            put(key, new Entry(null, true, false, true));
+    }
+
+    @Override
+    @Nullable
+    public synchronized UTXO getTransactionOutput(Sha256Hash hash, long index) throws BlockStoreException {
+        ByteBuffer key = key(hash, index);
+        Entry entry = lookup(key);
+        if (entry == null) {
+            UTXO utxo = store.getTransactionOutput(hash, index);
+            loaded(key, utxo);
+            evict();
+            return utxo;
+        }
+        return entry.spent ? null : entry.utxo;
+    }
+
+    @Override
+    public synchronized List<UTXO> getTransactionOutputs(List<TransactionOutPoint> outPoints) throws BlockStoreException {
+        List<UTXO> result = new ArrayList<>(outPoints.size());
+        List<TransactionOutPoint> missing = new ArrayList<>();
+        List<Integer> missingPositions = new ArrayList<>();
+        for (TransactionOutPoint outPoint : outPoints) {
+            Entry entry = lookup(key(outPoint.getHash(), outPoint.getIndex()));
+            if (entry == null) {
+                missing.add(outPoint);
+                missingPositions.add(result.size());
+            }
+            result.add(entry == null || entry.spent ? null : entry.utxo);
+        }
+        if (missing.isEmpty())
+            return result;
+        List<UTXO> fromStore = store.getTransactionOutputs(missing);
+        for (int i = 0; i < missing.size(); i++) {
+            UTXO utxo = fromStore.get(i);
+            loaded(key(missing.get(i).getHash(), missing.get(i).getIndex()), utxo);
+            result.set(missingPositions.get(i), utxo);
+        }
+        evict();
+        return result;
+    }
+
+    @Override
+    public synchronized void addUnspentTransactionOutput(UTXO out) throws BlockStoreException {
+        if (!inBatch) {
+            store.addUnspentTransactionOutput(out);
+            put(key(out.getHash(), out.getIndex()), new Entry(out, false, false, false));
+            evict();
+            return;
+        }
+        ByteBuffer key = key(out.getHash(), out.getIndex());
+        Entry entry = find(key);
+        // If the store is known not to have the output, it doesn't need to be told about it when it's spent again
+        // before the batch is committed.
+        boolean fresh = entry != null && entry.spent && entry.fresh;
+        put(key, new Entry(out, false, true, fresh));
+    }
+
+    @Override
+    public synchronized void addUnspentTransactionOutputs(List<UTXO> outs) throws BlockStoreException {
+        if (!inBatch) {
+            store.addUnspentTransactionOutputs(outs);
+            for (UTXO out : outs)
+                put(key(out.getHash(), out.getIndex()), new Entry(out, false, false, false));
+            evict();
+            return;
+        }
+        for (UTXO out : outs)
+            addUnspentTransactionOutput(out);
+    }
+
+    @Override
+    public synchronized void removeUnspentTransactionOutput(UTXO out) throws BlockStoreException {
+        if (!inBatch) {
+            store.removeUnspentTransactionOutput(out);
+            put(key(out.getHash(), out.getIndex()), new Entry(null, true, false, true));
+            evict();
+            return;
+        }
+        ByteBuffer key = key(out.getHash(), out.getIndex());
+        Entry entry = find(key);
+        if (entry != null && entry.spent)
+            throw new BlockStoreException("Tried to remove a UTXO from CachingFullPrunedBlockStore that it didn't have!");
+        if (entry != null && entry.fresh) {
+            remove(key);
+        } else {
+            Entry spent = new Entry(entry != null ? entry.utxo : out, true, true, false);
+            spent.addFirst = entry != null && entry.dirty;
+            put(key, spent);
+        }
+    }
+
+    @Override
+    public synchronized void removeUnspentTransactionOutputs(List<UTXO> outs) throws BlockStoreException {
+        if (!inBatch) {
+            store.removeUnspentTransactionOutputs(outs);
+            for (UTXO out : outs)
+                put(key(out.getHash(), out.getIndex()), new Entry(null, true, false, true));
+            evict();
+            return;
+        }
+        for (UTXO out : outs)
+            removeUnspentTransactionOutput(out);
+    }
+
+    @Override
+    public synchronized boolean hasUnspentOutputs(Sha256Hash hash, int numOutputs) throws BlockStoreException {
+        // Without pending changes the store knows best, and can usually answer with a single query.
+        if (dirty.isEmpty()) {
+            if (store.hasUnspentOutputs(hash, numOutputs))
+                return true;
+            // Usually this is asked about the outputs of a new transaction, which will be added and may even be spent
+            // again before the batch is committed. Remembering that the store doesn't have them saves writing those.
+            for (int i = 0; i < numOutputs; i++)
+                put(key(hash, i), new Entry(null, true, false, true));
+            evict();
+            return false;
+        }
+        for (int i = 0; i < numOutputs; i++)
+            if (getTransactionOutput(hash, i) != null)
+                return true;
+        return false;
+    }
+
+    @Override
+    public synchronized void beginDatabaseBatchWrite() throws BlockStoreException {
+        store.beginDatabaseBatchWrite();
+        inBatch = true;
+    }
+
+    @Override
+    public synchronized void commitDatabaseBatchWrite() throws BlockStoreException {
+        List<UTXO> added = new ArrayList<>();
+        List<UTXO> removed = new ArrayList<>();
+        for (Entry entry : dirty.values()) {
+            if (entry.spent) {
+                if (entry.addFirst)
+                    added.add(entry.utxo);
+                removed.add(entry.utxo);
+            } else {
+                added.add(entry.utxo);
+            }
+        }
+        store.addUnspentTransactionOutputs(added);
+        store.removeUnspentTransactionOutputs(removed);
+        store.commitDatabaseBatchWrite();
+        inBatch = false;
+        // The written entries become the most recently used clean ones.
+        List<Map.Entry<ByteBuffer, Entry>> written = new ArrayList<>(dirty.entrySet());
+        dirty.clear();
+        for (Map.Entry<ByteBuffer, Entry> mapEntry : written) {
+            Entry entry = mapEntry.getValue();
+            bytes -= entry.size;
+            if (entry.spent) {
+                put(mapEntry.getKey(), new Entry(null, true, false, true));
+            } else {
+                entry.dirty = false;
+                entry.fresh = false;
+                put(mapEntry.getKey(), entry);
+            }
+        }
+        evict();
+    }
+
+    @Override
+    public synchronized void abortDatabaseBatchWrite() throws BlockStoreException {
+        inBatch = false;
+        for (Entry entry : dirty.values())
+            bytes -= entry.size;
+        dirty.clear();
+        store.abortDatabaseBatchWrite();
+    }
+
+    /**
+     * Loads the outputs created by the newest blocks into the cache, as they are the ones most likely to be spent
+     * next. Stops early at blocks that have already been pruned, or when the cache is full.
+     *
+     * @param blocks The number of blocks to go back from the verified chain head.
+     */
+    public void prewarm(int blocks) throws BlockStoreException {
+        StoredBlock block = getVerifiedChainHead();
+        int loaded = 0;
+        for (int i = 0; i < blocks && block != null; i++) {
+            StoredUndoableBlock undoBlock = store.getUndoBlock(block.getHeader().getHash());
+            if (undoBlock == null)
+                break;
+            List<TransactionOutPoint> outPoints = new ArrayList<>();
+            if (undoBlock.getTxOutChanges() != null) {
+                for (UTXO out : undoBlock.getTxOutChanges().txOutsCreated)
+                    outPoints.add(new TransactionOutPoint(getParams(), out.getIndex(), out.getHash()));
+            } else {
+                for (Transaction tx : undoBlock.getTransactions())
+                    for (int index = 0; index < tx.getOutputs().size(); index++)
+                        outPoints.add(new TransactionOutPoint(getParams(), index, tx.getHash()));
+            }
+            getTransactionOutputs(outPoints);
+            loaded += outPoints.size();
+            synchronized (this) {
+                if (bytes >= maxBytes)
+                    break;
+            }
+            block = block.getPrev(store);
+        }
+        log.info("Prewarmed the UTXO cache with {} outputs, {}", loaded, this);
+    }
+
+    /** Returns the number of lookups that were answered from the cache. */
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    /** Returns the number of lookups that had to go to the underlying store. */
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    /** Returns the number of entries that were dropped to keep the cache within its size limit. */
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    /** Returns the number of outputs currently in the cache, including ones known to be spent. */
+    public synchronized int size() {
+        return clean.size() + dirty.size();
+    }
+
+    /** Returns the estimated amount of memory used by the cached entries. */
+    public synchronized long getSizeInBytes() {
+        return bytes;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("%d entries, %d of %d bytes, %d hits, %d misses, %d evictions", size(), bytes,
+                maxBytes, hits, misses, evictions);
+    }
+
+    @Override
+    public void put(StoredBlock block) throws BlockStoreException {
+        store.put(block);
+    }
+
+    @Override
+    public void put(StoredBlock storedBlock, StoredUndoableBlock undoableBlock) throws BlockStoreException {
+        store.put(storedBlock, undoableBlock);
+    }
+
+    @Override
+    @Nullable
+    public StoredBlock get(Sha256Hash hash) throws BlockStoreException {
+        return store.get(hash);
+    }
+
+    @Override
+    @Nullable
+    public StoredBlock getOnceUndoableStoredBlock(Sha256Hash hash) throws BlockStoreException {
+        return store.getOnceUndoableStoredBlock(hash);
+    }
+
+    @Override
+    @Nullable
+    public StoredUndoableBlock getUndoBlock(Sha256Hash hash) throws BlockStoreException {
+        return store.getUndoBlock(hash);
+    }
+
+    @Override
+    public StoredBlock getChainHead() throws BlockStoreException {
+        return store.getChainHead();
+    }
+
+    @Override
+    public void setChainHead(StoredBlock chainHead) throws BlockStoreException {
+        store.setChainHead(chainHead);
+    }
+
+    @Override
+    public StoredBlock getVerifiedChainHead() throws BlockStoreException {
+        return store.getVerifiedChainHead();
+    }
+
+    @Override
+    public void setVerifiedChainHead(StoredBlock chainHead) throws BlockStoreException {
+        store.setVerifiedChainHead(chainHead);
+    }
+
+    @Override
+    public synchronized void close() throws BlockStoreException {
+        clean.clear();
+        dirty.clear();
+        bytes = 0;
+        store.close();
+    }
+
+    @Override
+    public NetworkParameters getParams() {
+        return store.getParams();
+    }
+
+    @Override
+    public int getChainHeadHeight() throws UTXOProviderException {
+        return store.getChainHeadHeight();
+    }
+
+    /**
+     * {@inheritDoc} This goes to the underlying store, so outputs added or removed in a batch that hasn't been
+     * committed yet are not taken into account.
+     */
+    @Override
+    public List<UTXO> getOpenTransactionOutputs(List<ECKey> keys) throws UTXOProviderException {
+        return store.getOpenTransactionOutputs(keys);
+    }
+}
@@ -109,6 +109,7 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
     private static final String SELECT_OPENOUTPUTS_COUNT_SQL                    = "SELECT COUNT(*) FROM openoutputs WHERE hash = ?";
     private static final String INSERT_OPENOUTPUTS_SQL                          = "INSERT INTO openoutputs (hash, index, height, value, scriptbytes, toaddress, addresstargetable, coinbase) VALUES (?, ?, ?, ?, ?, ?, ?, ?)";
     private static final String DELETE_OPENOUTPUTS_SQL                          = "DELETE FROM openoutputs WHERE hash = ? AND index = ?";
+    private static final String SELECT_OPENOUTPUTS_FOR_HASHES_SQL               = "SELECT hash, index, height, value, scriptbytes, coinbase, toaddress, addresstargetable FROM openoutputs WHERE hash IN ";
 
     // Dump table SQL (this is just for data sizing statistics).
     private static final String SELECT_DUMP_SETTINGS_SQL                        = "SELECT name, value FROM settings";
@@ -376,6 +377,15 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
         return DELETE_OPENOUTPUTS_SQL;
     }
 
+    /**
+     * Get the SQL to select the openoutputs records of several transactions. The list of hash parameters, for example
+     * {@code (?, ?, ?)}, is appended to it.
+     * @return The SQL select statement without the parameter list.
+     */
+    protected String getSelectOpenoutputsForHashesSQL() {
+        return SELECT_OPENOUTPUTS_FOR_HASHES_SQL;
+    }
+
     /**
      * Get the SQL to select the setting dump fields for sizing/statistics.
      * @return The SQL select statement.
@@ -989,6 +999,128 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
         }
     }
 
+    // The most transaction hashes looked up by one statement, well below the parameter limits of the databases.
+    private static final int MAX_HASHES_PER_SELECT = 500;
+
+    @Override
+    public List<UTXO> getTransactionOutputs(List<TransactionOutPoint> outPoints) throws BlockStoreException {
+        maybeConnect();
+        // Select all outputs of the transactions involved, there's no portable way to select by hash and index pairs.
+        Set<Sha256Hash> distinctHashes = new LinkedHashSet<>();
+        for (TransactionOutPoint outPoint : outPoints)
+            distinctHashes.add(outPoint.getHash());
+        List<Sha256Hash> hashes = new ArrayList<>(distinctHashes);
+        Map<TransactionOutPoint, UTXO> found = new HashMap<>();
+        for (List<Sha256Hash> partition : Lists.partition(hashes, MAX_HASHES_PER_SELECT)) {
+            StringBuilder sql = new StringBuilder(getSelectOpenoutputsForHashesSQL()).append('(');
+            for (int i = 0; i < partition.size(); i++)
+                sql.append(i == 0 ? "?" : ", ?");
+            sql.append(')');
+            PreparedStatement s = null;
+            try {
+                s = conn.get().prepareStatement(sql.toString());
+                for (int i = 0; i < partition.size(); i++)
+                    s.setBytes(i + 1, partition.get(i).getBytes());
+                ResultSet results = s.executeQuery();
+                while (results.next()) {
+                    Sha256Hash hash = Sha256Hash.wrap(results.getBytes(1));
+                    // index is actually an unsigned int
+                    long index = results.getInt(2) & 0xFFFFFFFFL;
+                    UTXO txout = new UTXO(hash,
+                            index,
+                            Coin.valueOf(results.getLong(4)),
+                            results.getInt(3),
+                            results.getBoolean(6),
+                            new Script(results.getBytes(5)),
+                            results.getString(7));
+                    found.put(new TransactionOutPoint(params, index, hash), txout);
+                }
+            } catch (SQLException ex) {
+                throw new BlockStoreException(ex);
+            } finally {
+                if (s != null) {
+                    try {
+                        s.close();
+                    } catch (SQLException e) {
+                        throw new BlockStoreException("Failed to close PreparedStatement");
+                    }
+                }
+            }
+        }
+        List<UTXO> result = new ArrayList<>(outPoints.size());
+        for (TransactionOutPoint outPoint : outPoints)
+            result.add(found.get(outPoint));
+        return result;
+    }
+
+    @Override
+    public void addUnspentTransactionOutputs(List<UTXO> outs) throws BlockStoreException {
+        maybeConnect();
+        PreparedStatement s = null;
+        try {
+            s = conn.get().prepareStatement(getInsertOpenoutputsSQL());
+            for (UTXO out : outs) {
+                s.setBytes(1, out.getHash().getBytes());
+                // index is actually an unsigned int
+                s.setInt(2, (int) out.getIndex());
+                s.setInt(3, out.getHeight());
+                s.setLong(4, out.getValue().value);
+                s.setBytes(5, out.getScript().getProgram());
+                s.setString(6, out.getAddress());
+                ScriptType scriptType = out.getScript().getScriptType();
+                s.setInt(7, scriptType != null ? scriptType.id : 0);
+                s.setBoolean(8, out.isCoinbase());
+                s.addBatch();
+            }
+            s.executeBatch();
+        } catch (SQLException e) {
+            if (!(getDuplicateKeyErrorCode().equals(e.getSQLState())))
+                throw new BlockStoreException(e);
+            // Drivers differ in whether the rest of a batch is executed after a failure, so insert them one by one,
+            // which ignores the duplicates.
+            for (UTXO out : outs)
+                addUnspentTransactionOutput(out);
+        } finally {
+            if (s != null) {
+                try {
+                    s.close();
+                } catch (SQLException e) {
+                    throw new BlockStoreException(e);
+                }
+            }
+        }
+    }
+
+    @Override
+    public void removeUnspentTransactionOutputs(List<UTXO> outs) throws BlockStoreException {
+        maybeConnect();
+        PreparedStatement s = null;
+        try {
+            s = conn.get().prepareStatement(getDeleteOpenoutputsSQL());
+            for (UTXO out : outs) {
+                s.setBytes(1, out.getHash().getBytes());
+                // index is actually an unsigned int
+                s.setInt(2, (int) out.getIndex());
+                s.addBatch();
+            }
+            // Rather than selecting every output first, rely on the number of deleted rows.
+            int[] updateCounts = s.executeBatch();
+            for (int updateCount : updateCounts)
+                if (updateCount == 0)
+                    throw new BlockStoreException("Tried to remove a UTXO from DatabaseFullPrunedBlockStore that it didn't have!");
+        } catch (SQLException e) {
+            throw new BlockStoreException(e);
+        } finally {
+            if (s != null) {
+                try {
+                    s.close();
+                } catch (SQLException e) {
+                    throw new BlockStoreException(e);
+                }
+            }
+        }
+    }
+
     @Override
     public void beginDatabaseBatchWrite() throws BlockStoreException {
         maybeConnect();
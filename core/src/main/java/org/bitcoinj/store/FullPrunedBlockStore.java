@@ -18,6 +18,8 @@ package org.bitcoinj.store;
 
 import org.bitcoinj.core.*;
 
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * <p>An implementor of FullPrunedBlockStore saves StoredBlock objects to some storage mechanism.</p>
@@ -87,6 +89,37 @@ public interface FullPrunedBlockStore extends BlockStore, UTXOProvider {
      * @throws BlockStoreException if there is an underlying storage issue, or out was not in the list.
      */
     void removeUnspentTransactionOutput(UTXO out) throws BlockStoreException;
+
+    /**
+     * Gets the {@link UTXO}s for the given outpoints, in the same order. The list contains null for every outpoint
+     * that is not found. Implementations should override this if they can look up many outputs in fewer round trips
+     * than one per output.
+     */
+    default List<UTXO> getTransactionOutputs(List<TransactionOutPoint> outPoints) throws BlockStoreException {
+        List<UTXO> result = new ArrayList<>(outPoints.size());
+        for (TransactionOutPoint outPoint : outPoints)
+            result.add(getTransactionOutput(outPoint.getHash(), outPoint.getIndex()));
+        return result;
+    }
+
+    /**
+     * Adds all the given {@link UTXO}s to the list of unspent TransactionOutputs, see
+     * {@link #addUnspentTransactionOutput(UTXO)}.
+     */
+    default void addUnspentTransactionOutputs(List<UTXO> outs) throws BlockStoreException {
+        for (UTXO out : outs)
+            addUnspentTransactionOutput(out);
+    }
+
+    /**
+     * Removes all the given {@link UTXO}s from the list of unspent TransactionOutputs, see
+     * {@link #removeUnspentTransactionOutput(UTXO)}.
+     * @throws BlockStoreException if there is an underlying storage issue, or any of the outs was not in the list.
+     */
+    default void removeUnspentTransactionOutputs(List<UTXO> outs) throws BlockStoreException {
+        for (UTXO out : outs)
+            removeUnspentTransactionOutput(out);
+    }
     
     /**
      * True if this store has any unspent outputs from a transaction with a hash equal to the first parameter
@@ -1024,6 +1024,41 @@ public class LevelDBFullPrunedBlockStore implements FullPrunedBlockStore {
 
     }
 
+    @Override
+    public void addUnspentTransactionOutputs(List<UTXO> outs) throws BlockStoreException {
+        // Outside of a batch every put would be its own write, so group them in one.
+        boolean ownBatch = autoCommit;
+        if (ownBatch)
+            beginDatabaseBatchWrite();
+        try {
+            for (UTXO out : outs)
+                addUnspentTransactionOutput(out);
+        } catch (BlockStoreException | RuntimeException e) {
+            if (ownBatch)
+                abortDatabaseBatchWrite();
+            throw e;
+        }
+        if (ownBatch)
+            writeBatch();
+    }
+
+    @Override
+    public void removeUnspentTransactionOutputs(List<UTXO> outs) throws BlockStoreException {
+        boolean ownBatch = autoCommit;
+        if (ownBatch)
+            beginDatabaseBatchWrite();
+        try {
+            for (UTXO out : outs)
+                removeUnspentTransactionOutput(out);
+        } catch (BlockStoreException | RuntimeException e) {
+            if (ownBatch)
+                abortDatabaseBatchWrite();
+            throw e;
+        }
+        if (ownBatch)
+            writeBatch();
+    }
+
     WriteBatch batch;
 
     @Override
@@ -1049,11 +1084,27 @@ public class LevelDBFullPrunedBlockStore implements FullPrunedBlockStore {
 
     @Override
     public void commitDatabaseBatchWrite() throws BlockStoreException {
-        uncommited = null;
-        uncommitedDeletes = null;
         if (instrument)
             beginMethod("commitDatabaseBatchWrite");
 
+        writeBatch();
+
+        if (instrument)
+            endMethod("commitDatabaseBatchWrite");
+
+        if (instrument && verifiedChainHeadBlock.getHeight() % 1000 == 0) {
+            log.info("Height: " + verifiedChainHeadBlock.getHeight());
+            dumpStats();
+            if (verifiedChainHeadBlock.getHeight() == exitBlock) {
+                System.err.println("Exit due to exitBlock set");
+                System.exit(1);
+            }
+        }
+    }
+
+    private void writeBatch() throws BlockStoreException {
+        uncommited = null;
+        uncommitedDeletes = null;
         db.write(batch);
         // order of these is not important as we only allow entry to be in one
         // or the other.
@@ -1077,18 +1128,6 @@ public class LevelDBFullPrunedBlockStore implements FullPrunedBlockStore {
             log.error("Error in db commit.", e);
             throw new BlockStoreException("could not close batch.");
         }
-
-        if (instrument)
-            endMethod("commitDatabaseBatchWrite");
-
-        if (instrument && verifiedChainHeadBlock.getHeight() % 1000 == 0) {
-            log.info("Height: " + verifiedChainHeadBlock.getHeight());
-            dumpStats();
-            if (verifiedChainHeadBlock.getHeight() == exitBlock) {
-                System.err.println("Exit due to exitBlock set");
-                System.exit(1);
-            }
-        }
     }
 
     @Override
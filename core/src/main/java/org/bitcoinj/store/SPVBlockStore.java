@@ -36,6 +36,9 @@ import static com.google.common.base.Preconditions.*;
  * An SPVBlockStore holds a limited number of block headers in a memory mapped ring buffer. With such a store, you
  * may not be able to process very deep re-orgs and could be disconnected from the chain (requiring a replay),
  * but as they are virtually unheard of this is not a significant risk.
+ *
+ * <p>Reads don't take the store lock. They run optimistically and are retried if a write overlapped with them, so
+ * any number of threads can look up blocks while another one stores them.</p>
  */
 public class SPVBlockStore implements BlockStore {
     private static final Logger log = LoggerFactory.getLogger(SPVBlockStore.class);
@@ -48,6 +51,10 @@ public class SPVBlockStore implements BlockStore {
     protected final NetworkParameters params;
 
     protected ReentrantLock lock = Threading.lock("SPVBlockStore");
+    // Held for writing while the ring, the index or the chain head are changed, always inside the lock above. Readers
+    // only validate their optimistic stamps against it, and take it for reading after repeated conflicts.
+    private final StampedLock ringLock = new StampedLock();
+    private static final int OPTIMISTIC_READ_ATTEMPTS = 3;
 
     // The entire ring-buffer is mmapped and accessing it should be as fast as accessing regular memory once it's
     // faulted in. Unfortunately, in theory practice and theory are the same. In practice they aren't.
@@ -56,6 +63,7 @@ public class SPVBlockStore implements BlockStore {
     // the OpenJDK/Oracle JVM calls into the get() methods are compiled down to inlined native code on Android each
     // get() call is actually a full-blown JNI method under the hood, meaning it's unbelievably slow. The caches
     // below let us stay in the JIT-compiled Java world without expensive JNI transitions and make a 10x difference!
+    // Readers don't hold the store lock, so every access to these caches synchronizes on the cache itself.
     protected LinkedHashMap<Sha256Hash, StoredBlock> blockCache = new LinkedHashMap<Sha256Hash, StoredBlock>() {
         @Override
         protected boolean removeEldestEntry(Map.Entry<Sha256Hash, StoredBlock> entry) {
@@ -79,6 +87,9 @@ public class SPVBlockStore implements BlockStore {
     protected FileLock fileLock = null;
     protected RandomAccessFile randomAccessFile = null;
     private int fileLength;
+    // Finds the ring slot holding a block in constant time, so a miss in the caches above doesn't have to scan the
+    // whole ring. It lives only in memory and is rebuilt from the ring when the store is opened.
+    private HashIndex index;
 
     /**
      * Creates and initializes an SPV block store that can hold {@link #DEFAULT_CAPACITY} block headers. Will create the
@@ -138,6 +149,7 @@ public class SPVBlockStore implements BlockStore {
             // always be correct. Once we establish the mmap the underlying file and channel can go away. Note that
             // the details of mmapping vary between platforms.
             buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, fileLength);
+            index = new HashIndex((fileLength - FILE_PROLOGUE_BYTES) / RECORD_SIZE);
 
             // Check or initialize the header bytes to ensure we don't try to open some random file.
             if (exists) {
@@ -145,6 +157,7 @@ public class SPVBlockStore implements BlockStore {
                 buffer.get(header);
                 if (!new String(header, StandardCharsets.US_ASCII).equals(HEADER_MAGIC))
                     throw new BlockStoreException("Header bytes do not equal " + HEADER_MAGIC);
+                buildIndex();
             } else {
                 initNewStore(params);
             }
@@ -175,6 +188,24 @@ public class SPVBlockStore implements BlockStore {
         setChainHead(storedGenesis);
     }
 
+    private void buildIndex() {
+        lock.lock();
+        try {
+            // Index the slots from oldest to newest, so that a block stored more than once resolves to its newest
+            // copy, like the backwards scan of the ring that the index replaces.
+            int slots = (fileLength - FILE_PROLOGUE_BYTES) / RECORD_SIZE;
+            int start = (getRingCursor(buffer) - FILE_PROLOGUE_BYTES) / RECORD_SIZE;
+            for (int i = 0; i < slots; i++) {
+                int slot = (start + i) % slots;
+                if (!isEmptySlot(buffer, slot))
+                    index.put(buffer, slot);
+            }
+            log.info("Indexed {} block headers", index.size());
+        } finally {
+            lock.unlock();
+        }
+    }
+
     /** Returns the size in bytes of the file that is used to store the chain with the current parameters. */
     public static final int getFileSize(int capacity) {
         return RECORD_SIZE * capacity + FILE_PROLOGUE_BYTES /* extra kilobyte for stuff */;
@@ -186,20 +217,32 @@ public class SPVBlockStore implements BlockStore {
         if (buffer == null) throw new BlockStoreException("Store closed");
 
         lock.lock();
+        long stamp = ringLock.writeLock();
         try {
             int cursor = getRingCursor(buffer);
             if (cursor == fileLength) {
                 // Wrapped around.
                 cursor = FILE_PROLOGUE_BYTES;
             }
+            int slot = (cursor - FILE_PROLOGUE_BYTES) / RECORD_SIZE;
+            index.remove(buffer, slot);
             buffer.position(cursor);
             Sha256Hash hash = block.getHeader().getHash();
-            notFoundCache.remove(hash);
             buffer.put(hash.getBytes());
             block.serializeCompact(buffer);
             setRingCursor(buffer, buffer.position());
-            blockCache.put(hash, block);
-        } finally { lock.unlock(); }
+            index.put(buffer, slot);
+            // Only now that readers can't validate a miss from before this write anymore, see get().
+            synchronized (notFoundCache) {
+                notFoundCache.remove(hash);
+            }
+            synchronized (blockCache) {
+                blockCache.put(hash, block);
+            }
+        } finally {
+            ringLock.unlockWrite(stamp);
+            lock.unlock();
+        }
     }
 
     @Override
@@ -208,51 +251,79 @@ public class SPVBlockStore implements BlockStore {
         final MappedByteBuffer buffer = this.buffer;
         if (buffer == null) throw new BlockStoreException("Store closed");
 
-        lock.lock();
-        try {
-            StoredBlock cacheHit = blockCache.get(hash);
-            if (cacheHit != null)
-                return cacheHit;
+        StoredBlock cacheHit;
+        synchronized (blockCache) {
+            cacheHit = blockCache.get(hash);
+        }
+        if (cacheHit != null)
+            return cacheHit;
+        synchronized (notFoundCache) {
             if (notFoundCache.get(hash) != null)
                 return null;
+        }
 
-            // Starting from the current tip of the ring work backwards until we have either found the block or
-            // wrapped around.
-            int cursor = getRingCursor(buffer);
-            final int startingPoint = cursor;
-            final byte[] targetHashBytes = hash.getBytes();
-            byte[] scratch = new byte[32];
-            do {
-                cursor -= RECORD_SIZE;
-                if (cursor < FILE_PROLOGUE_BYTES) {
-                    // We hit the start, so wrap around.
-                    cursor = fileLength - RECORD_SIZE;
+        long stamp = ringLock.tryOptimisticRead();
+        for (int attempt = 1; ; attempt++) {
+            boolean locked = attempt > OPTIMISTIC_READ_ATTEMPTS;
+            if (locked)
+                stamp = ringLock.readLock();
+            try {
+                StoredBlock storedBlock = null;
+                RuntimeException failure = null;
+                try {
+                    storedBlock = readBlock(buffer, hash);
+                } catch (RuntimeException e) {
+                    // Either a torn read, which the validation below detects, or a corrupted store.
+                    failure = e;
                 }
-                // Cursor is now at the start of the next record to check, so read the hash and compare it.
-                buffer.position(cursor);
-                buffer.get(scratch);
-                if (Arrays.equals(scratch, targetHashBytes)) {
-                    // Found the target.
-                    StoredBlock storedBlock = StoredBlock.deserializeCompact(params, buffer);
-                    blockCache.put(hash, storedBlock);
-                    return storedBlock;
+                if (stamp != 0 && ringLock.validate(stamp)) {
+                    if (failure != null)
+                        throw failure;
+                    if (storedBlock != null) {
+                        synchronized (blockCache) {
+                            blockCache.put(hash, storedBlock);
+                        }
+                        return storedBlock;
+                    }
+                    // Not found. Should the block be stored concurrently, either put() drops the miss after it was
+                    // recorded, or the second validation fails and the miss is dropped here.
+                    synchronized (notFoundCache) {
+                        notFoundCache.put(hash, NOT_FOUND_MARKER);
+                        if (!ringLock.validate(stamp))
+                            notFoundCache.remove(hash);
+                    }
+                    return null;
                 }
-            } while (cursor != startingPoint);
-            // Not found.
-            notFoundCache.put(hash, NOT_FOUND_MARKER);
+            } finally {
+                if (locked)
+                    ringLock.unlockRead(stamp);
+            }
+            stamp = ringLock.tryOptimisticRead();
+        }
+    }
+
+    /** Returns the block with the given hash read from the ring, or null if the ring doesn't hold it. */
+    @Nullable
+    private StoredBlock readBlock(ByteBuffer buffer, Sha256Hash hash) {
+        int slot = index.get(buffer, hash);
+        if (slot < 0)
             return null;
-        } catch (ProtocolException e) {
-            throw new RuntimeException(e);  // Cannot happen.
-        } finally { lock.unlock(); }
+        // A duplicate, so that its position isn't shared with other readers or the writer.
+        ByteBuffer record = buffer.duplicate();
+        record.position(getSlotOffset(slot) + 32);
+        return StoredBlock.deserializeCompact(params, record);
     }
 
-    protected StoredBlock lastChainHead = null;
+    protected volatile StoredBlock lastChainHead = null;
 
     @Override
     public StoredBlock getChainHead() throws BlockStoreException {
         final MappedByteBuffer buffer = this.buffer;
         if (buffer == null) throw new BlockStoreException("Store closed");
 
+        StoredBlock chainHead = lastChainHead;
+        if (chainHead != null)
+            return chainHead;
         lock.lock();
         try {
             if (lastChainHead == null) {
@@ -275,12 +346,16 @@ public class SPVBlockStore implements BlockStore {
         if (buffer == null) throw new BlockStoreException("Store closed");
 
         lock.lock();
+        long stamp = ringLock.writeLock();
         try {
             lastChainHead = chainHead;
             byte[] headHash = chainHead.getHeader().getHash().getBytes();
             buffer.position(8);
             buffer.put(headHash);
-        } finally { lock.unlock(); }
+        } finally {
+            ringLock.unlockWrite(stamp);
+            lock.unlock();
+        }
     }
 
     @Override
@@ -289,7 +364,9 @@ public class SPVBlockStore implements BlockStore {
             buffer.force();
             buffer = null;  // Allow it to be GCd and the underlying file mapping to go away.
             randomAccessFile.close();
-            blockCache.clear();
+            synchronized (blockCache) {
+                blockCache.clear();
+            }
         } catch (IOException e) {
             throw new BlockStoreException(e);
         }
@@ -325,4 +402,110 @@ public class SPVBlockStore implements BlockStore {
         checkArgument(newCursor >= 0);
         buffer.putInt(4, newCursor);
     }
+
+    private static int getSlotOffset(int slot) {
+        return FILE_PROLOGUE_BYTES + slot * RECORD_SIZE;
+    }
+
+    /** Returns true if the given slot was never written, i.e. its hash is all zeros. */
+    private static boolean isEmptySlot(ByteBuffer buffer, int slot) {
+        int offset = getSlotOffset(slot);
+        for (int i = 0; i < 32; i += 8)
+            if (buffer.getLong(offset + i) != 0)
+                return false;
+        return true;
+    }
+
+    /**
+     * An open addressing hash table with linear probing from block hashes to the ring slots holding them. To keep it
+     * small, only the slot numbers and the {@link Sha256Hash#hashCode()} of each block are kept in memory, the full
+     * hash is compared against the ring. The table is at most half full, so for the default capacity it takes 80 KB
+     * and for 200,000 headers 4 MB.
+     */
+    private static final class HashIndex {
+        // The ring slot plus one of each entry, zero for unused entries.
+        private final int[] slots;
+        private final int[] hashCodes;
+        private final int mask;
+        private int size;
+
+        HashIndex(int capacity) {
+            int length = Integer.highestOneBit(Math.max(capacity, 1) * 2 - 1) << 1;
+            slots = new int[length];
+            hashCodes = new int[length];
+            mask = length - 1;
+        }
+
+        int size() {
+            return size;
+        }
+
+        /** Returns the slot holding the given block, or -1 if there is none. */
+        int get(ByteBuffer buffer, Sha256Hash hash) {
+            int i = find(buffer, hash.getBytes(), -1, hash.hashCode());
+            return i >= 0 ? slots[i] - 1 : -1;
+        }
+
+        /** Indexes the block in the given slot, replacing any entry for an older copy of it. */
+        void put(ByteBuffer buffer, int slot) {
+            int offset = getSlotOffset(slot);
+            int hashCode = buffer.getInt(offset + 28);
+            int i = find(buffer, null, offset, hashCode);
+            if (i < 0) {
+                for (i = hashCode & mask; slots[i] != 0; i = (i + 1) & mask);
+                size++;
+            }
+            slots[i] = slot + 1;
+            hashCodes[i] = hashCode;
+        }
+
+        /** Removes the entry for the block in the given slot, if the index still refers to that slot for it. */
+        void remove(ByteBuffer buffer, int slot) {
+            if (isEmptySlot(buffer, slot))
+                return;
+            int offset = getSlotOffset(slot);
+            int i = find(buffer, null, offset, buffer.getInt(offset + 28));
+            if (i < 0 || slots[i] != slot + 1)
+                return;
+            // Shift back the entries that follow in the same run, so that lookups don't stop early at the hole.
+            int j = i;
+            while (true) {
+                j = (j + 1) & mask;
+                if (slots[j] == 0)
+                    break;
+                int home = hashCodes[j] & mask;
+                if (i <= j ? (i < home && home <= j) : (i < home || home <= j))
+                    continue;
+                slots[i] = slots[j];
+                hashCodes[i] = hashCodes[j];
+                i = j;
+            }
+            slots[i] = 0;
+            size--;
+        }
+
+        /**
+         * Returns the table position of the block with the given hash, or -1. The hash is either given as bytes, or
+         * if those are null read from the ring at the given offset.
+         */
+        private int find(ByteBuffer buffer, @Nullable byte[] hash, int offset, int hashCode) {
+            // Bounded, as a reader may see the table in the middle of an update.
+            for (int i = hashCode & mask, n = 0; slots[i] != 0 && n <= mask; i = (i + 1) & mask, n++) {
+                if (hashCodes[i] == hashCode && hashEquals(buffer, getSlotOffset(slots[i] - 1), hash, offset))
+                    return i;
+            }
+            return -1;
+        }
+
+        private static boolean hashEquals(ByteBuffer buffer, int offset, @Nullable byte[] hash, int otherOffset) {
+            if (offset == otherOffset)
+                return true;
+            for (int i = 0; i < 32; i++) {
+                byte b = hash != null ? hash[i] : buffer.get(otherOffset + i);
+                if (buffer.get(offset + i) != b)
+                    return false;
+            }
+            return true;
+        }
+    }
 }
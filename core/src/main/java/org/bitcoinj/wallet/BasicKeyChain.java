@@ -23,6 +23,7 @@ import org.bitcoinj.utils.ListenerRegistration;
 import org.bitcoinj.utils.Threading;
 import org.bitcoinj.wallet.listeners.KeyChainEventListener;
 
+import com.google.common.base.Function;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Lists;
 import com.google.protobuf.ByteString;
@@ -30,8 +31,10 @@ import org.bouncycastle.crypto.params.KeyParameter;
 
 import javax.annotation.Nullable;
 import java.util.*;
+import java.util.concurrent.Callable;
 import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinTask;
 import java.util.concurrent.locks.ReentrantLock;
 
 import static com.google.common.base.Preconditions.*;
@@ -49,6 +52,8 @@ public class BasicKeyChain implements EncryptableKeyChain {
     private final LinkedHashMap<ByteString, ECKey> pubkeyToKeys;
     @Nullable private final KeyCrypter keyCrypter;
     private boolean isWatching;
+    // How many keys are encrypted or decrypted in one go. Chains of at least two chunks are done on several threads.
+    private static final int CRYPT_CHUNK_SIZE = 100;
 
     private final CopyOnWriteArrayList<ListenerRegistration<KeyChainEventListener>> listeners;
 
@@ -457,23 +462,26 @@ public class BasicKeyChain implements EncryptableKeyChain {
      * @throws KeyCrypterException Thrown if the wallet encryption fails. If so, the wallet state is unchanged.
      */
     @Override
-    public BasicKeyChain toEncrypted(KeyCrypter keyCrypter, KeyParameter aesKey) {
+    public BasicKeyChain toEncrypted(final KeyCrypter keyCrypter, final KeyParameter aesKey) {
         lock.lock();
         try {
             checkNotNull(keyCrypter);
             checkState(this.keyCrypter == null, "Key chain is already encrypted");
             BasicKeyChain encrypted = new BasicKeyChain(keyCrypter);
-            for (ECKey key : hashToKeys.values()) {
-                ECKey encryptedKey = key.encrypt(keyCrypter, aesKey);
-                // Check that the encrypted key can be successfully decrypted.
-                // This is done as it is a critical failure if the private key cannot be decrypted successfully
-                // (all bitcoin controlled by that private key is lost forever).
-                // For a correctly constructed keyCrypter the encryption should always be reversible so it is just
-                // being as cautious as possible.
-                if (!ECKey.encryptionIsReversible(key, encryptedKey, keyCrypter, aesKey))
-                    throw new KeyCrypterException("The key " + key.toString() + " cannot be successfully decrypted after encryption so aborting wallet encryption.");
-                encrypted.importKeyLocked(encryptedKey);
-            }
+            encrypted.importKeysLocked(transformKeys(new ArrayList<>(hashToKeys.values()), new Function<ECKey, ECKey>() {
+                @Override
+                public ECKey apply(ECKey key) {
+                    ECKey encryptedKey = key.encrypt(keyCrypter, aesKey);
+                    // Check that the encrypted key can be successfully decrypted.
+                    // This is done as it is a critical failure if the private key cannot be decrypted successfully
+                    // (all bitcoin controlled by that private key is lost forever).
+                    // For a correctly constructed keyCrypter the encryption should always be reversible so it is just
+                    // being as cautious as possible.
+                    if (!ECKey.encryptionIsReversible(key, encryptedKey, keyCrypter, aesKey))
+                        throw new KeyCrypterException("The key " + key.toString() + " cannot be successfully decrypted after encryption so aborting wallet encryption.");
+                    return encryptedKey;
+                }
+            }));
             return encrypted;
         } finally {
             lock.unlock();
@@ -488,7 +496,7 @@ public class BasicKeyChain implements EncryptableKeyChain {
     }
 
     @Override
-    public BasicKeyChain toDecrypted(KeyParameter aesKey) {
+    public BasicKeyChain toDecrypted(final KeyParameter aesKey) {
         lock.lock();
         try {
             checkState(keyCrypter != null, "Wallet is already decrypted");
@@ -496,15 +504,52 @@ public class BasicKeyChain implements EncryptableKeyChain {
             if (numKeys() > 0 && !checkAESKey(aesKey))
                 throw new KeyCrypterException("Password/key was incorrect.");
             BasicKeyChain decrypted = new BasicKeyChain();
-            for (ECKey key : hashToKeys.values()) {
-                decrypted.importKeyLocked(key.decrypt(aesKey));
-            }
+            decrypted.importKeysLocked(transformKeys(new ArrayList<>(hashToKeys.values()), new Function<ECKey, ECKey>() {
+                @Override
+                public ECKey apply(ECKey key) {
+                    return key.decrypt(aesKey);
+                }
+            }));
             return decrypted;
         } finally {
             lock.unlock();
         }
     }
 
+    /**
+     * Applies the given encryption or decryption to each key, in chunks on the common fork/join pool when there are
+     * many keys, which the calling thread helps with. Every key costs at least one elliptic curve multiplication, for
+     * the public key check, so this is what makes encrypting or decrypting a chain of many imported keys slow. The
+     * results are in the same order as the keys, and the first exception thrown by the transform is rethrown.
+     */
+    private static List<ECKey> transformKeys(final List<ECKey> keys, final Function<ECKey, ECKey> transform) {
+        int count = keys.size();
+        if (count < 2 * CRYPT_CHUNK_SIZE) {
+            List<ECKey> result = new ArrayList<>(count);
+            for (ECKey key : keys)
+                result.add(transform.apply(key));
+            return result;
+        }
+        List<ForkJoinTask<List<ECKey>>> chunks = new ArrayList<>();
+        for (int from = 0; from < count; from += CRYPT_CHUNK_SIZE) {
+            final List<ECKey> chunk = keys.subList(from, Math.min(from + CRYPT_CHUNK_SIZE, count));
+            chunks.add(ForkJoinTask.adapt(new Callable<List<ECKey>>() {
+                @Override
+                public List<ECKey> call() {
+                    List<ECKey> result = new ArrayList<>(chunk.size());
+                    for (ECKey key : chunk)
+                        result.add(transform.apply(key));
+                    return result;
+                }
+            }));
+        }
+        ForkJoinTask.invokeAll(chunks);
+        List<ECKey> result = new ArrayList<>(count);
+        for (ForkJoinTask<List<ECKey>> chunk : chunks)
+            result.addAll(chunk.join());
+        return result;
+    }
+
     /**
      * Returns whether the given password is correct for this key chain.
      * @throws IllegalStateException if the chain is not encrypted at all.
@@ -38,7 +38,9 @@ import javax.annotation.Nullable;
 import java.math.BigInteger;
 import java.security.SecureRandom;
 import java.util.*;
+import java.util.concurrent.Callable;
 import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinTask;
 import java.util.concurrent.locks.ReentrantLock;
 
 import static com.google.common.base.Preconditions.*;
@@ -130,6 +132,8 @@ public class DeterministicKeyChain implements EncryptableKeyChain {
     // regenerations, which are expensive and will (in future) trigger chain download stalls/retries. One third
     // is an efficiency tradeoff.
     protected int lookaheadThreshold = calcDefaultLookaheadThreshold();
+    // How many lookahead keys are derived in one go. Lookaheads of at least two chunks are derived on several threads.
+    private static final int LOOKAHEAD_CHUNK_SIZE = 250;
 
     private int calcDefaultLookaheadThreshold() {
         return lookaheadSize / 3;
@@ -1233,21 +1237,68 @@ public class DeterministicKeyChain implements EncryptableKeyChain {
         log.info("{} keys needed for {} = {} issued + {} lookahead size + {} lookahead threshold - {} num children",
                 needed, parent.getPathAsString(), issued, lookaheadSize, lookaheadThreshold, numChildren);
 
-        List<DeterministicKey> result  = new ArrayList<>(needed);
         final Stopwatch watch = Stopwatch.createStarted();
-        int nextChild = numChildren;
-        for (int i = 0; i < needed; i++) {
-            DeterministicKey key = HDKeyDerivation.deriveThisOrNextChildKey(parent, nextChild);
-            key = key.dropPrivateBytes();
+        List<DeterministicKey> result = deriveLookaheadKeys(parent, numChildren, needed);
+        for (DeterministicKey key : result)
             hierarchy.putKey(key);
-            result.add(key);
-            nextChild = key.getChildNumber().num() + 1;
-        }
         watch.stop();
         log.info("Took {}", watch);
         return result;
     }
 
+    /**
+     * Derives the public keys of the given number of children, starting at the given child number and skipping child
+     * numbers that don't yield a valid key, like {@link HDKeyDerivation#deriveThisOrNextChildKey(DeterministicKey, int)}.
+     * Many keys are derived in chunks on the common fork/join pool, which the calling thread helps with.
+     */
+    private static List<DeterministicKey> deriveLookaheadKeys(final DeterministicKey parent, int firstChild, int count) {
+        List<DeterministicKey> result;
+        if (count < 2 * LOOKAHEAD_CHUNK_SIZE) {
+            result = deriveLookaheadKeyRange(parent, firstChild, firstChild + count);
+        } else {
+            List<ForkJoinTask<List<DeterministicKey>>> chunks = new ArrayList<>();
+            for (int from = firstChild; from < firstChild + count; from += LOOKAHEAD_CHUNK_SIZE) {
+                final int chunkFrom = from, chunkTo = Math.min(from + LOOKAHEAD_CHUNK_SIZE, firstChild + count);
+                chunks.add(ForkJoinTask.adapt(new Callable<List<DeterministicKey>>() {
+                    @Override
+                    public List<DeterministicKey> call() {
+                        return deriveLookaheadKeyRange(parent, chunkFrom, chunkTo);
+                    }
+                }));
+            }
+            ForkJoinTask.invokeAll(chunks);
+            result = new ArrayList<>(count);
+            for (ForkJoinTask<List<DeterministicKey>> chunk : chunks)
+                result.addAll(chunk.join());
+        }
+        // Make up for the child numbers that were skipped.
+        while (result.size() < count) {
+            int nextChild = result.isEmpty() ? firstChild : result.get(result.size() - 1).getChildNumber().num() + 1;
+            DeterministicKey key = HDKeyDerivation.deriveThisOrNextChildKey(parent, nextChild);
+            result.add(key.dropPrivateBytes());
+        }
+        return result;
+    }
+
+    // The keys of the given range of children that are valid. Lookahead keys only need their public keys, and deriving
+    // those from the parent's public key saves creating and then dropping the private keys. The parent is still linked,
+    // so the private keys can be derived when needed.
+    private static List<DeterministicKey> deriveLookaheadKeyRange(DeterministicKey parent, int from, int to) {
+        List<ChildNumber> childNumbers = new ArrayList<>(to - from);
+        for (int i = from; i < to; i++)
+            childNumbers.add(new ChildNumber(i));
+        HDKeyDerivation.RawKeyBytes[] rawKeys = HDKeyDerivation.deriveChildKeyBytesFromPublic(parent, childNumbers);
+        List<DeterministicKey> keys = new ArrayList<>(to - from);
+        for (int i = 0; i < rawKeys.length; i++) {
+            // Invalid children are skipped, like deriveThisOrNextChildKey() does.
+            if (rawKeys[i] == null)
+                continue;
+            keys.add(new DeterministicKey(HDUtils.append(parent.getPath(), childNumbers.get(i)), rawKeys[i].chainCode,
+                    new LazyECPoint(ECKey.CURVE.getCurve(), rawKeys[i].keyBytes), null, parent));
+        }
+        return keys;
+    }
+
     /** Housekeeping call to call when lookahead might be needed.  Normally called automatically by KeychainGroup. */
     public void maybeLookAheadScripts() {
     }
@@ -1435,4 +1486,9 @@ public class DeterministicKeyChain implements EncryptableKeyChain {
     public RedeemData findRedeemDataByScriptHash(ByteString bytes) {
         return null;
     }
+
+    /** Returns the redeem data of all the scripts this keychain has generated so far, keyed by script hash. */
+    protected Map<ByteString, RedeemData> getRedeemDataByScriptHash() {
+        return Collections.emptyMap();
+    }
 }
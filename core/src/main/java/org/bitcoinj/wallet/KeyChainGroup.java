@@ -80,6 +80,30 @@ public class KeyChainGroup implements KeyBag {
     @Nullable private KeyCrypter keyCrypter;
     private int lookaheadSize = -1;
     private int lookaheadThreshold = -1;
+    // Every key of the basic and HD chains and every married script, so that finding out whether an output is ours is
+    // a single lookup that takes no lock. Replaced as a whole when the chains are, see rebuildIndex().
+    private volatile KeyIndex index;
+
+    private static class KeyIndex {
+        final ConcurrentHashMap<ByteString, ECKey> keysByPubKeyHash = new ConcurrentHashMap<>();
+        final ConcurrentHashMap<ByteString, ECKey> keysByPubKey = new ConcurrentHashMap<>();
+        final ConcurrentHashMap<ByteString, RedeemData> redeemDataByScriptHash = new ConcurrentHashMap<>();
+
+        // Imported keys take precedence over keys of the HD chains, as the lookups used to check the basic chain first.
+        void addImportedKeys(List<ECKey> keys) {
+            for (ECKey key : keys) {
+                keysByPubKeyHash.put(ByteString.copyFrom(key.getPubKeyHash()), key);
+                keysByPubKey.put(ByteString.copyFrom(key.getPubKey()), key);
+            }
+        }
+
+        void addChainKeys(List<ECKey> keys) {
+            for (ECKey key : keys) {
+                keysByPubKeyHash.putIfAbsent(ByteString.copyFrom(key.getPubKeyHash()), key);
+                keysByPubKey.putIfAbsent(ByteString.copyFrom(key.getPubKey()), key);
+            }
+        }
+    }
 
     /** Creates a keychain group with no basic chain, and a single, lazily created HD chain. */
     public KeyChainGroup(NetworkParameters params) {
@@ -126,6 +150,7 @@ public class KeyChainGroup implements KeyBag {
                 ? new EnumMap<KeyChain.KeyPurpose, DeterministicKey>(KeyChain.KeyPurpose.class)
                 : currentKeys;
         this.currentAddresses = new EnumMap<>(KeyChain.KeyPurpose.class);
+        rebuildIndex();
         maybeLookaheadScripts();
 
         if (isMarried()) {
@@ -140,9 +165,31 @@ public class KeyChainGroup implements KeyBag {
     private void maybeLookaheadScripts() {
         for (DeterministicKeyChain chain : chains) {
             chain.maybeLookAheadScripts();
+            index.redeemDataByScriptHash.putAll(chain.getRedeemDataByScriptHash());
         }
     }
 
+    // Indexes the keys of the chain, and any it derives from now on.
+    private static void indexChain(final KeyIndex index, DeterministicKeyChain chain) {
+        chain.addEventListener(new KeyChainEventListener() {
+            @Override
+            public void onKeysAdded(List<ECKey> keys) {
+                index.addChainKeys(keys);
+            }
+        }, Threading.SAME_THREAD);
+        index.addChainKeys(chain.getKeys(true, true));
+        index.redeemDataByScriptHash.putAll(chain.getRedeemDataByScriptHash());
+    }
+
+    // Builds a new index of the current chains and only then swaps it in, so that lookups never see it half built.
+    private void rebuildIndex() {
+        KeyIndex index = new KeyIndex();
+        index.addImportedKeys(basic.getKeys());
+        for (DeterministicKeyChain chain : chains)
+            indexChain(index, chain);
+        this.index = index;
+    }
+
     /** Adds a new HD chain to the chains list, and make it the default chain (from which keys are issued). */
     public void createAndActivateNewHDChain() {
         // We can't do auto upgrade here because we don't know the rotation time, if any.
@@ -162,6 +209,7 @@ public class KeyChainGroup implements KeyBag {
             chain.setLookaheadSize(lookaheadSize);
         if (lookaheadThreshold >= 0)
             chain.setLookaheadThreshold(lookaheadThreshold);
+        indexChain(index, chain);
         chains.add(chain);
     }
 
@@ -326,7 +374,9 @@ public class KeyChainGroup implements KeyBag {
 
     /** Imports the given keys into the basic chain, creating it if necessary. */
     public int importKeys(List<ECKey> keys) {
-        return basic.importKeys(keys);
+        int imported = basic.importKeys(keys);
+        index.addImportedKeys(keys);
+        return imported;
     }
 
     /** Imports the given keys into the basic chain, creating it if necessary. */
@@ -362,14 +412,7 @@ public class KeyChainGroup implements KeyBag {
     @Override
     @Nullable
     public RedeemData findRedeemDataFromScriptHash(byte[] scriptHash) {
-        // Iterate in reverse order, since the active keychain is the one most likely to have the hit
-        for (Iterator<DeterministicKeyChain> iter = chains.descendingIterator() ; iter.hasNext() ; ) {
-            DeterministicKeyChain chain = iter.next();
-            RedeemData redeemData = chain.findRedeemDataByScriptHash(ByteString.copyFrom(scriptHash));
-            if (redeemData != null)
-                return redeemData;
-        }
-        return null;
+        return index.redeemDataByScriptHash.get(ByteString.copyFrom(scriptHash));
     }
 
     public void markP2SHAddressAsUsed(LegacyAddress address) {
@@ -390,14 +433,7 @@ public class KeyChainGroup implements KeyBag {
     @Nullable
     @Override
     public ECKey findKeyFromPubHash(byte[] pubkeyHash) {
-        ECKey result;
-        if ((result = basic.findKeyFromPubHash(pubkeyHash)) != null)
-            return result;
-        for (DeterministicKeyChain chain : chains) {
-            if ((result = chain.findKeyFromPubHash(pubkeyHash)) != null)
-                return result;
-        }
-        return null;
+        return index.keysByPubKeyHash.get(ByteString.copyFrom(pubkeyHash));
     }
 
     /**
@@ -440,25 +476,13 @@ public class KeyChainGroup implements KeyBag {
     }
 
     public boolean hasKey(ECKey key) {
-        if (basic.hasKey(key))
-            return true;
-        for (DeterministicKeyChain chain : chains)
-            if (chain.hasKey(key))
-                return true;
-        return false;
+        return index.keysByPubKey.containsKey(ByteString.copyFrom(key.getPubKey()));
     }
 
     @Nullable
     @Override
     public ECKey findKeyFromPubKey(byte[] pubkey) {
-        ECKey result;
-        if ((result = basic.findKeyFromPubKey(pubkey)) != null)
-            return result;
-        for (DeterministicKeyChain chain : chains) {
-            if ((result = chain.findKeyFromPubKey(pubkey)) != null)
-                return result;
-        }
-        return null;
+        return index.keysByPubKey.get(ByteString.copyFrom(pubkey));
     }
 
     /**
@@ -490,7 +514,22 @@ public class KeyChainGroup implements KeyBag {
     public boolean removeImportedKey(ECKey key) {
         checkNotNull(key);
         checkArgument(!(key instanceof DeterministicKey));
-        return basic.removeKey(key);
+        boolean removed = basic.removeKey(key);
+        if (removed) {
+            ByteString pubKeyHash = ByteString.copyFrom(key.getPubKeyHash());
+            ByteString pubKey = ByteString.copyFrom(key.getPubKey());
+            index.keysByPubKeyHash.remove(pubKeyHash);
+            index.keysByPubKey.remove(pubKey);
+            // An HD chain might hold the same key.
+            for (DeterministicKeyChain chain : chains) {
+                DeterministicKey chainKey = chain.findKeyFromPubKey(key.getPubKey());
+                if (chainKey != null) {
+                    index.addChainKeys(ImmutableList.<ECKey>of(chainKey));
+                    break;
+                }
+            }
+        }
+        return removed;
     }
 
     /**
@@ -527,6 +566,7 @@ public class KeyChainGroup implements KeyBag {
         basic = newBasic;
         chains.clear();
         chains.addAll(newChains);
+        rebuildIndex();
     }
 
     /**
@@ -547,6 +587,7 @@ public class KeyChainGroup implements KeyBag {
         basic = newBasic;
         chains.clear();
         chains.addAll(newChains);
+        rebuildIndex();
     }
 
     /** Returns true if the group is encrypted. */
@@ -757,6 +798,7 @@ public class KeyChainGroup implements KeyBag {
         if (aesKey != null) {
             chain = chain.toEncrypted(checkNotNull(basic.getKeyCrypter()), aesKey);
         }
+        indexChain(index, chain);
         chains.add(chain);
         return chain;
     }
@@ -31,6 +31,7 @@ import org.bitcoinj.script.ScriptBuilder;
 import org.bouncycastle.crypto.params.KeyParameter;
 
 import java.security.SecureRandom;
+import java.util.Collections;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
@@ -278,6 +279,11 @@ public class MarriedKeyChain extends DeterministicKeyChain {
         return marriedKeysRedeemData.get(bytes);
     }
 
+    @Override
+    protected Map<ByteString, RedeemData> getRedeemDataByScriptHash() {
+        return Collections.unmodifiableMap(marriedKeysRedeemData);
+    }
+
     @Override
     public BloomFilter getFilter(int size, double falsePositiveRate, long tweak) {
         lock.lock();
@@ -158,7 +158,18 @@ public class Wallet extends BaseTaggableObject
 
     // All the TransactionOutput objects that we could spend (ignoring whether we have the private key or not).
     // Used to speed up various calculations.
-    protected final HashSet<TransactionOutput> myUnspents = Sets.newHashSet();
+    protected final HashSet<TransactionOutput> myUnspents = new UnspentOutputs();
+
+    // Balances are cached per type until something they depend on changes, which increments the epoch. The epoch is
+    // atomic because key chain events arrive without the wallet lock.
+    private final AtomicLong balanceEpoch = new AtomicLong();
+    @GuardedBy("lock") private final EnumMap<BalanceType, CachedBalance> cachedBalances = new EnumMap<>(BalanceType.class);
+
+    // Hashes of the transactions added or changed since the last journal write, or null if the wallet isn't journaled.
+    // Depth changes aren't tracked, the journal derives them from the last seen block height. See WalletJournal.
+    @GuardedBy("lock") @Nullable private Set<Sha256Hash> journalChanges;
+    // Set when a change can't be written as a delta, e.g. a transaction was removed or the chain re-organized.
+    @GuardedBy("lock") private boolean journalSnapshotRequired;
 
     // Transactions that were dropped by the risk analysis system. These are not in any pools and not serialized
     // to disk. We have to keep them around because if we ignore a tx because we think it will never confirm, but
@@ -175,8 +186,9 @@ public class Wallet extends BaseTaggableObject
     };
 
     // The key chain group is not thread safe, and generally the whole hierarchy of objects should not be mutated
-    // outside the wallet lock. So don't expose this object directly via any accessors!
-    @GuardedBy("keyChainGroupLock") private KeyChainGroup keyChainGroup;
+    // outside the wallet lock. So don't expose this object directly via any accessors! Its key lookups are the
+    // exception: they read a concurrent index and are done without the lock.
+    @GuardedBy("keyChainGroupLock") private final KeyChainGroup keyChainGroup;
 
     // A list of scripts watched by this wallet.
     @GuardedBy("keyChainGroupLock") private Set<Script> watchedScripts;
@@ -246,6 +258,11 @@ public class Wallet extends BaseTaggableObject
     // If this is set then the wallet selects spendable candidate outputs from a UTXO provider.
     @Nullable private volatile UTXOProvider vUTXOProvider;
 
+    // If this is set, balance and spend candidate queries don't wait for the wallet lock but fall back to the balances
+    // and spend candidates as of the last change. See setNonBlockingReads().
+    private volatile boolean vNonBlockingReads;
+    @Nullable private volatile SpendCandidates vSpendCandidates;
+
     /**
      * Creates a new, empty wallet with a randomly chosen seed and no transactions. Make sure to provide for sufficient
      * backup! Any keys will be derived from the seed. If you want to restore a wallet from disk instead, see
@@ -365,11 +382,37 @@ public class Wallet extends BaseTaggableObject
         dead = new HashMap<>();
         transactions = new HashMap<>();
         extensions = new HashMap<>();
-        // Use a linked hash map to ensure ordering of event listeners is correct.
-        confidenceChanged = new LinkedHashMap<>();
+        // Use a linked hash map to ensure ordering of event listeners is correct. Every confidence change made by the
+        // wallet is recorded here, so this is also where it invalidates the cached balances.
+        confidenceChanged = new LinkedHashMap<Transaction, TransactionConfidence.Listener.ChangeReason>() {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            public TransactionConfidence.Listener.ChangeReason put(Transaction tx, TransactionConfidence.Listener.ChangeReason reason) {
+                invalidateBalances();
+                if (reason != TransactionConfidence.Listener.ChangeReason.DEPTH)
+                    journalTransaction(tx);
+                return super.put(tx, reason);
+            }
+        };
         signers = new ArrayList<>();
         addTransactionSigner(new LocalTransactionSigner());
         createTransientState();
+        // New keys can make outputs we were only watching spendable.
+        this.keyChainGroup.addEventListener(new KeyChainEventListener() {
+            @Override
+            public void onKeysAdded(List<ECKey> keys) {
+                invalidateBalances();
+                // Keys are added with or without the wallet lock, but waiting for it here could deadlock.
+                if (vNonBlockingReads && lock.tryLock()) {
+                    try {
+                        maybePublishSpendCandidates();
+                    } finally {
+                        lock.unlock();
+                    }
+                }
+            }
+        }, Threading.SAME_THREAD);
     }
 
     private void createTransientState() {
@@ -377,6 +420,8 @@ public class Wallet extends BaseTaggableObject
         txConfidenceListener = new TransactionConfidence.Listener() {
             @Override
             public void onConfidenceChanged(TransactionConfidence confidence, TransactionConfidence.Listener.ChangeReason reason) {
+                // The depth, type and broadcast peers all matter to coin selection.
+                invalidateBalances();
                 // This will run on the user code thread so we shouldn't do anything too complicated here.
                 // We only want to queue a wallet changed event and auto-save if the number of peers announcing
                 // the transaction has changed, as that confidence change is made by the networking code which
@@ -388,6 +433,8 @@ public class Wallet extends BaseTaggableObject
                     try {
                         checkBalanceFuturesLocked(null);
                         Transaction tx = getTransaction(confidence.getTransactionHash());
+                        if (tx != null)
+                            journalTransaction(tx);
                         queueOnTransactionConfidenceChanged(tx);
                         maybeQueueOnWalletChanged();
                     } finally {
@@ -410,6 +457,19 @@ public class Wallet extends BaseTaggableObject
         return keyChainGroup.getActiveKeyChain();
     }
 
+    /**
+     * Returns whether the active keychain is married, see {@link KeyChainGroup#isMarried()}. Unlike
+     * {@link #getActiveKeyChain()} this never creates or upgrades a keychain.
+     */
+    public boolean isMarried() {
+        keyChainGroupLock.lock();
+        try {
+            return keyChainGroup.isMarried();
+        } finally {
+            keyChainGroupLock.unlock();
+        }
+    }
+
     /**
      * <p>Adds given transaction signer to the list of signers. It will be added to the end of the signers list, so if
      * this wallet already has some signers added, given signer will be executed after all of them.</p>
@@ -997,22 +1057,12 @@ public class Wallet extends BaseTaggableObject
     @Override
     @Nullable
     public ECKey findKeyFromPubHash(byte[] pubkeyHash) {
-        keyChainGroupLock.lock();
-        try {
-            return keyChainGroup.findKeyFromPubHash(pubkeyHash);
-        } finally {
-            keyChainGroupLock.unlock();
-        }
+        return keyChainGroup.findKeyFromPubHash(pubkeyHash);
     }
 
-    /** Returns true if the given key is in the wallet, false otherwise. Currently an O(N) operation. */
+    /** Returns true if the given key is in the wallet, false otherwise. */
     public boolean hasKey(ECKey key) {
-        keyChainGroupLock.lock();
-        try {
-            return keyChainGroup.hasKey(key);
-        } finally {
-            keyChainGroupLock.unlock();
-        }
+        return keyChainGroup.hasKey(key);
     }
 
     @Override
@@ -1037,12 +1087,7 @@ public class Wallet extends BaseTaggableObject
     @Override
     @Nullable
     public ECKey findKeyFromPubKey(byte[] pubkey) {
-        keyChainGroupLock.lock();
-        try {
-            return keyChainGroup.findKeyFromPubKey(pubkey);
-        } finally {
-            keyChainGroupLock.unlock();
-        }
+        return keyChainGroup.findKeyFromPubKey(pubkey);
     }
 
     @Override
@@ -1057,12 +1102,7 @@ public class Wallet extends BaseTaggableObject
     @Nullable
     @Override
     public RedeemData findRedeemDataFromScriptHash(byte[] payToScriptHash) {
-        keyChainGroupLock.lock();
-        try {
-            return keyChainGroup.findRedeemDataFromScriptHash(payToScriptHash);
-        } finally {
-            keyChainGroupLock.unlock();
-        }
+        return keyChainGroup.findRedeemDataFromScriptHash(payToScriptHash);
     }
 
     @Override
@@ -1930,6 +1970,8 @@ public class Wallet extends BaseTaggableObject
         // Inform the key chains that the issued keys were observed in a transaction, so they know to
         // calculate more keys for the next Bloom filters.
         markKeysAsUsed(tx);
+        // Block appearances are recorded even if the transaction doesn't move between pools.
+        journalTransaction(tx);
 
         onWalletChangedSuppressions++;
 
@@ -2155,6 +2197,8 @@ public class Wallet extends BaseTaggableObject
 
             informConfidenceListenersIfNotReorganizing();
             maybeQueueOnWalletChanged();
+            // Coinbases may have matured.
+            invalidateBalances();
 
             if (hardSaveOnNextBlock) {
                 saveNow();
@@ -2412,6 +2456,7 @@ public class Wallet extends BaseTaggableObject
                     log.info("  {} {} <-unspent ->spent", tx.getHashAsString(), context);
                 }
                 spent.put(tx.getHash(), tx);
+                journalTransaction(tx);
             }
         } else {
             if (spent.remove(tx.getHash()) != null) {
@@ -2419,6 +2464,7 @@ public class Wallet extends BaseTaggableObject
                     log.info("  {} {} <-spent ->unspent", tx.getHashAsString(), context);
                 }
                 unspent.put(tx.getHash(), tx);
+                journalTransaction(tx);
             }
         }
     }
@@ -2730,6 +2776,7 @@ public class Wallet extends BaseTaggableObject
         checkState(lock.isHeldByCurrentThread());
         checkState(onWalletChangedSuppressions >= 0);
         if (onWalletChangedSuppressions > 0) return;
+        maybePublishSpendCandidates();
         for (final ListenerRegistration<WalletChangeEventListener> registration : changeListeners) {
             registration.executor.execute(new Runnable() {
                 @Override
@@ -2837,6 +2884,82 @@ public class Wallet extends BaseTaggableObject
         }
     }
 
+    private void journalTransaction(Transaction tx) {
+        checkState(lock.isHeldByCurrentThread());
+        if (journalChanges != null)
+            journalChanges.add(tx.getHash());
+    }
+
+    /**
+     * Starts tracking changes for a {@link WalletJournal}, forgetting any that were tracked before. Called after the
+     * wallet was saved in full.
+     */
+    void resetJournalChanges() {
+        checkState(lock.isHeldByCurrentThread());
+        journalChanges = new HashSet<>();
+        journalSnapshotRequired = false;
+    }
+
+    /** Returns whether changes are tracked and can be written as a delta, see {@link #takeJournalChanges()}. */
+    boolean isJournalAppendable() {
+        checkState(lock.isHeldByCurrentThread());
+        return journalChanges != null && !journalSnapshotRequired;
+    }
+
+    /**
+     * Returns the transactions that changed since the last call, together with the wallet transactions they spend
+     * from because their outputs are now marked as spent. Returns null if changes aren't being tracked or can't be
+     * written as a delta, in which case the wallet has to be saved in full.
+     */
+    @Nullable
+    List<WalletTransaction> takeJournalChanges() {
+        if (!isJournalAppendable())
+            return null;
+        Set<Sha256Hash> hashes = new HashSet<>(journalChanges);
+        for (Sha256Hash hash : journalChanges) {
+            Transaction tx = transactions.get(hash);
+            if (tx == null)
+                continue;
+            for (TransactionInput input : tx.getInputs())
+                if (transactions.containsKey(input.getOutpoint().getHash()))
+                    hashes.add(input.getOutpoint().getHash());
+        }
+        journalChanges.clear();
+        List<WalletTransaction> changed = new ArrayList<>(hashes.size());
+        for (Sha256Hash hash : hashes) {
+            Transaction tx;
+            if ((tx = unspent.get(hash)) != null)
+                changed.add(new WalletTransaction(Pool.UNSPENT, tx));
+            else if ((tx = spent.get(hash)) != null)
+                changed.add(new WalletTransaction(Pool.SPENT, tx));
+            else if ((tx = pending.get(hash)) != null)
+                changed.add(new WalletTransaction(Pool.PENDING, tx));
+            else if ((tx = dead.get(hash)) != null)
+                changed.add(new WalletTransaction(Pool.DEAD, tx));
+        }
+        return changed;
+    }
+
+    /**
+     * Returns a value that changes whenever keys are added to, issued from or re-encrypted in the key chain group, so
+     * that a {@link WalletJournal} only looks for changed keys when there can be any.
+     */
+    List<Object> getKeyChainGroupState() {
+        keyChainGroupLock.lock();
+        try {
+            List<Object> state = new ArrayList<>();
+            state.add(keyChainGroup.numKeys());
+            state.add(keyChainGroup.getKeyCrypter());
+            for (DeterministicKeyChain chain : keyChainGroup.getDeterministicKeyChains()) {
+                state.add(chain.getIssuedExternalKeys());
+                state.add(chain.getIssuedInternalKeys());
+            }
+            return state;
+        } finally {
+            keyChainGroupLock.unlock();
+        }
+    }
+
     /**
      * Adds a transaction that has been associated with a particular wallet pool. This is intended for usage by
      * deserialization code, such as the {@link WalletProtobufSerializer} class. It isn't normally useful for
@@ -2857,6 +2980,7 @@ public class Wallet extends BaseTaggableObject
     private void addWalletTransaction(Pool pool, Transaction tx) {
         checkState(lock.isHeldByCurrentThread());
         transactions.put(tx.getHash(), tx);
+        journalTransaction(tx);
         switch (pool) {
         case UNSPENT:
             checkState(unspent.put(tx.getHash(), tx) == null);
@@ -3000,6 +3124,7 @@ public class Wallet extends BaseTaggableObject
         dead.clear();
         transactions.clear();
         myUnspents.clear();
+        journalSnapshotRequired = true;
     }
 
     /**
@@ -3058,6 +3183,7 @@ public class Wallet extends BaseTaggableObject
 
                         i.remove();
                         transactions.remove(tx.getHash());
+                        journalSnapshotRequired = true;
                         dirty = true;
                         log.info("Removed transaction {} from pending pool during cleanup.", tx.getHashAsString());
                     } else {
@@ -3477,37 +3603,163 @@ public class Wallet extends BaseTaggableObject
     }
 
     /**
-     * Returns the balance of this wallet as calculated by the provided balanceType.
+     * Returns the balance of this wallet as calculated by the provided balanceType. The ESTIMATED balance is kept up to
+     * date as outputs are received and spent, the others are cached until the unspent outputs, the confidence of the
+     * wallet's transactions, the number of peers that announced a pending transaction, its keys or its coin selector
+     * change. A custom {@link CoinSelector} should therefore not depend on anything else.
      */
     public Coin getBalance(BalanceType balanceType) {
-        lock.lock();
+        boolean nonBlocking = vNonBlockingReads && vUTXOProvider == null;
+        if (!nonBlocking) {
+            lock.lock();
+        } else if (!lock.tryLock()) {
+            // A writer holds the lock, answer from the last snapshot if there is one.
+            SpendCandidates snapshot = vSpendCandidates;
+            if (snapshot != null)
+                return snapshot.getBalance(balanceType);
+            lock.lock();
+        }
         try {
-            if (balanceType == BalanceType.AVAILABLE || balanceType == BalanceType.AVAILABLE_SPENDABLE) {
-                List<TransactionOutput> candidates = calculateAllSpendCandidates(true, balanceType == BalanceType.AVAILABLE_SPENDABLE);
-                CoinSelection selection = coinSelector.select(NetworkParameters.MAX_MONEY, candidates);
-                return selection.valueGathered;
-            } else if (balanceType == BalanceType.ESTIMATED || balanceType == BalanceType.ESTIMATED_SPENDABLE) {
-                List<TransactionOutput> all = calculateAllSpendCandidates(false, balanceType == BalanceType.ESTIMATED_SPENDABLE);
-                Coin value = Coin.ZERO;
-                for (TransactionOutput out : all) value = value.add(out.getValue());
-                return value;
-            } else {
-                throw new AssertionError("Unknown balance type");  // Unreachable.
-            }
+            maybePublishSpendCandidates();
+            return getBalanceLocked(balanceType);
         } finally {
             lock.unlock();
         }
     }
 
+    private Coin getBalanceLocked(BalanceType balanceType) {
+        checkState(lock.isHeldByCurrentThread());
+        if (vUTXOProvider != null)
+            return calculateBalance(balanceType);
+        if (balanceType == BalanceType.ESTIMATED)
+            return ((UnspentOutputs) myUnspents).getValue();
+        long epoch = balanceEpoch.get();
+        int pendingBroadcasts = countPendingBroadcasts();
+        CachedBalance cached = cachedBalances.get(balanceType);
+        if (cached != null && cached.epoch == epoch && cached.pendingBroadcasts == pendingBroadcasts)
+            return cached.value;
+        Coin balance = calculateBalance(balanceType);
+        cachedBalances.put(balanceType, new CachedBalance(epoch, pendingBroadcasts, balance));
+        return balance;
+    }
+
+    private static class CachedBalance {
+        final long epoch;
+        final int pendingBroadcasts;
+        final Coin value;
+
+        CachedBalance(long epoch, int pendingBroadcasts, Coin value) {
+            this.epoch = epoch;
+            this.pendingBroadcasts = pendingBroadcasts;
+            this.value = value;
+        }
+    }
+
+    /**
+     * Returns the total number of peers that announced our pending transactions. Coin selection depends on it, but
+     * peers can be marked on a confidence without any event reaching the wallet, so it is checked on every query.
+     */
+    private int countPendingBroadcasts() {
+        checkState(lock.isHeldByCurrentThread());
+        int count = 0;
+        for (Transaction tx : pending.values())
+            count += tx.getConfidence().numBroadcastPeers();
+        return count;
+    }
+
+    /** Makes the next balance query recalculate the balances. */
+    private void invalidateBalances() {
+        balanceEpoch.incrementAndGet();
+    }
+
+    /**
+     * The set behind {@link #myUnspents}. It keeps the total value of its outputs, which is the ESTIMATED balance, and
+     * invalidates the other cached balances whenever it changes.
+     */
+    private class UnspentOutputs extends HashSet<TransactionOutput> {
+        private static final long serialVersionUID = 1L;
+
+        private Coin value = Coin.ZERO;
+
+        Coin getValue() {
+            return value;
+        }
+
+        @Override
+        public boolean add(TransactionOutput output) {
+            if (!super.add(output))
+                return false;
+            value = value.add(output.getValue());
+            invalidateBalances();
+            return true;
+        }
+
+        @Override
+        public boolean remove(Object o) {
+            if (!super.remove(o))
+                return false;
+            value = value.subtract(((TransactionOutput) o).getValue());
+            invalidateBalances();
+            return true;
+        }
+
+        @Override
+        public void clear() {
+            super.clear();
+            value = Coin.ZERO;
+            invalidateBalances();
+        }
+
+        @Override
+        public Iterator<TransactionOutput> iterator() {
+            final Iterator<TransactionOutput> iterator = super.iterator();
+            return new Iterator<TransactionOutput>() {
+                private TransactionOutput last;
+
+                @Override
+                public boolean hasNext() {
+                    return iterator.hasNext();
+                }
+
+                @Override
+                public TransactionOutput next() {
+                    return last = iterator.next();
+                }
+
+                @Override
+                public void remove() {
+                    iterator.remove();
+                    value = value.subtract(last.getValue());
+                    invalidateBalances();
+                }
+            };
+        }
+    }
+
+    private Coin calculateBalance(BalanceType balanceType) {
+        if (balanceType == BalanceType.AVAILABLE || balanceType == BalanceType.AVAILABLE_SPENDABLE) {
+            List<TransactionOutput> candidates = calculateAllSpendCandidates(true, balanceType == BalanceType.AVAILABLE_SPENDABLE);
+            CoinSelection selection = coinSelector.select(NetworkParameters.MAX_MONEY, candidates);
+            return selection.valueGathered;
+        } else if (balanceType == BalanceType.ESTIMATED || balanceType == BalanceType.ESTIMATED_SPENDABLE) {
+            List<TransactionOutput> all = calculateAllSpendCandidates(false, balanceType == BalanceType.ESTIMATED_SPENDABLE);
+            Coin value = Coin.ZERO;
+            for (TransactionOutput out : all) value = value.add(out.getValue());
+            return value;
+        } else {
+            throw new AssertionError("Unknown balance type");  // Unreachable.
+        }
+    }
+
     /**
      * Returns the balance that would be considered spendable by the given coin selector, including watched outputs
      * (i.e. balance includes outputs we don't have the private keys for). Just asks it to select as many coins as
      * possible and returns the total.
      */
     public Coin getBalance(CoinSelector selector) {
+        checkNotNull(selector);
         lock.lock();
         try {
-            checkNotNull(selector);
             List<TransactionOutput> candidates = calculateAllSpendCandidates(true, false);
             CoinSelection selection = selector.select(params.getMaxMoney(), candidates);
             return selection.valueGathered;
@@ -4102,7 +4354,16 @@ public class Wallet extends BaseTaggableObject
      * @param excludeUnsignable Whether to ignore outputs that we are tracking but don't have the keys to sign for.
      */
     public List<TransactionOutput> calculateAllSpendCandidates(boolean excludeImmatureCoinbases, boolean excludeUnsignable) {
-        lock.lock();
+        boolean nonBlocking = vNonBlockingReads && vUTXOProvider == null;
+        if (!nonBlocking) {
+            lock.lock();
+        } else if (!lock.tryLock()) {
+            // A writer holds the lock, answer from the last snapshot if there is one.
+            SpendCandidates snapshot = vSpendCandidates;
+            if (snapshot != null)
+                return snapshot.select(excludeImmatureCoinbases, excludeUnsignable);
+            lock.lock();
+        }
         try {
             List<TransactionOutput> candidates;
             if (vUTXOProvider == null) {
@@ -4123,6 +4384,90 @@ public class Wallet extends BaseTaggableObject
         }
     }
 
+    /**
+     * Replaces the snapshot read by contended queries if the balances changed since it was taken. Called whenever the
+     * wallet is done with a change, and by queries that get the lock.
+     */
+    private void maybePublishSpendCandidates() {
+        checkState(lock.isHeldByCurrentThread());
+        if (!vNonBlockingReads || vUTXOProvider != null)
+            return;
+        SpendCandidates snapshot = vSpendCandidates;
+        if (snapshot == null || snapshot.epoch != balanceEpoch.get()
+                || snapshot.pendingBroadcasts != countPendingBroadcasts())
+            vSpendCandidates = new SpendCandidates(this);
+    }
+
+    /**
+     * An immutable copy of the outputs in {@link #myUnspents}, together with whether each of them is mature and
+     * whether the wallet can sign for it at the time the copy was taken. It also holds the balances as of then, because
+     * coin selection reads the confidences of live transactions, which only the wallet lock protects.
+     */
+    private static class SpendCandidates {
+        private final long epoch;
+        private final int pendingBroadcasts;
+        private final TransactionOutput[] outputs;
+        private final boolean[] mature;
+        private final boolean[] signable;
+        private final EnumMap<BalanceType, Coin> balances = new EnumMap<>(BalanceType.class);
+
+        SpendCandidates(Wallet wallet) {
+            checkState(wallet.lock.isHeldByCurrentThread());
+            epoch = wallet.balanceEpoch.get();
+            pendingBroadcasts = wallet.countPendingBroadcasts();
+            outputs = wallet.myUnspents.toArray(new TransactionOutput[0]);
+            mature = new boolean[outputs.length];
+            signable = new boolean[outputs.length];
+            for (int i = 0; i < outputs.length; i++) {
+                mature[i] = checkNotNull(outputs[i].getParentTransaction()).isMature();
+                signable[i] = wallet.canSignFor(outputs[i].getScriptPubKey());
+            }
+            for (BalanceType type : BalanceType.values())
+                balances.put(type, wallet.getBalanceLocked(type));
+        }
+
+        Coin getBalance(BalanceType balanceType) {
+            return balances.get(balanceType);
+        }
+
+        List<TransactionOutput> select(boolean excludeImmatureCoinbases, boolean excludeUnsignable) {
+            List<TransactionOutput> candidates = new ArrayList<>(outputs.length);
+            for (int i = 0; i < outputs.length; i++) {
+                if (excludeUnsignable && !signable[i]) continue;
+                if (excludeImmatureCoinbases && !mature[i]) continue;
+                candidates.add(outputs[i]);
+            }
+            return candidates;
+        }
+    }
+
+    /**
+     * <p>If enabled, {@link #getBalance(BalanceType)} and {@link #calculateAllSpendCandidates(boolean, boolean)} no
+     * longer wait for the wallet lock while another thread holds it, for example while a block is being processed.
+     * They answer from a snapshot of the balances and spend candidates instead, which is taken under the lock whenever
+     * the wallet is done with a change that affects them. This keeps balance queries from stalling during chain sync,
+     * at the cost of them not seeing a change that is still in progress. {@link #getBalance(CoinSelector)} always
+     * waits, as a custom selector can only run under the lock.</p>
+     *
+     * <p>The outputs returned are the live objects of the wallet, only the selection of them is a snapshot. This has
+     * no effect if a {@link UTXOProvider} is set.</p>
+     */
+    public void setNonBlockingReads(boolean nonBlockingReads) {
+        lock.lock();
+        try {
+            vNonBlockingReads = nonBlockingReads;
+            vSpendCandidates = null;
+            maybePublishSpendCandidates();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns whether balance and spend candidate queries avoid waiting for the wallet lock, see {@link #setNonBlockingReads(boolean)}. */
+    public boolean isNonBlockingReads() {
+        return vNonBlockingReads;
+    }
+
     /**
      * Returns true if this wallet has at least one of the private keys needed to sign for this scriptPubKey. Returns
      * false if the form of the script is not known or if the script is OP_RETURN.
@@ -4236,6 +4581,8 @@ public class Wallet extends BaseTaggableObject
         lock.lock();
         try {
             this.coinSelector = checkNotNull(coinSelector);
+            invalidateBalances();
+            maybePublishSpendCandidates();
         } finally {
             lock.unlock();
         }
@@ -4381,6 +4728,8 @@ public class Wallet extends BaseTaggableObject
 
             // Avoid spuriously informing the user of wallet/tx confidence changes whilst we're re-organizing.
             checkState(confidenceChanged.size() == 0);
+            // Depths are rewritten below, which the journal can't derive from the block height.
+            journalSnapshotRequired = true;
             checkState(!insideReorg);
             insideReorg = true;
             checkState(onWalletChangedSuppressions == 0);
@@ -4635,16 +4984,8 @@ public class Wallet extends BaseTaggableObject
         beginBloomFilterCalculation();
         try {
             BloomFilter filter = keyChainGroup.getBloomFilter(size, falsePositiveRate, nTweak);
-            for (Script script : watchedScripts) {
-                for (ScriptChunk chunk : script.getChunks()) {
-                    // Only add long (at least 64 bit) data to the bloom filter.
-                    // If any long constants become popular in scripts, we will need logic
-                    // here to exclude them.
-                    if (!chunk.isOpCode() && (chunk.data != null) && chunk.data.length >= MINIMUM_BLOOM_DATA_LENGTH) {
-                        filter.insert(chunk.data);
-                    }
-                }
-            }
+            for (byte[] data : getBloomFilterElements(watchedScripts))
+                filter.insert(data);
             for (TransactionOutPoint point : bloomOutPoints)
                 filter.insert(point.unsafeBitcoinSerialize());
             return filter;
@@ -4653,6 +4994,25 @@ public class Wallet extends BaseTaggableObject
         }
     }
 
+    /**
+     * Returns the data that {@link #getBloomFilter(int, double, long)} inserts for the given watched scripts. This
+     * lets the filter be updated when scripts are added, without calculating it again.
+     */
+    public List<byte[]> getBloomFilterElements(Collection<Script> scripts) {
+        List<byte[]> elements = new ArrayList<>();
+        for (Script script : scripts) {
+            for (ScriptChunk chunk : script.getChunks()) {
+                // Only add long (at least 64 bit) data to the bloom filter.
+                // If any long constants become popular in scripts, we will need logic
+                // here to exclude them.
+                if (!chunk.isOpCode() && (chunk.data != null) && chunk.data.length >= MINIMUM_BLOOM_DATA_LENGTH) {
+                    elements.add(chunk.data);
+                }
+            }
+        }
+        return elements;
+    }
+
     // Returns true if the output is one that won't be selected by a data element matching in the scriptSig.
     private boolean isTxOutputBloomFilterable(TransactionOutput out) {
         Script script = out.getScriptPubKey();
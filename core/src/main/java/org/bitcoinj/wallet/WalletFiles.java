@@ -49,6 +49,7 @@ public class WalletFiles {
     private final Callable<Void> saver;
 
     private volatile Listener vListener;
+    @Nullable private volatile WalletJournal vJournal;
 
     /**
      * Implementors can do pre/post treatment of the wallet file. Useful for adjusting permissions and other things.
@@ -114,6 +115,24 @@ public class WalletFiles {
         this.vListener = checkNotNull(listener);
     }
 
+    /**
+     * Enables or disables writing changes to a {@link WalletJournal} next to the wallet file instead of rewriting the
+     * whole file on each save. The file is still rewritten from time to time to compact the journal, and always on
+     * the first save after enabling. A journaled wallet must be loaded with
+     * {@link WalletJournal#loadFromFile(File, WalletExtension...)}, and disabling the journal doesn't delete it. When a
+     * save only appends to the journal, the {@link Listener} is called with the journal file for both callbacks, one
+     * right after the other once the append is done.
+     */
+    public void setJournalEnabled(boolean enabled) {
+        this.vJournal = enabled ? new WalletJournal(wallet, file) : null;
+    }
+
+    /** Returns the journal changes are written to, or null if journaling isn't enabled. */
+    @Nullable
+    public WalletJournal getJournal() {
+        return vJournal;
+    }
+
     /** Actually write the wallet file to disk, using an atomic rename when possible. Runs on the current thread. */
     public void saveNow() throws IOException {
         // Can be called by any thread. However the wallet is locked whilst saving, so we can have two saves in flight
@@ -129,12 +148,38 @@ public class WalletFiles {
 
     private void saveNowInternal() throws IOException {
         final Stopwatch watch = Stopwatch.createStarted();
+        final WalletJournal journal = vJournal;
+        final Listener listener = vListener;
+        if (journal != null) {
+            // The lock keeps the wallet from changing in a way that rules out the append after it was checked.
+            boolean appended;
+            wallet.lock.lock();
+            try {
+                appended = journal.canAppend() && journal.append();
+            } finally {
+                wallet.lock.unlock();
+            }
+            if (appended) {
+                // Whether a save only appends is only known once it's done, so the listener hears about it
+                // afterwards. The journal file takes the place of the temporary file.
+                File journalFile = WalletJournal.getJournalFile(file);
+                if (listener != null) {
+                    listener.onBeforeAutoSave(journalFile);
+                    listener.onAfterAutoSave(journalFile);
+                }
+                watch.stop();
+                log.info("Journal append completed in {}", watch);
+                return;
+            }
+        }
         File directory = file.getAbsoluteFile().getParentFile();
         File temp = File.createTempFile("wallet", null, directory);
-        final Listener listener = vListener;
         if (listener != null)
             listener.onBeforeAutoSave(temp);
-        wallet.saveToFile(temp, file);
+        if (journal != null)
+            journal.compact(temp);
+        else
+            wallet.saveToFile(temp, file);
         if (listener != null)
             listener.onAfterAutoSave(file);
         watch.stop();
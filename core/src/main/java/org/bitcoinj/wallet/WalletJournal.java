@@ -0,0 +1,420 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.wallet;
+
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.Utils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.io.ByteStreams;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.CodedOutputStream;
+
+import javax.annotation.Nullable;
+import java.io.*;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * <p>An append-only journal of wallet changes that sits next to a wallet file, so that saving a large wallet doesn't
+ * require rewriting every transaction and key each time. The wallet file itself is a normal snapshot in the
+ * {@link WalletProtobufSerializer} format. The journal, stored in a file with the same name plus {@code .journal},
+ * starts with the SHA-256 hash of the snapshot it belongs to, followed by records each holding a
+ * {@link Protos.Wallet} delta: the wallet with only the transactions that changed, and only the key entries that were
+ * added or changed together with their positions in the full list of entries. Only if entries were removed or
+ * reordered, for example by encryption, does a record hold all of them. Each record is framed by its length and a
+ * CRC32 checksum so that a record torn by a crash is detected and dropped.</p>
+ *
+ * <p>Depth changes of building transactions aren't written, they are derived from the last seen block height when
+ * the journal is replayed. Changes that can't be expressed as a delta, like re-organizations or removed transactions,
+ * cause the next save to be a compaction: the snapshot is rewritten and the journal started afresh. A compaction also
+ * happens when the journal grows beyond half the size of the snapshot, and on the first save.</p>
+ *
+ * <p>Journaled wallets must be loaded with {@link #loadFromFile(File, WalletExtension...)}, as
+ * {@link Wallet#loadFromFile(File, WalletExtension...)} only reads the snapshot. Usually a journal is enabled through
+ * {@link WalletFiles#setJournalEnabled(boolean)} rather than used directly.</p>
+ */
+public class WalletJournal {
+    private static final Logger log = LoggerFactory.getLogger(WalletJournal.class);
+
+    private static final String JOURNAL_SUFFIX = ".journal";
+    private static final int MAX_RECORD_SIZE = 64 * 1024 * 1024;
+    private static final long MIN_COMPACTION_SIZE = 1024 * 1024;
+    // The extension of a delta that holds the positions of its key entries, see addKeyChanges(). Only ever found in
+    // journal records, never in a wallet.
+    private static final String KEY_CHANGES_EXTENSION_ID = "org.bitcoinj.wallet.WalletJournal.keyChanges";
+
+    private final Wallet wallet;
+    private final File file;
+    private final File journalFile;
+
+    // All below are guarded by the wallet lock.
+    private boolean compacted;
+    private long snapshotSize;
+    private long journalSize;
+    @Nullable private List<Object> keyChainGroupState;
+    @Nullable private List<Protos.Key> keys;
+    private int records;
+
+    public WalletJournal(Wallet wallet, File file) {
+        this.wallet = checkNotNull(wallet);
+        this.file = checkNotNull(file);
+        this.journalFile = getJournalFile(file);
+    }
+
+    /** Returns the journal file that belongs to the given wallet file. */
+    public static File getJournalFile(File file) {
+        return new File(file.getPath() + JOURNAL_SUFFIX);
+    }
+
+    /**
+     * Appends the changes since the last save to the journal and forces them to disk.
+     *
+     * @return false if nothing was written because a compaction is due, see {@link #compact(File)}
+     */
+    public boolean append() throws IOException {
+        wallet.lock.lock();
+        try {
+            if (!canAppendLocked())
+                return false;
+            List<WalletTransaction> changed = wallet.takeJournalChanges();
+            if (changed == null)
+                return false;
+            Protos.Wallet.Builder builder = new WalletProtobufSerializer().walletToProto(wallet, changed, false).toBuilder();
+            List<Object> state = wallet.getKeyChainGroupState();
+            List<Protos.Key> newKeys = keys;
+            if (!state.equals(keyChainGroupState)) {
+                newKeys = wallet.serializeKeyChainGroupToProtobuf();
+                addKeyChanges(builder, checkNotNull(keys), newKeys);
+            }
+            byte[] delta = builder.build().toByteArray();
+            try (FileOutputStream stream = new FileOutputStream(journalFile, true)) {
+                DataOutputStream output = new DataOutputStream(new BufferedOutputStream(stream));
+                writeRecord(output, delta);
+                output.flush();
+                stream.getFD().sync();
+            } catch (IOException e) {
+                // The journal may now end in a partial record, which is fine for reading but not for appending.
+                compacted = false;
+                throw e;
+            }
+            keyChainGroupState = state;
+            keys = newKeys;
+            journalSize += 8 + delta.length;
+            records++;
+            log.info("Appended {} transactions and {} keys to wallet journal, now {} records and {} bytes",
+                    changed.size(), builder.getKeyCount(), records, journalSize);
+            return true;
+        } finally {
+            wallet.lock.unlock();
+        }
+    }
+
+    /**
+     * Returns whether the next {@link #append()} will write a record rather than leave it to a compaction, unless the
+     * wallet changes in between.
+     */
+    public boolean canAppend() {
+        wallet.lock.lock();
+        try {
+            return canAppendLocked();
+        } finally {
+            wallet.lock.unlock();
+        }
+    }
+
+    private boolean canAppendLocked() {
+        return compacted && journalSize <= Math.max(snapshotSize / 2, MIN_COMPACTION_SIZE) && wallet.isJournalAppendable();
+    }
+
+    /**
+     * Adds the key entries that were added or changed since the old entries to the delta, together with their positions
+     * among the new entries. Entries are matched by public key, or in full if they have none. If any old entry was
+     * removed or moved, all new entries are added instead.
+     */
+    static void addKeyChanges(Protos.Wallet.Builder delta, List<Protos.Key> oldKeys, List<Protos.Key> newKeys) {
+        try {
+            ByteString.Output positions = ByteString.newOutput();
+            CodedOutputStream output = CodedOutputStream.newInstance(positions);
+            output.writeUInt32NoTag(newKeys.size());
+            List<Protos.Key> changed = new ArrayList<>();
+            int next = 0;
+            for (int i = 0; i < newKeys.size(); i++) {
+                Protos.Key key = newKeys.get(i);
+                if (next < oldKeys.size() && isSameKey(oldKeys.get(next), key)) {
+                    // A position with the low bit clear replaces the old entry.
+                    if (!oldKeys.get(next).equals(key)) {
+                        output.writeUInt32NoTag(i << 1);
+                        changed.add(key);
+                    }
+                    next++;
+                } else {
+                    // A position with the low bit set is inserted before the next old entry.
+                    output.writeUInt32NoTag(i << 1 | 1);
+                    changed.add(key);
+                }
+            }
+            if (next < oldKeys.size()) {
+                delta.addAllKey(newKeys);
+                return;
+            }
+            if (changed.isEmpty())
+                return;
+            output.flush();
+            delta.addAllKey(changed).addExtension(Protos.Extension.newBuilder()
+                    .setId(KEY_CHANGES_EXTENSION_ID)
+                    .setMandatory(false)
+                    .setData(positions.toByteString()));
+        } catch (IOException e) {
+            throw new RuntimeException(e);  // Cannot happen.
+        }
+    }
+
+    private static boolean isSameKey(Protos.Key a, Protos.Key b) {
+        if (a.hasPublicKey() || b.hasPublicKey())
+            return a.getType() == b.getType() && a.getPublicKey().equals(b.getPublicKey());
+        return a.equals(b);
+    }
+
+    /** Returns the key entries of the given delta applied to the given entries, see {@link #addKeyChanges}. */
+    static List<Protos.Key> applyKeyChanges(List<Protos.Key> keys, Protos.Wallet delta) throws IOException {
+        Protos.Extension keyChanges = null;
+        for (Protos.Extension extension : delta.getExtensionList())
+            if (extension.getId().equals(KEY_CHANGES_EXTENSION_ID))
+                keyChanges = extension;
+        if (keyChanges == null)
+            return delta.getKeyCount() > 0 ? delta.getKeyList() : keys;
+        CodedInputStream input = keyChanges.getData().newCodedInput();
+        int size = input.readUInt32();
+        List<Protos.Key> result = new ArrayList<>(size);
+        Iterator<Protos.Key> oldKeys = keys.iterator();
+        Iterator<Protos.Key> changed = delta.getKeyList().iterator();
+        int position = input.isAtEnd() ? -1 : input.readUInt32();
+        for (int i = 0; i < size; i++) {
+            if (position >= 0 && position >>> 1 == i) {
+                result.add(changed.next());
+                if ((position & 1) == 0)
+                    oldKeys.next();
+                position = input.isAtEnd() ? -1 : input.readUInt32();
+            } else {
+                result.add(oldKeys.next());
+            }
+        }
+        if (oldKeys.hasNext() || changed.hasNext() || position >= 0)
+            throw new IOException("Wallet journal key changes don't match the keys they apply to");
+        return result;
+    }
+
+    /**
+     * Writes the whole wallet to the wallet file through the given temporary file, then starts a new, empty journal
+     * for it. A crash between the two steps leaves a journal that belongs to the previous snapshot, which is then
+     * ignored.
+     */
+    public void compact(File temp) throws IOException {
+        wallet.lock.lock();
+        try {
+            compacted = false;
+            MessageDigest digest = Sha256Hash.newDigest();
+            Protos.Wallet snapshot = new WalletProtobufSerializer().walletToProto(wallet);
+            try (FileOutputStream stream = new FileOutputStream(temp)) {
+                OutputStream output = new BufferedOutputStream(new DigestOutputStream(stream, digest));
+                snapshot.writeTo(output);
+                output.flush();
+                stream.getFD().sync();
+            }
+            rename(temp, file);
+            snapshotSize = file.length();
+            wallet.resetJournalChanges();
+            keyChainGroupState = wallet.getKeyChainGroupState();
+            // Later key changes are relative to the entries that were actually written.
+            keys = snapshot.getKeyList();
+
+            File journalTemp = new File(journalFile.getPath() + ".tmp");
+            try (FileOutputStream stream = new FileOutputStream(journalTemp)) {
+                stream.write(digest.digest());
+                stream.flush();
+                stream.getFD().sync();
+            }
+            rename(journalTemp, journalFile);
+            journalSize = journalFile.length();
+            records = 0;
+            compacted = true;
+        } finally {
+            wallet.lock.unlock();
+        }
+    }
+
+    /** Returns the number of records appended since the last compaction. */
+    public int getRecords() {
+        wallet.lock.lock();
+        try {
+            return records;
+        } finally {
+            wallet.lock.unlock();
+        }
+    }
+
+    private static void rename(File from, File to) throws IOException {
+        if (Utils.isWindows()) {
+            // Work around an issue on Windows whereby you can't rename over existing files.
+            File canonical = to.getCanonicalFile();
+            if (canonical.exists() && !canonical.delete())
+                throw new IOException("Failed to delete " + canonical + " for replacement");
+            if (!from.renameTo(canonical))
+                throw new IOException("Failed to rename " + from + " to " + canonical);
+        } else if (!from.renameTo(to)) {
+            throw new IOException("Failed to rename " + from + " to " + to);
+        }
+    }
+
+    private static void writeRecord(DataOutputStream output, byte[] record) throws IOException {
+        CRC32 crc = new CRC32();
+        crc.update(record);
+        output.writeInt(record.length);
+        output.writeInt((int) crc.getValue());
+        output.write(record);
+    }
+
+    /**
+     * Returns the next record, or null at the end of the journal or if the rest of the journal is unreadable
+     * because the last append was interrupted.
+     */
+    @Nullable
+    private static byte[] readRecord(DataInputStream input) throws IOException {
+        try {
+            int length = input.readInt();
+            int checksum = input.readInt();
+            if (length < 0 || length > MAX_RECORD_SIZE) {
+                log.warn("Wallet journal record has bad length {}, ignoring rest of journal", length);
+                return null;
+            }
+            byte[] record = new byte[length];
+            input.readFully(record);
+            CRC32 crc = new CRC32();
+            crc.update(record);
+            if ((int) crc.getValue() != checksum) {
+                log.warn("Wallet journal record has bad checksum, ignoring rest of journal");
+                return null;
+            }
+            return record;
+        } catch (EOFException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Returns a wallet loaded from the given snapshot file with the changes in its journal, if any, applied on top.
+     *
+     * @param file the wallet file to read
+     * @param walletExtensions extensions possibly added to the wallet.
+     */
+    public static Wallet loadFromFile(File file, @Nullable WalletExtension... walletExtensions)
+            throws UnreadableWalletException {
+        Protos.Wallet walletProto;
+        try {
+            byte[] snapshot;
+            try (FileInputStream stream = new FileInputStream(file)) {
+                snapshot = ByteStreams.toByteArray(stream);
+            }
+            walletProto = WalletProtobufSerializer.parseToProto(new ByteArrayInputStream(snapshot));
+            List<Protos.Wallet> deltas = new ArrayList<>();
+            File journalFile = getJournalFile(file);
+            if (journalFile.exists()) {
+                try (DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(journalFile)))) {
+                    byte[] hash = new byte[32];
+                    input.readFully(hash);
+                    if (Arrays.equals(hash, Sha256Hash.hash(snapshot))) {
+                        byte[] record;
+                        while ((record = readRecord(input)) != null)
+                            deltas.add(WalletProtobufSerializer.parseToProto(new ByteArrayInputStream(record)));
+                    } else {
+                        log.info("Wallet journal belongs to an older snapshot, ignoring it");
+                    }
+                } catch (EOFException e) {
+                    log.warn("Wallet journal is truncated, ignoring it");
+                }
+            }
+            if (!deltas.isEmpty()) {
+                log.info("Replaying {} wallet journal records", deltas.size());
+                walletProto = replay(walletProto, deltas);
+            }
+        } catch (IOException e) {
+            throw new UnreadableWalletException("Could not read wallet", e);
+        }
+        String paramsID = walletProto.getNetworkIdentifier();
+        NetworkParameters params = NetworkParameters.fromID(paramsID);
+        if (params == null)
+            throw new UnreadableWalletException("Unknown network parameters ID " + paramsID);
+        return new WalletProtobufSerializer().readWallet(params, walletExtensions, walletProto);
+    }
+
+    /**
+     * Applies the given deltas to the snapshot. Everything except transactions and keys is taken from the last delta.
+     * Transactions replace those with the same hash, key entries are added or replaced as recorded in each delta. The
+     * depth of a building transaction is advanced by how far the last seen block height moved after it was written.
+     */
+    static Protos.Wallet replay(Protos.Wallet snapshot, List<Protos.Wallet> deltas) throws IOException {
+        Map<ByteString, Protos.Transaction> transactions = new LinkedHashMap<>();
+        Map<ByteString, Integer> heights = new HashMap<>();
+        List<Protos.Key> keys = snapshot.getKeyList();
+        Protos.Wallet last = snapshot;
+        for (Protos.Transaction tx : snapshot.getTransactionList()) {
+            transactions.put(tx.getHash(), tx);
+            heights.put(tx.getHash(), lastSeenBlockHeight(snapshot));
+        }
+        for (Protos.Wallet delta : deltas) {
+            for (Protos.Transaction tx : delta.getTransactionList()) {
+                transactions.put(tx.getHash(), tx);
+                heights.put(tx.getHash(), lastSeenBlockHeight(delta));
+            }
+            keys = applyKeyChanges(keys, delta);
+            last = delta;
+        }
+        Protos.Wallet.Builder builder = last.toBuilder().clearTransaction().clearKey().addAllKey(keys).clearExtension();
+        for (Protos.Extension extension : last.getExtensionList())
+            if (!extension.getId().equals(KEY_CHANGES_EXTENSION_ID))
+                builder.addExtension(extension);
+        int lastHeight = lastSeenBlockHeight(last);
+        for (Protos.Transaction tx : transactions.values()) {
+            int height = heights.get(tx.getHash());
+            if (height >= 0 && lastHeight > height
+                    && tx.getConfidence().getType() == Protos.TransactionConfidence.Type.BUILDING) {
+                int depth = tx.getConfidence().getDepth() + lastHeight - height;
+                tx = tx.toBuilder().setConfidence(tx.getConfidence().toBuilder().setDepth(depth)).build();
+            }
+            builder.addTransaction(tx);
+        }
+        return builder.build();
+    }
+
+    private static int lastSeenBlockHeight(Protos.Wallet walletProto) {
+        return walletProto.hasLastSeenBlockHeight() ? walletProto.getLastSeenBlockHeight() : -1;
+    }
+}
@@ -41,6 +41,7 @@ import com.google.common.collect.Lists;
 import com.google.protobuf.ByteString;
 import com.google.protobuf.CodedInputStream;
 import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.ExtensionRegistryLite;
 import com.google.protobuf.TextFormat;
 import com.google.protobuf.WireFormat;
 
@@ -173,18 +174,27 @@ public class WalletProtobufSerializer {
      * additional data fields set, before serialization takes place.
      */
     public Protos.Wallet walletToProto(Wallet wallet) {
+        return walletToProto(wallet, wallet.getWalletTransactions(), true);
+    }
+
+    /**
+     * Converts the given wallet to the object representation of the protocol buffers, but only including the given
+     * transactions and, if {@code includeKeys} is false, no keys. Used by {@link WalletJournal} to write deltas.
+     */
+    Protos.Wallet walletToProto(Wallet wallet, Iterable<WalletTransaction> transactions, boolean includeKeys) {
         Protos.Wallet.Builder walletBuilder = Protos.Wallet.newBuilder();
         walletBuilder.setNetworkIdentifier(wallet.getNetworkParameters().getId());
         if (wallet.getDescription() != null) {
             walletBuilder.setDescription(wallet.getDescription());
         }
 
-        for (WalletTransaction wtx : wallet.getWalletTransactions()) {
+        for (WalletTransaction wtx : transactions) {
             Protos.Transaction txProto = makeTxProto(wtx);
             walletBuilder.addTransaction(txProto);
         }
 
-        walletBuilder.addAllKey(wallet.serializeKeyChainGroupToProtobuf());
+        if (includeKeys)
+            walletBuilder.addAllKey(wallet.serializeKeyChainGroupToProtobuf());
 
         for (Script script : wallet.getWatchedScripts()) {
             Protos.Script protoScript =
@@ -439,12 +449,46 @@ public class WalletProtobufSerializer {
      */
     public Wallet readWallet(InputStream input, boolean forceReset, @Nullable WalletExtension[] extensions) throws UnreadableWalletException {
         try {
-            Protos.Wallet walletProto = parseToProto(input);
-            final String paramsID = walletProto.getNetworkIdentifier();
-            NetworkParameters params = NetworkParameters.fromID(paramsID);
-            if (params == null)
-                throw new UnreadableWalletException("Unknown network parameters ID " + paramsID);
-            return readWallet(params, extensions, walletProto, forceReset);
+            // Transactions are read one by one as they are streamed in, so that the wallet message as a whole and the
+            // scripts of all transactions are never in memory at the same time as the transactions built from them.
+            // Only what is needed to connect them is kept until the end.
+            CodedInputStream codedInput = CodedInputStream.newInstance(input);
+            codedInput.setSizeLimit(WALLET_SIZE_LIMIT);
+            ByteArrayOutputStream header = new ByteArrayOutputStream();
+            CodedOutputStream headerOutput = CodedOutputStream.newInstance(header);
+            List<Protos.Transaction> transactions = new ArrayList<>();
+            NetworkParameters params = null;
+            int tag;
+            while ((tag = codedInput.readTag()) != 0) {
+                int field = WireFormat.getTagFieldNumber(tag);
+                if (field == Protos.Wallet.NETWORK_IDENTIFIER_FIELD_NUMBER
+                        && WireFormat.getTagWireType(tag) == WireFormat.WIRETYPE_LENGTH_DELIMITED) {
+                    String paramsID = codedInput.readString();
+                    params = NetworkParameters.fromID(paramsID);
+                    if (params == null)
+                        throw new UnreadableWalletException("Unknown network parameters ID " + paramsID);
+                    headerOutput.writeString(field, paramsID);
+                } else if (field == Protos.Wallet.TRANSACTION_FIELD_NUMBER
+                        && WireFormat.getTagWireType(tag) == WireFormat.WIRETYPE_LENGTH_DELIMITED) {
+                    if (forceReset) {
+                        codedInput.skipField(tag);
+                        continue;
+                    }
+                    if (params == null)
+                        throw new UnreadableWalletException("Transaction before network identifier");
+                    Protos.Transaction txProto = codedInput.readMessage(Protos.Transaction.parser(),
+                            ExtensionRegistryLite.getEmptyRegistry());
+                    readTransaction(txProto, params);
+                    transactions.add(stripTransaction(txProto));
+                    // The size limit protects against parsing a single huge message, not the wallet as a whole.
+                    codedInput.resetSizeCounter();
+                } else {
+                    copyField(tag, codedInput, headerOutput);
+                }
+            }
+            headerOutput.flush();
+            Protos.Wallet walletProto = Protos.Wallet.parseFrom(header.toByteArray());
+            return readWallet(params, extensions, walletProto, transactions, true, forceReset);
         } catch (IOException e) {
             throw new UnreadableWalletException("Could not parse input stream to protobuf", e);
         } catch (IllegalStateException e) {
@@ -488,6 +532,12 @@ public class WalletProtobufSerializer {
      */
     public Wallet readWallet(NetworkParameters params, @Nullable WalletExtension[] extensions,
                              Protos.Wallet walletProto, boolean forceReset) throws UnreadableWalletException {
+        return readWallet(params, extensions, walletProto, walletProto.getTransactionList(), false, forceReset);
+    }
+
+    private Wallet readWallet(NetworkParameters params, @Nullable WalletExtension[] extensions,
+                              Protos.Wallet walletProto, List<Protos.Transaction> transactions,
+                              boolean transactionsRead, boolean forceReset) throws UnreadableWalletException {
         if (walletProto.getVersion() > CURRENT_WALLET_VERSION)
             throw new UnreadableWalletException.FutureVersion();
         if (!walletProto.getNetworkIdentifier().equals(params.getId()))
@@ -528,13 +578,15 @@ public class WalletProtobufSerializer {
             wallet.setLastBlockSeenHeight(-1);
             wallet.setLastBlockSeenTimeSecs(0);
         } else {
-            // Read all transactions and insert into the txMap.
-            for (Protos.Transaction txProto : walletProto.getTransactionList()) {
-                readTransaction(txProto, wallet.getParams());
+            // Read all transactions and insert into the txMap, unless that happened while streaming them in.
+            if (!transactionsRead) {
+                for (Protos.Transaction txProto : transactions) {
+                    readTransaction(txProto, wallet.getParams());
+                }
             }
 
             // Update transaction outputs to point to inputs that spend them
-            for (Protos.Transaction txProto : walletProto.getTransactionList()) {
+            for (Protos.Transaction txProto : transactions) {
                 WalletTransaction wtx = connectTransactionOutputs(params, txProto);
                 wallet.addWalletTransaction(wtx);
             }
@@ -707,6 +759,59 @@ public class WalletProtobufSerializer {
         txMap.put(txProto.getHash(), tx);
     }
 
+    /** Copies the field with the given tag, which was just read from the input, to the output unchanged. */
+    private static void copyField(int tag, CodedInputStream input, CodedOutputStream output) throws IOException {
+        output.writeUInt32NoTag(tag);
+        switch (WireFormat.getTagWireType(tag)) {
+            case WireFormat.WIRETYPE_VARINT:
+                output.writeUInt64NoTag(input.readRawVarint64());
+                break;
+            case WireFormat.WIRETYPE_FIXED64:
+                output.writeFixed64NoTag(input.readRawLittleEndian64());
+                break;
+            case WireFormat.WIRETYPE_LENGTH_DELIMITED:
+                output.writeBytesNoTag(input.readBytes());
+                break;
+            case WireFormat.WIRETYPE_START_GROUP:
+                int nestedTag;
+                while ((nestedTag = input.readTag()) != 0 && WireFormat.getTagWireType(nestedTag) != WireFormat.WIRETYPE_END_GROUP)
+                    copyField(nestedTag, input, output);
+                // The end of a group has the same field number as its start.
+                input.checkLastTagWas(WireFormat.getTagFieldNumber(tag) << 3 | WireFormat.WIRETYPE_END_GROUP);
+                output.writeUInt32NoTag(nestedTag);
+                break;
+            case WireFormat.WIRETYPE_FIXED32:
+                output.writeFixed32NoTag(input.readRawLittleEndian32());
+                break;
+            default:
+                throw new IOException("Invalid wire type in tag " + tag);
+        }
+    }
+
+    /**
+     * Returns the parts of a transaction proto that {@link #connectTransactionOutputs(NetworkParameters,
+     * Protos.Transaction)} needs after the transaction itself was read: its pool, its confidence and which
+     * transactions spend its outputs.
+     */
+    private static Protos.Transaction stripTransaction(Protos.Transaction txProto) {
+        Protos.Transaction.Builder builder = Protos.Transaction.newBuilder()
+                .setHash(txProto.getHash())
+                .setPool(txProto.getPool())
+                .setVersion(txProto.getVersion());
+        if (txProto.hasConfidence())
+            builder.setConfidence(txProto.getConfidence());
+        for (Protos.TransactionOutput outputProto : txProto.getTransactionOutputList()) {
+            Protos.TransactionOutput.Builder output = Protos.TransactionOutput.newBuilder()
+                    .setValue(outputProto.getValue())
+                    .setScriptBytes(ByteString.EMPTY);
+            if (outputProto.hasSpentByTransactionHash())
+                output.setSpentByTransactionHash(outputProto.getSpentByTransactionHash())
+                        .setSpentByTransactionIndex(outputProto.getSpentByTransactionIndex());
+            builder.addTransactionOutput(output);
+        }
+        return builder.buildPartial();
+    }
+
     private WalletTransaction connectTransactionOutputs(final NetworkParameters params,
                                                         final org.bitcoinj.wallet.Protos.Transaction txProto) throws UnreadableWalletException {
         Transaction tx = txMap.get(txProto.getHash());
@@ -21,6 +21,7 @@ import com.google.common.collect.Lists;
 import org.bitcoinj.params.MainNetParams;
 import org.bitcoinj.params.UnitTestParams;
 import org.bitcoinj.script.Script;
+import org.bitcoinj.script.ScriptBuilder;
 import org.bitcoinj.store.BlockStoreException;
 import org.bitcoinj.store.FullPrunedBlockStore;
 import org.bitcoinj.utils.BlockFileLoader;
@@ -37,6 +38,7 @@ import java.io.File;
 import java.lang.ref.WeakReference;
 import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.ForkJoinPool;
 
 import static org.bitcoinj.core.Coin.FIFTY_COINS;
 import static org.junit.Assert.*;
@@ -161,6 +163,65 @@ public abstract class AbstractFullPrunedBlockChainTest {
         } catch (Exception e) {}
     }
 
+    @Test
+    public void verifyScriptsOnPool() throws Exception {
+        final int UNDOABLE_BLOCKS_STORED = 10;
+        store = createStore(PARAMS, UNDOABLE_BLOCKS_STORED);
+        chain = new FullPrunedBlockChain(PARAMS, store);
+        ForkJoinPool pool = new ForkJoinPool(2);
+        chain.setScriptVerificationPool(pool);
+
+        // Build some blocks on genesis block to create a spendable output
+        ECKey outKey = new ECKey();
+        int height = 1;
+        Block rollingBlock = PARAMS.getGenesisBlock().createNextBlockWithCoinbase(Block.BLOCK_VERSION_GENESIS, outKey.getPubKey(), height++);
+        chain.add(rollingBlock);
+        TransactionOutPoint spendableOutput = new TransactionOutPoint(PARAMS, 0, rollingBlock.getTransactions().get(0).getHash());
+        Script spendableOutputScriptPubKey = rollingBlock.getTransactions().get(0).getOutputs().get(0).getScriptPubKey();
+        for (int i = 1; i < PARAMS.getSpendableCoinbaseDepth(); i++) {
+            rollingBlock = rollingBlock.createNextBlockWithCoinbase(Block.BLOCK_VERSION_GENESIS, outKey.getPubKey(), height++);
+            chain.add(rollingBlock);
+        }
+
+        // A signature by the wrong key is rejected, leaving the chain and the output alone.
+        Block badBlock = rollingBlock.createNextBlock(null);
+        Transaction bad = new Transaction(PARAMS);
+        bad.addOutput(new TransactionOutput(PARAMS, bad, FIFTY_COINS, new byte[] {}));
+        bad.addSignedInput(spendableOutput, spendableOutputScriptPubKey, new ECKey());
+        badBlock.addTransaction(bad);
+        badBlock.solve();
+        try {
+            chain.add(badBlock);
+            fail();
+        } catch (VerificationException e) {
+            // expected
+        }
+        assertEquals(rollingBlock.getHash(), chain.getChainHead().getHeader().getHash());
+        assertNotNull(store.getTransactionOutput(spendableOutput.getHash(), spendableOutput.getIndex()));
+
+        // A chain of two transactions within one block, the second one spending the output of the first.
+        rollingBlock = rollingBlock.createNextBlock(null);
+        Transaction t1 = new Transaction(PARAMS);
+        t1.addOutput(FIFTY_COINS, outKey);
+        t1.addSignedInput(spendableOutput, spendableOutputScriptPubKey, outKey);
+        Transaction t2 = new Transaction(PARAMS);
+        t2.addOutput(new TransactionOutput(PARAMS, t2, FIFTY_COINS, new byte[] {}));
+        t2.addSignedInput(new TransactionOutPoint(PARAMS, 0, t1.getHash()), t1.getOutput(0).getScriptPubKey(), outKey);
+        rollingBlock.addTransaction(t1);
+        rollingBlock.addTransaction(t2);
+        rollingBlock.solve();
+        chain.add(rollingBlock);
+        assertEquals(rollingBlock.getHash(), chain.getChainHead().getHeader().getHash());
+        assertNull(store.getTransactionOutput(spendableOutput.getHash(), spendableOutput.getIndex()));
+        assertNull(store.getTransactionOutput(t1.getHash(), 0));
+        assertNotNull(store.getTransactionOutput(t2.getHash(), 0));
+        assertTrue(pool.getPoolSize() > 0);
+        pool.shutdown();
+        try {
+            store.close();
+        } catch (Exception e) {}
+    }
+
     @Test
     public void testFinalizedBlocks() throws Exception {
         final int UNDOABLE_BLOCKS_STORED = 10;
@@ -286,6 +347,40 @@ public abstract class AbstractFullPrunedBlockChainTest {
         } catch (Exception e) {}
     }
 
+    @Test
+    public void batchedTransactionOutputs() throws Exception {
+        store = createStore(PARAMS, 10);
+        ECKey key = new ECKey();
+        Script script = ScriptBuilder.createOutputScript(LegacyAddress.fromKey(PARAMS, key));
+        String address = LegacyAddress.fromKey(PARAMS, key).toString();
+        Sha256Hash hash1 = Sha256Hash.of(new byte[] {1});
+        Sha256Hash hash2 = Sha256Hash.of(new byte[] {2});
+        UTXO out1 = new UTXO(hash1, 0, Coin.COIN, 1, false, script, address);
+        UTXO out2 = new UTXO(hash1, 1, Coin.CENT, 1, false, script, address);
+        UTXO out3 = new UTXO(hash2, 0, Coin.FIFTY_COINS, 2, true, script, address);
+        store.addUnspentTransactionOutputs(Arrays.asList(out1, out2, out3));
+
+        // The result is in the order of the outpoints, with null for the missing one.
+        List<UTXO> outputs = store.getTransactionOutputs(Arrays.asList(
+                new TransactionOutPoint(PARAMS, 0, hash2),
+                new TransactionOutPoint(PARAMS, 2, hash1),
+                new TransactionOutPoint(PARAMS, 1, hash1)));
+        assertEquals(3, outputs.size());
+        assertEquals(out3, outputs.get(0));
+        assertEquals(Coin.FIFTY_COINS, outputs.get(0).getValue());
+        assertTrue(outputs.get(0).isCoinbase());
+        assertNull(outputs.get(1));
+        assertEquals(out2, outputs.get(2));
+
+        store.removeUnspentTransactionOutputs(Arrays.asList(out1, out3));
+        assertNull(store.getTransactionOutput(hash1, 0));
+        assertEquals(out2, store.getTransactionOutput(hash1, 1));
+        assertNull(store.getTransactionOutput(hash2, 0));
+        try {
+            store.close();
+        } catch (Exception e) {}
+    }
+
     @Test
     public void testUTXOProviderWithWallet() throws Exception {
         final int UNDOABLE_BLOCKS_STORED = 10;
@@ -332,4 +332,65 @@ public class BlockTest {
             //Expected, do nothing
         }
     }
+
+    @Test
+    public void parseEquihashHeader() throws Exception {
+        NetworkParameters params = new UnitTestParams() {
+            @Override
+            public boolean hasEquihashHeaders() {
+                return true;
+            }
+        };
+        byte[] reserved = new byte[32];
+        Arrays.fill(reserved, (byte) 0x11);
+        byte[] nonce = new byte[Block.EQUIHASH_NONCE_SIZE];
+        for (int i = 0; i < nonce.length; i++)
+            nonce[i] = (byte) i;
+        byte[] solution = new byte[1344];
+        for (int i = 0; i < solution.length; i++)
+            solution[i] = (byte) (i * 7);
+        ByteArrayOutputStream header = new ByteArrayOutputStream();
+        Utils.uint32ToByteStreamLE(4, header);
+        header.write(Sha256Hash.of(new byte[] { 1 }).getReversedBytes());
+        header.write(Sha256Hash.of(new byte[] { 2 }).getReversedBytes());
+        header.write(reserved);
+        Utils.uint32ToByteStreamLE(1473793441, header);
+        Utils.uint32ToByteStreamLE(0x1f07ffffL, header);
+        header.write(nonce);
+        header.write(new VarInt(solution.length).encode());
+        header.write(solution);
+        byte[] headerBytes = header.toByteArray();
+        assertEquals(Block.EQUIHASH_HEADER_SIZE + 3 + solution.length, headerBytes.length);
+
+        Block block = params.getDefaultSerializer().makeBlock(headerBytes);
+        assertEquals(4, block.getVersion());
+        assertEquals(Sha256Hash.of(new byte[] { 1 }), block.getPrevBlockHash());
+        assertEquals(Sha256Hash.of(new byte[] { 2 }), block.getMerkleRoot());
+        assertEquals(Sha256Hash.wrapReversed(reserved), block.getHashReserved());
+        assertEquals(1473793441, block.getTimeSeconds());
+        assertEquals(0x1f07ffffL, block.getDifficultyTarget());
+        assertArrayEquals(nonce, block.getEquihashNonce());
+        assertEquals(Utils.readUint32(nonce, 0), block.getNonce());
+        assertArrayEquals(solution, block.getSolution());
+        assertFalse(block.hasTransactions());
+        Sha256Hash hash = Sha256Hash.wrapReversed(Sha256Hash.hashTwice(headerBytes));
+        assertEquals(hash, block.getHash());
+        assertArrayEquals(headerBytes, block.bitcoinSerialize());
+
+        // Re-serializing from the fields must give the same header.
+        Block clone = block.cloneAsHeader();
+        clone.setNonce(block.getNonce());
+        assertArrayEquals(headerBytes, clone.bitcoinSerialize());
+        assertEquals(hash, clone.getHash());
+        clone.setNonce(block.getNonce() + 1);
+        assertNotEquals(hash, clone.getHash());
+        assertEquals(block.getNonce() + 1, Utils.readUint32(clone.getEquihashNonce(), 0));
+
+        // Headers messages must step over the variable length headers.
+        HeadersMessage headers = new HeadersMessage(params, block, clone);
+        HeadersMessage parsed = new HeadersMessage(params, headers.bitcoinSerialize());
+        assertEquals(2, parsed.getBlockHeaders().size());
+        assertEquals(hash, parsed.getBlockHeaders().get(0).getHash());
+        assertEquals(clone.getHash(), parsed.getBlockHeaders().get(1).getHash());
+    }
 }
@@ -23,6 +23,7 @@ import org.bitcoinj.wallet.Wallet;
 import org.junit.Test;
 
 import java.util.Arrays;
+import java.util.Random;
 
 import static org.bitcoinj.core.Utils.HEX;
 import static org.junit.Assert.*;
@@ -68,6 +69,36 @@ public class BloomFilterTest {
         assertTrue(Arrays.equals(HEX.decode("03ce4299050000000100008002"), filter.unsafeBitcoinSerialize()));
     }
 
+    @Test
+    public void matchesReferenceHash() {
+        BloomFilter filter = new BloomFilter(100, 0.001, 12345L);
+        byte[] data = new byte[filter.unsafeBitcoinSerialize().length - 10];
+        long hashFuncs = Utils.readUint32(filter.unsafeBitcoinSerialize(), data.length + 1);
+        Random random = new Random(1);
+        for (int length = 0; length < 80; length++) {
+            byte[] object = new byte[length];
+            random.nextBytes(object);
+            filter.insert(object);
+            assertTrue(filter.contains(object));
+            for (int i = 0; i < hashFuncs; i++)
+                Utils.setBitLE(data, BloomFilter.murmurHash3(data, 12345L, i, object));
+        }
+        assertArrayEquals(data, Arrays.copyOfRange(filter.unsafeBitcoinSerialize(), 1, data.length + 1));
+    }
+
+    @Test
+    public void matchesSpentOutpoint() {
+        BloomFilter filter = new BloomFilter(10, 0.0001, 0, BloomFilter.BloomUpdate.UPDATE_NONE);
+        TransactionOutPoint outpoint = new TransactionOutPoint(MAINNET, 3, Sha256Hash.of(new byte[] {1}));
+        filter.insert(outpoint.unsafeBitcoinSerialize());
+        Transaction tx = new Transaction(MAINNET);
+        tx.addInput(new TransactionInput(MAINNET, tx, new byte[0], outpoint));
+        assertTrue(filter.applyAndUpdate(tx));
+        assertFalse(filter.matchesAll());
+        filter.setMatchAll();
+        assertTrue(filter.matchesAll());
+    }
+
     @Test
     public void walletTest() throws Exception {
         Context.propagate(new Context(MAINNET));
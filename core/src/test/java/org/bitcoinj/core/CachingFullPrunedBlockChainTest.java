@@ -0,0 +1,176 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.core;
+
+import org.bitcoinj.script.Script;
+import org.bitcoinj.script.ScriptBuilder;
+import org.bitcoinj.store.BlockStoreException;
+import org.bitcoinj.store.CachingFullPrunedBlockStore;
+import org.bitcoinj.store.FullPrunedBlockStore;
+import org.bitcoinj.store.MemoryFullPrunedBlockStore;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.*;
+
+/**
+ * A CachingFullPrunedBlockStore in front of a MemoryFullPrunedBlockStore. The cache is kept small so that entries
+ * get evicted during the tests.
+ */
+public class CachingFullPrunedBlockChainTest extends AbstractFullPrunedBlockChainTest {
+    @Override
+    public FullPrunedBlockStore createStore(NetworkParameters params, int blockCount) throws BlockStoreException {
+        return new CachingFullPrunedBlockStore(new MemoryFullPrunedBlockStore(params, blockCount), 16 * 1024);
+    }
+
+    @Override
+    public void resetStore(FullPrunedBlockStore store) throws BlockStoreException {
+        // No-op, the memory store isn't persistent.
+    }
+
+    @Test
+    public void writeBack() throws Exception {
+        MemoryFullPrunedBlockStore memoryStore = new MemoryFullPrunedBlockStore(PARAMS, 10);
+        CachingFullPrunedBlockStore cache = new CachingFullPrunedBlockStore(memoryStore, 1024 * 1024);
+        Script script = ScriptBuilder.createOutputScript(LegacyAddress.fromKey(PARAMS, new ECKey()));
+        UTXO out1 = new UTXO(Sha256Hash.of(new byte[] {1}), 0, Coin.COIN, 1, false, script);
+        UTXO out2 = new UTXO(Sha256Hash.of(new byte[] {2}), 0, Coin.COIN, 1, false, script);
+
+        // Nothing reaches the underlying store before the batch is committed.
+        cache.beginDatabaseBatchWrite();
+        cache.addUnspentTransactionOutputs(Arrays.asList(out1, out2));
+        assertNull(memoryStore.getTransactionOutput(out1.getHash(), 0));
+        assertEquals(out1, cache.getTransactionOutput(out1.getHash(), 0));
+        assertTrue(cache.hasUnspentOutputs(out2.getHash(), 1));
+        cache.commitDatabaseBatchWrite();
+        assertEquals(out1, memoryStore.getTransactionOutput(out1.getHash(), 0));
+        assertEquals(out2, memoryStore.getTransactionOutput(out2.getHash(), 0));
+
+        // Aborting drops the pending removal.
+        cache.beginDatabaseBatchWrite();
+        cache.removeUnspentTransactionOutput(out1);
+        assertNull(cache.getTransactionOutput(out1.getHash(), 0));
+        assertFalse(cache.hasUnspentOutputs(out1.getHash(), 1));
+        cache.abortDatabaseBatchWrite();
+        assertEquals(out1, cache.getTransactionOutput(out1.getHash(), 0));
+
+        cache.beginDatabaseBatchWrite();
+        cache.removeUnspentTransactionOutputs(Collections.singletonList(out1));
+        cache.commitDatabaseBatchWrite();
+        assertNull(memoryStore.getTransactionOutput(out1.getHash(), 0));
+        assertNull(cache.getTransactionOutput(out1.getHash(), 0));
+        try {
+            cache.removeUnspentTransactionOutput(out1);
+            fail();
+        } catch (BlockStoreException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void outputCreatedAndSpentInOneBatchNeverReachesStore() throws Exception {
+        MemoryFullPrunedBlockStore memoryStore = new MemoryFullPrunedBlockStore(PARAMS, 10) {
+            @Override
+            public void addUnspentTransactionOutput(UTXO out) {
+                fail("Should not be written");
+            }
+        };
+        CachingFullPrunedBlockStore cache = new CachingFullPrunedBlockStore(memoryStore, 1024 * 1024);
+        Script script = ScriptBuilder.createOutputScript(LegacyAddress.fromKey(PARAMS, new ECKey()));
+        UTXO out = new UTXO(Sha256Hash.of(new byte[] {1}), 0, Coin.COIN, 1, false, script);
+
+        cache.beginDatabaseBatchWrite();
+        // As done by the BIP30 check, after which the cache knows the store doesn't have the output.
+        assertFalse(cache.hasUnspentOutputs(out.getHash(), 1));
+        cache.addUnspentTransactionOutput(out);
+        cache.removeUnspentTransactionOutput(out);
+        cache.commitDatabaseBatchWrite();
+        assertNull(cache.getTransactionOutput(out.getHash(), 0));
+    }
+
+    @Test
+    public void outputAddedAfterLookupIsSpentInStore() throws Exception {
+        MemoryFullPrunedBlockStore memoryStore = new MemoryFullPrunedBlockStore(PARAMS, 10);
+        CachingFullPrunedBlockStore cache = new CachingFullPrunedBlockStore(memoryStore, 1024 * 1024);
+        Script script = ScriptBuilder.createOutputScript(LegacyAddress.fromKey(PARAMS, new ECKey()));
+        UTXO out = new UTXO(Sha256Hash.of(new byte[] {1}), 0, Coin.COIN, 1, false, script);
+
+        cache.beginDatabaseBatchWrite();
+        assertFalse(cache.hasUnspentOutputs(out.getHash(), 1));
+        cache.addUnspentTransactionOutput(out);
+        cache.commitDatabaseBatchWrite();
+        assertEquals(out, memoryStore.getTransactionOutput(out.getHash(), 0));
+
+        // Once written, the store has the output and must be told when it's spent.
+        cache.beginDatabaseBatchWrite();
+        cache.removeUnspentTransactionOutput(out);
+        cache.commitDatabaseBatchWrite();
+        assertNull(memoryStore.getTransactionOutput(out.getHash(), 0));
+    }
+
+    @Test
+    public void countersAndEviction() throws Exception {
+        MemoryFullPrunedBlockStore memoryStore = new MemoryFullPrunedBlockStore(PARAMS, 10);
+        CachingFullPrunedBlockStore cache = new CachingFullPrunedBlockStore(memoryStore, 4 * 1024);
+        Script script = ScriptBuilder.createOutputScript(LegacyAddress.fromKey(PARAMS, new ECKey()));
+        for (int i = 0; i < 100; i++)
+            memoryStore.addUnspentTransactionOutput(new UTXO(Sha256Hash.of(new byte[] {(byte) i}), 0, Coin.COIN, 1,
+                    false, script));
+
+        Sha256Hash hash = Sha256Hash.of(new byte[] {0});
+        assertNotNull(cache.getTransactionOutput(hash, 0));
+        assertNotNull(cache.getTransactionOutput(hash, 0));
+        assertEquals(1, cache.getHits());
+        assertEquals(1, cache.getMisses());
+
+        for (int i = 0; i < 100; i++)
+            assertNotNull(cache.getTransactionOutput(Sha256Hash.of(new byte[] {(byte) i}), 0));
+        assertTrue(cache.getEvictions() > 0);
+        assertTrue(cache.getSizeInBytes() <= 4 * 1024);
+        assertTrue(cache.size() < 100);
+    }
+
+    @Test
+    public void dirtyEntriesAreNotEvicted() throws Exception {
+        MemoryFullPrunedBlockStore memoryStore = new MemoryFullPrunedBlockStore(PARAMS, 10);
+        CachingFullPrunedBlockStore cache = new CachingFullPrunedBlockStore(memoryStore, 4 * 1024);
+        Script script = ScriptBuilder.createOutputScript(LegacyAddress.fromKey(PARAMS, new ECKey()));
+        for (int i = 0; i < 10; i++)
+            memoryStore.addUnspentTransactionOutput(new UTXO(Sha256Hash.of(new byte[] {1, (byte) i}), 0, Coin.COIN, 1,
+                    false, script));
+
+        // The batch alone is over the limit, so only the clean entries loaded during it can go.
+        cache.beginDatabaseBatchWrite();
+        for (int i = 0; i < 100; i++)
+            cache.addUnspentTransactionOutput(new UTXO(Sha256Hash.of(new byte[] {(byte) i}), 0, Coin.COIN, 1, false,
+                    script));
+        for (int i = 0; i < 10; i++)
+            assertNotNull(cache.getTransactionOutput(Sha256Hash.of(new byte[] {1, (byte) i}), 0));
+        assertEquals(10, cache.getEvictions());
+        assertEquals(100, cache.size());
+        for (int i = 0; i < 100; i++)
+            assertNotNull(cache.getTransactionOutput(Sha256Hash.of(new byte[] {(byte) i}), 0));
+        assertEquals(100, cache.getHits());
+
+        cache.commitDatabaseBatchWrite();
+        assertTrue(cache.getSizeInBytes() <= 4 * 1024);
+        for (int i = 0; i < 100; i++)
+            assertNotNull(memoryStore.getTransactionOutput(Sha256Hash.of(new byte[] {(byte) i}), 0));
+    }
+}
@@ -60,6 +60,7 @@ public class CheckpointManagerTest {
                 new BitcoinSerializer(params, false));
         expect(params.getProtocolVersionNum(NetworkParameters.ProtocolVersion.CURRENT))
                 .andReturn(NetworkParameters.ProtocolVersion.CURRENT.getBitcoinProtocolVersion());
+        expect(params.hasEquihashHeaders()).andReturn(false).anyTimes();
         replay(params);
         new CheckpointManager(params, null);
     }
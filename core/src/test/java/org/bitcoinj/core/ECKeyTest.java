@@ -119,6 +119,38 @@ public class ECKeyTest {
         assertTrue(key.verify(Sha256Hash.ZERO_HASH.getBytes(), sig));
     }
 
+    @Test
+    public void verifyBatch() throws Exception {
+        List<byte[]> hashes = Lists.newArrayList();
+        List<ECDSASignature> signatures = Lists.newArrayList();
+        List<byte[]> pubKeys = Lists.newArrayList();
+        for (int i = 0; i < 6; i++) {
+            ECKey key = new ECKey();
+            Sha256Hash hash = Sha256Hash.of(new byte[] { (byte) i });
+            hashes.add(hash.getBytes());
+            signatures.add(key.sign(hash));
+            pubKeys.add(key.getPubKey());
+        }
+        // Signed by another key, over another hash, and a public key that isn't a point at all.
+        pubKeys.set(1, new ECKey().getPubKey());
+        hashes.set(3, Sha256Hash.ZERO_HASH.getBytes());
+        pubKeys.set(4, new byte[] { 2, 1, 2, 3 });
+
+        boolean[] results = ECKey.verifyBatch(hashes, signatures, pubKeys);
+        assertArrayEquals(new boolean[] { true, false, true, false, false, true }, results);
+        for (int i = 0; i < results.length; i++)
+            if (i != 4)
+                assertEquals(ECKey.verify(hashes.get(i), signatures.get(i), pubKeys.get(i)), results[i]);
+        assertEquals(0, ECKey.verifyBatch(hashes.subList(0, 0), signatures.subList(0, 0), pubKeys.subList(0, 0)).length);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void verifyBatchSizeMismatch() {
+        ECKey key = new ECKey();
+        ECKey.verifyBatch(Arrays.asList(Sha256Hash.ZERO_HASH.getBytes()), Arrays.<ECDSASignature>asList(),
+                Arrays.asList(key.getPubKey()));
+    }
+
     @Test
     public void testASN1Roundtrip() throws Exception {
         byte[] privkeyASN1 = HEX.decode(
@@ -0,0 +1,127 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.core;
+
+import org.bitcoinj.params.UnitTestParams;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+
+import static org.bitcoinj.core.Utils.HEX;
+import static org.junit.Assert.*;
+
+public class EquihashTest {
+    // A header with a solution for n=200, k=9, as found by a Wagner style solver.
+    static final String INPUT_HEX =
+            "040000009a4585773ce2ccd7a585c331d60a60d1e3b7d28cbb2ede3bc55445342f12f54b86d9576498ea764b49243efe" +
+            "b05df625010438c6a55d5b578de4ff00c9b4c1db00000000000000000000000000000000000000000000000000000000" +
+            "00000000a14dd857ffff071f0000000000000000000000000000000000000000000000000000000000000000";
+    static final String SOLUTION_HEX =
+            "009b9697f79e80131124a4d7c6ee0663719f1f92d110ab6ffc778ed43c865cd1c974f2805d1b24bf13b4046a4cbe3318" +
+            "d5a2f7ab38cc555bf9b2b1f6387b1a132d0283c3d11c97a1a7e15a974688813b3f3c04af09e63d711d51fcd2c730214d" +
+            "9fae0bdee3bf3778f63aa4c632381abbf5c4b4a5475039b1395fb6945fca0ff1f6b0f109d763bd5372e1d07a46d2b27d" +
+            "3fc3d814770bd22b94b5c1268753a701d2b04d29b531c111026f76242ea9dfcbf4b7908135b135e3e7285f67c61dc0fb" +
+            "abc459cc9b8fffc1f6efa35050c40cf100fc1de84691318f1e753f62f25a36f594fcbc838ef3f1482b5dfdad20512146" +
+            "af14f27b4d3e1647007564c6112668906cac7c57e18312f649612e5d4c98fcdfb411bc1a189169778ba92ab1515ba333" +
+            "c71e9bbe5f8c2e4bcbca2d52c10fa7c9068607c03e538d315d802b4421262dc291a0dda3a208255cf8a7ea48bcf99955" +
+            "0433bc31bf66e7c5b57a10b31ddf1dd98acd1716fd2c6023f4979b7df107fd751a14706b21edce5b26e813ab0d5c2348" +
+            "2904865d9ae6457c9c16e6f63cfc4637846a22f1b6dccfb7c033878bc6c3fad174375c76046b6e155c267fef7feaa3ac" +
+            "621ff511539f744f3b10b1a7a327d5698b4953113293e0267563c271aadd18a05f770415bbf3b37733d299b430fabe32" +
+            "ba83a01eef0238f695130b531f965b07c4541b99673d2f2c0a9e60e0d24e4d43f7a08101ac94d5f93e5b6b9bf624638a" +
+            "f02020146f4c3903222ac46c62c9bbfa58fe24057d311c643ad32c06f4dfc1c442be94bcb5f50e4455efd3b871b12dd3" +
+            "19c44af3d87d79ce88183e6e0db25a03718686bd644891f92debe994ecd06ad40a407d062c31606269eaf4e56c993319" +
+            "82e2a3d910dd0f7dc9dd95849051856e133cef278c9e1a5c7f539b23f726c1fdd1a511ee68d44da2e3df8a09e35b301f" +
+            "00c8ea26339828b0cb3b2075375db36c5160a74b483c93f21081988a355e60e85e09e53e8311da7a28550f9c744fd68c" +
+            "c54bf52c720df6a8b528d2ef74fb7c29d90ec31ca2d4d98898031351c44a8661611e940e00fd8ab578d912d8f590d0f6" +
+            "ab465648728d59472907e2e24cbb0c32f3f544936685a6d2eafb43dd94e6114c4ccc3523f519fa7c85e487ef58e6893e" +
+            "7d59ba4b253fe51d55d8958d98aa7135fd3176d2b03a6965085248696df605a3b48a2174edeb0a616bb7fe406d27f6f3" +
+            "bf5591dc0f3c6107964d4f8c2f9392dd403409154a67cc15cca9db2158a3f9ede91a4e22de380718c18cb35b8d723524" +
+            "aaf5edb4bf482be3843fd04a10811cc20496148947fe01853bec2930fbbfaf5c3f2f8a3d5db861eb57f9689458ec255b" +
+            "6da124b9552e308d92725f17e48d1377c4e75abeb9f958e75801a65755eea7e558512331f6374ac741e59b37877dcd63" +
+            "0392f8d43f671107a22ca427e8a868a69d95bbf67f21309301b163e835afff3a609b593a8382283f8db718100c70bfb0" +
+            "aabd9b62d1e489105f6c90e518333c4d560739476c3541f54854f2bdc473dd8edfb5378c1659ea75254b18feaedcb3d9" +
+            "47df5d952511552ff22a479c1041a6b3894c9df3409b4aed10fd32eabba4199326e5575757e3f82e7218f8baf0823e6b" +
+            "7e359d1e78fd8333714767d8be03019560141a4469faf877048d8ae7eece5d6f2670d4fda5764b014bc46bcba785d3d5" +
+            "7e6d7352b9e0620b0ca4622822cf73374e5c0ad300ef5d65dd7f7bd001dce7932d7ad994b81b7f361177626d14e6676c" +
+            "62250562c214365ab75c0f050f5839de3775d4d1e761056a69e36be163e3b640bb3d74aa2cc6a7e7316fb9f8d22cf308" +
+            "7f99c0df72ce2c0ae5d0b5cdce31d8675786085eb2f740fa9ecd52439895f39f69503f568f851b992ef5f55072b826e9";
+
+    static final NetworkParameters EQUIHASH_PARAMS = new UnitTestParams() {
+        @Override
+        public boolean hasEquihashHeaders() {
+            return true;
+        }
+    };
+
+    static Block makeHeader(byte[] input, byte[] solution) throws Exception {
+        ByteArrayOutputStream header = new ByteArrayOutputStream();
+        header.write(input);
+        header.write(new VarInt(solution.length).encode());
+        header.write(solution);
+        return EQUIHASH_PARAMS.getDefaultSerializer().makeBlock(header.toByteArray());
+    }
+
+    static Block makeValidHeader() throws Exception {
+        return makeHeader(HEX.decode(INPUT_HEX), HEX.decode(SOLUTION_HEX));
+    }
+
+    @Test
+    public void validSolution() throws Exception {
+        assertEquals(1344, Equihash.KOMODO.getSolutionLength());
+        assertTrue(Equihash.KOMODO.verify(HEX.decode(INPUT_HEX), HEX.decode(SOLUTION_HEX)));
+        Block header = makeValidHeader();
+        assertArrayEquals(HEX.decode(INPUT_HEX), header.getEquihashInput());
+        assertTrue(Equihash.KOMODO.verify(header));
+    }
+
+    @Test
+    public void otherInput() throws Exception {
+        byte[] input = HEX.decode(INPUT_HEX);
+        input[input.length - 1] ^= 1;
+        assertFalse(Equihash.KOMODO.verify(input, HEX.decode(SOLUTION_HEX)));
+    }
+
+    @Test
+    public void changedIndex() throws Exception {
+        byte[] solution = HEX.decode(SOLUTION_HEX);
+        solution[100] ^= 0x10;
+        assertFalse(Equihash.KOMODO.verify(HEX.decode(INPUT_HEX), solution));
+    }
+
+    @Test
+    public void wrongLength() throws Exception {
+        byte[] solution = HEX.decode(SOLUTION_HEX);
+        assertFalse(Equihash.KOMODO.verify(HEX.decode(INPUT_HEX), Arrays.copyOf(solution, solution.length - 1)));
+        assertFalse(Equihash.KOMODO.verify(HEX.decode(INPUT_HEX), new byte[0]));
+    }
+
+    @Test
+    public void swappedHalves() throws Exception {
+        // Still XORs to zero with the same collisions, but the halves are out of order.
+        byte[] solution = HEX.decode(SOLUTION_HEX);
+        byte[] swapped = new byte[solution.length];
+        System.arraycopy(solution, solution.length / 2, swapped, 0, solution.length / 2);
+        System.arraycopy(solution, 0, swapped, solution.length / 2, solution.length / 2);
+        assertFalse(Equihash.KOMODO.verify(HEX.decode(INPUT_HEX), swapped));
+    }
+
+    @Test
+    public void repeatedIndices() throws Exception {
+        assertFalse(Equihash.KOMODO.verify(HEX.decode(INPUT_HEX), new byte[1344]));
+    }
+}
@@ -0,0 +1,130 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.core;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+
+import static org.bitcoinj.core.Utils.HEX;
+import static org.junit.Assert.*;
+
+public class HeaderVerifierTest {
+    private HeaderVerifier verifier = new HeaderVerifier(Equihash.KOMODO, 2, 10);
+
+    @After
+    public void tearDown() {
+        verifier.shutdown();
+    }
+
+    @Test
+    public void verify() throws Exception {
+        List<Block> headers = Collections.nCopies(200, EquihashTest.makeValidHeader());
+        // Far more than the verifier holds, so this blocks until the workers caught up.
+        assertSame(headers, verifier.verify(headers).get());
+        assertEquals(200, verifier.getVerifiedHeaders());
+        assertTrue(verifier.getHeadersPerSecond() > 0);
+    }
+
+    @Test
+    public void invalidSolution() throws Exception {
+        byte[] solution = HEX.decode(EquihashTest.SOLUTION_HEX);
+        solution[0] ^= 1;
+        List<Block> headers = new ArrayList<>(Collections.nCopies(120, EquihashTest.makeValidHeader()));
+        headers.set(110, EquihashTest.makeHeader(HEX.decode(EquihashTest.INPUT_HEX), solution));
+        try {
+            verifier.verify(headers).get();
+            fail();
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof VerificationException);
+        }
+    }
+
+    @Test
+    public void shutdown() throws Exception {
+        verifier.shutdown();
+        try {
+            verifier.verify(Collections.singletonList(EquihashTest.makeValidHeader())).get();
+            fail();
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof RejectedExecutionException);
+        }
+    }
+
+    @Test
+    public void shutdownWhileBlocked() throws Exception {
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        Equihash slow = new Equihash(200, 9) {
+            @Override
+            public boolean verify(Block header) {
+                started.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    // Interrupted by the shutdown.
+                }
+                return true;
+            }
+        };
+        final HeaderVerifier slowVerifier = new HeaderVerifier(slow, 1, 60);
+        final Block header = EquihashTest.makeValidHeader();
+        ListenableFuture<List<Block>> running = slowVerifier.verify(Collections.singletonList(header));
+        started.await();
+        ListenableFuture<List<Block>> queued = slowVerifier.verify(Collections.nCopies(50, header));
+        final SettableFuture<ListenableFuture<List<Block>>> blocked = SettableFuture.create();
+        Thread network = new Thread() {
+            @Override
+            public void run() {
+                blocked.set(slowVerifier.verify(Collections.nCopies(50, header)));
+            }
+        };
+        network.start();
+        while (network.getState() != Thread.State.WAITING)
+            Thread.sleep(10);
+        assertFalse(blocked.isDone());
+
+        slowVerifier.shutdown();
+        network.join(5000);
+        assertFalse(network.isAlive());
+        try {
+            blocked.get().get();
+            fail();
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof RejectedExecutionException);
+        }
+        assertTrue(queued.isCancelled() || queued.isDone());
+        release.countDown();
+        try {
+            running.get();
+        } catch (ExecutionException e) {
+            // Possibly cancelled together with the queued headers.
+        }
+        // Nothing is left pending, so the throughput doesn't count the time since.
+        double rate = slowVerifier.getHeadersPerSecond();
+        Thread.sleep(50);
+        assertEquals(rate, slowVerifier.getHeadersPerSecond(), 0);
+    }
+}
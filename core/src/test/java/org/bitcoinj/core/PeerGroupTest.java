@@ -21,6 +21,7 @@ import com.google.common.base.Stopwatch;
 import com.google.common.collect.*;
 import com.google.common.util.concurrent.*;
 import org.bitcoinj.core.listeners.*;
+import org.bitcoinj.net.FilterMerger;
 import org.bitcoinj.net.discovery.*;
 import org.bitcoinj.testing.*;
 import org.bitcoinj.utils.*;
@@ -30,6 +31,7 @@ import org.junit.runner.*;
 import org.junit.runners.*;
 
 import java.io.*;
+import java.math.BigInteger;
 import java.net.*;
 import java.util.*;
 import java.util.concurrent.*;
@@ -671,6 +673,96 @@ public class PeerGroupTest extends TestWithPeerGroup {
         assertFalse(f1.contains(key.getPubKeyHash()));
     }
 
+    @Test
+    public void bloomFilterUpdatedWithoutRecalculation() throws Exception {
+        wallet.setKeyChainGroupLookaheadSize(5);
+        wallet.setKeyChainGroupLookaheadThreshold(4);
+        peerGroup.start();
+        InboundMessageQueuer p1 = connectPeer(1);
+        peerGroup.waitForJobQueue();
+        while (outbound(p1) != null);
+        FilterMerger merger = peerGroup.getBloomFilterMerger();
+        int rebuilds = merger.getRebuildCount();
+
+        // New lookahead keys fit into the filter, so they're inserted into it.
+        ECKey key = null;
+        for (int i = 0; i < wallet.getKeyChainGroupLookaheadSize() + wallet.getKeyChainGroupLookaheadThreshold() + 1; i++)
+            key = wallet.freshReceiveKey();
+        peerGroup.waitForJobQueue();
+        assertEquals(rebuilds, merger.getRebuildCount());
+        assertTrue(merger.getInsertCount() > 0);
+        BloomFilter bf, filter = null;
+        while ((bf = (BloomFilter) outbound(p1)) != null) {
+            assertEquals(MemoryPoolMessage.class, outbound(p1).getClass());
+            filter = bf;
+        }
+        assertNotNull(filter);
+        assertTrue(filter.contains(key.getPubKey()));
+        assertTrue(filter.contains(key.getPubKeyHash()));
+        assertArrayEquals(merger.getLastFilter().bitcoinSerialize(), filter.bitcoinSerialize());
+
+        // Too many keys for the filter to keep its false positive rate, so it's recalculated.
+        List<ECKey> keys = new ArrayList<>();
+        for (int i = 0; i < 500; i++)
+            keys.add(new ECKey());
+        wallet.importKeys(keys);
+        peerGroup.waitForJobQueue();
+        // The recalculation is queued behind the insertion attempt.
+        peerGroup.waitForJobQueue();
+        assertEquals(rebuilds + 1, merger.getRebuildCount());
+        filter = assertNextMessageIs(p1, BloomFilter.class);
+        assertTrue(filter.contains(keys.get(499).getPubKey()));
+        assertTrue(filter.getFalsePositiveRate(wallet.getBloomFilterElementCount()) <= merger.getBloomFilterFPRate());
+    }
+
+    @Test
+    public void bloomFilterInsertionAtMaximumSize() throws Exception {
+        // Enough elements for the filter to be capped at the maximum size, so it can't reach the configured rate.
+        final int elements = 20000;
+        PeerFilterProvider provider = new PeerFilterProvider() {
+            @Override
+            public long getEarliestKeyCreationTime() {
+                return 0;
+            }
+
+            @Override
+            public void beginBloomFilterCalculation() {
+            }
+
+            @Override
+            public int getBloomFilterElementCount() {
+                return elements;
+            }
+
+            @Override
+            public BloomFilter getBloomFilter(int size, double falsePositiveRate, long nTweak) {
+                return new BloomFilter(size, falsePositiveRate, nTweak);
+            }
+
+            @Override
+            public boolean isRequiringUpdateAllBloomFilter() {
+                return false;
+            }
+
+            @Override
+            public void endBloomFilterCalculation() {
+            }
+        };
+        FilterMerger merger = new FilterMerger(PeerGroup.DEFAULT_BLOOM_FILTER_FP_RATE);
+        FilterMerger.Result result = merger.calculate(ImmutableList.of(provider));
+        assertTrue(result.filter.getFalsePositiveRate(elements) > merger.getBloomFilterFPRate());
+
+        // Batches of lookahead keys are still inserted, until the room left for them is used up.
+        List<byte[]> batch = new ArrayList<>();
+        for (int i = 0; i < 200; i++)
+            batch.add(new ECKey().getPubKey());
+        int inserts = 0;
+        while (merger.insert(batch, 0, false) != null)
+            inserts++;
+        assertEquals(elements / 2 / batch.size(), inserts);
+        assertEquals(1, merger.getRebuildCount());
+    }
+
     @Test
     public void waitForNumPeers1() throws Exception {
         ListenableFuture<List<Peer>> future = peerGroup.waitForPeers(3);
@@ -855,6 +947,119 @@ public class PeerGroupTest extends TestWithPeerGroup {
         assertEquals(blocks.get(blocks.size() - 1).getHash(), blockChain.getChainHead().getHeader().getHash());
     }
 
+    @Test
+    public void parallelBlockDownload() throws Exception {
+        peerGroup.setMaxBlockDownloadPeers(3);
+        peerGroup.start();
+        List<Block> blocks = makeBlocks(40);
+        VersionMessage ver = versionWithHeight(blocks.size());
+        InboundMessageQueuer p1 = connectPeer(1, ver);
+        InboundMessageQueuer p2 = connectPeer(2, ver);
+        InboundMessageQueuer p3 = connectPeer(3, ver);
+        peerGroup.startBlockChainDownload(null);
+
+        // Headers come from the download peer only.
+        GetHeadersMessage getheaders = assertNextMessageIs(p1, GetHeadersMessage.class);
+        assertEquals(blockChain.getChainHead().getHeader().getHash(), getheaders.getLocator().getHashes().get(0));
+        inbound(p1, headersOf(blocks));
+
+        // The blocks are split between the peers.
+        GetDataMessage getdata1 = assertNextMessageIs(p1, GetDataMessage.class);
+        Ping ping1 = assertNextMessageIs(p1, Ping.class);
+        GetDataMessage getdata2 = assertNextMessageIs(p2, GetDataMessage.class);
+        Ping ping2 = assertNextMessageIs(p2, Ping.class);
+        GetDataMessage getdata3 = assertNextMessageIs(p3, GetDataMessage.class);
+        Ping ping3 = assertNextMessageIs(p3, Ping.class);
+        assertEquals(blocks.size(), getdata1.getItems().size() + getdata2.getItems().size() + getdata3.getItems().size());
+        assertEquals(blocks.get(0).getHash(), getdata1.getHashOf(0));
+        assertEquals(InventoryItem.Type.FilteredBlock, getdata1.getItems().get(0).type);
+
+        // Blocks that arrive out of order wait for the ones before them.
+        BloomFilter filter = new BloomFilter(UNITTEST, p1.lastReceivedFilter.bitcoinSerialize());
+        StoredBlock head = blockChain.getChainHead();
+        sendRequested(p3, blocks, getdata3, ping3, filter);
+        sendRequested(p2, blocks, getdata2, ping2, filter);
+        assertEquals(head, blockChain.getChainHead());
+        sendRequested(p1, blocks, getdata1, ping1, filter);
+        assertEquals(blocks.get(blocks.size() - 1).getHash(), blockChain.getChainHead().getHeader().getHash());
+
+        // Done, the download peer takes over again.
+        assertFalse(peerGroup.getBlockDownloadScheduler().isActive());
+        assertNextMessageIs(p1, GetBlocksMessage.class);
+    }
+
+    @Test
+    public void parallelBlockDownloadStall() throws Exception {
+        Utils.setMockClock();
+        peerGroup.setMaxBlockDownloadPeers(2);
+        peerGroup.start();
+        List<Block> blocks = makeBlocks(20);
+        VersionMessage ver = versionWithHeight(blocks.size());
+        InboundMessageQueuer p1 = connectPeer(1, ver);
+        InboundMessageQueuer p2 = connectPeer(2, ver);
+        peerGroup.startBlockChainDownload(null);
+        assertNextMessageIs(p1, GetHeadersMessage.class);
+        inbound(p1, headersOf(blocks));
+        GetDataMessage getdata1 = assertNextMessageIs(p1, GetDataMessage.class);
+        GetDataMessage getdata2 = assertNextMessageIs(p2, GetDataMessage.class);
+        BloomFilter filter = new BloomFilter(UNITTEST, p2.lastReceivedFilter.bitcoinSerialize());
+        sendRequested(p2, blocks, getdata2, assertNextMessageIs(p2, Ping.class), filter);
+
+        // The download peer never answers, so its blocks are requested from the other peer.
+        Utils.rollMockClock(11);
+        peerGroup.getBlockDownloadScheduler().checkForStalls();
+        assertEquals(1, peerGroup.getBlockDownloadScheduler().getStalls());
+        GetDataMessage retry = assertNextMessageIs(p2, GetDataMessage.class);
+        assertEquals(getdata1.getItems(), retry.getItems());
+        sendRequested(p2, blocks, retry, assertNextMessageIs(p2, Ping.class), filter);
+        assertEquals(blocks.get(blocks.size() - 1).getHash(), blockChain.getChainHead().getHeader().getHash());
+    }
+
+    private List<Block> makeBlocks(int count) throws Exception {
+        List<Block> blocks = new ArrayList<>();
+        StoredBlock head = blockStore.getChainHead();
+        Block prev = head.getHeader();
+        for (int height = head.getHeight() + 1; height <= head.getHeight() + count; height++) {
+            Block next = prev.createNextBlock((Address) null);
+            if (height % UNITTEST.getInterval() == 0) {
+                // The blocks are only seconds apart, so each retarget quarters the target.
+                BigInteger target = Utils.decodeCompactBits(prev.getDifficultyTarget()).divide(BigInteger.valueOf(4));
+                next.setDifficultyTarget(Utils.encodeCompactBits(target));
+                next.solve();
+            }
+            blocks.add(next);
+            prev = next;
+        }
+        return blocks;
+    }
+
+    private VersionMessage versionWithHeight(int height) {
+        VersionMessage ver = new VersionMessage(UNITTEST, height);
+        ver.localServices = VersionMessage.NODE_NETWORK;
+        ver.clientVersion = NotFoundMessage.MIN_PROTOCOL_VERSION;
+        return ver;
+    }
+
+    private static HeadersMessage headersOf(List<Block> blocks) {
+        List<Block> headers = new ArrayList<>();
+        for (Block block : blocks)
+            headers.add(block.cloneAsHeader());
+        return new HeadersMessage(UNITTEST, headers);
+    }
+
+    /** Answers a getdata for filtered blocks, and the ping that followed it to mark the end of the last block. */
+    private void sendRequested(InboundMessageQueuer p, List<Block> blocks, GetDataMessage getdata, Ping ping,
+                               BloomFilter filter) throws Exception {
+        List<Block> requested = new ArrayList<>();
+        for (InventoryItem item : getdata.getItems())
+            for (Block block : blocks)
+                if (block.getHash().equals(item.hash))
+                    requested.add(block);
+        filterAndSend(p, requested, filter);
+        inbound(p, new Pong(ping.getNonce()));
+        pingAndWait(p);
+    }
+
     private void filterAndSend(InboundMessageQueuer p1, List<Block> blocks, BloomFilter filter) {
         for (Block block : blocks) {
             FilteredBlock fb = filter.applyAndUpdate(block);
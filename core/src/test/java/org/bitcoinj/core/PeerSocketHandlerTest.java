@@ -0,0 +1,169 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.core;
+
+import org.bitcoinj.net.MessageWriteTarget;
+import org.bitcoinj.params.UnitTestParams;
+import org.bitcoinj.testing.FakeTxBuilder;
+import com.google.common.util.concurrent.ListenableFuture;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.*;
+
+public class PeerSocketHandlerTest {
+    private static final NetworkParameters UNITTEST = UnitTestParams.get();
+    // The smallest read buffer the network classes use.
+    private static final int BUFFER_SIZE = 4096;
+
+    private final List<Message> received = new ArrayList<>();
+    private PeerSocketHandler handler;
+
+    @Before
+    public void setUp() throws Exception {
+        Context.propagate(new Context(UNITTEST, 100, Coin.ZERO, false));
+        handler = new PeerSocketHandler(UNITTEST, new InetSocketAddress("127.0.0.1", 2000)) {
+            @Override
+            protected void processMessage(Message m) {
+                received.add(m);
+            }
+
+            @Override
+            public void connectionClosed() {
+            }
+
+            @Override
+            public void connectionOpened() {
+            }
+        };
+    }
+
+    /** Feeds the bytes to the handler the way the connection handlers do, reading at most readSize at a time. */
+    private int feed(byte[] bytes, int readSize) throws Exception {
+        ByteBuffer buff = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        int offset = 0;
+        while (offset < bytes.length) {
+            int read = Math.min(Math.min(readSize, buff.remaining()), bytes.length - offset);
+            buff.put(bytes, offset, read);
+            offset += read;
+            buff.flip();
+            int consumed = handler.receiveBytes(buff);
+            if (consumed < 0)
+                return consumed;
+            assertEquals(consumed, buff.position());
+            buff.compact();
+        }
+        return 0;
+    }
+
+    private static byte[] serialize(Message... messages) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (Message message : messages)
+            UNITTEST.getDefaultSerializer().serialize(message, out);
+        return out.toByteArray();
+    }
+
+    private static Block makeLargeBlock() throws Exception {
+        Address to = LegacyAddress.fromKey(UNITTEST, new ECKey());
+        Block block = UNITTEST.getGenesisBlock().createNextBlock(to);
+        for (int i = 0; i < 100; i++)
+            block.addTransaction(FakeTxBuilder.createFakeTx(UNITTEST, Coin.COIN, to));
+        block.solve();
+        return block;
+    }
+
+    @Test
+    public void messagesSplitAcrossReads() throws Exception {
+        Block block = makeLargeBlock();
+        Transaction tx = block.getTransactions().get(1);
+        byte[] bytes = serialize(new Ping(1), block, tx, new Pong(2));
+        assertTrue(bytes.length > 2 * BUFFER_SIZE);
+        for (int readSize : new int[] { 1, 7, 24, 100, 5000, BUFFER_SIZE }) {
+            received.clear();
+            assertEquals(0, feed(bytes, readSize));
+            assertEquals(4, received.size());
+            assertEquals(1, ((Ping) received.get(0)).getNonce());
+            Block receivedBlock = (Block) received.get(1);
+            assertEquals(block.getHash(), receivedBlock.getHash());
+            assertArrayEquals(block.bitcoinSerialize(), receivedBlock.bitcoinSerialize());
+            // The transaction hash is taken from the checksum computed while reading.
+            assertEquals(tx.getHash(), ((Transaction) received.get(2)).getHash());
+            assertEquals(2, ((Pong) received.get(3)).getNonce());
+        }
+    }
+
+    @Test
+    public void garbageBeforeMagic() throws Exception {
+        byte[] message = serialize(new Ping(1));
+        byte[] bytes = new byte[100 + message.length];
+        System.arraycopy(message, 0, bytes, 100, message.length);
+        assertEquals(0, feed(bytes, 30));
+        assertEquals(1, received.size());
+    }
+
+    @Test
+    public void badChecksum() throws Exception {
+        byte[] bytes = serialize(makeLargeBlock());
+        bytes[bytes.length - 1] ^= 1;
+        assertEquals(-1, feed(bytes, 1000));
+        assertTrue(received.isEmpty());
+    }
+
+    @Test
+    public void whenWritable() throws Exception {
+        final AtomicBoolean writable = new AtomicBoolean(true);
+        handler.setWriteTarget(new MessageWriteTarget() {
+            @Override
+            public void writeBytes(byte[] message) {
+            }
+
+            @Override
+            public void closeConnection() {
+            }
+
+            @Override
+            public boolean isWritable() {
+                return writable.get();
+            }
+        });
+        assertTrue(handler.isWritable());
+        assertTrue(handler.whenWritable().isDone());
+
+        writable.set(false);
+        handler.writabilityChanged(false);
+        assertFalse(handler.isWritable());
+        ListenableFuture<Void> future = handler.whenWritable();
+        assertFalse(future.isDone());
+
+        writable.set(true);
+        handler.writabilityChanged(true);
+        assertTrue(future.isDone());
+        assertTrue(handler.isWritable());
+    }
+
+    @Test
+    public void noMagic() throws Exception {
+        assertEquals(-1, feed(new byte[2 * BUFFER_SIZE], BUFFER_SIZE));
+    }
+}
@@ -473,6 +473,83 @@ public class TransactionTest {
         }
     }
 
+    @Test
+    public void hashForSignatureMatchesCopyingImplementation() {
+        Transaction tx = new Transaction(UNITTEST);
+        Random random = new Random(42);
+        for (int i = 0; i < 5; i++) {
+            byte[] hash = new byte[32];
+            random.nextBytes(hash);
+            byte[] scriptSig = new byte[random.nextInt(100)];
+            random.nextBytes(scriptSig);
+            TransactionInput input = new TransactionInput(UNITTEST, tx, scriptSig,
+                    new TransactionOutPoint(UNITTEST, random.nextInt(10), Sha256Hash.wrap(hash)));
+            input.setSequenceNumber(i == 2 ? TransactionInput.NO_SEQUENCE : random.nextInt() & 0xffffffffL);
+            tx.addInput(input);
+        }
+        for (int i = 0; i < 3; i++)
+            tx.addOutput(Coin.valueOf(random.nextInt(1000000)), new ECKey());
+        tx.setVersion(2);
+        byte[] connectedScript = ScriptBuilder.createOutputScript(new ECKey()).getProgram();
+        byte[] sigHashTypes = { 0, 0x01, 0x02, 0x03, 0x04, (byte) 0x81, (byte) 0x82, (byte) 0x83, (byte) 0x84 };
+
+        for (int i = 0; i < tx.getInputs().size(); i++)
+            for (byte sigHashType : sigHashTypes)
+                assertEquals(hashForSignatureByCopying(tx, i, connectedScript, sigHashType),
+                        tx.hashForSignature(i, connectedScript, sigHashType));
+
+        // Modifying the transaction must invalidate the cached parts of the signature hash.
+        tx.getOutput(1).setValue(Coin.COIN);
+        tx.getInput(3).setSequenceNumber(7);
+        tx.addOutput(Coin.CENT, new ECKey());
+        for (int i = 0; i < tx.getInputs().size(); i++)
+            for (byte sigHashType : sigHashTypes)
+                assertEquals(hashForSignatureByCopying(tx, i, connectedScript, sigHashType),
+                        tx.hashForSignature(i, connectedScript, sigHashType));
+    }
+
+    // The original implementation of hashForSignature(), which simplifies a copy of the transaction and serializes it.
+    private static Sha256Hash hashForSignatureByCopying(Transaction original, int inputIndex, byte[] connectedScript,
+                                                        byte sigHashType) {
+        Transaction tx = new Transaction(UNITTEST, original.bitcoinSerialize());
+        for (TransactionInput input : tx.getInputs())
+            input.clearScriptBytes();
+        TransactionInput input = tx.getInput(inputIndex);
+        input.setScriptBytes(Script.removeAllInstancesOfOp(connectedScript, ScriptOpCodes.OP_CODESEPARATOR));
+        List<TransactionOutput> outputs = new ArrayList<>(tx.getOutputs());
+        if ((sigHashType & 0x1f) == Transaction.SigHash.NONE.value) {
+            outputs.clear();
+            for (TransactionInput other : tx.getInputs())
+                if (other != input)
+                    other.setSequenceNumber(0);
+        } else if ((sigHashType & 0x1f) == Transaction.SigHash.SINGLE.value) {
+            if (inputIndex >= outputs.size())
+                return Sha256Hash.wrap("0100000000000000000000000000000000000000000000000000000000000000");
+            outputs = new ArrayList<>(outputs.subList(0, inputIndex + 1));
+            for (int i = 0; i < inputIndex; i++)
+                outputs.set(i, new TransactionOutput(UNITTEST, tx, Coin.NEGATIVE_SATOSHI, new byte[] {}));
+            for (TransactionInput other : tx.getInputs())
+                if (other != input)
+                    other.setSequenceNumber(0);
+        }
+        List<TransactionInput> inputs = tx.getInputs();
+        if ((sigHashType & Transaction.SigHash.ANYONECANPAY.value) == Transaction.SigHash.ANYONECANPAY.value)
+            inputs = Collections.singletonList(input);
+
+        Transaction simplified = new Transaction(UNITTEST);
+        simplified.setVersion((int) tx.getVersion());
+        for (TransactionInput in : inputs)
+            simplified.addInput(new TransactionInput(UNITTEST, simplified, in.getScriptBytes(), in.getOutpoint()))
+                    .setSequenceNumber(in.getSequenceNumber());
+        for (TransactionOutput out : outputs)
+            simplified.addOutput(new TransactionOutput(UNITTEST, simplified, out.getValue(), out.getScriptBytes()));
+        byte[] bytes = simplified.bitcoinSerialize();
+        byte[] preimage = Arrays.copyOf(bytes, bytes.length + 4);
+        Utils.uint32ToByteArrayLE(tx.getLockTime(), preimage, bytes.length - 4);
+        Utils.uint32ToByteArrayLE(0x000000ff & sigHashType, preimage, bytes.length);
+        return Sha256Hash.twiceOf(preimage);
+    }
+
     @Test
     public void parseTransactionWithHugeDeclaredInputsSize() throws Exception {
         Transaction tx = new HugeDeclaredSizeTransaction(UNITTEST, true, false, false);
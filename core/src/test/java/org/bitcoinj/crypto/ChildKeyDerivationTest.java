@@ -22,6 +22,9 @@ import org.bitcoinj.params.*;
 import org.junit.*;
 import org.bouncycastle.crypto.params.*;
 
+import java.util.ArrayList;
+import java.util.List;
+
 import static org.bitcoinj.core.Utils.*;
 import static org.junit.Assert.*;
 
@@ -138,6 +141,23 @@ public class ChildKeyDerivationTest {
         assertArrayEquals(key2.chainCode, key3.chainCode);
     }
 
+    @Test
+    public void batchPublicDerivation() throws Exception {
+        DeterministicKey parent = HDKeyDerivation.createMasterPrivateKey("batch of keys".getBytes()).dropPrivateBytes()
+                .dropParent();
+        List<ChildNumber> childNumbers = new ArrayList<>();
+        for (int i = 0; i < 20; i++)
+            childNumbers.add(new ChildNumber(i * 7));
+        HDKeyDerivation.RawKeyBytes[] keys = HDKeyDerivation.deriveChildKeyBytesFromPublic(parent, childNumbers);
+        assertEquals(childNumbers.size(), keys.length);
+        for (int i = 0; i < keys.length; i++) {
+            HDKeyDerivation.RawKeyBytes key = HDKeyDerivation.deriveChildKeyBytesFromPublic(parent,
+                    childNumbers.get(i), HDKeyDerivation.PublicDeriveMode.NORMAL);
+            assertArrayEquals(key.keyBytes, keys[i].keyBytes);
+            assertArrayEquals(key.chainCode, keys[i].chainCode);
+        }
+    }
+
     @Test
     public void encryptedDerivation() throws Exception {
         // Check that encrypting a parent key in the hierarchy and then deriving from it yields a DeterministicKey
@@ -0,0 +1,150 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.crypto;
+
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.Utils;
+import org.bouncycastle.crypto.params.KeyParameter;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class DerivedKeyCacheTest {
+    private static final byte[] SALT = { 1, 2, 3, 4, 5, 6, 7, 8 };
+
+    private DerivedKeyCache cache;
+
+    @Before
+    public void setUp() {
+        Utils.setMockClock();
+        cache = new DerivedKeyCache(2, 60, TimeUnit.SECONDS);
+    }
+
+    @After
+    public void tearDown() {
+        cache.shutdown();
+        Utils.mockTime = null;
+    }
+
+    private static byte[] key(int b) {
+        byte[] key = new byte[KeyCrypterScrypt.KEY_LENGTH];
+        Arrays.fill(key, (byte) b);
+        return key;
+    }
+
+    private static boolean isWiped(byte[] key) {
+        for (byte b : key)
+            if (b != 0)
+                return false;
+        return true;
+    }
+
+    @Test
+    public void ids() {
+        Sha256Hash id = cache.id(new byte[] { 'a' }, SALT, 16384, 8, 1);
+        assertEquals(id, cache.id(new byte[] { 'a' }, SALT, 16384, 8, 1));
+        assertNotEquals(id, cache.id(new byte[] { 'b' }, SALT, 16384, 8, 1));
+        assertNotEquals(id, cache.id(new byte[] { 'a' }, new byte[8], 16384, 8, 1));
+        assertNotEquals(id, cache.id(new byte[] { 'a' }, SALT, 4096, 8, 1));
+        assertNotEquals(id, cache.id(new byte[] { 'a' }, SALT, 16384, 8, 2));
+        // Another cache uses another secret.
+        DerivedKeyCache other = new DerivedKeyCache(1, 1, TimeUnit.SECONDS);
+        assertNotEquals(id, other.id(new byte[] { 'a' }, SALT, 16384, 8, 1));
+        other.shutdown();
+    }
+
+    @Test
+    public void getReturnsCopy() {
+        Sha256Hash id = cache.id(new byte[] { 'a' }, SALT, 16384, 8, 1);
+        assertNull(cache.get(id));
+        byte[] key = key(7);
+        cache.put(id, key);
+        KeyParameter cached = cache.get(id);
+        assertArrayEquals(key(7), cached.getKey());
+        Arrays.fill(cached.getKey(), (byte) 0);
+        assertArrayEquals(key(7), cache.get(id).getKey());
+        assertArrayEquals(key(7), key);
+    }
+
+    @Test
+    public void expiredEntriesAreWiped() {
+        Sha256Hash id = cache.id(new byte[] { 'a' }, SALT, 16384, 8, 1);
+        byte[] key = key(7);
+        cache.put(id, key);
+        Utils.rollMockClock(59);
+        assertNotNull(cache.get(id));
+        Utils.rollMockClock(1);
+        assertNull(cache.get(id));
+        assertTrue(isWiped(key));
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void expiredEntriesAreWipedWithoutLookup() throws Exception {
+        Utils.mockTime = null;
+        DerivedKeyCache shortLived = new DerivedKeyCache(2, 50, TimeUnit.MILLISECONDS);
+        byte[] key = key(7);
+        shortLived.put(shortLived.id(new byte[] { 'a' }, SALT, 16384, 8, 1), key);
+        for (int i = 0; i < 200 && shortLived.size() > 0; i++)
+            Thread.sleep(10);
+        assertEquals(0, shortLived.size());
+        assertTrue(isWiped(key));
+        shortLived.shutdown();
+    }
+
+    @Test
+    public void leastRecentlyUsedIsEvicted() {
+        Sha256Hash a = cache.id(new byte[] { 'a' }, SALT, 16384, 8, 1);
+        Sha256Hash b = cache.id(new byte[] { 'b' }, SALT, 16384, 8, 1);
+        Sha256Hash c = cache.id(new byte[] { 'c' }, SALT, 16384, 8, 1);
+        byte[] keyA = key(1), keyB = key(2), keyC = key(3);
+        cache.put(a, keyA);
+        cache.put(b, keyB);
+        cache.get(a);
+        cache.put(c, keyC);
+        assertEquals(2, cache.size());
+        assertNull(cache.get(b));
+        assertTrue(isWiped(keyB));
+        assertNotNull(cache.get(a));
+        assertNotNull(cache.get(c));
+    }
+
+    @Test
+    public void clearWipes() {
+        byte[] key = key(7);
+        cache.put(cache.id(new byte[] { 'a' }, SALT, 16384, 8, 1), key);
+        cache.clear();
+        assertEquals(0, cache.size());
+        assertTrue(isWiped(key));
+    }
+
+    @Test
+    public void putAfterShutdownWipes() {
+        Sha256Hash id = cache.id(new byte[] { 'a' }, SALT, 16384, 8, 1);
+        cache.shutdown();
+        byte[] key = key(7);
+        cache.put(id, key);
+        assertTrue(isWiped(key));
+        assertEquals(0, cache.size());
+        assertNull(cache.get(id));
+    }
+}
@@ -0,0 +1,91 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.crypto;
+
+import org.bitcoinj.core.ECKey;
+import org.bouncycastle.math.ec.ECPoint;
+import org.junit.Test;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class FixedBaseMultiplierTest {
+    private static final ECPoint G = ECKey.CURVE.getG();
+    private static final BigInteger N = ECKey.CURVE.getN();
+
+    private static List<BigInteger> scalars() {
+        List<BigInteger> scalars = new ArrayList<>();
+        Random random = new Random(42);
+        for (int i = 0; i < 20; i++)
+            scalars.add(new BigInteger(256, random));
+        // Edges of the range, scalars that carry through every window, and scalars that need reducing.
+        scalars.add(BigInteger.ONE);
+        scalars.add(BigInteger.valueOf(2));
+        scalars.add(N.subtract(BigInteger.ONE));
+        scalars.add(BigInteger.ONE.shiftLeft(255));
+        scalars.add(BigInteger.ONE.shiftLeft(256).subtract(BigInteger.ONE));
+        scalars.add(N.add(BigInteger.ONE));
+        scalars.add(BigInteger.valueOf(-5));
+        return scalars;
+    }
+
+    @Test
+    public void matchesReferenceMultiplication() {
+        for (int windowBits : new int[] { 2, 3, 5, 8, 11 }) {
+            FixedBaseMultiplier multiplier = new FixedBaseMultiplier(G, N, windowBits);
+            for (BigInteger k : scalars())
+                assertEquals("k = " + k + ", window = " + windowBits, G.multiply(k.mod(N)).normalize(),
+                        multiplier.multiply(k).normalize());
+        }
+    }
+
+    @Test
+    public void multiplesOfTheOrder() {
+        FixedBaseMultiplier multiplier = new FixedBaseMultiplier(G, N, 4);
+        assertTrue(multiplier.multiply(BigInteger.ZERO).isInfinity());
+        assertTrue(multiplier.multiply(N).isInfinity());
+    }
+
+    @Test
+    public void multiplyAll() {
+        FixedBaseMultiplier multiplier = new FixedBaseMultiplier(G, N, 6);
+        List<BigInteger> scalars = scalars();
+        scalars.add(N);
+        ECPoint[] points = multiplier.multiplyAll(scalars.toArray(new BigInteger[scalars.size()]));
+        assertEquals(scalars.size(), points.length);
+        for (int i = 0; i < points.length; i++) {
+            assertTrue(points[i].isNormalized());
+            assertEquals(multiplier.multiply(scalars.get(i)).normalize(), points[i]);
+        }
+        assertTrue(points[points.length - 1].isInfinity());
+    }
+
+    @Test
+    public void tableSize() {
+        // 256 bit order in 8 bit windows: 32 windows of 128 points, plus one point for the final carry.
+        assertEquals(32 * 128 + 1, new FixedBaseMultiplier(G, N, 8).getTableSize());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void windowTooWide() {
+        new FixedBaseMultiplier(G, N, 17);
+    }
+}
@@ -22,14 +22,17 @@ import org.bitcoinj.utils.BriefLogFormatter;
 import com.google.protobuf.ByteString;
 
 import org.bitcoinj.wallet.Protos;
+import org.bouncycastle.crypto.params.KeyParameter;
 import org.bitcoinj.wallet.Protos.ScryptParameters;
 import org.junit.Before;
 import org.junit.Test;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.Arrays;
 import java.util.Random;
 import java.util.UUID;
+import java.util.concurrent.TimeUnit;
 
 import static org.junit.Assert.*;
 
@@ -156,4 +159,23 @@ public class KeyCrypterScryptTest {
             assertEquals(Utils.HEX.encode(plainBytes), Utils.HEX.encode(rebornPlainBytes));
         }
     }
+
+    @Test
+    public void derivedKeyCache() {
+        KeyCrypterScrypt.enableDerivedKeyCache(10, 1, TimeUnit.MINUTES);
+        try {
+            KeyParameter key1 = new KeyCrypterScrypt(scryptParameters).deriveKey(PASSWORD1);
+            // Another instance with the same parameters gets the same key, but not the same array.
+            KeyParameter key2 = new KeyCrypterScrypt(scryptParameters).deriveKey(PASSWORD1);
+            assertArrayEquals(key1.getKey(), key2.getKey());
+            assertNotSame(key1.getKey(), key2.getKey());
+            assertFalse(Arrays.equals(key1.getKey(), new KeyCrypterScrypt(scryptParameters).deriveKey(PASSWORD2).getKey()));
+            assertFalse(Arrays.equals(key1.getKey(), new KeyCrypterScrypt().deriveKey(PASSWORD1).getKey()));
+
+            KeyCrypterScrypt.clearDerivedKeyCache();
+            assertArrayEquals(key1.getKey(), new KeyCrypterScrypt(scryptParameters).deriveKey(PASSWORD1).getKey());
+        } finally {
+            KeyCrypterScrypt.disableDerivedKeyCache();
+        }
+    }
 }
@@ -0,0 +1,169 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.net;
+
+import com.google.common.util.concurrent.SettableFuture;
+import org.bitcoinj.core.Context;
+import org.bitcoinj.params.UnitTestParams;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
+
+public class BlockingClientManagerTest {
+    private static final InetSocketAddress ADDRESS = new InetSocketAddress(InetAddress.getLoopbackAddress(), 4260);
+    private static final int CONNECTIONS = 20;
+
+    private NioServer server;
+    private BlockingClientManager manager;
+
+    // On the server, echoes what it receives. On the client, sends a byte once connected and records the thread the
+    // echo is received on.
+    private static class ThreadRecorder implements StreamConnection {
+        final SettableFuture<Thread> networkThread = SettableFuture.create();
+        private MessageWriteTarget writeTarget;
+        private final boolean echo;
+
+        ThreadRecorder(boolean echo) {
+            this.echo = echo;
+        }
+
+        @Override
+        public void connectionOpened() {
+            if (echo)
+                return;
+            try {
+                writeTarget.writeBytes(new byte[] { 42 });
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        @Override
+        public void connectionClosed() {
+        }
+
+        @Override
+        public int receiveBytes(ByteBuffer buff) throws Exception {
+            networkThread.set(Thread.currentThread());
+            if (echo) {
+                byte[] bytes = new byte[buff.remaining()];
+                buff.get(bytes);
+                writeTarget.writeBytes(bytes);
+            } else {
+                buff.position(buff.limit());
+            }
+            return buff.position();
+        }
+
+        @Override
+        public void setWriteTarget(MessageWriteTarget writeTarget) {
+            this.writeTarget = writeTarget;
+        }
+
+        @Override
+        public int getMaxMessageSize() {
+            return 4096;
+        }
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        Context.propagate(new Context(UnitTestParams.get()));
+        server = new NioServer(new StreamConnectionFactory() {
+            @Override
+            public StreamConnection getNewConnection(InetAddress inetAddress, int port) {
+                return new ThreadRecorder(true);
+            }
+        }, ADDRESS);
+        server.startAsync();
+        server.awaitRunning();
+        manager = new BlockingClientManager();
+    }
+
+    @After
+    public void tearDown() {
+        // Cleans up after a setUp() that failed part-way too, for example because the port was in use, without
+        // hiding that failure.
+        if (manager != null) {
+            manager.stopAsync();
+            manager.awaitTerminated();
+        }
+        if (server != null) {
+            server.stopAsync();
+            try {
+                server.awaitTerminated();
+            } catch (IllegalStateException e) {
+                // It failed to start, and closed its socket when it did.
+            }
+        }
+    }
+
+    private List<Thread> connect() throws Exception {
+        manager.startAsync();
+        manager.awaitRunning();
+        List<ThreadRecorder> connections = new ArrayList<>();
+        for (int i = 0; i < CONNECTIONS; i++) {
+            ThreadRecorder connection = new ThreadRecorder(false);
+            manager.openConnection(ADDRESS, connection);
+            connections.add(connection);
+        }
+        List<Thread> threads = new ArrayList<>();
+        for (ThreadRecorder connection : connections)
+            threads.add(connection.networkThread.get(10, TimeUnit.SECONDS));
+        assertEquals(CONNECTIONS, manager.getConnectedClientCount());
+        return threads;
+    }
+
+    private static boolean isVirtual(Thread thread) throws Exception {
+        if (!BlockingClientManager.isVirtualThreadsSupported())
+            return false;
+        return (Boolean) Thread.class.getMethod("isVirtual").invoke(thread);
+    }
+
+    @Test
+    public void platformThreads() throws Exception {
+        for (Thread thread : connect()) {
+            assertFalse(isVirtual(thread));
+            assertTrue(thread.isDaemon());
+        }
+    }
+
+    @Test
+    public void virtualThreads() throws Exception {
+        assumeTrue(BlockingClientManager.isVirtualThreadsSupported());
+        manager.setUseVirtualThreads(true);
+        for (Thread thread : connect())
+            assertTrue(isVirtual(thread));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void virtualThreadsUnsupported() {
+        assumeTrue(!BlockingClientManager.isVirtualThreadsSupported());
+        manager.setUseVirtualThreads(true);
+    }
+}
@@ -0,0 +1,274 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.net;
+
+import com.google.common.util.concurrent.SettableFuture;
+import org.bitcoinj.core.Context;
+import org.bitcoinj.params.UnitTestParams;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class NioClientManagerTest {
+    private static final int PORT = 4250;
+    private static final int SERVERS = 5;
+    // How many consecutive ints each server connection sends.
+    private static final int COUNT = 20000;
+
+    private final List<NioServer> servers = new ArrayList<>();
+    private NioClientManager manager;
+
+    // Sends COUNT consecutive ints in several writes as soon as a client connects.
+    private void startServers() throws IOException {
+        for (int i = 0; i < SERVERS; i++) {
+            NioServer server = new NioServer(new StreamConnectionFactory() {
+                @Override
+                public StreamConnection getNewConnection(InetAddress inetAddress, int port) {
+                    return new StreamConnection() {
+                        private MessageWriteTarget writeTarget;
+
+                        @Override
+                        public void connectionOpened() {
+                            try {
+                                ByteBuffer buff = ByteBuffer.allocate(1000 * 4);
+                                for (int i = 0; i < COUNT; i++) {
+                                    buff.putInt(i);
+                                    if (!buff.hasRemaining() || i == COUNT - 1) {
+                                        writeTarget.writeBytes(buff.array());
+                                        buff.clear();
+                                    }
+                                }
+                            } catch (IOException e) {
+                                throw new RuntimeException(e);
+                            }
+                        }
+
+                        @Override
+                        public void connectionClosed() {
+                        }
+
+                        @Override
+                        public int receiveBytes(ByteBuffer buff) {
+                            buff.position(buff.limit());
+                            return buff.limit();
+                        }
+
+                        @Override
+                        public void setWriteTarget(MessageWriteTarget writeTarget) {
+                            this.writeTarget = writeTarget;
+                        }
+
+                        @Override
+                        public int getMaxMessageSize() {
+                            return 4096;
+                        }
+                    };
+                }
+            }, new InetSocketAddress(InetAddress.getLoopbackAddress(), PORT + i));
+            server.startAsync();
+            server.awaitRunning();
+            servers.add(server);
+        }
+    }
+
+    // Checks that the ints arrive in order, optionally waiting for a gate before processing any bytes.
+    private static class CountingConnection implements StreamConnection {
+        private final SettableFuture<Void> done = SettableFuture.create();
+        @Nullable private final CountDownLatch gate;
+        private int next;
+
+        CountingConnection(@Nullable CountDownLatch gate) {
+            this.gate = gate;
+        }
+
+        @Override
+        public int receiveBytes(ByteBuffer buff) throws Exception {
+            if (gate != null)
+                gate.await();
+            while (buff.remaining() >= 4) {
+                int i = buff.getInt();
+                if (i != next)
+                    done.setException(new AssertionError("Expected " + next + " but received " + i));
+                if (++next == COUNT)
+                    done.set(null);
+            }
+            return buff.position();
+        }
+
+        @Override
+        public void connectionOpened() {
+        }
+
+        @Override
+        public void connectionClosed() {
+        }
+
+        @Override
+        public void setWriteTarget(MessageWriteTarget writeTarget) {
+        }
+
+        @Override
+        public int getMaxMessageSize() {
+            return 4096;
+        }
+    }
+
+    private void startManager(int selectorThreads, int workerThreads) throws IOException {
+        startServers();
+        manager = new NioClientManager(selectorThreads, workerThreads);
+        manager.startAsync();
+        manager.awaitRunning();
+    }
+
+    private CountingConnection connect(int server, @Nullable CountDownLatch gate) throws Exception {
+        CountingConnection connection = new CountingConnection(gate);
+        manager.openConnection(new InetSocketAddress(InetAddress.getLoopbackAddress(), PORT + server), connection)
+                .get(5, TimeUnit.SECONDS);
+        return connection;
+    }
+
+    private void awaitQueueDepth(int depth) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (manager.getQueueDepths().get(0) != depth && System.currentTimeMillis() < deadline)
+            Thread.sleep(10);
+        assertEquals(depth, (int) manager.getQueueDepths().get(0));
+    }
+
+    @Before
+    public void setUp() {
+        Context.propagate(new Context(UnitTestParams.get()));
+    }
+
+    @After
+    public void tearDown() {
+        if (manager != null) {
+            manager.stopAsync();
+            manager.awaitTerminated();
+        }
+        for (NioServer server : servers) {
+            server.stopAsync();
+            server.awaitTerminated();
+        }
+    }
+
+    @Test
+    public void severalSelectorThreads() throws Exception {
+        startManager(4, 0);
+        List<CountingConnection> connections = new ArrayList<>();
+        for (int i = 0; i < 4 * SERVERS; i++)
+            connections.add(connect(i % SERVERS, null));
+        for (CountingConnection connection : connections)
+            connection.done.get(10, TimeUnit.SECONDS);
+        assertEquals(4 * SERVERS, manager.getConnectedClientCount());
+        assertEquals(4, manager.getQueueDepths().size());
+
+        manager.closeConnections(2);
+        assertEquals(4 * SERVERS - 2, manager.getConnectedClientCount());
+    }
+
+    @Test
+    public void slowConnectionDoesNotStallOthers() throws Exception {
+        startManager(1, 2);
+        CountDownLatch gate = new CountDownLatch(1);
+        CountingConnection slow = connect(0, gate);
+        List<CountingConnection> connections = new ArrayList<>();
+        for (int i = 0; i < SERVERS; i++)
+            connections.add(connect(i, null));
+        // All connections share the one selector thread, and still the others are processed while the slow one blocks.
+        for (CountingConnection connection : connections)
+            connection.done.get(10, TimeUnit.SECONDS);
+        assertFalse(slow.done.isDone());
+        // The read of the slow connection is stuck on a worker.
+        awaitQueueDepth(1);
+
+        gate.countDown();
+        slow.done.get(10, TimeUnit.SECONDS);
+        awaitQueueDepth(0);
+        assertEquals(SERVERS + 1, manager.getConnectedClientCount());
+    }
+
+    @Test
+    public void writeWatermarks() throws Exception {
+        startManager(1, 0);
+        // A server that stops reading until the gate opens.
+        final CountDownLatch gate = new CountDownLatch(1);
+        NioServer server = new NioServer(new StreamConnectionFactory() {
+            @Override
+            public StreamConnection getNewConnection(InetAddress inetAddress, int port) {
+                return new CountingConnection(gate) {
+                    @Override
+                    public int receiveBytes(ByteBuffer buff) throws Exception {
+                        gate.await();
+                        buff.position(buff.limit());
+                        return buff.limit();
+                    }
+                };
+            }
+        }, new InetSocketAddress(InetAddress.getLoopbackAddress(), PORT + SERVERS));
+        server.startAsync();
+        server.awaitRunning();
+        servers.add(server);
+
+        final List<Boolean> changes = Collections.synchronizedList(new ArrayList<Boolean>());
+        final SettableFuture<Void> writableAgain = SettableFuture.create();
+        final SettableFuture<MessageWriteTarget> writeTarget = SettableFuture.create();
+        manager.openConnection(new InetSocketAddress(InetAddress.getLoopbackAddress(), PORT + SERVERS),
+                new CountingConnection(null) {
+                    @Override
+                    public void setWriteTarget(MessageWriteTarget target) {
+                        writeTarget.set(target);
+                    }
+
+                    @Override
+                    public void writabilityChanged(boolean writable) {
+                        changes.add(writable);
+                        if (writable)
+                            writableAgain.set(null);
+                    }
+                }).get(5, TimeUnit.SECONDS);
+        MessageWriteTarget target = writeTarget.get();
+
+        // Fill the socket buffers and then the write buffer, until the connection is no longer writable.
+        byte[] chunk = new byte[64 * 1024];
+        int chunks = 0;
+        while (target.isWritable()) {
+            assertTrue("Never stopped being writable", chunks++ < 400);
+            target.writeBytes(chunk);
+            Thread.sleep(1);
+        }
+        assertEquals(Collections.singletonList(false), changes);
+
+        gate.countDown();
+        writableAgain.get(10, TimeUnit.SECONDS);
+        assertTrue(target.isWritable());
+        assertEquals(Arrays.asList(false, true), changes);
+    }
+}
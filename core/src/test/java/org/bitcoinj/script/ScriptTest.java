@@ -167,6 +167,54 @@ public class ScriptTest {
         Assert.assertThat(scriptChunk.data, IsNot.not(equalTo(multisigScript.getProgram())));
     }
 
+    @Test
+    public void multiSigSignerSubsets() throws Exception {
+        List<ECKey> keys = Arrays.asList(new ECKey(), new ECKey(), new ECKey(), new ECKey());
+        Script multisigScript = ScriptBuilder.createMultiSigOutputScript(3, keys);
+        Transaction spendTx = new Transaction(TESTNET);
+        spendTx.addInput(Sha256Hash.ZERO_HASH, 0, new Script(new byte[0]));
+        spendTx.addOutput(Coin.COIN, LegacyAddress.fromKey(TESTNET, new ECKey()));
+        Sha256Hash sighash = spendTx.hashForSignature(0, multisigScript, SigHash.ALL, false);
+        List<TransactionSignature> sigs = Lists.newArrayList();
+        for (ECKey key : keys)
+            sigs.add(new TransactionSignature(key.sign(sighash), SigHash.ALL, false));
+
+        // Signatures must appear in the order of their keys, but any keys may be skipped.
+        int[][] valid = { { 0, 1, 2 }, { 0, 1, 3 }, { 0, 2, 3 }, { 1, 2, 3 } };
+        for (int[] signers : valid)
+            assertTrue(Arrays.toString(signers), spendsMultiSig(spendTx, multisigScript, sigs, signers));
+        int[][] invalid = { { 1, 0, 2 }, { 3, 2, 1 }, { 0, 0, 1 }, { 0, 2, 1 } };
+        for (int[] signers : invalid)
+            assertFalse(Arrays.toString(signers), spendsMultiSig(spendTx, multisigScript, sigs, signers));
+
+        // A signature by some other key, or one that doesn't decode, can't stand in for a key.
+        List<TransactionSignature> withStranger = Lists.newArrayList(sigs);
+        withStranger.set(1, new TransactionSignature(new ECKey().sign(sighash), SigHash.ALL, false));
+        assertFalse(spendsMultiSig(spendTx, multisigScript, withStranger, new int[] { 0, 1, 2 }));
+        Script garbled = new ScriptBuilder().smallNum(0).data(sigs.get(0).encodeToBitcoin()).data(new byte[] { 1, 2, 3 })
+                .data(sigs.get(2).encodeToBitcoin()).build();
+        try {
+            garbled.correctlySpends(spendTx, 0, multisigScript, Script.ALL_VERIFY_FLAGS);
+            fail();
+        } catch (ScriptException e) {
+            // Expected.
+        }
+    }
+
+    private static boolean spendsMultiSig(Transaction spendTx, Script multisigScript, List<TransactionSignature> sigs,
+                                          int[] signers) {
+        List<TransactionSignature> chosen = Lists.newArrayList();
+        for (int signer : signers)
+            chosen.add(sigs.get(signer));
+        try {
+            ScriptBuilder.createMultiSigInputScript(chosen).correctlySpends(spendTx, 0, multisigScript,
+                    Script.ALL_VERIFY_FLAGS);
+            return true;
+        } catch (ScriptException e) {
+            return false;
+        }
+    }
+
     @Test
     public void createAndUpdateEmptyInputScript() throws Exception {
         TransactionSignature dummySig = TransactionSignature.dummy();
@@ -454,4 +502,35 @@ public class ScriptTest {
     public void getToAddressNoPubKey() throws Exception {
         ScriptBuilder.createOutputScript(new ECKey()).getToAddress(TESTNET, false);
     }
+
+    @Test
+    public void numberEncodingMatchesMPI() {
+        List<Long> values = Lists.newArrayList(0L, 1L, -1L, 127L, -127L, 128L, -128L, 255L, -255L, 256L, -256L,
+                32767L, -32768L, 0x7fffffffL, -0x7fffffffL, 0x80000000L, -0x80000000L, 0x7fffffffffL, -0x7fffffffffL);
+        Random random = new Random(42);
+        for (int i = 0; i < 1000; i++)
+            values.add(random.nextLong() >> (8 + random.nextInt(56)));
+        for (long value : values) {
+            byte[] expected = Utils.reverseBytes(Utils.encodeMPI(BigInteger.valueOf(value), false));
+            byte[] encoded = Script.encodeNumber(value);
+            assertArrayEquals(String.valueOf(value), expected, encoded);
+            assertEquals(value, Script.castToLong(encoded, 7, true));
+            assertEquals(BigInteger.valueOf(value), Script.castToBigInteger(encoded, 7, true));
+        }
+        // Negative zero and non-minimal encodings decode as before unless minimal encoding is required.
+        assertEquals(0, Script.castToLong(new byte[] {(byte) 0x80}, 4, false));
+        assertEquals(-1, Script.castToLong(new byte[] {1, 0, (byte) 0x80}, 4, false));
+        try {
+            Script.castToLong(new byte[] {1, 0}, 4, true);
+            fail();
+        } catch (ScriptException e) {
+            // expected
+        }
+        try {
+            Script.castToLong(new byte[] {1, 2, 3, 4, 5}, 4, false);
+            fail();
+        } catch (ScriptException e) {
+            // expected
+        }
+    }
 }
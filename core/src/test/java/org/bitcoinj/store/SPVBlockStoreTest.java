@@ -18,8 +18,16 @@
 package org.bitcoinj.store;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
 
 import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 import org.bitcoinj.core.Address;
 import org.bitcoinj.core.ECKey;
@@ -109,6 +117,118 @@ public class SPVBlockStoreTest {
         assertEquals(SPVBlockStore.getFileSize(20), blockStoreFile.length());
     }
 
+    @Test
+    public void wrapAround() throws Exception {
+        Address to = LegacyAddress.fromKey(UNITTEST, new ECKey());
+        SPVBlockStore store = new SPVBlockStore(UNITTEST, blockStoreFile, 10, false);
+        List<StoredBlock> blocks = new ArrayList<>();
+        StoredBlock block = store.getChainHead();
+        blocks.add(block);
+        for (int i = 0; i < 25; i++) {
+            block = block.build(block.getHeader().createNextBlock(to).cloneAsHeader());
+            store.put(block);
+            blocks.add(block);
+        }
+        // Storing a block again keeps it around for longer than the blocks stored after its first copy.
+        StoredBlock again = blocks.get(17);
+        store.put(again);
+        store.setChainHead(block);
+        store.close();
+
+        // Only the last ten writes survive, which the store reopened from disk must agree with.
+        store = new SPVBlockStore(UNITTEST, blockStoreFile, 10, false);
+        for (int i = 0; i < blocks.size(); i++) {
+            StoredBlock expected = i >= 17 ? blocks.get(i) : null;
+            assertEquals("block " + i, expected, store.get(blocks.get(i).getHeader().getHash()));
+        }
+        assertEquals(block, store.getChainHead());
+        // Overwrite the first copy of the block stored twice, and the block after it.
+        store.put(blocks.get(1));
+        store.put(blocks.get(2));
+        store.close();
+
+        store = new SPVBlockStore(UNITTEST, blockStoreFile, 10, false);
+        assertEquals(again, store.get(again.getHeader().getHash()));
+        assertNull(store.get(blocks.get(18).getHeader().getHash()));
+        assertEquals(blocks.get(19), store.get(blocks.get(19).getHeader().getHash()));
+        assertEquals(blocks.get(1), store.get(blocks.get(1).getHeader().getHash()));
+        assertEquals(blocks.get(2), store.get(blocks.get(2).getHeader().getHash()));
+        store.close();
+    }
+
+    @Test
+    public void indexFollowsRing() throws Exception {
+        Address to = LegacyAddress.fromKey(UNITTEST, new ECKey());
+        SPVBlockStore store = new SPVBlockStore(UNITTEST, blockStoreFile, 8, false);
+        List<StoredBlock> blocks = new ArrayList<>();
+        StoredBlock block = store.getChainHead();
+        for (int i = 0; i < 20; i++) {
+            block = block.build(block.getHeader().createNextBlock(to).cloneAsHeader());
+            blocks.add(block);
+        }
+        Random random = new Random(1);
+        LinkedList<StoredBlock> ring = new LinkedList<>(Collections.singletonList(store.getChainHead()));
+        for (int i = 0; i < 200; i++) {
+            StoredBlock next = blocks.get(random.nextInt(blocks.size()));
+            store.put(next);
+            ring.add(next);
+            if (ring.size() > 8)
+                ring.removeFirst();
+            store.blockCache.clear();
+            store.notFoundCache.clear();
+            for (StoredBlock b : blocks)
+                assertEquals(ring.contains(b) ? b : null, store.get(b.getHeader().getHash()));
+        }
+        store.close();
+    }
+
+    @Test
+    public void concurrentReads() throws Exception {
+        Address to = LegacyAddress.fromKey(UNITTEST, new ECKey());
+        final SPVBlockStore store = new SPVBlockStore(UNITTEST, blockStoreFile, 1000, false);
+        final List<StoredBlock> blocks = new ArrayList<>();
+        StoredBlock block = store.getChainHead();
+        for (int i = 0; i < 300; i++) {
+            block = block.build(block.getHeader().createNextBlock(to).cloneAsHeader());
+            blocks.add(block);
+        }
+        final AtomicInteger written = new AtomicInteger();
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        List<Thread> readers = new ArrayList<>();
+        for (int r = 0; r < 3; r++) {
+            Thread reader = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        int n;
+                        while ((n = written.get()) < blocks.size()) {
+                            // A block about to be written is a miss now, but must be found once it was written.
+                            StoredBlock next = blocks.get(n);
+                            store.get(next.getHeader().getHash());
+                            while (written.get() <= n);
+                            synchronized (store.blockCache) {
+                                store.blockCache.remove(next.getHeader().getHash());
+                            }
+                            assertEquals(next, store.get(next.getHeader().getHash()));
+                        }
+                    } catch (Throwable t) {
+                        failure.compareAndSet(null, t);
+                    }
+                }
+            };
+            reader.start();
+            readers.add(reader);
+        }
+        for (StoredBlock b : blocks) {
+            store.put(b);
+            written.incrementAndGet();
+        }
+        for (Thread reader : readers)
+            reader.join();
+        assertNull(failure.get());
+        store.close();
+    }
+
     @Test(expected = BlockStoreException.class)
     public void twoStores_sequentially_shrink() throws Exception {
         SPVBlockStore store = new SPVBlockStore(UNITTEST, blockStoreFile, 20, true);
@@ -33,6 +33,7 @@ import org.bitcoinj.core.Transaction.Purpose;
 import org.bitcoinj.core.TransactionConfidence;
 import org.bitcoinj.core.TransactionConfidence.ConfidenceType;
 import org.bitcoinj.core.TransactionInput;
+import org.bitcoinj.core.TransactionOutput;
 import org.bitcoinj.core.Utils;
 import org.bitcoinj.crypto.DeterministicKey;
 import org.bitcoinj.params.MainNetParams;
@@ -47,6 +48,7 @@ import org.bitcoinj.wallet.KeyChain;
 
 import com.google.common.io.ByteStreams;
 import com.google.protobuf.ByteString;
+import com.google.protobuf.UnknownFieldSet;
 
 import org.bitcoinj.wallet.MarriedKeyChain;
 import org.bitcoinj.wallet.Protos;
@@ -468,6 +470,46 @@ public class WalletProtobufSerializerTest {
         assertEquals(0, wallet.getExtensions().size());
     }
 
+    @Test
+    public void streamedReadMatchesProtoRead() throws Exception {
+        Transaction t1 = createFakeTx(UNITTEST, COIN, myAddress);
+        myWallet.receivePending(t1, null);
+        myWallet.allowSpendingUnconfirmedTransactions();
+        Transaction t2 = myWallet.createSend(LegacyAddress.fromKey(UNITTEST, new ECKey()), CENT);
+        myWallet.commitTx(t2);
+        Protos.Wallet proto = new WalletProtobufSerializer().walletToProto(myWallet);
+
+        Wallet streamed = roundTrip(myWallet);
+        Wallet parsed = new WalletProtobufSerializer().readWallet(UNITTEST, null, proto);
+        for (Wallet wallet : new Wallet[] { streamed, parsed }) {
+            assertEquals(2, wallet.getPoolSize(WalletTransaction.Pool.PENDING));
+            assertEquals(myWallet.getBalance(Wallet.BalanceType.ESTIMATED), wallet.getBalance(Wallet.BalanceType.ESTIMATED));
+            TransactionOutput spent = wallet.getTransaction(t1.getHash()).getOutput(0);
+            assertEquals(wallet.getTransaction(t2.getHash()), spent.getSpentBy().getParentTransaction());
+        }
+
+        Wallet reset = new WalletProtobufSerializer().readWallet(new ByteArrayInputStream(proto.toByteArray()), true, null);
+        assertEquals(0, reset.getTransactions(true).size());
+        assertEquals(parsed.getKeyChainGroupSize(), reset.getKeyChainGroupSize());
+    }
+
+    @Test
+    public void streamedReadSkipsUnknownFields() throws Exception {
+        UnknownFieldSet unknown = UnknownFieldSet.newBuilder()
+                .addField(1000, UnknownFieldSet.Field.newBuilder()
+                        .addVarint(42).addFixed32(7).addFixed64(8).addLengthDelimited(ByteString.copyFromUtf8("x"))
+                        .addGroup(UnknownFieldSet.newBuilder()
+                                .addField(1, UnknownFieldSet.Field.newBuilder().addVarint(1).build()).build())
+                        .build())
+                .build();
+        Protos.Wallet proto = new WalletProtobufSerializer().walletToProto(myWallet);
+        Protos.Wallet withUnknown = proto.toBuilder().setUnknownFields(unknown).build();
+        Wallet expected = new WalletProtobufSerializer().readWallet(new ByteArrayInputStream(proto.toByteArray()), false, null);
+        Wallet wallet = new WalletProtobufSerializer().readWallet(new ByteArrayInputStream(withUnknown.toByteArray()), false, null);
+        assertEquals(expected.getKeyChainGroupSize(), wallet.getKeyChainGroupSize());
+        assertEquals(expected.currentReceiveAddress(), wallet.currentReceiveAddress());
+    }
+
     @Test(expected = UnreadableWalletException.FutureVersion.class)
     public void versions() throws Exception {
         Protos.Wallet.Builder proto = Protos.Wallet.newBuilder(new WalletProtobufSerializer().walletToProto(myWallet));
@@ -30,6 +30,7 @@ import org.bitcoinj.wallet.BasicKeyChain;
 import org.bitcoinj.wallet.KeyChain;
 import org.bitcoinj.wallet.Protos;
 import org.bitcoinj.wallet.listeners.AbstractKeyChainEventListener;
+import org.bouncycastle.crypto.params.KeyParameter;
 import org.junit.Before;
 import org.junit.Test;
 
@@ -170,6 +171,34 @@ public class BasicKeyChainTest {
         key.getPrivKeyBytes();
     }
 
+    @Test
+    public void encryptDecryptManyKeys() {
+        // Enough keys to be encrypted in several chunks.
+        List<ECKey> keys = new ArrayList<>();
+        for (int i = 0; i < 450; i++)
+            keys.add(new ECKey());
+        chain.importKeys(keys);
+        KeyCrypter keyCrypter = new KeyCrypterScrypt(2);
+        KeyParameter aesKey = keyCrypter.deriveKey("foobar");
+        BasicKeyChain encrypted = chain.toEncrypted(keyCrypter, aesKey);
+        List<ECKey> encryptedKeys = encrypted.getKeys();
+        assertEquals(keys.size(), encryptedKeys.size());
+        for (int i = 0; i < keys.size(); i++) {
+            assertArrayEquals(keys.get(i).getPubKey(), encryptedKeys.get(i).getPubKey());
+            assertTrue(encryptedKeys.get(i).isEncrypted());
+        }
+
+        try {
+            encrypted.toDecrypted(keyCrypter.deriveKey("wrong"));
+            fail();
+        } catch (KeyCrypterException e) {
+        }
+        List<ECKey> decryptedKeys = encrypted.toDecrypted(aesKey).getKeys();
+        assertEquals(keys, decryptedKeys);
+        for (int i = 0; i < keys.size(); i++)
+            assertArrayEquals(keys.get(i).getPrivKeyBytes(), decryptedKeys.get(i).getPrivKeyBytes());
+    }
+
     @Test(expected = KeyCrypterException.class)
     public void cannotImportEncryptedKey() {
         final ECKey key1 = new ECKey();
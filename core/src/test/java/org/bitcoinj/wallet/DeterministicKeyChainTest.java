@@ -94,6 +94,27 @@ public class DeterministicKeyChainTest {
         assertFalse(key3.isPubKeyOnly());
     }
 
+    @Test
+    public void largeLookahead() throws Exception {
+        // Large enough to be derived in parallel chunks.
+        chain.setLookaheadSize(1000);
+        chain.maybeLookAhead();
+        ImmutableList<ChildNumber> externalPath = HDUtils.append(DeterministicKeyChain.ACCOUNT_ZERO_PATH,
+                ChildNumber.ZERO);
+        DeterministicKey external = chain.getKeyByPath(externalPath, false);
+        int lookahead = chain.getLookaheadSize() + chain.getLookaheadThreshold();
+        for (int i = 0; i < lookahead; i++) {
+            DeterministicKey key = chain.getKeyByPath(HDUtils.append(externalPath, new ChildNumber(i)), false);
+            assertArrayEquals(HDKeyDerivation.deriveChildKey(external, i).getPubKey(), key.getPubKey());
+        }
+        assertEquals(2 * lookahead, chain.getLeafKeys().size());
+
+        // The lookahead keys can still sign.
+        DeterministicKey key = chain.getKeys(KeyChain.KeyPurpose.RECEIVE_FUNDS, 700).get(699);
+        assertFalse(key.isPubKeyOnly());
+        assertTrue(key.verify(Sha256Hash.ZERO_HASH, key.sign(Sha256Hash.ZERO_HASH)));
+    }
+
     @Test
     public void getKeys() throws Exception {
         chain.getKey(KeyChain.KeyPurpose.RECEIVE_FUNDS);
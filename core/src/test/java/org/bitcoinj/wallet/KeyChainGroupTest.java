@@ -37,6 +37,7 @@ import org.bouncycastle.crypto.params.KeyParameter;
 import java.math.BigInteger;
 import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.atomic.AtomicReference;
 
 import static com.google.common.base.Preconditions.checkNotNull;
@@ -172,6 +173,56 @@ public class KeyChainGroupTest {
         assertNull(group.findKeyFromPubHash(d.getPubKeyHash()));
     }
 
+    @Test
+    public void findKeyDerivedLater() throws Exception {
+        // Keys derived by the chain itself, well past the original lookahead, are found without the group asking it.
+        DeterministicKeyChain chain = group.getActiveKeyChain();
+        List<DeterministicKey> keys = chain.getKeys(KeyChain.KeyPurpose.RECEIVE_FUNDS, 3 * LOOKAHEAD_SIZE);
+        for (ECKey key : chain.getKeys(true, true)) {
+            assertEquals(key, group.findKeyFromPubHash(key.getPubKeyHash()));
+            assertEquals(key, group.findKeyFromPubKey(key.getPubKey()));
+        }
+        assertTrue(group.hasKey(keys.get(keys.size() - 1)));
+
+        // Removing an imported key removes it from the lookups.
+        ECKey imported = new ECKey();
+        group.importKeys(imported);
+        assertEquals(imported, group.findKeyFromPubHash(imported.getPubKeyHash()));
+        assertTrue(group.removeImportedKey(imported));
+        assertNull(group.findKeyFromPubHash(imported.getPubKeyHash()));
+        assertNull(group.findKeyFromPubKey(imported.getPubKey()));
+        assertFalse(group.hasKey(imported));
+    }
+
+    @Test
+    public void findKeyWhileEncrypting() throws Exception {
+        final List<DeterministicKey> keys = group.freshKeys(KeyChain.KeyPurpose.RECEIVE_FUNDS, LOOKAHEAD_SIZE);
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        final CountDownLatch done = new CountDownLatch(1);
+        Thread reader = new Thread() {
+            @Override
+            public void run() {
+                while (done.getCount() > 0) {
+                    for (DeterministicKey key : keys) {
+                        if (group.findKeyFromPubHash(key.getPubKeyHash()) == null)
+                            failure.compareAndSet(null, new AssertionError("Missed key " + key.getPathAsString()));
+                    }
+                }
+            }
+        };
+        reader.start();
+        KeyCrypterScrypt scrypt = new KeyCrypterScrypt(2);
+        KeyParameter aesKey = scrypt.deriveKey("password");
+        for (int i = 0; i < 5; i++) {
+            group.encrypt(scrypt, aesKey);
+            group.freshKey(KeyChain.KeyPurpose.CHANGE);
+            group.decrypt(aesKey);
+        }
+        done.countDown();
+        reader.join();
+        assertNull(failure.get());
+    }
+
     @Test
     public void currentP2SHAddress() throws Exception {
         group = createMarriedKeyChainGroup();
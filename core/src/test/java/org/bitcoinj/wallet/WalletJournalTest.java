@@ -0,0 +1,212 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.wallet;
+
+import org.bitcoinj.core.AbstractBlockChain;
+import org.bitcoinj.core.Address;
+import org.bitcoinj.core.ECKey;
+import org.bitcoinj.core.LegacyAddress;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.testing.TestWithWallet;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.bitcoinj.core.Coin.*;
+import static org.junit.Assert.*;
+
+public class WalletJournalTest extends TestWithWallet {
+    private static final Address OTHER_ADDRESS = LegacyAddress.fromKey(UNITTEST, new ECKey());
+
+    private File file;
+    private WalletFiles files;
+
+    @Before
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        file = File.createTempFile("bitcoinj-unit-test", null);
+        file.deleteOnExit();
+        WalletJournal.getJournalFile(file).deleteOnExit();
+        files = wallet.autosaveToFile(file, 0, TimeUnit.SECONDS, null);
+        files.setJournalEnabled(true);
+        files.saveNow();
+    }
+
+    @After
+    @Override
+    public void tearDown() throws Exception {
+        // Not through the wallet, which would wait for a queued save while holding the lock that save needs.
+        files.shutdownAndWait();
+        super.tearDown();
+    }
+
+    @Test
+    public void appendAndReplay() throws Exception {
+        Sha256Hash snapshot = Sha256Hash.of(file);
+        Transaction t1 = sendMoneyToWallet(AbstractBlockChain.NewBlockType.BEST_CHAIN, COIN);
+        ECKey key = wallet.freshReceiveKey();
+        Transaction send = wallet.createSend(OTHER_ADDRESS, CENT);
+        wallet.commitTx(send);
+        sendMoneyToWallet(AbstractBlockChain.NewBlockType.BEST_CHAIN, valueOf(0, 50));
+        files.saveNow();
+
+        // Nothing but the journal was written.
+        assertEquals(snapshot, Sha256Hash.of(file));
+        assertTrue(files.getJournal().getRecords() > 0);
+        assertEquals(0, Wallet.loadFromFile(file).getTransactions(true).size());
+
+        Wallet loaded = WalletJournal.loadFromFile(file);
+        assertEquals(wallet.getTransactions(true).size(), loaded.getTransactions(true).size());
+        assertEquals(wallet.getBalance(Wallet.BalanceType.ESTIMATED), loaded.getBalance(Wallet.BalanceType.ESTIMATED));
+        assertEquals(wallet.getBalance(), loaded.getBalance());
+        assertEquals(wallet.getLastBlockSeenHash(), loaded.getLastBlockSeenHash());
+        assertEquals(WalletTransaction.Pool.PENDING, poolOf(loaded, send));
+        assertEquals(WalletTransaction.Pool.SPENT, poolOf(loaded, t1));
+        // The depth of the first transaction was only derived from the block height.
+        assertEquals(2, loaded.getTransaction(t1.getHash()).getConfidence().getDepthInBlocks());
+        assertTrue(loaded.isPubKeyMine(key.getPubKey()));
+        assertEquals(wallet.getActiveKeyChain().getIssuedExternalKeys(),
+                loaded.getActiveKeyChain().getIssuedExternalKeys());
+        assertTrue(loaded.isConsistent());
+    }
+
+    @Test
+    public void tornRecordIgnored() throws Exception {
+        sendMoneyToWallet(AbstractBlockChain.NewBlockType.BEST_CHAIN, COIN);
+        files.saveNow();
+        try (DataOutputStream output = new DataOutputStream(new FileOutputStream(WalletJournal.getJournalFile(file), true))) {
+            output.writeInt(1000);
+            output.writeInt(0);
+            output.write(new byte[10]);
+        }
+        Wallet loaded = WalletJournal.loadFromFile(file);
+        assertEquals(COIN, loaded.getBalance());
+    }
+
+    @Test
+    public void journalOfOlderSnapshotIgnored() throws Exception {
+        sendMoneyToWallet(AbstractBlockChain.NewBlockType.BEST_CHAIN, COIN);
+        files.saveNow();
+        // As if a compaction was interrupted after renaming the snapshot.
+        wallet.saveToFile(file);
+        sendMoneyToWallet(AbstractBlockChain.NewBlockType.BEST_CHAIN, COIN);
+        Wallet loaded = WalletJournal.loadFromFile(file);
+        assertEquals(COIN, loaded.getBalance());
+    }
+
+    @Test
+    public void resetCompacts() throws Exception {
+        sendMoneyToWallet(AbstractBlockChain.NewBlockType.BEST_CHAIN, COIN);
+        files.saveNow();
+        Sha256Hash snapshot = Sha256Hash.of(file);
+        // Removing transactions can't be journaled, so the snapshot is rewritten.
+        wallet.reset();
+        files.saveNow();
+        assertNotEquals(snapshot, Sha256Hash.of(file));
+        Wallet loaded = WalletJournal.loadFromFile(file);
+        assertEquals(0, loaded.getTransactions(true).size());
+    }
+
+    @Test
+    public void onlyChangedKeysJournaled() throws Exception {
+        List<Protos.Key> oldKeys = wallet.serializeKeyChainGroupToProtobuf();
+        for (int i = 0; i < 30; i++)
+            wallet.freshReceiveKey();
+        List<Protos.Key> newKeys = wallet.serializeKeyChainGroupToProtobuf();
+        Protos.Wallet.Builder delta = Protos.Wallet.newBuilder();
+        WalletJournal.addKeyChanges(delta, oldKeys, newKeys);
+        // The new lookahead keys and the external chain key with its issued count.
+        assertEquals(newKeys.size() - oldKeys.size() + 1, delta.getKeyCount());
+        assertEquals(newKeys, WalletJournal.applyKeyChanges(oldKeys, delta.buildPartial()));
+
+        // An imported key goes before the key chain.
+        wallet.importKey(new ECKey());
+        List<Protos.Key> importedKeys = wallet.serializeKeyChainGroupToProtobuf();
+        delta = Protos.Wallet.newBuilder();
+        WalletJournal.addKeyChanges(delta, newKeys, importedKeys);
+        assertEquals(1, delta.getKeyCount());
+        assertEquals(importedKeys, WalletJournal.applyKeyChanges(newKeys, delta.buildPartial()));
+
+        // Removed keys can only be journaled in full.
+        delta = Protos.Wallet.newBuilder();
+        WalletJournal.addKeyChanges(delta, importedKeys, newKeys);
+        assertEquals(newKeys, delta.getKeyList());
+        assertEquals(newKeys, WalletJournal.applyKeyChanges(importedKeys, delta.buildPartial()));
+
+        files.saveNow();
+        Wallet loaded = WalletJournal.loadFromFile(file);
+        assertEquals(importedKeys, loaded.serializeKeyChainGroupToProtobuf());
+        assertEquals(0, loaded.getExtensions().size());
+    }
+
+    @Test
+    public void listenerCalledOnAppend() throws Exception {
+        final List<File> files = Collections.synchronizedList(new ArrayList<File>());
+        final Thread testThread = Thread.currentThread();
+        final AtomicBoolean saving = new AtomicBoolean();
+        final AtomicBoolean lockedInListener = new AtomicBoolean();
+        this.files.setListener(new WalletFiles.Listener() {
+            @Override
+            public void onBeforeAutoSave(File tempFile) {
+                files.add(tempFile);
+                if (Thread.currentThread() == testThread && saving.get())
+                    lockedInListener.compareAndSet(false, wallet.lock.isHeldByCurrentThread());
+            }
+
+            @Override
+            public void onAfterAutoSave(File newlySavedFile) {
+                files.add(newlySavedFile);
+                if (Thread.currentThread() == testThread && saving.get())
+                    lockedInListener.compareAndSet(false, wallet.lock.isHeldByCurrentThread());
+            }
+        });
+        sendMoneyToWallet(AbstractBlockChain.NewBlockType.BEST_CHAIN, COIN);
+        wallet.freshReceiveKey();
+        saving.set(true);
+        this.files.saveNow();
+        saving.set(false);
+        // The autosave may have appended on its own as well, but every append is announced.
+        int records = this.files.getJournal().getRecords();
+        assertTrue(records > 0);
+        File journalFile = WalletJournal.getJournalFile(file);
+        List<File> expected = new ArrayList<>();
+        for (int i = 0; i < records; i++)
+            expected.addAll(Arrays.asList(journalFile, journalFile));
+        assertEquals(expected, files);
+        // The save made above doesn't lock the wallet, so neither may the listener calls it makes.
+        assertFalse(lockedInListener.get());
+    }
+
+    private static WalletTransaction.Pool poolOf(Wallet wallet, Transaction tx) {
+        for (WalletTransaction wtx : wallet.getWalletTransactions())
+            if (wtx.getTransaction().getHash().equals(tx.getHash()))
+                return wtx.getPool();
+        return null;
+    }
+}
@@ -567,6 +567,94 @@ public class WalletTest extends TestWithWallet {
         assertEquals(Coin.COIN.plus(Coin.COIN), wallet.getBalance(BalanceType.ESTIMATED));
     }
 
+    @Test
+    public void nonBlockingReads() throws Exception {
+        wallet.setNonBlockingReads(true);
+        sendMoneyToWallet(AbstractBlockChain.NewBlockType.BEST_CHAIN, COIN);
+        assertEquals(COIN, wallet.getBalance());
+
+        // While another thread holds the wallet lock, the balance is answered from the last snapshot.
+        final CountDownLatch locked = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        Thread writer = new Thread() {
+            @Override
+            public void run() {
+                wallet.lock.lock();
+                try {
+                    locked.countDown();
+                    release.await();
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                } finally {
+                    wallet.lock.unlock();
+                }
+            }
+        };
+        writer.start();
+        locked.await();
+        assertEquals(COIN, wallet.getBalance());
+        assertEquals(COIN, wallet.getBalance(BalanceType.ESTIMATED_SPENDABLE));
+        assertEquals(1, wallet.calculateAllSpendCandidates().size());
+        release.countDown();
+        writer.join();
+
+        // The snapshot follows changes without a query in between, and contended queries don't select coins.
+        wallet.setCoinSelector(new CoinSelector() {
+            @Override
+            public CoinSelection select(Coin target, List<TransactionOutput> candidates) {
+                assertTrue(wallet.lock.isHeldByCurrentThread());
+                return new DefaultCoinSelector().select(target, candidates);
+            }
+        });
+        sendMoneyToWallet(AbstractBlockChain.NewBlockType.BEST_CHAIN, COIN);
+        final CountDownLatch lockedAgain = new CountDownLatch(1);
+        final CountDownLatch releaseAgain = new CountDownLatch(1);
+        writer = new Thread() {
+            @Override
+            public void run() {
+                wallet.lock.lock();
+                try {
+                    lockedAgain.countDown();
+                    releaseAgain.await();
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                } finally {
+                    wallet.lock.unlock();
+                }
+            }
+        };
+        writer.start();
+        lockedAgain.await();
+        assertEquals(valueOf(2, 0), wallet.getBalance());
+        assertEquals(valueOf(2, 0), wallet.getBalance(BalanceType.AVAILABLE_SPENDABLE));
+        releaseAgain.countDown();
+        writer.join();
+        assertEquals(valueOf(2, 0), wallet.getBalance());
+        wallet.setNonBlockingReads(false);
+        assertEquals(valueOf(2, 0), wallet.getBalance());
+    }
+
+    @Test
+    public void cachedBalances() throws Exception {
+        sendMoneyToWallet(AbstractBlockChain.NewBlockType.BEST_CHAIN, COIN);
+        assertEquals(COIN, wallet.getBalance());
+        assertEquals(COIN, wallet.getBalance(BalanceType.ESTIMATED));
+
+        // The change of an unbroadcast spend is in the estimated balance but not yet available.
+        Transaction send = wallet.createSend(OTHER_ADDRESS, CENT);
+        wallet.commitTx(send);
+        Coin change = COIN.subtract(CENT).subtract(send.getFee());
+        assertEquals(change, wallet.getBalance(BalanceType.ESTIMATED));
+        assertEquals(ZERO, wallet.getBalance());
+
+        // Marking a broadcast doesn't notify the wallet, but the cached balance must still follow it.
+        send.getConfidence().markBroadcastBy(new PeerAddress(UNITTEST, InetAddress.getByAddress(new byte[]{1,2,3,4})));
+        assertEquals(ZERO, wallet.getBalance());
+        send.getConfidence().markBroadcastBy(new PeerAddress(UNITTEST, InetAddress.getByAddress(new byte[]{10,2,3,4})));
+        assertEquals(change, wallet.getBalance());
+        assertEquals(change, wallet.getBalance(BalanceType.ESTIMATED));
+    }
+
     // Intuitively you'd expect to be able to create a transaction with identical inputs and outputs and get an
     // identical result to Bitcoin Core. However the signatures are not deterministic - signing the same data
     // with the same key twice gives two different outputs. So we cannot prove bit-for-bit compatibility in this test